@@ -0,0 +1,277 @@
+/*
+ * CAL.
+ *  A P2P chat program that lets you communicate without any infrastructure.
+ *
+ *   Copyright (C) 2015  Foo-Manroot
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package common;
+
+import java.nio.ByteBuffer;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.IdentityHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * Pool of direct {@link ByteBuffer}s of the same size, so the buffers used to
+ * receive and send the packets can be reused instead of being allocated for
+ * each one of them.
+ *
+ * <p>
+ * Every buffer obtained with {@link #lease()} must be given back with
+ * {@link #release(ByteBuffer)} once it's no longer used, and mustn't be used
+ * after that. If a buffer isn't given back, it's simply collected as garbage,
+ * and a new one is allocated the next time.
+ *
+ * <p>
+ * To find the buffers that aren't given back, the leak detection can be
+ * enabled (for example, on the tests) with
+ * {@link #setLeakDetection(boolean)} or with the system property
+ * {@code cal.buffers.leakDetection}. Then, the place where every buffer not
+ * yet released was leased can be obtained with {@link #getLeaks()}.
+ */
+public class BufferPool {
+
+    /**
+     * Size of the buffers, in bytes.
+     */
+    private final int bufferSize;
+
+    /**
+     * Maximum number of free buffers kept on the pool.
+     */
+    private final int maxIdle;
+
+    /**
+     * Free buffers.
+     */
+    private final ConcurrentLinkedQueue<ByteBuffer> idle;
+
+    /**
+     * Number of buffers on {@code idle}.
+     */
+    private final AtomicInteger idleCount;
+
+    /**
+     * Number of buffers leased and not yet released.
+     */
+    private final AtomicInteger outstanding;
+
+    /**
+     * Number of buffers allocated by this pool.
+     */
+    private final LongAdder allocated;
+
+    /**
+     * Buffers leased and not yet released, with the place where they were
+     * leased. Only used when the leak detection is enabled.
+     */
+    private final Map<ByteBuffer, Throwable> leases;
+
+    /**
+     * If this attribute is <i>true</i>, the leased buffers are tracked.
+     */
+    private volatile boolean leakDetection;
+
+/* -------------------------------------- */
+/* ---- END OF ATTRIBUTE DECLARATION ---- */
+/* -------------------------------------- */
+
+    /**
+     * Constructor.
+     *
+     * @param bufferSize
+     *              Size of the buffers, in bytes.
+     *
+     * @param maxIdle
+     *              Maximum number of free buffers kept on the pool. The
+     *          buffers released when the pool is full are left to the garbage
+     *          collector.
+     */
+    public BufferPool (int bufferSize, int maxIdle) {
+
+        this.bufferSize = bufferSize;
+        this.maxIdle = maxIdle;
+        this.idle = new ConcurrentLinkedQueue<>();
+        this.idleCount = new AtomicInteger (0);
+        this.outstanding = new AtomicInteger (0);
+        this.allocated = new LongAdder();
+
+        /* ByteBuffer.equals() compares the contents, so the buffers are
+        compared by their identity */
+        this.leases = Collections.synchronizedMap (new IdentityHashMap<>());
+        this.leakDetection = Boolean.getBoolean ("cal.buffers.leakDetection");
+    }
+
+    /**
+     * Takes a free buffer from the pool, or allocates a new one if there's
+     * none. The buffer is cleared (its position is <b>0</b> and its limit, its
+     * capacity).
+     *
+     * @return
+     *              A direct buffer of {@code bufferSize} bytes.
+     */
+    public ByteBuffer lease () {
+
+        ByteBuffer buffer = idle.poll();
+
+        if (buffer == null) {
+
+            buffer = ByteBuffer.allocateDirect (bufferSize);
+            allocated.increment();
+        } else {
+
+            idleCount.decrementAndGet();
+            buffer.clear();
+        }
+
+        outstanding.incrementAndGet();
+
+        if (leakDetection) {
+
+            leases.put (buffer, new Throwable ("Buffer leased here"));
+        }
+
+        return buffer;
+    }
+
+    /**
+     * Gives back a buffer to the pool.
+     *
+     * @param buffer
+     *              The buffer obtained with {@link #lease()}. If it's
+     *          {@code null}, nothing is done.
+     *
+     * @throws IllegalStateException
+     *              If the leak detection is enabled and the buffer isn't
+     *          leased from this pool (for example, if it's released twice).
+     */
+    public void release (ByteBuffer buffer) {
+
+        if (buffer == null) {
+
+            return;
+        }
+
+        if (leakDetection && (leases.remove (buffer) == null)) {
+
+            throw new IllegalStateException ("Buffer not leased from this pool,"
+                                             + " or already released");
+        }
+
+        outstanding.decrementAndGet();
+
+        /* Only the buffers like the ones created by this pool are kept */
+        if (!buffer.isDirect() || (buffer.capacity() != bufferSize)) {
+
+            return;
+        }
+
+        if (idleCount.incrementAndGet() > maxIdle) {
+
+            idleCount.decrementAndGet();
+            return;
+        }
+
+        buffer.clear();
+        idle.offer (buffer);
+    }
+
+    /**
+     * Enables or disables the leak detection. While it's enabled, every lease
+     * is tracked (which is slower), so it should only be used on the tests.
+     *
+     * @param enabled
+     *              <i>true</i> to track the leased buffers.
+     */
+    public void setLeakDetection (boolean enabled) {
+
+        if (!enabled) {
+
+            leases.clear();
+        }
+
+        leakDetection = enabled;
+    }
+
+    /**
+     * Returns, for every buffer leased while the leak detection was enabled
+     * and not yet released, a {@link Throwable} with the stack trace of the
+     * place where it was leased.
+     *
+     * @return
+     *              A list with the place of every leaked buffer.
+     */
+    public List<Throwable> getLeaks () {
+
+        synchronized (leases) {
+
+            return new ArrayList<> (leases.values());
+        }
+    }
+
+/* ----------------------------- */
+/* ---- GETTERS AND SETTERS ---- */
+/* ----------------------------- */
+
+    /**
+     * Returns the size of the buffers.
+     *
+     * @return
+     *              The value of {@code bufferSize}.
+     */
+    public int getBufferSize () {
+
+        return bufferSize;
+    }
+
+    /**
+     * Returns the number of buffers leased and not yet released.
+     *
+     * @return
+     *              The value of {@code outstanding}.
+     */
+    public int getOutstanding () {
+
+        return outstanding.get();
+    }
+
+    /**
+     * Returns the number of free buffers on the pool.
+     *
+     * @return
+     *              The value of {@code idleCount}.
+     */
+    public int getIdle () {
+
+        return idleCount.get();
+    }
+
+    /**
+     * Returns the number of buffers allocated by the pool so far.
+     *
+     * @return
+     *              The value of {@code allocated}.
+     */
+    public long getAllocated () {
+
+        return allocated.sum();
+    }
+}
@@ -21,6 +21,7 @@ package common;
 
 import commands.Parser;
 import control.ConnectionObserver;
+import control.RetransmissionScheduler;
 import files.FileObserver;
 import gui.utils.LangChangeObserver;
 import gui.main.PeerGUI;
@@ -48,6 +49,13 @@ public class Common {
      */
     public static final int BUFF_SIZE = 2048;
 
+    /**
+     * Maximum size of a datagram (in Bytes): the largest UDP payload over
+     * IPv4. Only the peers with the {@code Capabilities.LARGE} capability
+     * receive datagrams larger than {@link #BUFF_SIZE}.
+     */
+    public static final int MAX_DATAGRAM_SIZE = 65507;
+
     /**
      * Route to the default file where the hosts information will be stored.
      */
@@ -69,7 +77,27 @@ public class Common {
      * Observer for the file transfers.
      */
     public static final FileObserver fileObserver = FileObserver.newObserver();
-    
+
+    /**
+     * Pool of the buffers used to receive and send the packets.
+     */
+    public static final BufferPool bufferPool = new BufferPool (BUFF_SIZE, 1024);
+
+    /**
+     * Pool of the buffers used to receive the datagrams (that can be larger
+     * than {@link #BUFF_SIZE}) and to send the large ones. Only a few of them
+     * are needed at once.
+     */
+    public static final BufferPool largeBufferPool = new BufferPool (MAX_DATAGRAM_SIZE, 16);
+
+    /**
+     * Scheduler of the retransmissions of all the reliable packets sent by
+     * the peer. With ticks of 10 milliseconds, a turn of its wheel takes 10.24
+     * seconds.
+     */
+    public static final RetransmissionScheduler retransmissions =
+                            new RetransmissionScheduler (10, 1024, "Retransmission timer");
+
     /**
      * Current room of
      */
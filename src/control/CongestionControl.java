@@ -0,0 +1,315 @@
+/*
+ * CAL.
+ *  A P2P chat program that lets you communicate without any infrastructure.
+ *
+ *   Copyright (C) 2015  Foo-Manroot
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package control;
+
+/**
+ * Congestion controller of the bulk transfers to a host: limits the bytes in
+ * flight to a congestion window, that grows while the acknowledgements arrive
+ * and shrinks when a loss is detected.
+ *
+ * <p>
+ * Every host has its own controller (see {@code Host.congestionControl}), and
+ * the windowed file transfers ask it before sending a new chunk. The way the
+ * window changes is given by the subclasses: {@link NewReno} shares the link
+ * with the rest of the traffic, and {@link Ledbat} yields to it for the
+ * transfers on the background.
+ *
+ * <p>
+ * All the sizes are in bytes and all the times in milliseconds.
+ */
+public abstract class CongestionControl {
+
+    /**
+     * Minimum congestion window, in segments.
+     */
+    public static final int MIN_SEGMENTS = 2;
+
+    /**
+     * Size of a segment (the largest chunk sent), in bytes.
+     */
+    protected final int segmentSize;
+
+    /**
+     * Congestion window, in bytes. It's a decimal number, so the small
+     * increases of every acknowledgement aren't lost.
+     */
+    protected float window;
+
+    /**
+     * Bytes sent whose acknowledgement hasn't arrived yet.
+     */
+    protected int inFlight;
+
+    /**
+     * Number of losses that made the window shrink.
+     */
+    protected int lossEvents;
+
+    /**
+     * Number of retransmission timeouts.
+     */
+    protected int timeouts;
+
+/* -------------------------------------- */
+/* ---- END OF ATTRIBUTE DECLARATION ---- */
+/* -------------------------------------- */
+
+    /**
+     * Constructor. The initial window is the one described in
+     * <a href="https://tools.ietf.org/html/rfc6928">RFC 6928</a>.
+     *
+     * @param segmentSize
+     *              Size of the largest chunk sent, in bytes.
+     */
+    protected CongestionControl (int segmentSize) {
+
+        this.segmentSize = segmentSize;
+
+        window = Math.min (10 * segmentSize, Math.max (MIN_SEGMENTS * segmentSize, 14600));
+        inFlight = 0;
+        lossEvents = 0;
+        timeouts = 0;
+    }
+
+    /**
+     * Checks if the given bytes can be sent without exceeding the window. If
+     * nothing is in flight, they can always be sent.
+     *
+     * @param bytes
+     *              Size of the chunk.
+     *
+     *
+     * @return
+     *              <i>true</i> if the chunk can be sent.
+     */
+    public synchronized boolean canSend (int bytes) {
+
+        return (inFlight == 0) || (inFlight + bytes <= window);
+    }
+
+    /**
+     * Takes the given bytes as sent.
+     *
+     * @param bytes
+     *              Size of the chunk.
+     */
+    public synchronized void onSent (int bytes) {
+
+        inFlight += bytes;
+    }
+
+    /**
+     * Takes the given bytes as acknowledged, and makes the window grow.
+     *
+     * @param bytes
+     *              Bytes acknowledged.
+     *
+     * @param sampleRTT
+     *              Round trip time measured with the acknowledgement, or
+     *          <b>-1</b> if it hasn't been measured (the chunk had been sent
+     *          more than once).
+     *
+     * @param now
+     *              Current date.
+     */
+    public synchronized void onAck (int bytes, float sampleRTT, long now) {
+
+        int flight = inFlight;
+
+        inFlight = Math.max (0, inFlight - bytes);
+
+        if (sampleRTT >= 0) {
+
+            delay (sampleRTT, now);
+        }
+
+        increase (bytes, flight);
+    }
+
+    /**
+     * Takes the given bytes as out of the network without being acknowledged
+     * (for example, when a transfer is cancelled).
+     *
+     * @param bytes
+     *              Bytes that were in flight.
+     */
+    public synchronized void onAbandon (int bytes) {
+
+        inFlight = Math.max (0, inFlight - bytes);
+    }
+
+    /**
+     * Makes the window shrink after a loss detected by the acknowledgements
+     * (fast retransmit). It must be called once for every window of data, not
+     * for every lost chunk.
+     *
+     * @param now
+     *              Current date.
+     */
+    public synchronized void onLoss (long now) {
+
+        lossEvents++;
+
+        decrease ();
+    }
+
+    /**
+     * Makes the window collapse after a retransmission timeout.
+     *
+     * @param now
+     *              Current date.
+     */
+    public synchronized void onTimeout (long now) {
+
+        timeouts++;
+
+        collapse ();
+    }
+
+    /**
+     * Gives a new round trip time, measured by other messages sent to the
+     * host (for example, the answers to the reliable messages).
+     *
+     * @param sampleRTT
+     *              The measured round trip time.
+     *
+     * @param now
+     *              Current date.
+     */
+    public synchronized void onRTT (float sampleRTT, long now) {
+
+        delay (sampleRTT, now);
+    }
+
+/* ----------------------------- */
+/* ---- GETTERS AND SETTERS ---- */
+/* ----------------------------- */
+
+    /**
+     * Returns the congestion window.
+     *
+     * @return
+     *              The congestion window, in bytes.
+     */
+    public synchronized int getWindow () {
+
+        return (int) window;
+    }
+
+    /**
+     * Returns the bytes in flight.
+     *
+     * @return
+     *              The value of {@code inFlight}.
+     */
+    public synchronized int getInFlight () {
+
+        return inFlight;
+    }
+
+    /**
+     * Returns the number of losses that made the window shrink.
+     *
+     * @return
+     *              The value of {@code lossEvents}.
+     */
+    public synchronized int getLossEvents () {
+
+        return lossEvents;
+    }
+
+    /**
+     * Returns the number of retransmission timeouts.
+     *
+     * @return
+     *              The value of {@code timeouts}.
+     */
+    public synchronized int getTimeouts () {
+
+        return timeouts;
+    }
+
+    /**
+     * Returns the size of a segment.
+     *
+     * @return
+     *              The value of {@code segmentSize}, in bytes.
+     */
+    public int getSegmentSize () {
+
+        return segmentSize;
+    }
+
+    /**
+     * Checks whether this controller yields to the rest of the traffic.
+     *
+     * @return
+     *              <i>true</i> for the low priority controllers, used on the
+     *          background transfers.
+     */
+    public abstract boolean isBackground ();
+
+    @Override
+    public synchronized String toString () {
+
+        return getClass().getSimpleName()
+                + ": window " + (int) window + " bytes"
+                + ", in flight " + inFlight + " bytes"
+                + ", " + lossEvents + " losses"
+                + ", " + timeouts + " timeouts";
+    }
+
+/* --------------------- */
+/* ---- AUX METHODS ---- */
+/* --------------------- */
+
+    /**
+     * Makes the window grow after an acknowledgement.
+     *
+     * @param bytes
+     *              Bytes acknowledged.
+     *
+     * @param flight
+     *              Bytes that were in flight before the acknowledgement.
+     */
+    protected abstract void increase (int bytes, int flight);
+
+    /**
+     * Makes the window shrink after a loss.
+     */
+    protected abstract void decrease ();
+
+    /**
+     * Makes the window collapse after a retransmission timeout.
+     */
+    protected abstract void collapse ();
+
+    /**
+     * Stores a new round trip time. By default, it isn't used.
+     *
+     * @param sampleRTT
+     *              The measured round trip time.
+     *
+     * @param now
+     *              Current date.
+     */
+    protected void delay (float sampleRTT, long now) {
+    }
+}
@@ -0,0 +1,320 @@
+/*
+ * CAL.
+ *  A P2P chat program that lets you communicate without any infrastructure.
+ *
+ *   Copyright (C) 2015  Foo-Manroot
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package control;
+
+import java.net.InetAddress;
+import java.net.InetSocketAddress;
+import java.util.concurrent.ConcurrentHashMap;
+
+/**
+ * Detects the packets received more than once (for example, when the
+ * {@code ACK} was lost and the sender retransmitted the packet).
+ *
+ * <p>
+ * Every request sent on the compact framing carries an identifier, taken from
+ * the counter that its sender keeps for this receiver, that is the same on
+ * all its retransmissions. For
+ * every sender, a sliding window remembers which identifiers have been seen
+ * among the last ones: the window moves forward with the highest identifier
+ * received, and the identifiers that are left behind it are taken as
+ * duplicates.
+ *
+ * <p>
+ * The identifiers wrap around at {@code 2^28}, like the ones written by
+ * {@link packets.PacketEncoder}.
+ */
+public class DuplicateFilter {
+
+    /**
+     * Windows of every sender, identified by its address and the port of its
+     * server.
+     */
+    private final ConcurrentHashMap<InetSocketAddress, Window> windows;
+
+    /**
+     * Number of identifiers remembered per sender. It's a power of two, not
+     * lower than 64, so the window doesn't break when the identifiers wrap
+     * around.
+     */
+    private final int size;
+
+    /**
+     * Mask to get the identifiers on their range (they wrap around at
+     * {@code 2^28}).
+     */
+    private static final int MASK = 0x0FFFFFFF;
+
+/* -------------------------------------- */
+/* ---- END OF ATTRIBUTE DECLARATION ---- */
+/* -------------------------------------- */
+
+    /**
+     * Constructor.
+     *
+     * @param size
+     *              Number of identifiers remembered per sender. It's rounded
+     *          up to a power of two, not lower than 64.
+     */
+    public DuplicateFilter (int size) {
+
+        int rounded = 64;
+
+        while (rounded < size) {
+
+            rounded <<= 1;
+        }
+
+        this.windows = new ConcurrentHashMap<>();
+        this.size = rounded;
+    }
+
+    /**
+     * Checks whether the request with the given identifier is received for
+     * the first time, and remembers it.
+     *
+     * @param address
+     *              Address of the sender.
+     *
+     * @param port
+     *              Port where the server of the sender is listening.
+     *
+     * @param requestId
+     *              Identifier of the request. If it's negative (the packet
+     *          doesn't have one), it can't be checked and it's always taken
+     *          as new.
+     *
+     *
+     * @return
+     *              <i>true</i> if the request hasn't been received before;
+     *          <i>false</i> if it's a duplicate (or it's too old to know).
+     */
+    public boolean accept (InetAddress address, int port, int requestId) {
+
+        Window window;
+
+        if ((address == null) || (requestId < 0)) {
+
+            return true;
+        }
+
+        window = windows.computeIfAbsent (new InetSocketAddress (address, port),
+                                          k -> new Window (size));
+
+        return window.accept (requestId & MASK);
+    }
+
+    /**
+     * Forgets a request accepted before, so it's taken as new when it's
+     * received again. It must be called when the request couldn't be handled
+     * (and wasn't acknowledged), so its retransmission isn't discarded.
+     *
+     * @param address
+     *              Address of the sender.
+     *
+     * @param port
+     *              Port where the server of the sender is listening.
+     *
+     * @param requestId
+     *              Identifier of the request. If it's negative, nothing is
+     *          done.
+     */
+    public void forget (InetAddress address, int port, int requestId) {
+
+        Window window;
+
+        if ((address == null) || (requestId < 0)) {
+
+            return;
+        }
+
+        window = windows.get (new InetSocketAddress (address, port));
+
+        if (window != null) {
+
+            window.forget (requestId & MASK);
+        }
+    }
+
+    /**
+     * Forgets the identifiers received from the given sender. It must be
+     * called when the sender starts again (for example, when it joins again
+     * with a {@code HELLO}), as its counter may have started again too.
+     *
+     * @param address
+     *              Address of the sender.
+     *
+     * @param port
+     *              Port where the server of the sender is listening.
+     */
+    public void reset (InetAddress address, int port) {
+
+        if (address != null) {
+
+            windows.remove (new InetSocketAddress (address, port));
+        }
+    }
+
+/* ------------------------- */
+/* ---- AUXILIARY CLASS ---- */
+/* ------------------------- */
+
+    /**
+     * Identifiers seen from one sender.
+     */
+    private static final class Window {
+
+        /**
+         * Bitmap with the identifiers seen. The identifier {@code id} is on
+         * the bit {@code id % size}, while it's inside the window.
+         */
+        private final long [] bits;
+
+        /**
+         * Highest identifier received, or <b>-1</b> if none has been received
+         * yet.
+         */
+        private int highest;
+
+        /**
+         * Constructor.
+         *
+         * @param size
+         *              Number of identifiers remembered (a power of two, not
+         *          lower than 64).
+         */
+        private Window (int size) {
+
+            this.bits = new long [size / 64];
+            this.highest = -1;
+        }
+
+        /**
+         * Checks and marks the given identifier.
+         *
+         * @param id
+         *              The identifier, inside the range of {@code MASK}.
+         *
+         *
+         * @return
+         *              <i>true</i> if it hasn't been seen before.
+         */
+        private synchronized boolean accept (int id) {
+
+            int size = bits.length * 64;
+            int ahead;
+            int behind;
+
+            if (highest < 0) {
+
+                highest = id;
+                set (id);
+
+                return true;
+            }
+
+            /* Distance, on both directions, taking into account the wrap
+            around of the identifiers */
+            ahead = (id - highest) & MASK;
+            behind = (highest - id) & MASK;
+
+            if ((ahead != 0) && (ahead <= behind)) {
+
+                /* Moves the window forward, clearing the identifiers that
+                are now inside it */
+                for (int i = 1; (i <= ahead) && (i <= size); i++) {
+
+                    clear ((highest + i) & MASK);
+                }
+
+                highest = id;
+                set (id);
+
+                return true;
+            }
+
+            if ((behind >= size) || isSet (id)) {
+
+                return false;
+            }
+
+            set (id);
+
+            return true;
+        }
+
+        /**
+         * Unmarks the given identifier, if it's still inside the window.
+         *
+         * @param id
+         *              The identifier, inside the range of {@code MASK}.
+         */
+        private synchronized void forget (int id) {
+
+            if ((highest >= 0) &&
+                (((highest - id) & MASK) < bits.length * 64)) {
+
+                clear (id);
+            }
+        }
+
+        /**
+         * Checks whether the bit of the given identifier is set.
+         *
+         * @param id
+         *              The identifier.
+         *
+         *
+         * @return
+         *              <i>true</i> if it has been seen.
+         */
+        private boolean isSet (int id) {
+
+            int bit = id % (bits.length * 64);
+
+            return (bits [bit >>> 6] & (1L << (bit & 63))) != 0;
+        }
+
+        /**
+         * Sets the bit of the given identifier.
+         *
+         * @param id
+         *              The identifier.
+         */
+        private void set (int id) {
+
+            int bit = id % (bits.length * 64);
+
+            bits [bit >>> 6] |= (1L << (bit & 63));
+        }
+
+        /**
+         * Clears the bit of the given identifier.
+         *
+         * @param id
+         *              The identifier.
+         */
+        private void clear (int id) {
+
+            int bit = id % (bits.length * 64);
+
+            bits [bit >>> 6] &= ~(1L << (bit & 63));
+        }
+    }
+}
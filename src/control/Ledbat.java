@@ -0,0 +1,255 @@
+/*
+ * CAL.
+ *  A P2P chat program that lets you communicate without any infrastructure.
+ *
+ *   Copyright (C) 2015  Foo-Manroot
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package control;
+
+import java.util.Arrays;
+
+/**
+ * Low priority congestion control, based on LEDBAT
+ * (<a href="https://tools.ietf.org/html/rfc6817">RFC 6817</a>), for the
+ * transfers on the background.
+ *
+ * <p>
+ * The window grows while the queuing delay (the difference between the
+ * current delay and the lowest one seen) is below a target, and shrinks when
+ * it's above it. As soon as other traffic (like the chat messages) fills the
+ * queues of the path, the transfer slows down and leaves room for it.
+ *
+ * <p>
+ * The packets don't carry timestamps, so the round trip time is used instead
+ * of the one-way delay of the RFC. It makes the controller also react to the
+ * queues of the opposite direction.
+ */
+public class Ledbat extends CongestionControl {
+
+    /**
+     * Default target of the queuing delay, in milliseconds (the highest one
+     * allowed by the RFC).
+     */
+    public static final float TARGET = 100;
+
+    /**
+     * Increase of the window, in segments, on every round trip with no
+     * queuing delay.
+     */
+    private static final float GAIN = 1;
+
+    /**
+     * Maximum number of segments over the bytes in flight that the window can
+     * have.
+     */
+    private static final int ALLOWED_INCREASE = 1;
+
+    /**
+     * Number of intervals whose lowest delay is kept. The base delay is the
+     * lowest one of all of them, so a change of the route is noticed after
+     * {@code BASE_HISTORY} intervals.
+     */
+    private static final int BASE_HISTORY = 10;
+
+    /**
+     * Duration of every interval of the history of the base delay, in
+     * milliseconds.
+     */
+    private static final long BASE_INTERVAL = 60000;
+
+    /**
+     * Number of the last delays whose lowest value is taken as the current
+     * delay, to filter out the noise.
+     */
+    private static final int CURRENT_FILTER = 4;
+
+    /**
+     * Target of the queuing delay, in milliseconds.
+     */
+    private final float target;
+
+    /**
+     * Lowest delay of every interval.
+     */
+    private final float [] baseDelays;
+
+    /**
+     * Position of the current interval on {@code baseDelays}.
+     */
+    private int baseIndex;
+
+    /**
+     * Date when the current interval began, or <b>-1</b> if no delay has been
+     * measured.
+     */
+    private long baseStart;
+
+    /**
+     * Last delays measured.
+     */
+    private final float [] currentDelays;
+
+    /**
+     * Number of delays measured, up to {@code CURRENT_FILTER}.
+     */
+    private int currentCount;
+
+    /**
+     * Position of the next delay on {@code currentDelays}.
+     */
+    private int currentIndex;
+
+/* -------------------------------------- */
+/* ---- END OF ATTRIBUTE DECLARATION ---- */
+/* -------------------------------------- */
+
+    /**
+     * Constructor, with the default target.
+     *
+     * @param segmentSize
+     *              Size of the largest chunk sent, in bytes.
+     */
+    public Ledbat (int segmentSize) {
+
+        this (segmentSize, TARGET);
+    }
+
+    /**
+     * Constructor.
+     *
+     * @param segmentSize
+     *              Size of the largest chunk sent, in bytes.
+     *
+     * @param target
+     *              Target of the queuing delay, in milliseconds.
+     */
+    public Ledbat (int segmentSize, float target) {
+
+        super (segmentSize);
+
+        this.target = target;
+
+        baseDelays = new float [BASE_HISTORY];
+        baseIndex = 0;
+        baseStart = -1;
+
+        currentDelays = new float [CURRENT_FILTER];
+        currentCount = 0;
+        currentIndex = 0;
+
+        Arrays.fill (baseDelays, Float.MAX_VALUE);
+    }
+
+    /**
+     * Returns the queuing delay: the current delay minus the base one.
+     *
+     * @return
+     *              The queuing delay, in milliseconds, or <b>0</b> if no delay
+     *          has been measured yet.
+     */
+    public synchronized float getQueuingDelay () {
+
+        float current = Float.MAX_VALUE;
+
+        if (currentCount == 0) {
+
+            return 0;
+        }
+
+        for (int i = 0; i < currentCount; i++) {
+
+            current = Math.min (current, currentDelays [i]);
+        }
+
+        return Math.max (0, current - getBaseDelay ());
+    }
+
+    /**
+     * Returns the base delay: the lowest one seen on the last intervals.
+     *
+     * @return
+     *              The base delay, in milliseconds, or {@code Float.MAX_VALUE}
+     *          if no delay has been measured yet.
+     */
+    public synchronized float getBaseDelay () {
+
+        float base = Float.MAX_VALUE;
+
+        for (float delay : baseDelays) {
+
+            base = Math.min (base, delay);
+        }
+
+        return base;
+    }
+
+    @Override
+    public boolean isBackground () {
+
+        return true;
+    }
+
+/* --------------------- */
+/* ---- AUX METHODS ---- */
+/* --------------------- */
+
+    @Override
+    protected void increase (int bytes, int flight) {
+
+        float offTarget = (target - getQueuingDelay ()) / target;
+
+        window += GAIN * offTarget * bytes * segmentSize / window;
+
+        /* The window can't grow much beyond what's really being sent */
+        window = Math.min (window, flight + ALLOWED_INCREASE * segmentSize);
+        window = Math.max (window, MIN_SEGMENTS * segmentSize);
+    }
+
+    @Override
+    protected void decrease () {
+
+        window = Math.max (window / 2, MIN_SEGMENTS * segmentSize);
+    }
+
+    @Override
+    protected void collapse () {
+
+        window = segmentSize;
+    }
+
+    @Override
+    protected void delay (float sampleRTT, long now) {
+
+        if (baseStart < 0) {
+
+            baseStart = now;
+        }
+
+        /* A new interval forgets the oldest one */
+        if (now - baseStart >= BASE_INTERVAL) {
+
+            baseIndex = (baseIndex + 1) % BASE_HISTORY;
+            baseDelays [baseIndex] = Float.MAX_VALUE;
+            baseStart = now;
+        }
+
+        baseDelays [baseIndex] = Math.min (baseDelays [baseIndex], sampleRTT);
+
+        currentDelays [currentIndex] = sampleRTT;
+        currentIndex = (currentIndex + 1) % CURRENT_FILTER;
+        currentCount = Math.min (currentCount + 1, CURRENT_FILTER);
+    }
+}
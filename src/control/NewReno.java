@@ -0,0 +1,113 @@
+/*
+ * CAL.
+ *  A P2P chat program that lets you communicate without any infrastructure.
+ *
+ *   Copyright (C) 2015  Foo-Manroot
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package control;
+
+/**
+ * Additive increase, multiplicative decrease congestion control, as the one
+ * of TCP NewReno (<a href="https://tools.ietf.org/html/rfc5681">RFC 5681</a>
+ * and <a href="https://tools.ietf.org/html/rfc6582">RFC 6582</a>).
+ *
+ * <p>
+ * The window doubles on every round trip (slow start) until it reaches the
+ * threshold, and then grows one segment on every round trip. A loss halves
+ * it, and a timeout makes it start again from one segment.
+ *
+ * <p>
+ * NewReno only reacts once to all the chunks lost on the same window of data;
+ * the windowed transfers keep track of it (see {@code SendWindow}).
+ */
+public class NewReno extends CongestionControl {
+
+    /**
+     * Maximum increase of the window for every acknowledgement during slow
+     * start, in segments (appropriate byte counting, as described in
+     * <a href="https://tools.ietf.org/html/rfc3465">RFC 3465</a>).
+     */
+    private static final int ABC_LIMIT = 2;
+
+    /**
+     * Slow start threshold, in bytes.
+     */
+    private float threshold;
+
+/* -------------------------------------- */
+/* ---- END OF ATTRIBUTE DECLARATION ---- */
+/* -------------------------------------- */
+
+    /**
+     * Constructor.
+     *
+     * @param segmentSize
+     *              Size of the largest chunk sent, in bytes.
+     */
+    public NewReno (int segmentSize) {
+
+        super (segmentSize);
+
+        threshold = Float.MAX_VALUE;
+    }
+
+    /**
+     * Checks whether the window is on slow start.
+     *
+     * @return
+     *              <i>true</i> if the window is below the threshold.
+     */
+    public synchronized boolean isSlowStart () {
+
+        return window < threshold;
+    }
+
+    @Override
+    public boolean isBackground () {
+
+        return false;
+    }
+
+/* --------------------- */
+/* ---- AUX METHODS ---- */
+/* --------------------- */
+
+    @Override
+    protected void increase (int bytes, int flight) {
+
+        if (window < threshold) {
+
+            window += Math.min (bytes, ABC_LIMIT * segmentSize);
+        } else {
+
+            window += (float) segmentSize * bytes / window;
+        }
+    }
+
+    @Override
+    protected void decrease () {
+
+        threshold = Math.max (inFlight / 2f, MIN_SEGMENTS * segmentSize);
+        window = threshold;
+    }
+
+    @Override
+    protected void collapse () {
+
+        threshold = Math.max (inFlight / 2f, MIN_SEGMENTS * segmentSize);
+        window = segmentSize;
+    }
+}
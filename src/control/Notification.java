@@ -19,12 +19,14 @@
  */
 package control;
 
-import common.Common;
 import packets.ControlMessage;
 import packets.PacketChecker;
+import packets.PacketView;
 import java.net.DatagramPacket;
 import java.net.InetAddress;
 import java.util.Date;
+import java.util.EnumMap;
+import java.util.concurrent.CompletableFuture;
 
 /**
  * When the client-side of a peer sends any message and must wait for a 
@@ -45,6 +47,35 @@ public class Notification {
      */
     public static final byte CONT_DATA = 2;
     
+    /**
+     * Time (in milliseconds) after which a notification expires, if there's 
+     * no specific value for its message on {@link #EXPIRY_TIMES}.
+     * 
+     * <p>
+     * 600000 milliseconds = 600 seconds (10 minutes).
+     */
+    public static final long DEFAULT_EXPIRY_TIME = 600000;
+    
+    /**
+     * Time (in milliseconds) after which a notification expires, depending 
+     * on the expected message.
+     */
+    private static final EnumMap<ControlMessage, Long> EXPIRY_TIMES;
+    
+    static {
+        
+        EXPIRY_TIMES = new EnumMap<>(ControlMessage.class);
+        
+        /* The answers to a request come back in some RTT */
+        EXPIRY_TIMES.put(ControlMessage.ACK, 30000L);
+        EXPIRY_TIMES.put(ControlMessage.HOSTS_RESP, 30000L);
+        EXPIRY_TIMES.put(ControlMessage.CHNG_DF_RESP, 30000L);
+        
+        /* The continuations of a message come after the previous part is 
+        processed */
+        EXPIRY_TIMES.put(ControlMessage.CONT, 60000L);
+    }
+    
 /* ---------------------------------- */
 /* ---- END OF STATIC ATTRIBUTES ---- */
 /* ---------------------------------- */
@@ -54,7 +85,7 @@ public class Notification {
      * notification refers to hasn't been received yet. If it has been received,
      * this attribute must be set to <i>true</i>.
      */
-    private boolean received = false;
+    private volatile boolean received = false;
     
     /**
      * Date when this notification was created.
@@ -82,10 +113,34 @@ public class Notification {
      */
     private final byte sourceDataFlow;
     
+    /**
+     * Identifier of the request, that must be echoed on the answer. If the
+     * request hasn't got an identifier (it has been sent to a legacy peer),
+     * this value is {@code -1}.
+     */
+    private int requestId;
+    
     /**
      * Expected value of the arguments, if any.
      */
     private final byte [] args;
+    
+    /**
+     * Time (in milliseconds) after which this notification is removed from 
+     * the {@link NotificationTable}, if no answer has been received.
+     */
+    private long expiryTime;
+    
+    /**
+     * Expiration of this notification, while it's on a 
+     * {@link NotificationTable}.
+     */
+    TimingWheel.Timeout timeout;
+    
+    /**
+     * Future completed with this notification when the answer is received.
+     */
+    private final CompletableFuture<Notification> answer = new CompletableFuture<>();
         
 /* --------------------------------------- */
 /* ---- END OF ATTRIBUTES DECLARATION ---- */
@@ -113,6 +168,8 @@ public class Notification {
         this.message = message;
         args = null;
         sourcePort = -1;
+        requestId = -1;
+        expiryTime = getExpiryTime(message);
     }
     
     /**
@@ -141,6 +198,8 @@ public class Notification {
         this.message = message;
         this.args = args;
         sourcePort = -1;
+        requestId = -1;
+        expiryTime = getExpiryTime(message);
     }
     
     /**
@@ -160,9 +219,7 @@ public class Notification {
      */
     public boolean checkPacket (DatagramPacket packet) {
         
-        byte [] data,
-                portAux = new byte [4];
-        int port = -1;
+        PacketView view;
                 
         if (packet == null ||
             packet.getAddress() == null || 
@@ -171,30 +228,99 @@ public class Notification {
             return false;
         }
         
-        /* Gets the data of the packet */
-        data = new byte [packet.getLength()];
-        System.arraycopy(packet.getData(), 0,
-                         data, 0,
-                         packet.getLength());
+        /* Looks at the data of the packet, without copying it */
+        view = PacketView.of (packet);
         
-        /* If a port number is expected, gets it (if it's possible) */
-        if ( (sourcePort > 0) &&
-             (data.length >= (message.getLength() + portAux.length)) ) {
+        return checkPacket (view, view.message());
+    }
+    
+    /**
+     * Checks the given packet, whose type has already been determined, and 
+     * returns <i>true</i> if it is the one that corresponds to this 
+     * notification. 
+     * 
+     * <p>
+     * This method should be used when the packet has already been classified 
+     * (for example, by the handler of the packet), so the type isn't checked 
+     * again for every waiting notification.
+     * 
+     * <p>
+     * Also, if the packet is the correct one, sets the attribute 
+     * {@code received} to <i>true</i> (it's never set back to <i>false</i>).
+     * 
+     * @param packet 
+     *              Packet to be checked.
+     * 
+     * @param type 
+     *              The {@link ControlMessage} stored on the packet, as returned
+     *          by {@link PacketChecker#checkPacket(byte[])}.
+     * 
+     * @return 
+     *              <i>true</i> if it's the answer corresponding to this
+     *          notification, or <i>false</i> if it isn't.
+     */
+    public boolean checkPacket (DatagramPacket packet, ControlMessage type) {
+        
+        if (packet == null ||
+            packet.getAddress() == null || 
+            packet.getData() == null) {
             
-            System.arraycopy (data, message.getLength(),
-                              portAux, 0,
-                              portAux.length);
+            return false;
+        }
+        
+        return checkPacket (PacketView.of (packet), type);
+    }
+    
+    /**
+     * Checks the packet on the given view, whose type has already been 
+     * determined, and returns <i>true</i> if it is the one that corresponds to
+     * this notification. 
+     * 
+     * <p>
+     * Also, if the packet is the correct one, sets the attribute 
+     * {@code received} to <i>true</i> (it's never set back to <i>false</i>).
+     * 
+     * @param view 
+     *              View over the packet to be checked.
+     * 
+     * @param type 
+     *              The {@link ControlMessage} stored on the packet, as returned
+     *          by {@link PacketView#message()}.
+     * 
+     * @return 
+     *              <i>true</i> if it's the answer corresponding to this
+     *          notification, or <i>false</i> if it isn't.
+     */
+    public boolean checkPacket (PacketView view, ControlMessage type) {
+        
+        int port = -1;
+                
+        if (view == null ||
+            view.getAddress() == null || 
+            view.getLength() < 2 ||
+            type != message) {
             
-            port = Common.arrayToInt(portAux);
+            return false;
+        }
+        
+        /* If a port number is expected, gets it (if it's possible) */
+        if (sourcePort > 0) {
+            
+            port = (type == view.message())?
+                        view.replyPort() :
+                        view.getInt (message.getLength());
         }        
         
-        return (received = (
-                            PacketChecker.checkPacket(data).equals(message) &&
-                            packet.getAddress().equals(sourceIP) &&
-                            (data[1] == sourceDataFlow) &&
-                            (port == sourcePort)
-                            )
-                );
+        if (view.getAddress().equals(sourceIP) &&
+            (view.dataFlow() == sourceDataFlow) &&
+            (port == sourcePort) &&
+            ((requestId < 0) || (view.requestId() == requestId))) {
+            
+            setReceived (true);
+            return true;
+        }
+        
+        return false;
     }
     
     /**
@@ -205,6 +331,7 @@ public class Notification {
      *      Creation date: (creation date)
      *      Source IP: (source address)
      *      Source data flow: (source data flow)
+     *      Request ID: (request identifier)
      *      Received: (true/false)
      *      Expected args.: (args)/No args.expected.
      * </pre>
@@ -220,6 +347,7 @@ public class Notification {
              + "\n\tCreation date: " + creationDate
              + "\n\tSource IP: " + sourceIP
              + "\n\tSource data flow: " + sourceDataFlow
+             + "\n\tRequest ID: " + requestId
              + "\n\tReceived: " + received);
         
         if (hasArgs()) {
@@ -239,6 +367,70 @@ public class Notification {
 /* ---- GETTERS AND SETTERS ---- */
 /* ----------------------------- */
     
+    /**
+     * Returns the time (in milliseconds) after which the notifications 
+     * waiting for the given message expire.
+     * 
+     * @param message 
+     *              The expected {@link ControlMessage}.
+     * 
+     * 
+     * @return 
+     *              The expiry time for that message.
+     */
+    public static long getExpiryTime (ControlMessage message) {
+        
+        synchronized (EXPIRY_TIMES) {
+            
+            return EXPIRY_TIMES.getOrDefault(message, DEFAULT_EXPIRY_TIME);
+        }
+    }
+    
+    /**
+     * Sets the time (in milliseconds) after which the new notifications 
+     * waiting for the given message expire.
+     * 
+     * @param message 
+     *              The expected {@link ControlMessage}.
+     * 
+     * @param expiryTime 
+     *              The new expiry time for that message.
+     */
+    public static void setExpiryTime (ControlMessage message, long expiryTime) {
+        
+        synchronized (EXPIRY_TIMES) {
+            
+            EXPIRY_TIMES.put(message, expiryTime);
+        }
+    }
+    
+    /**
+     * Returns the time (in milliseconds) after which this notification 
+     * expires.
+     *
+     * @return
+     *              the value of {@code expiryTime}.
+     */
+    public long getExpiryTime () {
+        
+        return expiryTime;
+    }
+    
+    /**
+     * Sets the time (in milliseconds) after which this notification expires.
+     * 
+     * <p>
+     * It must be set before adding this notification to a 
+     * {@link NotificationTable}.
+     *
+     * @param expiryTime 
+     *              New value of {@code expiryTime}.
+     */
+    public void setExpiryTime (long expiryTime) {
+        
+        this.expiryTime = expiryTime;
+    }
+    
     /**
      * Returns the date when this notification was created.
      *
@@ -263,7 +455,8 @@ public class Notification {
     }
 
     /**
-     * Set the value of received
+     * Set the value of received. If it's <i>true</i>, the future returned by 
+     * {@link #getAnswer()} is completed.
      *
      * @param received 
      *              New value of {@code received}.
@@ -271,6 +464,23 @@ public class Notification {
     public void setReceived (boolean received) {
         
         this.received = received;
+        
+        if (received) {
+            
+            answer.complete(this);
+        }
+    }
+    
+    /**
+     * Returns a future that will be completed with this notification when the
+     * answer is received.
+     * 
+     * @return 
+     *              The value of {@code answer}.
+     */
+    public CompletableFuture<Notification> getAnswer () {
+        
+        return answer;
     }
 
     
@@ -296,6 +506,17 @@ public class Notification {
         return (args != null);
     }
     
+    /**
+     * Returns the message expected as the answer.
+     * 
+     * @return 
+     *              The value of {@code message}.
+     */
+    public ControlMessage getMessage () {
+        
+        return this.message;
+    }
+    
     /**
      * Returns the source address from which the answer must come.
      * 
@@ -334,6 +555,10 @@ public class Notification {
      * Sets the value of the expected argument representing a port number 
      * (normally, the 4 bytes after the control message).
      * 
+     * <p>
+     * The port must be set before adding this notification to a 
+     * {@link NotificationTable}, as it's used to index it.
+     * 
      * @param newValue 
      *              The new value for {@code sourcePort}.
      */
@@ -341,4 +566,32 @@ public class Notification {
         
         sourcePort = newValue;
     }
+    
+    /**
+     * Returns the identifier of the request, that must be echoed on the 
+     * answer.
+     * 
+     * @return 
+     *              The value of {@code requestId}.
+     */
+    public int getRequestId () {
+        
+        return this.requestId;
+    }
+    
+    /**
+     * Sets the identifier of the request, that must be echoed on the answer.
+     * 
+     * <p>
+     * The identifier must be set before adding this notification to a 
+     * {@link NotificationTable}, as it's used to index it.
+     * 
+     * @param newValue 
+     *              The new value for {@code requestId}, or {@code -1} if any 
+     *          answer is accepted.
+     */
+    public void setRequestId (int newValue) {
+        
+        requestId = newValue;
+    }
 }
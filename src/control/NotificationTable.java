@@ -0,0 +1,550 @@
+/*
+ * CAL.
+ *  A P2P chat program that lets you communicate without any infrastructure.
+ *
+ *   Copyright (C) 2015  Foo-Manroot
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package control;
+
+import packets.ControlMessage;
+import packets.PacketView;
+import java.net.DatagramPacket;
+import java.net.InetAddress;
+import java.util.Date;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentLinkedQueue;
+
+/**
+ * Table with the notifications waiting for an answer.
+ *
+ * <p>
+ * The notifications are indexed by the fields that can be read from the
+ * answer (source address, data flow, expected {@link ControlMessage} and
+ * port and identifier of the request, echoed on the compact answers), so
+ * finding the one that corresponds to a received packet doesn't
+ * depend on the number of waiting notifications, and doesn't allocate any
+ * memory.
+ *
+ * <p>
+ * The expected arguments of a notification aren't part of the answer, so
+ * they can't be used to find it: the notifications that only differ on their
+ * arguments are stored together, and returned on the same order they were
+ * added.
+ */
+public class NotificationTable {
+
+    /**
+     * Notifications indexed by the fields of the expected answer.
+     */
+    private final ConcurrentHashMap<Key, ConcurrentLinkedQueue<Notification>> table;
+
+    /**
+     * Key used to search on the table, so no new object has to be created for
+     * every received packet.
+     */
+    private static final ThreadLocal<Key> PROBE = ThreadLocal.withInitial (Key::new);
+
+    /**
+     * Wheel used to remove the notifications when they expire. It's shared by
+     * all the tables.
+     *
+     * <p>
+     * With ticks of 100 milliseconds, a turn of the wheel takes 51.2 seconds.
+     */
+    private static final TimingWheel EXPIRY_WHEEL = new TimingWheel (100,
+                                                                     512,
+                                                                     "Notification expiry");
+
+/* -------------------------------------- */
+/* ---- END OF ATTRIBUTE DECLARATION ---- */
+/* -------------------------------------- */
+
+    /**
+     * Constructor.
+     */
+    public NotificationTable () {
+
+        table = new ConcurrentHashMap<>();
+    }
+
+    /**
+     * Adds a new notification to the table. If it wasn't already there, this
+     * method returns <i>true</i>.
+     *
+     * <p>
+     * The notification is removed after its expiry time, if it hasn't been
+     * removed before. Its port and expiry time mustn't be changed while it's
+     * on the table.
+     *
+     * @param notification
+     *              A notification with the message that must come back as a
+     *          response.
+     *
+     * @return
+     *              <i>true</i> if the element has been added; <i>false</i> if
+     *          it hasn't been added (if it was already on the table).
+     */
+    public boolean add (Notification notification) {
+
+        boolean [] added = {false};
+
+        table.compute (new Key (notification), (k, bucket) -> {
+
+            if (bucket == null) {
+
+                bucket = new ConcurrentLinkedQueue<>();
+            }
+
+            if (!bucket.contains (notification)) {
+
+                added [0] = bucket.add (notification);
+
+                notification.timeout = EXPIRY_WHEEL.schedule (
+                                            () -> remove (notification),
+                                            notification.getExpiryTime());
+            }
+
+            return bucket;
+        });
+
+        return added [0];
+    }
+
+    /**
+     * Removes the given notification from the table.
+     *
+     * @param notification
+     *              The notification to be removed (if it's on the table).
+     */
+    public void remove (Notification notification) {
+
+        table.computeIfPresent (new Key (notification), (k, bucket) -> {
+
+            if (bucket.remove (notification) &&
+                (notification.timeout != null)) {
+
+                notification.timeout.cancel();
+            }
+
+            return bucket.isEmpty()? null : bucket;
+        });
+    }
+
+    /**
+     * Searches the notification that was waiting for the given packet, whose
+     * type has already been determined. If it's found, it's marked as
+     * received.
+     *
+     * @param packet
+     *              The packet that possibly contains a notification.
+     *
+     * @param type
+     *              The {@link ControlMessage} stored on the packet.
+     *
+     *
+     * @return
+     *              The notification that pointed to the given message, or
+     *          {@code null} if it hasn't been found.
+     */
+    public Notification search (DatagramPacket packet, ControlMessage type) {
+
+        if ((packet == null) ||
+            (packet.getAddress() == null) ||
+            (packet.getData() == null)) {
+
+            return null;
+        }
+
+        return search (PacketView.of (packet), type);
+    }
+
+    /**
+     * Searches the notification that was waiting for the packet on the given
+     * view, whose type has already been determined. If it's found, it's
+     * marked as received.
+     *
+     * @param view
+     *              View over the packet that possibly contains a notification.
+     *
+     * @param type
+     *              The {@link ControlMessage} stored on the packet.
+     *
+     *
+     * @return
+     *              The notification that pointed to the given message, or
+     *          {@code null} if it hasn't been found.
+     */
+    public Notification search (PacketView view, ControlMessage type) {
+
+        int port;
+        int requestId;
+        Key probe;
+        Notification found;
+
+        if ((type == null) ||
+            (view == null) ||
+            (view.getAddress() == null) ||
+            (view.getLength() < 2)) {
+
+            return null;
+        }
+
+        /* Gets the port number after the control message, if it's there */
+        port = (type == view.message())?
+                    view.replyPort() :
+                    view.getInt (type.getLength());
+        requestId = (type == view.message())? view.requestId() : -1;
+
+        probe = PROBE.get();
+
+        /* The notifications waiting for the echoed request are searched
+        first; then, the ones sent without identifier */
+        found = (requestId >= 0)?
+                    first (probe, view, type, port, requestId) :
+                    null;
+
+        if (found == null) {
+
+            found = first (probe, view, type, port, -1);
+        }
+
+        /* Doesn't keep a reference to the address */
+        probe.address = null;
+
+        if (found != null) {
+
+            found.setReceived (true);
+        }
+
+        return found;
+    }
+
+    /**
+     * Searches a notification that is waiting for an answer from the given
+     * address and data flow, regardless of the expected message.
+     *
+     * <p>
+     * This method has to go through the whole table, so it should only be
+     * used when the expected message isn't known (for example, when a
+     * {@code NACK} is received).
+     *
+     * @param address
+     *              The address from where the packet has been sent.
+     *
+     * @param dataFlow
+     *              The data flow of the packet.
+     *
+     *
+     * @return
+     *              The notification waiting for an answer from that address
+     *          and data flow, or {@code null} if there's none.
+     */
+    public Notification search (InetAddress address, byte dataFlow) {
+
+        return search (address, dataFlow, -1);
+    }
+
+    /**
+     * Searches a notification that is waiting for an answer from the given
+     * address and data flow, regardless of the expected message, preferring
+     * the one sent with the given request identifier.
+     *
+     * @param address
+     *              The address from where the packet has been sent.
+     *
+     * @param dataFlow
+     *              The data flow of the packet.
+     *
+     * @param requestId
+     *              Identifier of the request echoed on the packet, or
+     *          {@code -1} if it hasn't got it.
+     *
+     *
+     * @return
+     *              The notification waiting for an answer from that address
+     *          and data flow, or {@code null} if there's none.
+     */
+    public Notification search (InetAddress address, byte dataFlow, int requestId) {
+
+        Notification found;
+        Notification any = null;
+
+        for (ConcurrentLinkedQueue<Notification> bucket : table.values()) {
+
+            found = bucket.peek();
+
+            if ((found != null) &&
+                found.getSourceAddress().equals(address) &&
+                (found.getSourceDataFlow() == dataFlow)) {
+
+                if ((requestId < 0) || (found.getRequestId() == requestId)) {
+
+                    return found;
+                }
+
+                if ((any == null) && (found.getRequestId() < 0)) {
+
+                    any = found;
+                }
+            }
+        }
+
+        return any;
+    }
+
+    /**
+     * Eliminates every notification that has been on the table for more than
+     * its expiry time.
+     *
+     * <p>
+     * The notifications are removed on time in the background, so this method
+     * is only needed to clean the table at once.
+     */
+    public void removeExpired () {
+
+        long now = new Date().getTime();
+
+        for (ConcurrentLinkedQueue<Notification> bucket : table.values()) {
+
+            for (Notification n : bucket) {
+
+                if ((now - n.getCreationDate().getTime()) > n.getExpiryTime()) {
+
+                    remove (n);
+                }
+            }
+        }
+    }
+
+    /**
+     * Returns the number of notifications on the table.
+     *
+     * @return
+     *              The number of notifications waiting for an answer.
+     */
+    public int size () {
+
+        int size = 0;
+
+        for (ConcurrentLinkedQueue<Notification> bucket : table.values()) {
+
+            size += bucket.size();
+        }
+
+        return size;
+    }
+
+    /**
+     * Returns the oldest notification stored with the given key.
+     *
+     * @param key
+     *              The key to search on the table.
+     *
+     *
+     * @return
+     *              The first notification of the bucket, or {@code null} if
+     *          there's none.
+     */
+    private Notification first (Key key) {
+
+        ConcurrentLinkedQueue<Notification> bucket = table.get (key);
+
+        return (bucket == null)? null : bucket.peek();
+    }
+
+    /**
+     * Returns the oldest notification waiting for the given answer: first, the
+     * ones waiting for that port; then, the ones that don't expect any port.
+     *
+     * @param probe
+     *              Key of the current thread, whose values are changed.
+     *
+     * @param view
+     *              View over the received packet.
+     *
+     * @param type
+     *              The {@link ControlMessage} stored on the packet.
+     *
+     * @param port
+     *              Port stored on the packet, or {@code -1}.
+     *
+     * @param requestId
+     *              Identifier of the request, or {@code -1}.
+     *
+     *
+     * @return
+     *              The first notification found, or {@code null} if there's
+     *          none.
+     */
+    private Notification first (Key probe,
+                                PacketView view,
+                                ControlMessage type,
+                                int port,
+                                int requestId) {
+
+        Notification found = null;
+
+        probe.set (view.getAddress(),
+                   view.dataFlow(),
+                   type,
+                   port,
+                   requestId);
+
+        if (port > 0) {
+
+            found = first (probe);
+        }
+
+        if (found == null) {
+
+            probe.port = -1;
+            found = first (probe);
+        }
+
+        return found;
+    }
+
+/* ------------------------- */
+/* ---- AUXILIARY CLASS ---- */
+/* ------------------------- */
+
+    /**
+     * Fields of the expected answer used to index the notifications.
+     *
+     * <p>
+     * The keys on the table are never modified; only the thread-local probes
+     * change their values.
+     */
+    private static final class Key {
+
+        /**
+         * Internet address where the answer must come from.
+         */
+        private InetAddress address;
+
+        /**
+         * Data flow at which the answer must belong.
+         */
+        private byte dataFlow;
+
+        /**
+         * Expected message.
+         */
+        private ControlMessage message;
+
+        /**
+         * Expected port number, or {@code -1} if any port is accepted.
+         */
+        private int port;
+
+        /**
+         * Identifier of the request, or {@code -1} if the answer won't echo
+         * it.
+         */
+        private int requestId;
+
+        /**
+         * Constructor for the probes.
+         */
+        private Key () {
+
+            port = -1;
+            requestId = -1;
+        }
+
+        /**
+         * Constructor.
+         *
+         * @param notification
+         *              The notification whose key will be created.
+         */
+        private Key (Notification notification) {
+
+            set (notification.getSourceAddress(),
+                 notification.getSourceDataFlow(),
+                 notification.getMessage(),
+                 (notification.getPort() > 0)? notification.getPort() : -1,
+                 notification.getRequestId());
+        }
+
+        /**
+         * Changes the values of this key.
+         *
+         * @param address
+         *              Internet address where the answer must come from.
+         *
+         * @param dataFlow
+         *              Data flow at which the answer must belong.
+         *
+         * @param message
+         *              Expected message.
+         *
+         * @param port
+         *              Expected port number, or {@code -1} if any port is
+         *          accepted.
+         *
+         * @param requestId
+         *              Identifier of the request, or {@code -1} if the answer
+         *          won't echo it.
+         */
+        private void set (InetAddress address,
+                          byte dataFlow,
+                          ControlMessage message,
+                          int port,
+                          int requestId) {
+
+            this.address = address;
+            this.dataFlow = dataFlow;
+            this.message = message;
+            this.port = port;
+            this.requestId = requestId;
+        }
+
+        @Override
+        public int hashCode () {
+
+            int hash = (address == null)? 0 : address.hashCode();
+
+            hash = 31 * hash + dataFlow;
+            hash = 31 * hash + ((message == null)? 0 : message.ordinal());
+            hash = 31 * hash + port;
+            hash = 31 * hash + requestId;
+
+            return hash;
+        }
+
+        @Override
+        public boolean equals (Object obj) {
+
+            Key other;
+
+            if (!(obj instanceof Key)) {
+
+                return false;
+            }
+
+            other = (Key) obj;
+
+            return (dataFlow == other.dataFlow) &&
+                   (port == other.port) &&
+                   (requestId == other.requestId) &&
+                   (message == other.message) &&
+                   ((address == null)?
+                        other.address == null
+                        : address.equals (other.address));
+        }
+    }
+}
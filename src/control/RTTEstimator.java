@@ -0,0 +1,510 @@
+/*
+ * CAL.
+ *  A P2P chat program that lets you communicate without any infrastructure.
+ *
+ *   Copyright (C) 2015  Foo-Manroot
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package control;
+
+import java.util.concurrent.atomic.AtomicReference;
+
+/**
+ * Estimator of the round trip time and the retransmission timeout to a host,
+ * as described in <a href="https://tools.ietf.org/html/rfc6298">RFC 6298</a>.
+ *
+ * <p>
+ * Many threads can send to the same host at the same time, so all the values
+ * are kept on an immutable {@link Estimate} that is replaced atomically (with
+ * a compare-and-set loop) on every new sample. Readers always get values that
+ * belong together, and nobody blocks.
+ *
+ * <p>
+ * After a timeout, the RTO is doubled (up to the maximum) until a new sample
+ * arrives, so the retransmissions to a host that doesn't answer get more and
+ * more spaced.
+ *
+ * <p>
+ * All the times are in milliseconds.
+ */
+public class RTTEstimator {
+
+    /**
+     * Gain of the smoothed round trip time (1/8, as on the RFC).
+     */
+    public static final float ALPHA = 1 / 8f;
+
+    /**
+     * Gain of the variation of the round trip time (1/4, as on the RFC).
+     */
+    public static final float BETA = 1 / 4f;
+
+    /**
+     * Factor of the variation on the RTO (4, as on the RFC).
+     */
+    public static final float K = 4;
+
+    /**
+     * Clock granularity: the lowest value given to {@code K * RTTVAR} on the
+     * calculation of the RTO.
+     */
+    public static final float GRANULARITY = 1;
+
+    /**
+     * Highest number of times that the RTO can be doubled. The maximum RTO
+     * is reached much earlier with any sensible values.
+     */
+    private static final int MAX_BACKOFF = 16;
+
+    /**
+     * RTO used until the first sample arrives.
+     */
+    private final long initialRTO;
+
+    /**
+     * Lowest RTO allowed.
+     */
+    private final long minRTO;
+
+    /**
+     * Highest RTO allowed.
+     */
+    private final long maxRTO;
+
+    /**
+     * Current estimate.
+     */
+    private final AtomicReference<Estimate> estimate;
+
+/* -------------------------------------- */
+/* ---- END OF ATTRIBUTE DECLARATION ---- */
+/* -------------------------------------- */
+
+    /**
+     * Constructor.
+     *
+     * @param initialRTO
+     *              RTO used until the first sample arrives.
+     *
+     * @param minRTO
+     *              Lowest RTO allowed.
+     *
+     * @param maxRTO
+     *              Highest RTO allowed.
+     */
+    public RTTEstimator (long initialRTO, long minRTO, long maxRTO) {
+
+        this.initialRTO = initialRTO;
+        this.minRTO = minRTO;
+        this.maxRTO = maxRTO;
+
+        estimate = new AtomicReference<> (new Estimate ());
+    }
+
+    /**
+     * Updates the estimate with a new sample. As stated by Karn's algorithm,
+     * the samples must only be taken from packets that haven't been
+     * retransmitted.
+     *
+     * <p>
+     * A new sample also cancels the backoff of the previous timeouts.
+     *
+     * @param sampleRTT
+     *              The time that took the answer to arrive.
+     *
+     *
+     * @return
+     *              The updated smoothed round trip time.
+     */
+    public float sample (float sampleRTT) {
+
+        Estimate current;
+        Estimate next;
+
+        if (sampleRTT < 0) {
+
+            return getSRTT ();
+        }
+
+        do {
+            current = estimate.get ();
+            next = current.sample (sampleRTT);
+
+        } while (!estimate.compareAndSet (current, next));
+
+        return next.SRTT;
+    }
+
+    /**
+     * Doubles the RTO after a timeout, unless it has already been doubled by
+     * another timeout of the same packets.
+     *
+     * <p>
+     * Every sender takes note of the backoff (see {@link #getBackoff()})
+     * when it sends the packet, and gives it here when its timer expires.
+     * This way, many packets that time out together double the RTO just once.
+     *
+     * @param backoff
+     *              Backoff when the expired packet was sent.
+     *
+     *
+     * @return
+     *              The new RTO.
+     */
+    public long timeout (int backoff) {
+
+        Estimate current;
+        Estimate next;
+
+        do {
+            current = estimate.get ();
+            next = current.timeout (backoff);
+
+        } while (!estimate.compareAndSet (current, next));
+
+        return rto (next);
+    }
+
+    /**
+     * Doubles the RTO after a timeout.
+     *
+     * @return
+     *              The new RTO.
+     */
+    public long timeout () {
+
+        return timeout (getBackoff ());
+    }
+
+/* ----------------------------- */
+/* ---- GETTERS AND SETTERS ---- */
+/* ----------------------------- */
+
+    /**
+     * Returns the current retransmission timeout.
+     *
+     * @return
+     *              {@code SRTT + max(G, K * RTTVAR)}, doubled once for every
+     *          timeout since the last sample and kept between the lowest and
+     *          the highest RTO.
+     */
+    public long getRTO () {
+
+        return rto (estimate.get ());
+    }
+
+    /**
+     * Returns the number of times that the RTO has been doubled since the
+     * last sample.
+     *
+     * @return
+     *              The current backoff.
+     */
+    public int getBackoff () {
+
+        return estimate.get ().backoff;
+    }
+
+    /**
+     * Returns the smoothed round trip time.
+     *
+     * @return
+     *              The value of {@code SRTT}, or <b>-1</b> if no sample has
+     *          arrived yet.
+     */
+    public float getSRTT () {
+
+        return estimate.get ().SRTT;
+    }
+
+    /**
+     * Returns the variation of the round trip time.
+     *
+     * @return
+     *              The value of {@code RTTVAR}, or <b>-1</b> if no sample has
+     *          arrived yet.
+     */
+    public float getRTTVAR () {
+
+        return estimate.get ().RTTVAR;
+    }
+
+    /**
+     * Returns the last round trip time measured.
+     *
+     * @return
+     *              The last sample, or <b>-1</b> if no sample has arrived yet.
+     */
+    public float getLatestRTT () {
+
+        return estimate.get ().latest;
+    }
+
+    /**
+     * Returns the lowest round trip time measured.
+     *
+     * @return
+     *              The lowest sample, or <b>-1</b> if no sample has arrived
+     *          yet.
+     */
+    public float getMinRTT () {
+
+        return estimate.get ().min;
+    }
+
+    /**
+     * Returns the highest round trip time measured.
+     *
+     * @return
+     *              The highest sample, or <b>-1</b> if no sample has arrived
+     *          yet.
+     */
+    public float getMaxRTT () {
+
+        return estimate.get ().max;
+    }
+
+    /**
+     * Returns the number of samples taken.
+     *
+     * @return
+     *              The number of samples.
+     */
+    public long getSamples () {
+
+        return estimate.get ().samples;
+    }
+
+    /**
+     * Returns the number of timeouts that doubled the RTO.
+     *
+     * @return
+     *              The number of timeouts.
+     */
+    public long getTimeouts () {
+
+        return estimate.get ().timeouts;
+    }
+
+    /**
+     * Returns a string with the statistics of the estimator, formatted this
+     * way:
+     * <pre>
+     * SRTT (RTTVAR), min - max, RTO (samples, timeouts)
+     * </pre>
+     *
+     * @return
+     *              The statistics of the estimator.
+     */
+    @Override
+    public String toString () {
+
+        Estimate current = estimate.get ();
+
+        if (current.samples == 0) {
+
+            return "- (RTO " + rto (current) + " ms, "
+                   + current.timeouts + " timeouts)";
+        }
+
+        return String.format ("%.1f ms (+/- %.1f), %.1f - %.1f ms,"
+                              + " RTO %d ms (%d samples, %d timeouts)",
+                              current.SRTT, current.RTTVAR,
+                              current.min, current.max,
+                              rto (current),
+                              current.samples, current.timeouts);
+    }
+
+/* --------------------- */
+/* ---- AUX METHODS ---- */
+/* --------------------- */
+
+    /**
+     * Calculates the RTO of the given estimate.
+     *
+     * @param current
+     *              The estimate.
+     *
+     *
+     * @return
+     *              The retransmission timeout, between the lowest and the
+     *          highest RTO.
+     */
+    private long rto (Estimate current) {
+
+        double rto = (current.samples == 0)?
+                        initialRTO
+                      : current.SRTT + Math.max (GRANULARITY, K * current.RTTVAR);
+
+        rto = Math.max (minRTO, rto) * (double) (1L << current.backoff);
+
+        return (long) Math.min (maxRTO, rto);
+    }
+
+    /**
+     * Values of the estimator at a given moment. They are never modified: the
+     * changes create a new object.
+     */
+    private static class Estimate {
+
+        /**
+         * Smoothed round trip time, or <b>-1</b> if no sample has arrived.
+         */
+        private final float SRTT;
+
+        /**
+         * Variation of the round trip time, or <b>-1</b> if no sample has
+         * arrived.
+         */
+        private final float RTTVAR;
+
+        /**
+         * Last sample, or <b>-1</b> if no sample has arrived.
+         */
+        private final float latest;
+
+        /**
+         * Lowest sample, or <b>-1</b> if no sample has arrived.
+         */
+        private final float min;
+
+        /**
+         * Highest sample, or <b>-1</b> if no sample has arrived.
+         */
+        private final float max;
+
+        /**
+         * Number of samples.
+         */
+        private final long samples;
+
+        /**
+         * Number of timeouts.
+         */
+        private final long timeouts;
+
+        /**
+         * Times that the RTO has been doubled since the last sample.
+         */
+        private final int backoff;
+
+        /**
+         * Constructor of the estimate before the first sample.
+         */
+        private Estimate () {
+
+            this (-1, -1, -1, -1, -1, 0, 0, 0);
+        }
+
+        /**
+         * Constructor.
+         *
+         * @param SRTT
+         *              Smoothed round trip time.
+         *
+         * @param RTTVAR
+         *              Variation of the round trip time.
+         *
+         * @param latest
+         *              Last sample.
+         *
+         * @param min
+         *              Lowest sample.
+         *
+         * @param max
+         *              Highest sample.
+         *
+         * @param samples
+         *              Number of samples.
+         *
+         * @param timeouts
+         *              Number of timeouts.
+         *
+         * @param backoff
+         *              Times that the RTO has been doubled.
+         */
+        private Estimate (float SRTT,
+                          float RTTVAR,
+                          float latest,
+                          float min,
+                          float max,
+                          long samples,
+                          long timeouts,
+                          int backoff) {
+
+            this.SRTT = SRTT;
+            this.RTTVAR = RTTVAR;
+            this.latest = latest;
+            this.min = min;
+            this.max = max;
+            this.samples = samples;
+            this.timeouts = timeouts;
+            this.backoff = backoff;
+        }
+
+        /**
+         * Returns the estimate after a new sample.
+         *
+         * @param sampleRTT
+         *              The new sample.
+         *
+         *
+         * @return
+         *              A new estimate.
+         */
+        private Estimate sample (float sampleRTT) {
+
+            /* The first sample */
+            if (samples == 0) {
+
+                return new Estimate (sampleRTT, sampleRTT / 2,
+                                     sampleRTT, sampleRTT, sampleRTT,
+                                     1, timeouts, 0);
+            }
+
+            /* RTTVAR must be updated with the previous SRTT */
+            return new Estimate ((1 - ALPHA) * SRTT + ALPHA * sampleRTT,
+                                 (1 - BETA) * RTTVAR
+                                    + BETA * Math.abs (SRTT - sampleRTT),
+                                 sampleRTT,
+                                 Math.min (min, sampleRTT),
+                                 Math.max (max, sampleRTT),
+                                 samples + 1, timeouts, 0);
+        }
+
+        /**
+         * Returns the estimate after a timeout.
+         *
+         * @param seen
+         *              Backoff when the expired packet was sent.
+         *
+         *
+         * @return
+         *              A new estimate, or this one if the RTO has already
+         *          been doubled since that packet was sent.
+         */
+        private Estimate timeout (int seen) {
+
+            if (seen < backoff) {
+
+                return this;
+            }
+
+            return new Estimate (SRTT, RTTVAR, latest, min, max,
+                                 samples, timeouts + 1,
+                                 Math.min (MAX_BACKOFF, backoff + 1));
+        }
+    }
+}
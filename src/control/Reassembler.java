@@ -0,0 +1,426 @@
+/*
+ * CAL.
+ *  A P2P chat program that lets you communicate without any infrastructure.
+ *
+ *   Copyright (C) 2015  Foo-Manroot
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package control;
+
+import java.net.InetAddress;
+import java.nio.ByteBuffer;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.Objects;
+import java.util.concurrent.ConcurrentHashMap;
+
+/**
+ * Joins the fragments of the messages sent on more than one packet.
+ *
+ * <p>
+ * Every fragment carries the identifier of its message, its index and the
+ * number of fragments of the message, so they can be received on any order.
+ * The messages are stored per sender (address, port and data flow), and
+ * every sender can only have a limited number of them at once: when a new
+ * one arrives and there's no room, the oldest one is dropped.
+ *
+ * <p>
+ * The messages that aren't completed on time are dropped. The completed ones
+ * are kept (without their data) until then, so a retransmitted fragment
+ * doesn't show the same message twice.
+ */
+public class Reassembler {
+
+    /**
+     * Messages being received, indexed by their sender. The messages of every
+     * sender are stored on the order they were started, and the map is also
+     * used as the lock to change them.
+     */
+    private final ConcurrentHashMap<Sender, LinkedHashMap<Integer, Message>> senders;
+
+    /**
+     * Maximum number of messages stored per sender.
+     */
+    private final int maxMessages;
+
+    /**
+     * Maximum number of fragments of a message.
+     */
+    private final int maxFragments;
+
+    /**
+     * Time, in milliseconds, that a message is kept since its first fragment
+     * arrived.
+     */
+    private final long timeout;
+
+    /**
+     * Wheel used to drop the messages when they expire. It's shared by all
+     * the reassemblers.
+     */
+    private static final TimingWheel EXPIRY_WHEEL = new TimingWheel (100,
+                                                                     512,
+                                                                     "Reassembly expiry");
+
+/* -------------------------------------- */
+/* ---- END OF ATTRIBUTE DECLARATION ---- */
+/* -------------------------------------- */
+
+    /**
+     * Constructor.
+     *
+     * @param maxMessages
+     *              Maximum number of messages stored per sender.
+     *
+     * @param maxFragments
+     *              Maximum number of fragments of a message. The fragments of
+     *          longer messages are discarded.
+     *
+     * @param timeout
+     *              Time, in milliseconds, that a message is kept since its
+     *          first fragment arrived.
+     */
+    public Reassembler (int maxMessages, int maxFragments, long timeout) {
+
+        this.senders = new ConcurrentHashMap<>();
+        this.maxMessages = Math.max(1, maxMessages);
+        this.maxFragments = Math.max(1, maxFragments);
+        this.timeout = timeout;
+    }
+
+    /**
+     * Stores a fragment. If it was the last one left, returns the whole
+     * message.
+     *
+     * @param address
+     *              Address of the sender.
+     *
+     * @param port
+     *              Port of the sender.
+     *
+     * @param dataFlow
+     *              Data flow of the fragment.
+     *
+     * @param messageId
+     *              Identifier of the message.
+     *
+     * @param index
+     *              Index of the fragment, starting at <b>0</b>.
+     *
+     * @param count
+     *              Number of fragments of the message.
+     *
+     * @param data
+     *              The bytes of the fragment, from its position to its limit.
+     *          The position of the buffer isn't changed.
+     *
+     *
+     * @return
+     *              The bytes of the whole message, or {@code null} if there
+     *          are fragments left (or if this one is a duplicate, or isn't
+     *          valid).
+     */
+    public byte [] add (InetAddress address,
+                        int port,
+                        byte dataFlow,
+                        int messageId,
+                        int index,
+                        int count,
+                        ByteBuffer data) {
+
+        Sender sender;
+        LinkedHashMap<Integer, Message> messages;
+        Message message;
+
+        if ((address == null) || (data == null) ||
+            (count < 1) || (count > maxFragments) ||
+            (index < 0) || (index >= count)) {
+
+            return null;
+        }
+
+        sender = new Sender (address, port, dataFlow);
+
+        while (true) {
+
+            messages = senders.computeIfAbsent (sender,
+                                                k -> new LinkedHashMap<>());
+
+            synchronized (messages) {
+
+                /* The map could have been removed while waiting for it */
+                if (senders.get (sender) != messages) {
+
+                    continue;
+                }
+
+                message = messages.get (messageId);
+
+                if (message == null) {
+
+                    message = start (sender, messages, messageId, count);
+
+                } else if (message.count != count) {
+
+                    /* The fragment doesn't belong to the stored message */
+                    return null;
+                }
+
+                return message.add (index, data);
+            }
+        }
+    }
+
+    /**
+     * Returns the number of messages stored (the incomplete ones and the
+     * completed ones not yet expired).
+     *
+     * @return
+     *              The number of messages stored for all the senders.
+     */
+    public int size () {
+
+        int size = 0;
+
+        for (LinkedHashMap<Integer, Message> messages : senders.values()) {
+
+            synchronized (messages) {
+
+                size += messages.size();
+            }
+        }
+
+        return size;
+    }
+
+/* --------------------- */
+/* ---- AUX METHODS ---- */
+/* --------------------- */
+
+    /**
+     * Stores a new message for the sender, dropping the oldest one if there's
+     * no room. The lock of {@code messages} must be held.
+     *
+     * @param sender
+     *              Sender of the message.
+     *
+     * @param messages
+     *              Messages of the sender.
+     *
+     * @param messageId
+     *              Identifier of the new message.
+     *
+     * @param count
+     *              Number of fragments of the new message.
+     *
+     *
+     * @return
+     *              The new message.
+     */
+    private Message start (Sender sender,
+                           LinkedHashMap<Integer, Message> messages,
+                           int messageId,
+                           int count) {
+
+        Message message = new Message (count);
+        Iterator<Map.Entry<Integer, Message>> oldest;
+
+        while (messages.size() >= maxMessages) {
+
+            oldest = messages.entrySet().iterator();
+
+            oldest.next().getValue().expiry.cancel();
+            oldest.remove();
+        }
+
+        messages.put (messageId, message);
+
+        message.expiry = EXPIRY_WHEEL.schedule (
+                            () -> expire (sender, messages, messageId, message),
+                            timeout);
+
+        return message;
+    }
+
+    /**
+     * Drops the given message, if it's still stored. If the sender has no
+     * more messages, it's also removed.
+     *
+     * @param sender
+     *              Sender of the message.
+     *
+     * @param messages
+     *              Messages of the sender.
+     *
+     * @param messageId
+     *              Identifier of the message.
+     *
+     * @param message
+     *              The message to be dropped.
+     */
+    private void expire (Sender sender,
+                         LinkedHashMap<Integer, Message> messages,
+                         int messageId,
+                         Message message) {
+
+        synchronized (messages) {
+
+            messages.remove (messageId, message);
+
+            if (messages.isEmpty()) {
+
+                senders.remove (sender, messages);
+            }
+        }
+    }
+
+/* --------------------------- */
+/* ---- AUXILIARY CLASSES ---- */
+/* --------------------------- */
+
+    /**
+     * Fragments received of a message.
+     */
+    private static final class Message {
+
+        /**
+         * Fragments of the message, or {@code null} when it has been completed.
+         */
+        private byte [][] fragments;
+
+        /**
+         * Number of fragments of the message.
+         */
+        private final int count;
+
+        /**
+         * Number of different fragments received.
+         */
+        private int received;
+
+        /**
+         * Task that drops the message when it expires.
+         */
+        private TimingWheel.Timeout expiry;
+
+        /**
+         * Constructor.
+         *
+         * @param count
+         *              Number of fragments of the message.
+         */
+        private Message (int count) {
+
+            this.fragments = new byte [count][];
+            this.count = count;
+            this.received = 0;
+        }
+
+        /**
+         * Stores the fragment, if it wasn't already received.
+         *
+         * @param index
+         *              Index of the fragment.
+         *
+         * @param data
+         *              Bytes of the fragment.
+         *
+         *
+         * @return
+         *              The whole message, if this was the last fragment left;
+         *          or {@code null} otherwise.
+         */
+        private byte [] add (int index, ByteBuffer data) {
+
+            byte [] whole;
+            int length = 0;
+
+            if ((fragments == null) || (fragments [index] != null)) {
+
+                return null;
+            }
+
+            fragments [index] = new byte [data.remaining()];
+            data.duplicate().get (fragments [index]);
+
+            if (++received < count) {
+
+                return null;
+            }
+
+            for (byte [] fragment : fragments) {
+
+                length += fragment.length;
+            }
+
+            whole = new byte [length];
+            length = 0;
+
+            for (byte [] fragment : fragments) {
+
+                System.arraycopy (fragment, 0, whole, length, fragment.length);
+                length += fragment.length;
+            }
+
+            /* Only the mark is kept, to ignore the duplicates */
+            fragments = null;
+
+            return whole;
+        }
+    }
+
+    /**
+     * Sender of the fragments.
+     */
+    private static final class Sender {
+
+        private final InetAddress address;
+
+        private final int port;
+
+        private final byte dataFlow;
+
+        private Sender (InetAddress address, int port, byte dataFlow) {
+
+            this.address = address;
+            this.port = port;
+            this.dataFlow = dataFlow;
+        }
+
+        @Override
+        public boolean equals (Object obj) {
+
+            Sender other;
+
+            if (!(obj instanceof Sender)) {
+
+                return false;
+            }
+
+            other = (Sender) obj;
+
+            return (port == other.port) &&
+                   (dataFlow == other.dataFlow) &&
+                   address.equals (other.address);
+        }
+
+        @Override
+        public int hashCode () {
+
+            return Objects.hash (address, port, dataFlow);
+        }
+    }
+}
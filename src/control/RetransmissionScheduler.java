@@ -0,0 +1,584 @@
+/*
+ * CAL.
+ *  A P2P chat program that lets you communicate without any infrastructure.
+ *
+ *   Copyright (C) 2015  Foo-Manroot
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package control;
+
+import static common.Common.logger;
+
+import java.util.Set;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.function.Consumer;
+
+/**
+ * Scheduler that owns all the reliable packets waiting for their answer, and
+ * sends them again when their retransmission timeout expires.
+ *
+ * <p>
+ * The timers of all the packets are kept on a single {@link TimingWheel}, so
+ * no thread is blocked while a packet waits for its answer: the caller gets a
+ * {@link CompletableFuture} and is told about the result through its
+ * callbacks. The number of threads doesn't depend on the number of packets
+ * in flight.
+ *
+ * <p>
+ * The retransmissions are sent from another thread, so a send that blocks
+ * (for example, because the socket buffer is full) doesn't delay the timers
+ * of the other packets. The futures may be completed on the thread of the
+ * wheel (when all the tries fail) or on the thread that received the answer.
+ * The callbacks given to them must be short, or run on another executor
+ * (with the {@code *Async} methods of the future).
+ *
+ * <p>
+ * The exchanges that aren't bound by the round trip time (for example, a
+ * request that waits for the user to answer it) can be given a fixed timeout
+ * instead of an estimator: they neither back off the RTO of the destination
+ * nor are taken as failures when they get no answer.
+ */
+public class RetransmissionScheduler {
+
+    /**
+     * Wheel with the timers of the packets.
+     */
+    private final TimingWheel wheel;
+
+    /**
+     * Thread that sends the retransmissions, out of the thread of the wheel.
+     */
+    private final ThreadPoolExecutor sender;
+
+    /**
+     * Packets waiting for their answer.
+     */
+    private final Set<Transmission> outstanding;
+
+    /**
+     * Number of packets sent for the first time.
+     */
+    private final LongAdder submitted;
+
+    /**
+     * Number of packets sent again.
+     */
+    private final LongAdder retransmissions;
+
+    /**
+     * Number of packets, timed by an estimator, that got no answer after all
+     * their tries.
+     */
+    private final LongAdder failures;
+
+/* -------------------------------------- */
+/* ---- END OF ATTRIBUTE DECLARATION ---- */
+/* -------------------------------------- */
+
+    /**
+     * Constructor.
+     *
+     * @param tickDuration
+     *              Precision of the timers, in milliseconds.
+     *
+     * @param slots
+     *              Number of slots of the wheel.
+     *
+     * @param name
+     *              Name of the thread of the wheel.
+     */
+    public RetransmissionScheduler (long tickDuration, int slots, String name) {
+
+        wheel = new TimingWheel (tickDuration, slots, name);
+        sender = new ThreadPoolExecutor (1, 1,
+                                         60, TimeUnit.SECONDS,
+                                         new LinkedBlockingQueue<> (),
+                                         r -> {
+
+                                             Thread t = new Thread (r, name + " sender");
+                                             t.setDaemon (true);
+
+                                             return t;
+                                         });
+        sender.allowCoreThreadTimeOut (true);
+
+        outstanding = ConcurrentHashMap.newKeySet ();
+
+        submitted = new LongAdder ();
+        retransmissions = new LongAdder ();
+        failures = new LongAdder ();
+    }
+
+    /**
+     * Sends a packet and keeps sending it again, with the timeout given by the
+     * estimator, until the answer arrives or all the tries fail.
+     *
+     * <p>
+     * The packet is sent for the first time on the calling thread.
+     *
+     * @param send
+     *              Task that sends the packet. It's run once for every try.
+     *
+     * @param answer
+     *              Future completed when the answer arrives. It mustn't be
+     *          completed yet (for example, by the answer to a previous
+     *          request), or the packet would never be sent.
+     *
+     * @param tries
+     *              The number of tries to wait for an answer.
+     *
+     * @param estimator
+     *              Estimator of the round trip time to the destination, that
+     *          gives the timeout of every try and is backed off when it
+     *          expires.
+     *
+     * @param sampler
+     *              Receives the round trip time (in milliseconds) when the
+     *          answer arrives, if the packet was sent only once (Karn's
+     *          algorithm). It can be {@code null}.
+     *
+     *
+     * @return
+     *              A future completed with <i>true</i> if the answer arrived,
+     *          or <i>false</i> if it didn't.
+     *
+     *
+     * @throws IllegalArgumentException
+     *              If the answer has already been completed.
+     */
+    public CompletableFuture<Boolean> submit (Runnable send,
+                                              CompletableFuture<?> answer,
+                                              int tries,
+                                              RTTEstimator estimator,
+                                              Consumer<Float> sampler) {
+
+        Transmission transmission;
+
+        if (answer.isDone ()) {
+
+            throw new IllegalArgumentException ("The answer has already been"
+                                                + " received");
+        }
+
+        transmission = new Transmission (send, tries, estimator, sampler, 0);
+
+        outstanding.add (transmission);
+        submitted.increment ();
+
+        answer.thenRun (transmission::answered);
+        transmission.transmit ();
+
+        return transmission.result;
+    }
+
+    /**
+     * Sends a packet and keeps sending it again, waiting always the same time,
+     * until the answer arrives or all the tries fail.
+     *
+     * <p>
+     * It's meant for the exchanges whose answer doesn't depend only on the
+     * round trip time to the destination, so their timeouts don't back off
+     * its RTO and the answer isn't taken as a sample.
+     *
+     * <p>
+     * The packet is sent for the first time on the calling thread.
+     *
+     * @param send
+     *              Task that sends the packet. It's run once for every try.
+     *
+     * @param answer
+     *              Future completed when the answer arrives. It mustn't be
+     *          completed yet.
+     *
+     * @param tries
+     *              The number of tries to wait for an answer.
+     *
+     * @param timeout
+     *              Time to wait for the answer to every try, in milliseconds.
+     *
+     *
+     * @return
+     *              A future completed with <i>true</i> if the answer arrived,
+     *          or <i>false</i> if it didn't.
+     *
+     *
+     * @throws IllegalArgumentException
+     *              If the answer has already been completed.
+     */
+    public CompletableFuture<Boolean> submit (Runnable send,
+                                              CompletableFuture<?> answer,
+                                              int tries,
+                                              long timeout) {
+
+        Transmission transmission;
+
+        if (answer.isDone ()) {
+
+            throw new IllegalArgumentException ("The answer has already been"
+                                                + " received");
+        }
+
+        transmission = new Transmission (send, tries, null, null, timeout);
+
+        outstanding.add (transmission);
+        submitted.increment ();
+
+        answer.thenRun (transmission::answered);
+        transmission.transmit ();
+
+        return transmission.result;
+    }
+
+/* ----------------------------- */
+/* ---- GETTERS AND SETTERS ---- */
+/* ----------------------------- */
+
+    /**
+     * Returns the number of packets waiting for their answer.
+     *
+     * @return
+     *              The size of {@code outstanding}.
+     */
+    public int getOutstanding () {
+
+        return outstanding.size ();
+    }
+
+    /**
+     * Returns the number of packets sent for the first time.
+     *
+     * @return
+     *              The value of {@code submitted}.
+     */
+    public long getSubmitted () {
+
+        return submitted.sum ();
+    }
+
+    /**
+     * Returns the number of packets sent again.
+     *
+     * @return
+     *              The value of {@code retransmissions}.
+     */
+    public long getRetransmissions () {
+
+        return retransmissions.sum ();
+    }
+
+    /**
+     * Returns the number of packets, timed by an estimator, that got no answer
+     * after all their tries.
+     *
+     * @return
+     *              The value of {@code failures}.
+     */
+    public long getFailures () {
+
+        return failures.sum ();
+    }
+
+    @Override
+    public String toString () {
+
+        return getOutstanding () + " packets waiting, "
+                + getSubmitted () + " sent, "
+                + getRetransmissions () + " sent again, "
+                + getFailures () + " without answer";
+    }
+
+/* ------------------------- */
+/* ---- AUXILIARY CLASS ---- */
+/* ------------------------- */
+
+    /**
+     * A packet waiting for its answer.
+     */
+    private final class Transmission implements Runnable {
+
+        /**
+         * Task that sends the packet.
+         */
+        private final Runnable send;
+
+        /**
+         * Estimator of the round trip time to the destination, or
+         * {@code null} if the timeout is fixed.
+         */
+        private final RTTEstimator estimator;
+
+        /**
+         * Timeout of every try, in milliseconds, if there's no estimator.
+         */
+        private final long timeout;
+
+        /**
+         * Receives the round trip time, or {@code null}.
+         */
+        private final Consumer<Float> sampler;
+
+        /**
+         * Future completed when the answer is received or all the tries have
+         * failed.
+         */
+        private final CompletableFuture<Boolean> result;
+
+        /**
+         * Remaining tries.
+         */
+        private int tries;
+
+        /**
+         * Value of {@link System#nanoTime()} when the packet was sent for the
+         * last time.
+         */
+        private long sendTime;
+
+        /**
+         * If the packet has been sent more than once, this attribute is
+         * <i>true</i>.
+         */
+        private boolean retransmitted;
+
+        /**
+         * If the answer has arrived or all the tries have failed, this
+         * attribute is <i>true</i>.
+         */
+        private boolean finished;
+
+        /**
+         * Backoff of the estimator when the packet was last sent (see
+         * {@link RTTEstimator#timeout(int)}).
+         */
+        private int backoff;
+
+        /**
+         * Timer to retransmit the packet.
+         */
+        private TimingWheel.Timeout timer;
+
+        /**
+         * Constructor.
+         *
+         * @param send
+         *              Task that sends the packet.
+         *
+         * @param tries
+         *              The number of tries to wait for a response.
+         *
+         * @param estimator
+         *              Estimator of the round trip time to the destination, or
+         *          {@code null} to wait always the given timeout.
+         *
+         * @param sampler
+         *              Receives the round trip time, or {@code null}.
+         *
+         * @param timeout
+         *              Timeout of every try, in milliseconds, if there's no
+         *          estimator.
+         */
+        private Transmission (Runnable send,
+                              int tries,
+                              RTTEstimator estimator,
+                              Consumer<Float> sampler,
+                              long timeout) {
+
+            this.send = send;
+            this.estimator = estimator;
+            this.timeout = timeout;
+            this.sampler = sampler;
+            this.result = new CompletableFuture<>();
+            this.tries = tries;
+            this.retransmitted = false;
+            this.finished = false;
+            this.backoff = 0;
+            this.timer = null;
+        }
+
+        /**
+         * Sends the packet for the first time and starts the timer to wait for
+         * the answer.
+         */
+        private void transmit () {
+
+            synchronized (this) {
+
+                if (finished) {
+
+                    return;
+                }
+
+                start ();
+            }
+
+            sendPacket ();
+        }
+
+        /**
+         * Starts the timer of the next try. It must be called with the lock of
+         * the transmission.
+         */
+        private void start () {
+
+            sendTime = System.nanoTime ();
+            tries--;
+
+            if (estimator == null) {
+
+                timer = wheel.schedule (this, timeout);
+
+            } else {
+
+                backoff = estimator.getBackoff ();
+                timer = wheel.schedule (this, estimator.getRTO ());
+            }
+        }
+
+        /**
+         * Sends the packet, unless the answer has already arrived. It's called
+         * out of the lock of the transmission, so a send that blocks can't
+         * block the answer or the timer.
+         */
+        private void sendPacket () {
+
+            synchronized (this) {
+
+                if (finished) {
+
+                    return;
+                }
+            }
+
+            try {
+
+                send.run ();
+
+            } catch (RuntimeException ex) {
+
+                logger.logError ("Exception at "
+                                 + "RetransmissionScheduler.sendPacket(): "
+                                 + ex.getMessage() + "\n");
+            }
+        }
+
+        /**
+         * Called by the wheel when the answer hasn't come back on time.
+         */
+        @Override
+        public void run () {
+
+            boolean retransmit;
+
+            synchronized (this) {
+
+                if (finished) {
+
+                    return;
+                }
+
+                /* Doubles the RTO, so the next tries (and the other packets
+                to the same host) wait longer */
+                if (estimator != null) {
+
+                    estimator.timeout (backoff);
+                }
+
+                retransmit = (tries > 0);
+
+                if (retransmit) {
+
+                    retransmitted = true;
+                    retransmissions.increment ();
+                    start ();
+
+                } else {
+
+                    finished = true;
+                }
+            }
+
+            /* The send may block, and the wheel mustn't stop: it's done by
+            another thread, and the timer is already running */
+            if (retransmit) {
+
+                sender.execute (this::sendPacket);
+                return;
+            }
+
+            if (estimator != null) {
+
+                failures.increment ();
+            }
+
+            complete (false);
+        }
+
+        /**
+         * Called when the answer has been received.
+         */
+        private void answered () {
+
+            float sample;
+
+            synchronized (this) {
+
+                if (finished) {
+
+                    return;
+                }
+
+                finished = true;
+
+                if (timer != null) {
+
+                    timer.cancel ();
+                }
+
+                sample = retransmitted?
+                            -1
+                          : TimeUnit.NANOSECONDS.toMillis (System.nanoTime ()
+                                                           - sendTime);
+            }
+
+            /* Only measures the RTT if the packet hasn't been retransmitted
+            (Karn's algorithm) */
+            if ((sample >= 0) && (sampler != null)) {
+
+                sampler.accept (sample);
+            }
+
+            complete (true);
+        }
+
+        /**
+         * Removes the packet from the outstanding ones and completes its
+         * future. It's called out of the lock of the transmission, so the
+         * callbacks can't block the answer or the timer.
+         *
+         * @param answered
+         *              If the answer has been received.
+         */
+        private void complete (boolean answered) {
+
+            outstanding.remove (this);
+            result.complete (answered);
+        }
+    }
+}
@@ -0,0 +1,377 @@
+/*
+ * CAL.
+ *  A P2P chat program that lets you communicate without any infrastructure.
+ *
+ *   Copyright (C) 2015  Foo-Manroot
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package control;
+
+import static common.Common.logger;
+
+import java.util.ArrayDeque;
+import java.util.Iterator;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Hashed timing wheel to run tasks after a delay.
+ *
+ * <p>
+ * The time is divided on ticks, and every task is stored on the slot of the
+ * wheel where it expires, with the number of whole turns that must pass
+ * before. A background thread advances the wheel once per tick and runs the
+ * expired tasks, so scheduling and cancelling a task takes constant time, no
+ * matter how many tasks are waiting.
+ *
+ * <p>
+ * The tasks are run on the thread of the wheel, so they must be short.
+ */
+public class TimingWheel {
+
+    /**
+     * Duration of a tick, in nanoseconds.
+     */
+    private final long tickDuration;
+
+    /**
+     * Slots of the wheel. Only used by the thread of the wheel.
+     */
+    private final ArrayDeque<Timeout> [] wheel;
+
+    /**
+     * Mask to get the slot for a tick ({@code wheel.length - 1}).
+     */
+    private final int mask;
+
+    /**
+     * Tasks scheduled, but not yet stored on their slot.
+     */
+    private final ConcurrentLinkedQueue<Timeout> pending;
+
+    /**
+     * Value of {@link System#nanoTime()} when the wheel was created.
+     */
+    private final long startTime;
+
+    /**
+     * Name of the thread of the wheel.
+     */
+    private final String name;
+
+    /**
+     * Number of ticks processed so far.
+     */
+    private long tick;
+
+    /**
+     * Thread that advances the wheel, or {@code null} if it hasn't been
+     * started yet.
+     */
+    private Thread worker;
+
+    /**
+     * If this attribute is <i>true</i>, the thread of the wheel ends.
+     */
+    private volatile boolean stopped;
+
+/* -------------------------------------- */
+/* ---- END OF ATTRIBUTE DECLARATION ---- */
+/* -------------------------------------- */
+
+    /**
+     * Constructor.
+     *
+     * @param tickDuration
+     *              Duration of a tick, in milliseconds. The tasks are run,
+     *          at most, one tick after their delay.
+     *
+     * @param slots
+     *              Number of slots of the wheel. It's rounded up to a power
+     *          of two.
+     *
+     * @param name
+     *              Name of the thread of the wheel.
+     */
+    @SuppressWarnings({"unchecked", "rawtypes"})
+    public TimingWheel (long tickDuration, int slots, String name) {
+
+        int size = 1;
+
+        while (size < slots) {
+
+            size <<= 1;
+        }
+
+        this.tickDuration = TimeUnit.MILLISECONDS.toNanos(Math.max(1, tickDuration));
+        this.wheel = new ArrayDeque [size];
+        this.mask = size - 1;
+        this.pending = new ConcurrentLinkedQueue<>();
+        this.startTime = System.nanoTime();
+        this.name = name;
+        this.tick = 0;
+        this.worker = null;
+        this.stopped = false;
+
+        for (int i = 0; i < size; i++) {
+
+            wheel [i] = new ArrayDeque<>();
+        }
+    }
+
+    /**
+     * Schedules the given task to be run after the given delay. The thread of
+     * the wheel is started if it wasn't already running.
+     *
+     * @param task
+     *              The task to be run.
+     *
+     * @param delay
+     *              Delay, in milliseconds.
+     *
+     *
+     * @return
+     *              A {@link Timeout} that can be used to cancel the task.
+     */
+    public Timeout schedule (Runnable task, long delay) {
+
+        Timeout timeout = new Timeout (task,
+                                       System.nanoTime() - startTime
+                                        + TimeUnit.MILLISECONDS.toNanos(Math.max(0, delay)));
+
+        start ();
+        pending.add (timeout);
+
+        return timeout;
+    }
+
+    /**
+     * Stops the thread of the wheel. The tasks that haven't expired yet are
+     * never run.
+     */
+    public synchronized void stop () {
+
+        stopped = true;
+
+        if (worker != null) {
+
+            worker.interrupt();
+        }
+    }
+
+    /**
+     * Starts the thread of the wheel, if it wasn't already running.
+     */
+    private synchronized void start () {
+
+        if ((worker != null) || stopped) {
+
+            return;
+        }
+
+        worker = new Thread (this::run, name);
+        worker.setDaemon (true);
+        worker.start();
+    }
+
+    /**
+     * Advances the wheel once per tick until it's stopped.
+     */
+    private void run () {
+
+        long deadline;
+        long sleep;
+
+        while (!stopped) {
+
+            /* Waits until the end of the current tick */
+            deadline = (tick + 1) * tickDuration;
+            sleep = deadline - (System.nanoTime() - startTime);
+
+            if (sleep > 0) {
+
+                try {
+
+                    TimeUnit.NANOSECONDS.sleep(sleep);
+
+                } catch (InterruptedException ex) {
+
+                    if (stopped) {
+
+                        return;
+                    }
+                }
+
+                continue;
+            }
+
+            transferPending ();
+            expire (wheel [(int) (tick & mask)]);
+            tick++;
+        }
+    }
+
+    /**
+     * Moves the scheduled tasks to their slots on the wheel.
+     */
+    private void transferPending () {
+
+        Timeout timeout;
+        long ticks;
+
+        while ((timeout = pending.poll()) != null) {
+
+            if (timeout.isCancelled()) {
+
+                continue;
+            }
+
+            /* The tasks already expired are run on the current tick */
+            ticks = Math.max (tick, timeout.deadline / tickDuration);
+            timeout.rounds = (ticks - tick) / wheel.length;
+
+            wheel [(int) (ticks & mask)].add (timeout);
+        }
+    }
+
+    /**
+     * Runs the expired tasks of the given slot and decrements the remaining
+     * turns of the others.
+     *
+     * @param slot
+     *              The slot of the current tick.
+     */
+    private void expire (ArrayDeque<Timeout> slot) {
+
+        Iterator<Timeout> it = slot.iterator();
+        Timeout timeout;
+
+        while (it.hasNext()) {
+
+            timeout = it.next();
+
+            if (timeout.isCancelled()) {
+
+                it.remove();
+
+            } else if (timeout.rounds <= 0) {
+
+                it.remove();
+
+                try {
+
+                    timeout.expire();
+
+                } catch (RuntimeException ex) {
+
+                    logger.logError("Exception at TimingWheel.expire(): "
+                                    + ex.getMessage() + "\n");
+                }
+            } else {
+
+                timeout.rounds--;
+            }
+        }
+    }
+
+/* ------------------------- */
+/* ---- AUXILIARY CLASS ---- */
+/* ------------------------- */
+
+    /**
+     * A task scheduled on the wheel.
+     */
+    public static final class Timeout {
+
+        /**
+         * Task to be run, or {@code null} once it has been run or cancelled.
+         */
+        private volatile Runnable task;
+
+        /**
+         * Time (in nanoseconds since the creation of the wheel) when the task
+         * expires.
+         */
+        private final long deadline;
+
+        /**
+         * Turns of the wheel that must pass before the task expires. Only used
+         * by the thread of the wheel.
+         */
+        private long rounds;
+
+        /**
+         * Constructor.
+         *
+         * @param task
+         *              Task to be run.
+         *
+         * @param deadline
+         *              Time (in nanoseconds since the creation of the wheel)
+         *          when the task expires.
+         */
+        private Timeout (Runnable task, long deadline) {
+
+            this.task = task;
+            this.deadline = deadline;
+        }
+
+        /**
+         * Cancels the task, if it hasn't been run yet.
+         *
+         * @return
+         *              <i>true</i> if the task has been cancelled; <i>false</i>
+         *          if it had already been run or cancelled.
+         */
+        public synchronized boolean cancel () {
+
+            boolean cancelled = (task != null);
+
+            task = null;
+
+            return cancelled;
+        }
+
+        /**
+         * Returns <i>true</i> if the task has been cancelled or already run.
+         *
+         * @return
+         *              <i>true</i> if the task won't be run.
+         */
+        public boolean isCancelled () {
+
+            return (task == null);
+        }
+
+        /**
+         * Runs the task, if it hasn't been cancelled.
+         */
+        private void expire () {
+
+            Runnable aux;
+
+            synchronized (this) {
+
+                aux = task;
+                task = null;
+            }
+
+            if (aux != null) {
+
+                aux.run();
+            }
+        }
+    }
+}
@@ -19,6 +19,8 @@
  */
 package files;
 
+import java.nio.ByteBuffer;
+import java.util.Date;
 import java.util.concurrent.ConcurrentHashMap;
 import peer.Host;
 
@@ -56,6 +58,24 @@ public class FileObserver {
      */
     private final ConcurrentHashMap<Host, Entry> observedFiles;
     
+    /**
+     * Windowed transfers being sent.
+     * 
+     * <p>
+     *              <br>Key -> The host that's receiving the file.
+     *              <br>Value -> The {@link SendWindow} of the transfer.
+     */
+    private final ConcurrentHashMap<Host, SendWindow> sending;
+    
+    /**
+     * Windowed transfers being received.
+     * 
+     * <p>
+     *              <br>Key -> The host that's sending the file.
+     *              <br>Value -> The {@link ReceiveWindow} of the transfer.
+     */
+    private final ConcurrentHashMap<Host, ReceiveWindow> receiving;
+    
 /* -------------------------------------- */
 /* ---- END OF ATTRIBUTE DECLARATION ---- */
 /* -------------------------------------- */
@@ -67,6 +87,8 @@ public class FileObserver {
         
         expResponse = new ConcurrentHashMap<>();
         observedFiles = new ConcurrentHashMap<>();
+        sending = new ConcurrentHashMap<>();
+        receiving = new ConcurrentHashMap<>();
     }
     
     /**
@@ -117,12 +139,32 @@ public class FileObserver {
      */
     public void notifyAnswer (Host host, boolean answer) {
 
+        notifyAnswer (host, answer, false);
+    }
+    
+    /**
+     * Notifies a sleeping thread that an answer from the given host has been 
+     * received.
+     * 
+     * 
+     * @param host 
+     * 
+     * @param answer 
+     *              If <i>true</i>, the received answer is an {@code ACK} 
+     *          message (and, therefore, the file will be sent).
+     * 
+     * @param windowed 
+     *              If <i>true</i>, the {@code ACK} was selective: the other 
+     *          host accepts a windowed transfer.
+     */
+    public void notifyAnswer (Host host, boolean answer, boolean windowed) {
+
         FileSharer manager;
 
         if (expResponse.containsKey (host)) {
             
             manager = expResponse.remove (host);
-            manager.notifyConfirmation (answer);
+            manager.notifyConfirmation (answer, windowed);
         }
     }
     
@@ -189,6 +231,131 @@ public class FileObserver {
         return true;
     }
     
+    /**
+     * When a new file is received on a windowed transfer, it should be added 
+     * to this list to place the chunks on the file. A previous transfer from 
+     * the same host is forgotten.
+     * 
+     * 
+     * @param sender 
+     *              The host that sends the file.
+     * 
+     * @param filePath 
+     *              A string with the path of the file.
+     */
+    public void addWindowedFile (Host sender, String filePath) {
+        
+        receiving.put (sender, new ReceiveWindow (filePath));
+        observedFiles.put (sender, new Entry (filePath, 0));
+    }
+    
+    /**
+     * Writes a chunk of a windowed transfer on its place of the file.
+     * 
+     * @param sender 
+     *              The host that sends the file.
+     * 
+     * @param transferId 
+     *              Identifier of the transfer.
+     * 
+     * @param index 
+     *              Index of the chunk.
+     * 
+     * @param total 
+     *              Number of chunks of the file.
+     * 
+     * @param data 
+     *              Buffer with the chunk, between its position and its limit.
+     * 
+     * 
+     * @return 
+     *              The selective acknowledgement that must be sent back (see 
+     *          {@link ReceiveWindow#sack()}), or {@code null} if there wasn't 
+     *          any windowed transfer from the given host.
+     */
+    public int [] writeChunk (Host sender,
+                              int transferId,
+                              int index,
+                              int total,
+                              ByteBuffer data) {
+        
+        ReceiveWindow window = receiving.get (sender);
+        Entry entry = observedFiles.get (sender);
+        long offset;
+        
+        if (window == null) {
+            
+            return null;
+        }
+        
+        offset = window.offset (transferId, index, total, data.remaining());
+        
+        if (offset >= 0) {
+            
+            entry.setWrittenBytes (FileSharer.writeFile (window.getPath(),
+                                                         data,
+                                                         offset));
+            window.mark (index);
+        }
+        
+        return window.sack();
+    }
+    
+    /**
+     * Adds the window of a windowed transfer that is being sent, so the 
+     * acknowledgements from the destination host reach it.
+     * 
+     * @param destination 
+     *              The host that receives the file.
+     * 
+     * @param window 
+     *              The window of the transfer.
+     */
+    public void addWindow (Host destination, SendWindow window) {
+        
+        sending.put (destination, window);
+    }
+    
+    /**
+     * Removes the window of a windowed transfer, once it has finished.
+     * 
+     * @param destination 
+     *              The host that receives the file.
+     */
+    public void removeWindow (Host destination) {
+        
+        sending.remove (destination);
+    }
+    
+    /**
+     * Gives a selective acknowledgement to the windowed transfer sent to the 
+     * given host.
+     * 
+     * @param destination 
+     *              The host that sent the acknowledgement.
+     * 
+     * @param sack 
+     *              The arguments of the acknowledgement.
+     * 
+     * 
+     * @return 
+     *              <i>true</i> if there was a transfer to the given host; 
+     *          <i>false</i> otherwise.
+     */
+    public boolean notifyAck (Host destination, int [] sack) {
+        
+        SendWindow window = sending.get (destination);
+        
+        if (window == null) {
+            
+            return false;
+        }
+        
+        window.acknowledge (sack, new Date().getTime());
+        
+        return true;
+    }
+    
     /**
      * Writes the given array of bytes into the desired file.
      * 
@@ -205,6 +372,26 @@ public class FileObserver {
      */
     public long writeToFile (Host sender, byte [] data) {
         
+        return writeToFile (sender, ByteBuffer.wrap (data));
+    }
+    
+    /**
+     * Writes the remaining bytes of the given buffer into the desired file.
+     * 
+     * @param sender 
+     *              The host that sends the file.
+     * 
+     * @param data 
+     *              Buffer with the bytes to append to the file, between its
+     *          position and its limit.
+     * 
+     *
+     * @return 
+     *              The new size of the file, in bytes, or -1 if there wasn't 
+     *          any entry with the given host on the list..
+     */
+    public long writeToFile (Host sender, ByteBuffer data) {
+        
         Entry entry;
         long fileLength;
         String path;
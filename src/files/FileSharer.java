@@ -24,7 +24,6 @@ import static packets.ControlMessage.*;
 import static common.Common.logger;
 import static common.Common.fileObserver;
 
-import common.Common;
 import control.Notification;
 import java.io.File;
 import java.io.FileNotFoundException;
@@ -32,11 +31,20 @@ import java.io.FileOutputStream;
 import java.io.IOException;
 import java.io.RandomAccessFile;
 import java.net.DatagramPacket;
+import java.net.InetSocketAddress;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
 import java.util.ArrayList;
+import java.util.Arrays;
 import java.util.Date;
+import common.Common;
+import packets.Capabilities;
+import packets.Compression;
 import packets.PacketCreator;
+import packets.PacketEncoder;
 import peer.Host;
 import peer.Peer;
+import peer.ServerThread;
 
 /**
  * This class implements some methods to load, send and receive files through
@@ -70,6 +78,18 @@ public class FileSharer extends Thread {
      */
     private boolean confirmed;
 
+    /**
+     * If the destination host accepted a windowed transfer (with a selective
+     * {@code ACK}), this attribute will be <i>true</i>.
+     */
+    private boolean windowed;
+
+    /**
+     * If it's <i>true</i>, the transfer yields to the rest of the traffic to
+     * the destination host (see {@link control.Ledbat}).
+     */
+    private final boolean background;
+
     /**
      * Maximum wait time (in <b>milliseconds</i>) before giving up and
      * assuming that the destination host rejected the file transfer.
@@ -78,6 +98,29 @@ public class FileSharer extends Thread {
      * 300000 milliseconds = 300 seconds (5 minutes).
      */
     private final long MAX_WAIT_TIME = 300000;
+
+    /**
+     * Maximum time (in <b>milliseconds</b>) that a windowed transfer can go
+     * on without any chunk being acknowledged before giving up.
+     */
+    private final long MAX_IDLE_TIME = 30000;
+
+    /**
+     * Bytes that a windowed transfer can have in flight. The number of
+     * chunks is taken from it, so a burst of chunks fits on the socket buffer
+     * of the receiver.
+     */
+    private static final int WINDOW_BYTES = 196608;
+
+    /**
+     * Lowest number of chunks in flight on a windowed transfer.
+     */
+    private static final int MIN_WINDOW = 2;
+
+    /**
+     * Highest number of chunks in flight on a windowed transfer.
+     */
+    public static final int MAX_WINDOW = 64;
     
     /**
      * Date when the request was sent.
@@ -103,12 +146,39 @@ public class FileSharer extends Thread {
      */
     public FileSharer (String path, Peer origin, Host destination) {
 
+        this (path, origin, destination, false);
+    }
+
+    /**
+     * Constructor.
+     *
+     *
+     * @param path
+     *              A string with the path to the file to be sent.
+     *
+     * @param origin
+     *              The peer that sends the data.
+     *
+     * @param destination
+     *              The host where the data ill be sent.
+     *
+     * @param background
+     *              If <i>true</i>, a windowed transfer uses a low priority
+     *          congestion controller, so it doesn't slow down the chat.
+     */
+    public FileSharer (String path,
+                       Peer origin,
+                       Host destination,
+                       boolean background) {
+
         this.path = path;
         this.origin = origin;
         this.destination = destination;
+        this.background = background;
 
         answerReceived = false;
         confirmed = false;
+        windowed = false;
         startDate = new Date ();
     }
     
@@ -179,8 +249,27 @@ public class FileSharer extends Thread {
      */
     public synchronized void notifyConfirmation (boolean confirmed) {
 
+        notifyConfirmation (confirmed, false);
+    }
+
+    /**
+     * If the petition has been accepted, sends the file.
+     *
+     *
+     * @param confirmed
+     *              If the other peer accepted the transfer (indicated by
+     *          {@code confirmed} being <i>true</i>), sends the file.
+     *
+     * @param windowed
+     *              If the other peer accepted a windowed transfer, the file is
+     *          sent with many chunks in flight.
+     */
+    public synchronized void notifyConfirmation (boolean confirmed,
+                                                 boolean windowed) {
+
         answerReceived = true;
         this.confirmed = confirmed;
+        this.windowed = windowed;
 
         notifyAll ();
     }
@@ -212,11 +301,20 @@ public class FileSharer extends Thread {
                                           ACK);
         
         expectedAnswer.setPort (destination.getPort());
+        
+        /* The answer comes when the user of the other host accepts or rejects
+        the transfer, so it may take longer than a normal ACK */
+        expectedAnswer.setExpiryTime (MAX_WAIT_TIME);
 
-        /* Sends the packet and waits for confirmation */
-        destination.send (confirmation, expectedAnswer, origin, 1);
-
+        /* The observer must know about the transfer before the answer can
+        arrive. Then, the packet is sent without blocking this thread, that
+        waits for the confirmation on checkAnswer() */
         fileObserver.addHost(destination, this);
+
+        /* The time taken by the user isn't a round trip time, so it mustn't
+        back off the RTO of the host */
+        destination.sendAsync (confirmation, expectedAnswer, origin, 1,
+                               MAX_WAIT_TIME);
     }
 
     /**
@@ -227,6 +325,7 @@ public class FileSharer extends Thread {
      *              <br>0 on success.
      *              <br>-1  if the file hasn't been found.
      *              <br>-2 if an IOException has been thrown and caught.
+     *              <br>-3 if a windowed transfer stopped being acknowledged.
      */
     private int sendFile () {
 
@@ -241,12 +340,40 @@ public class FileSharer extends Thread {
             int read;
 
             int buff_size;
+            int datagramSize;
+            int chunk;
             ArrayList<java.net.DatagramPacket>  packets;
+            DatagramPacket compressed;
+            byte [] deflated;
+            boolean deflate;
+
+            /* Finds the largest datagram that reaches the destination, if it
+            hasn't been found yet, to send the file on as few packets as
+            possible */
+            if (!destination.isProbed()) {
+
+                destination.probeDatagramSize(origin).join();
+            }
+
+            datagramSize = destination.getDatagramSize();
+            chunk = datagramSize - 4 - DATA.getLength();
+
+            /* The chunks are compressed if the destination can inflate them,
+            until one of them doesn't get shorter (the rest of the file is
+            probably compressed already) */
+            deflate = origin.getServer().supports(destination,
+                                                  Capabilities.DEFLATE);
+
+            /* The destination accepted many chunks in flight */
+            if (windowed && origin.getServer().isCompact(destination)) {
+
+                return sendWindowed (f, size, datagramSize, deflate);
+            }
 
             /* Sends all the data on smaller packets */
             while (offset < size) {
 
-                b = new byte [Common.BUFF_SIZE - 4 - DATA.getLength()];
+                b = new byte [chunk];
 
                 f.seek(offset);
                 read = f.read(b, 0, b.length);
@@ -254,9 +381,7 @@ public class FileSharer extends Thread {
                 /* If the read data is smaller than the maximum buffer size,
                 creates a smaller auxiliar buffer to avoid sending unnecessary
                 data */
-                buff_size = (read > (Common.BUFF_SIZE - 4 - DATA.getLength()))?
-                            Common.BUFF_SIZE - 4 - DATA.getLength()
-                            : read;
+                buff_size = (read > chunk)? chunk : read;
 
                 byte aux [] = new byte [buff_size];
 
@@ -264,9 +389,33 @@ public class FileSharer extends Thread {
                                  aux, 0,
                                  aux.length);
 
-                packets = PacketCreator.DATA (destination.getDataFlow(),
-                                              aux,
-                                              origin.getServer().getPort());
+                compressed = null;
+
+                if (deflate) {
+
+                    deflated = Compression.compress (aux);
+                    compressed = (deflated == null)?
+                                    null
+                                  : PacketCreator.COMPRESSED (destination.getDataFlow(),
+                                                              DATA,
+                                                              deflated,
+                                                              origin.getServer().getPort(),
+                                                              datagramSize);
+                    deflate = (compressed != null);
+                }
+
+                if (compressed != null) {
+
+                    packets = new ArrayList<>();
+                    packets.add (compressed);
+
+                } else {
+
+                    packets = PacketCreator.DATA (destination.getDataFlow(),
+                                                  aux,
+                                                  origin.getServer().getPort(),
+                                                  datagramSize);
+                }
 
                 expectedAnswer =  new Notification(destination.getIPaddress(),
                                                    destination.getDataFlow(),
@@ -295,6 +444,139 @@ public class FileSharer extends Thread {
         return 0;
     }
     
+    /**
+     * Sends the file on a windowed transfer: many chunks are in flight at the
+     * same time, and the destination answers every one of them with a
+     * selective {@code ACK}. The lost chunks are sent again as soon as the
+     * acknowledgements show a gap, or when their timeout expires (see
+     * {@link SendWindow}).
+     *
+     * <p>
+     * The chunks in flight are also limited by the congestion controller of
+     * the destination host, that is told about every acknowledgement, loss
+     * and timeout.
+     *
+     * <p>
+     * Every chunk is a compact {@code DATA} fragment: the identifier of the
+     * message is the one of the transfer, and the index is the one of the
+     * chunk, so the destination can write it on its place of the file.
+     *
+     * @param f
+     *              The file to be sent.
+     *
+     * @param size
+     *              The size of the file.
+     *
+     * @param datagramSize
+     *              The largest datagram that reaches the destination.
+     *
+     * @param deflate
+     *              If <i>true</i>, the chunks are compressed while they get
+     *          shorter.
+     *
+     *
+     * @return
+     *              <br>0 on success.
+     *              <br>-3 if no chunk has been acknowledged for
+     *          {@code MAX_IDLE_TIME} milliseconds.
+     *
+     *
+     * @throws IOException
+     *              If the file can't be read.
+     */
+    private int sendWindowed (RandomAccessFile f,
+                              long size,
+                              int datagramSize,
+                              boolean deflate) throws IOException {
+
+        ServerThread server = origin.getServer();
+        InetSocketAddress address = new InetSocketAddress (destination.getIPaddress(),
+                                                           destination.getPort());
+        int chunk = PacketEncoder.fragmentLength (datagramSize);
+        int total = (int) Math.max (1, (size + chunk - 1) / chunk);
+        int transferId = server.nextRequestId (destination);
+        SendWindow window = new SendWindow (total,
+                                            Math.max (MIN_WINDOW,
+                                                      Math.min (MAX_WINDOW,
+                                                                WINDOW_BYTES / datagramSize)),
+                                            chunk,
+                                            destination.congestionControl (background),
+                                            new Date().getTime());
+        ByteBuffer buffer = Common.largeBufferPool.lease();
+        byte [] data = new byte [chunk];
+        byte [] payload;
+        byte [] deflated;
+        int index;
+        int length;
+        int flags;
+        long now;
+
+        fileObserver.addWindow (destination, window);
+
+        try {
+
+            while (!window.isComplete()) {
+
+                now = new Date().getTime();
+
+                if (now - window.getLastProgress() > MAX_IDLE_TIME) {
+
+                    logger.logWarning ("The following host stopped acknowledging"
+                                       + " the file transfer: "
+                                       + destination.toString()
+                                       + "\nFile: " + path + "\n");
+                    return -3;
+                }
+
+                /* Sends all the chunks allowed by the window */
+                while ((index = window.poll (now)) >= 0) {
+
+                    length = (int) Math.min (chunk, size - (long) index * chunk);
+
+                    f.seek ((long) index * chunk);
+                    f.readFully (data, 0, length);
+
+                    payload = data;
+                    flags = 0;
+
+                    if (deflate) {
+
+                        deflated = Compression.compress (Arrays.copyOf (data, length));
+                        deflate = (deflated != null);
+
+                        if (deflate) {
+
+                            payload = deflated;
+                            length = deflated.length;
+                            flags = PacketEncoder.FLAG_COMPRESSED;
+                        }
+                    }
+
+                    buffer.clear();
+                    buffer.limit (PacketEncoder.fragment (buffer, 0, DATA,
+                                                          destination.getDataFlow(),
+                                                          payload, 0, length,
+                                                          server.getPort(),
+                                                          transferId,
+                                                          index, total,
+                                                          flags));
+                    server.send (buffer, address);
+                }
+
+                /* Until an acknowledgement arrives or a timeout expires */
+                window.await (window.timeout (now));
+            }
+
+        } finally {
+
+            fileObserver.removeWindow (destination);
+            window.close();
+            Common.largeBufferPool.release (buffer);
+        }
+
+        return 0;
+    }
+    
     /**
      * Writes the given array of bytes into the desired file.
      * 
@@ -311,11 +593,79 @@ public class FileSharer extends Thread {
      */
     public static long writeFile (String path, byte [] bytes) {
         
+        return writeFile (path, ByteBuffer.wrap (bytes));
+    }
+    
+    /**
+     * Writes the remaining bytes of the given buffer into the desired file,
+     * without copying them into an array first.
+     * 
+     * @param path 
+     *              A string with the path to the file. If it don't exists, a 
+     *          new file is created.
+     * 
+     * @param bytes 
+     *              Buffer with the bytes to append to the file, between its
+     *          position and its limit. Its position is moved to the limit.
+     * 
+     * 
+     * @return 
+     *              The new size of the file, in bytes.
+     */
+    public static long writeFile (String path, ByteBuffer bytes) {
+        
         File file = new File (path);
         
         try (FileOutputStream stream = new FileOutputStream (file, true)) {
             
-            stream.write(bytes);
+            FileChannel channel = stream.getChannel();
+            
+            while (bytes.hasRemaining()) {
+                
+                channel.write(bytes);
+            }
+            
+        } catch (IOException ex) {
+            
+            logger.logError("IOException at FileSharer.writeFile (): "
+                            + ex.getMessage());
+        }
+        
+        return file.length ();
+    }
+
+    /**
+     * Writes the remaining bytes of the given buffer into the desired file, at
+     * the given position (the chunks of a windowed transfer can arrive on any
+     * order).
+     * 
+     * @param path 
+     *              A string with the path to the file. If it don't exists, a 
+     *          new file is created.
+     * 
+     * @param bytes 
+     *              Buffer with the bytes to write, between its position and 
+     *          its limit. Its position is moved to the limit.
+     * 
+     * @param position 
+     *              Position of the file where the first byte is written.
+     * 
+     * 
+     * @return 
+     *              The new size of the file, in bytes.
+     */
+    public static long writeFile (String path, ByteBuffer bytes, long position) {
+        
+        File file = new File (path);
+        
+        try (RandomAccessFile stream = new RandomAccessFile (file, "rw")) {
+            
+            FileChannel channel = stream.getChannel();
+            
+            while (bytes.hasRemaining()) {
+                
+                position += channel.write(bytes, position);
+            }
             
         } catch (IOException ex) {
             
@@ -0,0 +1,227 @@
+/*
+ * CAL.
+ *  A P2P chat program that lets you communicate without any infrastructure.
+ *
+ *   Copyright (C) 2015  Foo-Manroot
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package files;
+
+import java.util.BitSet;
+import packets.PacketEncoder;
+
+/**
+ * Receiver side of a windowed file transfer: keeps track of the chunks
+ * received, that can arrive on any order, and builds the selective
+ * acknowledgements sent back to the sender.
+ *
+ * <p>
+ * All the chunks but the last one have the same length, so the position of
+ * every chunk on the file is known once any of them (apart from the last one)
+ * has arrived. Until then, the last chunk isn't accepted; it will be sent
+ * again, as it's not acknowledged.
+ */
+public class ReceiveWindow {
+
+    /**
+     * Path of the file where the chunks are written.
+     */
+    private final String path;
+
+    /**
+     * Identifier of the transfer, taken from the first chunk, or <b>-1</b> if
+     * no chunk has arrived yet. The chunks of other transfers are ignored.
+     */
+    private int transferId;
+
+    /**
+     * Number of chunks of the file, or <b>-1</b> if no chunk has arrived yet.
+     */
+    private int total;
+
+    /**
+     * Length of all the chunks but the last one, or <b>-1</b> if it isn't
+     * known yet.
+     */
+    private int chunkLength;
+
+    /**
+     * Chunks written on the file.
+     */
+    private final BitSet received;
+
+    /**
+     * First chunk that hasn't been received.
+     */
+    private int cumulative;
+
+/* -------------------------------------- */
+/* ---- END OF ATTRIBUTE DECLARATION ---- */
+/* -------------------------------------- */
+
+    /**
+     * Constructor.
+     *
+     * @param path
+     *              Path of the file where the chunks are written.
+     */
+    public ReceiveWindow (String path) {
+
+        this.path = path;
+
+        transferId = -1;
+        total = -1;
+        chunkLength = -1;
+        received = new BitSet();
+        cumulative = 0;
+    }
+
+    /**
+     * Returns the position on the file of a received chunk.
+     *
+     * @param transferId
+     *              Identifier of the transfer.
+     *
+     * @param index
+     *              Index of the chunk.
+     *
+     * @param total
+     *              Number of chunks of the file.
+     *
+     * @param length
+     *              Length of the chunk.
+     *
+     *
+     * @return
+     *              The position where the chunk must be written, or <b>-1</b>
+     *          if it mustn't be written: it has already been received, it
+     *          belongs to another transfer, it doesn't match the previous
+     *          chunks or its position isn't known yet.
+     */
+    public synchronized long offset (int transferId,
+                                     int index,
+                                     int total,
+                                     int length) {
+
+        /* The first chunk sets the transfer */
+        if (this.transferId < 0) {
+
+            this.transferId = transferId;
+            this.total = total;
+        }
+
+        if ((transferId != this.transferId) || (total != this.total) ||
+            received.get (index)) {
+
+            return -1;
+        }
+
+        if (index < total - 1) {
+
+            if (chunkLength < 0) {
+
+                chunkLength = length;
+            }
+
+            return (length == chunkLength)? (long) index * chunkLength : -1;
+        }
+
+        /* The last chunk */
+        if (total == 1) {
+
+            return 0;
+        }
+
+        return ((chunkLength < 0) || (length > chunkLength))?
+                    -1
+                  : (long) index * chunkLength;
+    }
+
+    /**
+     * Marks the given chunk as received, once it has been written on the file.
+     *
+     * @param index
+     *              Index of the chunk.
+     */
+    public synchronized void mark (int index) {
+
+        received.set (index);
+        cumulative = received.nextClearBit (cumulative);
+    }
+
+    /**
+     * Returns the selective acknowledgement of the chunks received so far.
+     *
+     * @return
+     *              The first chunk not received yet, followed by the first
+     *          index and the end (the index after the last one) of every
+     *          block received after it (up to
+     *          {@link PacketEncoder#MAX_SACK_BLOCKS}).
+     */
+    public synchronized int [] sack () {
+
+        int [] sack;
+        int blocks = 0;
+        int start;
+        int end = cumulative;
+
+        /* Counts the blocks first, to allocate the exact array */
+        while ((blocks < PacketEncoder.MAX_SACK_BLOCKS) &&
+               ((start = received.nextSetBit (end)) >= 0)) {
+
+            end = received.nextClearBit (start);
+            blocks++;
+        }
+
+        sack = new int [1 + 2 * blocks];
+        sack [0] = cumulative;
+        end = cumulative;
+
+        for (int i = 0; i < blocks; i++) {
+
+            sack [1 + 2 * i] = received.nextSetBit (end);
+            end = received.nextClearBit (sack [1 + 2 * i]);
+            sack [2 + 2 * i] = end;
+        }
+
+        return sack;
+    }
+
+/* ----------------------------- */
+/* ---- GETTERS AND SETTERS ---- */
+/* ----------------------------- */
+
+    /**
+     * Returns the path of the file.
+     *
+     * @return
+     *              The value of {@code path}.
+     */
+    public String getPath () {
+
+        return path;
+    }
+
+    /**
+     * Checks whether all the chunks have been received.
+     *
+     * @return
+     *              <i>true</i> if the transfer has finished.
+     */
+    public synchronized boolean isComplete () {
+
+        return (total >= 0) && (cumulative >= total);
+    }
+}
@@ -0,0 +1,680 @@
+/*
+ * CAL.
+ *  A P2P chat program that lets you communicate without any infrastructure.
+ *
+ *   Copyright (C) 2015  Foo-Manroot
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package files;
+
+import control.CongestionControl;
+import control.RTTEstimator;
+import java.util.BitSet;
+import java.util.Map;
+import java.util.TreeMap;
+import java.util.TreeSet;
+
+/**
+ * Sender side of a windowed file transfer: keeps track of the chunks of the
+ * file that are in flight and decides which one must be sent next.
+ *
+ * <p>
+ * Up to {@code size} chunks can be waiting for their acknowledgement at the
+ * same time. The receiver answers every chunk with a selective {@code ACK}
+ * (the first chunk that it hasn't received yet and the blocks received after
+ * it), so a lost chunk is sent again as soon as any of these happens:
+ * <ul>
+ *  <li>{@link #DUPLICATE_ACKS} acknowledgements arrive without any progress
+ *  of the first chunk not received.</li>
+ *  <li>{@link #DUPLICATE_ACKS} chunks sent after it have been received.</li>
+ *  <li>The retransmission timeout of the oldest chunk in flight expires (then
+ *  all the chunks in flight are sent again).</li>
+ * </ul>
+ *
+ * <p>
+ * If the window has a {@link CongestionControl}, a new chunk is only sent
+ * when the congestion window has room for it, and the controller is told
+ * about every acknowledgement, loss and timeout.
+ *
+ * <p>
+ * All the times are given by the caller (in milliseconds), so the window can
+ * be driven by a real clock or by a simulated one.
+ */
+public class SendWindow {
+
+    /**
+     * Number of duplicated acknowledgements (or chunks received after a
+     * missing one) that mean that the chunk has been lost.
+     */
+    public static final int DUPLICATE_ACKS = 3;
+
+    /**
+     * Retransmission timeout (in milliseconds) before the first round trip
+     * time has been measured.
+     */
+    public static final long INITIAL_RTO = 1000;
+
+    /**
+     * Lowest retransmission timeout, in milliseconds.
+     */
+    public static final long MIN_RTO = 200;
+
+    /**
+     * Highest retransmission timeout, in milliseconds.
+     */
+    public static final long MAX_RTO = 60000;
+
+    /**
+     * Number of chunks of the file.
+     */
+    private final int total;
+
+    /**
+     * Maximum number of chunks in flight.
+     */
+    private final int size;
+
+    /**
+     * Size of a chunk, in bytes.
+     */
+    private final int chunkSize;
+
+    /**
+     * Congestion controller of the path to the receiver, or {@code null} to
+     * send as many chunks as the window allows.
+     */
+    private final CongestionControl congestion;
+
+    /**
+     * Chunks acknowledged by the receiver.
+     */
+    private final BitSet acknowledged;
+
+    /**
+     * Chunks sent more than once. Their acknowledgements aren't used to
+     * measure the round trip time, as it's not known which one of the copies
+     * was received.
+     */
+    private final BitSet retransmitted;
+
+    /**
+     * Chunks in flight, with the date (in milliseconds) when they were sent
+     * for the last time.
+     */
+    private final TreeMap<Integer, Long> inFlight;
+
+    /**
+     * Lost chunks, waiting to be sent again. They aren't in flight.
+     */
+    private final TreeSet<Integer> lost;
+
+    /**
+     * First chunk that hasn't been acknowledged.
+     */
+    private int cumulative;
+
+    /**
+     * First chunk that hasn't been sent yet.
+     */
+    private int highest;
+
+    /**
+     * First chunk sent after the last reaction to a loss. The losses of the
+     * chunks before it belong to the same window of data, so the congestion
+     * window isn't shrunk again for them (the recovery point of NewReno).
+     */
+    private int recover;
+
+    /**
+     * Number of acknowledgements received in a row without any progress of
+     * {@code cumulative}.
+     */
+    private int duplicates;
+
+    /**
+     * Estimator of the round trip time and the retransmission timeout, that
+     * is doubled after every timeout.
+     */
+    private final RTTEstimator estimator;
+
+    /**
+     * Number of chunks sent again.
+     */
+    private int retransmissions;
+
+    /**
+     * Date (in milliseconds) of the last acknowledgement that acknowledged
+     * new chunks.
+     */
+    private long lastProgress;
+
+/* -------------------------------------- */
+/* ---- END OF ATTRIBUTE DECLARATION ---- */
+/* -------------------------------------- */
+
+    /**
+     * Constructor.
+     *
+     * @param total
+     *              Number of chunks of the file.
+     *
+     * @param size
+     *              Maximum number of chunks in flight. With <b>1</b>, the
+     *          transfer is stop-and-wait.
+     *
+     * @param now
+     *              Current date, in milliseconds.
+     */
+    public SendWindow (int total, int size, long now) {
+
+        this (total, size, 0, null, now);
+    }
+
+    /**
+     * Constructor, with a congestion controller.
+     *
+     * @param total
+     *              Number of chunks of the file.
+     *
+     * @param size
+     *              Maximum number of chunks in flight.
+     *
+     * @param chunkSize
+     *              Size of a chunk, in bytes.
+     *
+     * @param congestion
+     *              Congestion controller of the path to the receiver, or
+     *          {@code null} to send as many chunks as the window allows.
+     *
+     * @param now
+     *              Current date, in milliseconds.
+     */
+    public SendWindow (int total,
+                       int size,
+                       int chunkSize,
+                       CongestionControl congestion,
+                       long now) {
+
+        this.total = total;
+        this.size = Math.max (1, size);
+        this.chunkSize = chunkSize;
+        this.congestion = congestion;
+
+        acknowledged = new BitSet();
+        retransmitted = new BitSet();
+        inFlight = new TreeMap<>();
+        lost = new TreeSet<>();
+
+        cumulative = 0;
+        highest = 0;
+        recover = 0;
+        duplicates = 0;
+
+        estimator = new RTTEstimator (INITIAL_RTO, MIN_RTO, MAX_RTO);
+
+        retransmissions = 0;
+        lastProgress = now;
+    }
+
+    /**
+     * Returns the next chunk that must be sent: first the lost ones (all the
+     * chunks in flight are taken as lost when the timeout expires) and then,
+     * if there's room on the window, a new one. When there's a congestion
+     * controller, no chunk is sent unless the congestion window has room for
+     * it. The returned chunk is taken as sent at the given date.
+     *
+     * @param now
+     *              Current date, in milliseconds.
+     *
+     *
+     * @return
+     *              The index of the chunk, or <b>-1</b> if nothing can be sent
+     *          now.
+     */
+    public synchronized int poll (long now) {
+
+        Integer index;
+        Map.Entry<Integer, Long> oldest;
+
+        /* Expired timeout: all the chunks in flight are taken as lost, and
+        sent again as the congestion window allows. The timeout is backed
+        off until a new round trip time is measured */
+        if (((oldest = oldest()) != null) &&
+            (oldest.getValue() + estimator.getRTO () <= now)) {
+
+            estimator.timeout ();
+            duplicates = 0;
+            recover = highest;
+
+            if (congestion != null) {
+
+                congestion.onTimeout (now);
+                congestion.onAbandon (inFlight.size() * chunkSize);
+            }
+
+            lost.addAll (inFlight.keySet());
+            inFlight.clear();
+        }
+
+        /* Lost chunks, in order */
+        while ((index = lost.pollFirst()) != null) {
+
+            if (acknowledged.get (index)) {
+
+                continue;
+            }
+
+            if (!room ()) {
+
+                lost.add (index);
+                return -1;
+            }
+
+            return resend (index, now);
+        }
+
+        /* New chunks */
+        if ((inFlight.size() < size) && (highest < total) && room ()) {
+
+            inFlight.put (highest, now);
+
+            if (congestion != null) {
+
+                congestion.onSent (chunkSize);
+            }
+
+            return highest++;
+        }
+
+        return -1;
+    }
+
+    /**
+     * Processes a selective acknowledgement sent by the receiver.
+     *
+     * @param sack
+     *              The first chunk not received yet, followed by the first
+     *          index and the end (the index after the last one) of every
+     *          block received after it.
+     *
+     * @param now
+     *              Current date, in milliseconds.
+     *
+     *
+     * @return
+     *              <i>true</i> if new chunks have been acknowledged.
+     */
+    public synchronized boolean acknowledge (int [] sack, long now) {
+
+        boolean progress = false;
+        int first = Math.min (sack [0], highest);
+        int sacked = 0;
+
+        /* Cumulative part */
+        if (first > cumulative) {
+
+            progress |= mark (cumulative, first, now);
+
+        } else if (first == cumulative) {
+
+            duplicates++;
+        }
+
+        /* Blocks received after a missing chunk */
+        for (int i = 1; i + 1 < sack.length; i += 2) {
+
+            progress |= mark (Math.max (sack [i], cumulative),
+                              Math.min (sack [i + 1], highest),
+                              now);
+        }
+
+        if (acknowledged.get (cumulative)) {
+
+            cumulative = acknowledged.nextClearBit (cumulative);
+            duplicates = 0;
+        }
+
+        if (progress) {
+
+            lastProgress = now;
+        }
+
+        /* Fast retransmit: the first chunk in flight is taken as lost when
+        the acknowledgements don't move forward, and any chunk in flight is
+        taken as lost when enough chunks sent after it have been received */
+        if ((duplicates == DUPLICATE_ACKS) && inFlight.containsKey (cumulative)) {
+
+            lose (cumulative, now);
+        }
+
+        for (int index = highest - 1; index >= cumulative; index--) {
+
+            if (acknowledged.get (index)) {
+
+                sacked++;
+
+            } else if ((sacked >= DUPLICATE_ACKS) &&
+                       inFlight.containsKey (index) &&
+                       !retransmitted.get (index)) {
+
+                lose (index, now);
+            }
+        }
+
+        notifyAll ();
+
+        return progress;
+    }
+
+    /**
+     * Blocks the calling thread until an acknowledgement arrives or the
+     * given time passes.
+     *
+     * @param millis
+     *              Maximum time to wait, in milliseconds.
+     */
+    public synchronized void await (long millis) {
+
+        if (millis <= 0) {
+
+            return;
+        }
+
+        try {
+
+            wait (millis);
+
+        } catch (InterruptedException ex) {
+
+            Thread.currentThread().interrupt();
+        }
+    }
+
+    /**
+     * Returns the time left until the oldest chunk in flight has to be sent
+     * again.
+     *
+     * @param now
+     *              Current date, in milliseconds.
+     *
+     *
+     * @return
+     *              The time left, in milliseconds (<b>0</b> if it has already
+     *          expired), or the current timeout if there's no chunk in flight.
+     */
+    public synchronized long timeout (long now) {
+
+        Map.Entry<Integer, Long> oldest = oldest();
+
+        long RTO = estimator.getRTO ();
+
+        return (oldest == null)?
+                    RTO
+                  : Math.max (0, oldest.getValue() + RTO - now);
+    }
+
+    /**
+     * Takes the chunks still in flight out of the congestion window. It must
+     * be called when the transfer finishes or is cancelled.
+     */
+    public synchronized void close () {
+
+        if (congestion != null) {
+
+            congestion.onAbandon (inFlight.size() * chunkSize);
+        }
+
+        inFlight.clear();
+        lost.clear();
+    }
+
+/* ----------------------------- */
+/* ---- GETTERS AND SETTERS ---- */
+/* ----------------------------- */
+
+    /**
+     * Checks whether all the chunks have been acknowledged.
+     *
+     * @return
+     *              <i>true</i> if the transfer has finished.
+     */
+    public synchronized boolean isComplete () {
+
+        return cumulative >= total;
+    }
+
+    /**
+     * Returns the number of chunks of the file.
+     *
+     * @return
+     *              The value of {@code total}.
+     */
+    public int getTotal () {
+
+        return total;
+    }
+
+    /**
+     * Returns the number of chunks in flight.
+     *
+     * @return
+     *              The chunks sent whose acknowledgement hasn't arrived yet.
+     */
+    public synchronized int inFlight () {
+
+        return inFlight.size();
+    }
+
+    /**
+     * Returns the first chunk that hasn't been acknowledged.
+     *
+     * @return
+     *              The value of {@code cumulative}.
+     */
+    public synchronized int getCumulative () {
+
+        return cumulative;
+    }
+
+    /**
+     * Returns the number of chunks sent again.
+     *
+     * @return
+     *              The value of {@code retransmissions}.
+     */
+    public synchronized int getRetransmissions () {
+
+        return retransmissions;
+    }
+
+    /**
+     * Returns the current retransmission timeout.
+     *
+     * @return
+     *              The retransmission timeout, in milliseconds.
+     */
+    public synchronized long getRTO () {
+
+        return estimator.getRTO ();
+    }
+
+    /**
+     * Returns the estimator of the round trip time.
+     *
+     * @return
+     *              The value of {@code estimator}.
+     */
+    public RTTEstimator getEstimator () {
+
+        return estimator;
+    }
+
+    /**
+     * Returns the date of the last acknowledgement that acknowledged new
+     * chunks (or the creation of the window, if none has done it).
+     *
+     * @return
+     *              The value of {@code lastProgress}, in milliseconds.
+     */
+    public synchronized long getLastProgress () {
+
+        return lastProgress;
+    }
+
+/* --------------------- */
+/* ---- AUX METHODS ---- */
+/* --------------------- */
+
+    /**
+     * Checks if the congestion window has room for another chunk.
+     *
+     * @return
+     *              <i>true</i> if a chunk can be sent, or there's no congestion
+     *          controller.
+     */
+    private boolean room () {
+
+        return (congestion == null) || congestion.canSend (chunkSize);
+    }
+
+    /**
+     * Takes the given chunk as sent again.
+     *
+     * @param index
+     *              The index of the chunk.
+     *
+     * @param now
+     *              Current date, in milliseconds.
+     *
+     *
+     * @return
+     *              The index of the chunk.
+     */
+    private int resend (int index, long now) {
+
+        inFlight.put (index, now);
+        retransmitted.set (index);
+        retransmissions++;
+
+        if (congestion != null) {
+
+            congestion.onSent (chunkSize);
+        }
+
+        return index;
+    }
+
+    /**
+     * Takes the given chunk out of the flight, to be sent again. The
+     * congestion window only shrinks for the first chunk lost on every window
+     * of data.
+     *
+     * @param index
+     *              The index of the chunk.
+     *
+     * @param now
+     *              Current date, in milliseconds.
+     */
+    private void lose (int index, long now) {
+
+        if (index >= recover) {
+
+            recover = highest;
+
+            if (congestion != null) {
+
+                congestion.onLoss (now);
+            }
+        }
+
+        inFlight.remove (index);
+        lost.add (index);
+
+        if (congestion != null) {
+
+            congestion.onAbandon (chunkSize);
+        }
+    }
+
+    /**
+     * Returns the chunk in flight that was sent the longest time ago.
+     *
+     * @return
+     *              The chunk and its date, or {@code null} if there's no chunk
+     *          in flight.
+     */
+    private Map.Entry<Integer, Long> oldest () {
+
+        Map.Entry<Integer, Long> oldest = null;
+
+        for (Map.Entry<Integer, Long> entry : inFlight.entrySet()) {
+
+            if ((oldest == null) || (entry.getValue() < oldest.getValue())) {
+
+                oldest = entry;
+            }
+        }
+
+        return oldest;
+    }
+
+    /**
+     * Marks the chunks on the given range as acknowledged, and measures the
+     * round trip time with the ones that were only sent once. The congestion
+     * window grows for every chunk that was in flight.
+     *
+     * @param from
+     *              The first chunk.
+     *
+     * @param to
+     *              The index after the last chunk.
+     *
+     * @param now
+     *              Current date, in milliseconds.
+     *
+     *
+     * @return
+     *              <i>true</i> if any of them hadn't been acknowledged yet.
+     */
+    private boolean mark (int from, int to, long now) {
+
+        boolean progress = false;
+        Long sent;
+        float sample;
+
+        for (int index = acknowledged.nextClearBit (from);
+             index < to;
+             index = acknowledged.nextClearBit (index + 1)) {
+
+            acknowledged.set (index);
+            progress = true;
+            sample = -1;
+
+            if (((sent = inFlight.remove (index)) != null) &&
+                !retransmitted.get (index)) {
+
+                sample = now - sent;
+                estimator.sample (sample);
+            }
+
+            if ((sent != null) && (congestion != null)) {
+
+                congestion.onAck (chunkSize, sample, now);
+            }
+        }
+
+        return progress;
+    }
+}
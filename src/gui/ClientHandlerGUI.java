@@ -112,14 +112,17 @@ public class ClientHandlerGUI extends ClientHandler {
         it to all the hosts on the given data flow (chat room) */
         String msg = inputArea.getText();
         
-        /* If Peer.sendMessage() returns an empty list, all the hosts received
-        the message and sent an ACK back. If not, some of them didn't 
-        answered back. */
-        if (!getPeer().sendMessage(msg, dataFlow).isEmpty()) {
+        /* If the list of failures is empty, all the hosts received the 
+        message and sent an ACK back. If not, some of them didn't answered 
+        back. The answers aren't waited on the thread of the interface */
+        getPeer().sendMessageAsync(msg, dataFlow).thenAccept(failures -> {
             
-            common.Common.logger.logWarning("Some peers may have not received "
-                                            + "the message.\n");
-        }
+            if (!failures.isEmpty()) {
+            
+                common.Common.logger.logWarning("Some peers may have not "
+                                                + "received the message.\n");
+            }
+        });
         
         /* Deletes the text on the input area */
         inputArea.setText(null);
@@ -197,17 +197,21 @@ public class FXMLPeerController implements Initializable {
         newTab.setId("chatRoom" + chatRoomID);
 
         /* Sets a handler for a closure request */
-        newTab.setOnCloseRequest(e -> {
+        newTab.setOnCloseRequest(e -> 
 
-                if (peer.leaveChatRoom(chatRoomID)) {
+                /* The answers aren't waited on the JavaFX thread */
+                peer.leaveChatRoomAsync(chatRoomID).thenAccept(left -> {
 
-                    logger.logWarning("Disconnected correctly.\n");
-                } else {
+                    if (left) {
 
-                    logger.logWarning("Some peers may have not received the "
-                                      + "disconnection message.\n");
-                }
-            });
+                        logger.logWarning("Disconnected correctly.\n");
+                    } else {
+
+                        logger.logWarning("Some peers may have not received the "
+                                          + "disconnection message.\n");
+                    }
+                })
+            );
         
         newTab.setOnSelectionChanged(e -> {
         
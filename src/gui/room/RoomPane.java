@@ -115,7 +115,9 @@ public class RoomPane {
         disconnectButton.setOnAction(e -> {
 
                 e.consume();
-                peer.leaveChatRoom(chatRoomID);
+
+                /* The answers aren't waited on the JavaFX thread */
+                peer.leaveChatRoomAsync(chatRoomID);
 
                 /* Shows a little message and leaves the tab open */
                 logger.logMsg("\n---------------------\n"
@@ -295,11 +297,15 @@ public class RoomPane {
 
         logger.logMsg(message + "\r\n", aux, true);
 
-        if (!peer.sendMessage(message, chatRoom).isEmpty()) {
+        /* The answers aren't waited on the JavaFX thread */
+        peer.sendMessageAsync(message, chatRoom).thenAccept(failures -> {
+
+            if (!failures.isEmpty()) {
 
-            logger.logWarning("Some peers may have not "
-                            + "received the message.\n");
-        }
+                logger.logWarning("Some peers may have not "
+                                + "received the message.\n");
+            }
+        });
 
         userInput.setText(null);
     }
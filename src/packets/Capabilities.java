@@ -0,0 +1,115 @@
+/*
+ * CAL.
+ *  A P2P chat program that lets you communicate without any infrastructure.
+ *
+ *   Copyright (C) 2015  Foo-Manroot
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package packets;
+
+/**
+ * Bitmap with the optional features of the protocol that a peer supports.
+ *
+ * <p>
+ * The peers announce their capabilities with a compact {@code HELLO} packet
+ * and the answer to it (an {@code ACK} with the capabilities of the other
+ * peer). Only the features supported by both peers are used between them, so
+ * the peers that only speak the legacy framing (and never answer a compact
+ * packet) keep working as before.
+ *
+ * <p>
+ * The bitmap is sent as a varint, so new capabilities can be added on the
+ * higher bits without changing the framing.
+ */
+public class Capabilities {
+
+    /**
+     * No optional feature is supported (legacy peer).
+     */
+    public static final int NONE = 0;
+
+    /**
+     * The peer understands the compact framing (see
+     * {@link PacketEncoder#COMPACT}).
+     */
+    public static final int COMPACT = 1;
+
+    /**
+     * The peer can receive datagrams larger than {@code Common.BUFF_SIZE} (up
+     * to {@code Common.MAX_DATAGRAM_SIZE}), and answers the probes sent to
+     * find the largest datagram that reaches it (see
+     * {@link PacketEncoder#FLAG_PROBE}).
+     */
+    public static final int LARGE = 2;
+
+    /**
+     * The peer can inflate the payloads compressed with Deflate (see
+     * {@link PacketEncoder#FLAG_COMPRESSED}).
+     */
+    public static final int DEFLATE = 4;
+
+    /**
+     * The peer can receive a file on a windowed transfer: many chunks in
+     * flight, acknowledged with the ranges received so far (see
+     * {@link PacketEncoder#FLAG_SACK}).
+     */
+    public static final int WINDOW = 8;
+
+    /**
+     * Capabilities supported by this version of the program.
+     */
+    public static final int SUPPORTED = COMPACT | LARGE | DEFLATE | WINDOW;
+
+/* -------------------------------------- */
+/* ---- END OF ATTRIBUTE DECLARATION ---- */
+/* -------------------------------------- */
+
+    /**
+     * Returns the capabilities that can be used between two peers.
+     *
+     * @param local
+     *              Capabilities of this peer.
+     *
+     * @param remote
+     *              Capabilities announced by the other peer.
+     *
+     *
+     * @return
+     *              The capabilities supported by both of them.
+     */
+    public static int negotiate (int local, int remote) {
+
+        return (remote < 0)? NONE : (local & remote);
+    }
+
+    /**
+     * Checks if the given capability is on the bitmap.
+     *
+     * @param capabilities
+     *              The bitmap.
+     *
+     * @param capability
+     *              The capability to look for (for example, {@link #COMPACT}).
+     *
+     *
+     * @return
+     *              <i>true</i> if all the bits of {@code capability} are set;
+     *          <i>false</i> otherwise.
+     */
+    public static boolean supports (int capabilities, int capability) {
+
+        return (capabilities & capability) == capability;
+    }
+}
@@ -0,0 +1,163 @@
+/*
+ * CAL.
+ *  A P2P chat program that lets you communicate without any infrastructure.
+ *
+ *   Copyright (C) 2015  Foo-Manroot
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package packets;
+
+import java.io.ByteArrayOutputStream;
+import java.nio.ByteBuffer;
+import java.util.Arrays;
+import java.util.zip.DataFormatException;
+import java.util.zip.Deflater;
+import java.util.zip.Inflater;
+
+/**
+ * Compresses and inflates the payloads of the {@code PLAIN} and {@code DATA}
+ * packets sent with the {@link PacketEncoder#FLAG_COMPRESSED} flag.
+ *
+ * <p>
+ * Every thread keeps its own {@link Deflater} and {@link Inflater}, reset
+ * before every use, so the native memory they hold isn't allocated again for
+ * every packet.
+ */
+public class Compression {
+
+    /**
+     * Payloads shorter than this (in bytes) aren't compressed: the header of
+     * Deflate takes most of what could be saved.
+     */
+    public static final int MIN_LENGTH = 64;
+
+    /**
+     * Compressor of every thread.
+     */
+    private static final ThreadLocal<Deflater> DEFLATER =
+            ThreadLocal.withInitial (() -> new Deflater (Deflater.BEST_SPEED));
+
+    /**
+     * Decompressor of every thread.
+     */
+    private static final ThreadLocal<Inflater> INFLATER =
+            ThreadLocal.withInitial (Inflater::new);
+
+/* -------------------------------------- */
+/* ---- END OF ATTRIBUTE DECLARATION ---- */
+/* -------------------------------------- */
+
+    /**
+     * Compresses the given data, if it's worth it.
+     *
+     * @param data
+     *              The data to be compressed.
+     *
+     *
+     * @return
+     *              The compressed data, or {@code null} if it's too short or
+     *          the compressed data isn't shorter than the original one (for
+     *          example, an image or a file that was already compressed).
+     */
+    public static byte [] compress (byte [] data) {
+
+        Deflater deflater = DEFLATER.get();
+        byte [] output;
+        int length = 0;
+
+        if (data.length < MIN_LENGTH) {
+
+            return null;
+        }
+
+        /* If the output doesn't fit on one byte less than the input, there's
+        no gain */
+        output = new byte [data.length - 1];
+
+        deflater.reset();
+        deflater.setInput (data);
+        deflater.finish();
+
+        while (!deflater.finished() && (length < output.length)) {
+
+            length += deflater.deflate (output, length, output.length - length);
+        }
+
+        if (!deflater.finished()) {
+
+            return null;
+        }
+
+        return Arrays.copyOf (output, length);
+    }
+
+    /**
+     * Inflates the given data.
+     *
+     * @param data
+     *              Buffer with the compressed data, between its position and
+     *          its limit.
+     *
+     * @param maxLength
+     *              Maximum length of the inflated data. Longer data is taken
+     *          as malformed, so a small packet can't fill the memory.
+     *
+     *
+     * @return
+     *              The inflated data, or {@code null} if it's malformed or
+     *          longer than {@code maxLength}.
+     */
+    public static byte [] decompress (ByteBuffer data, int maxLength) {
+
+        Inflater inflater = INFLATER.get();
+        ByteArrayOutputStream output = new ByteArrayOutputStream();
+        byte [] input = new byte [data.remaining()];
+        byte [] chunk = new byte [4096];
+        int length;
+
+        data.get (input);
+
+        inflater.reset();
+        inflater.setInput (input);
+
+        try {
+
+            while (!inflater.finished()) {
+
+                length = inflater.inflate (chunk);
+
+                if ((length == 0) &&
+                    (inflater.needsInput() || inflater.needsDictionary())) {
+
+                    /* Truncated data */
+                    return null;
+                }
+
+                if (output.size() + length > maxLength) {
+
+                    return null;
+                }
+
+                output.write (chunk, 0, length);
+            }
+
+        } catch (DataFormatException ex) {
+
+            return null;
+        }
+
+        return output.toByteArray();
+    }
+}
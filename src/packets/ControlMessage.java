@@ -29,6 +29,11 @@ package packets;
  *  ·Code 0 -> Control messages
  *  ·Code 1 -> Plaintext
  * </pre>
+ *
+ * <p>
+ * Every message also has an opcode, that identifies it on the compact framing
+ * (see {@link PacketEncoder#COMPACT}), where the text of the message isn't
+ * sent.
  */
 public enum ControlMessage {
 
@@ -45,12 +50,12 @@ CODE 0 GROUP:
      * position the highest byte of the integer that represents the port, and
      * {@code packet[8]} the lowest byte.
      */
-    ACK (0, 5),
+    ACK (0, 5, 1),
 
     /**
      * Rejects a message.
      */
-    NACK (0, 6),
+    NACK (0, 6, 2),
 
     /**
      * Asks another peer for its hosts list to send back.
@@ -61,13 +66,13 @@ CODE 0 GROUP:
      * position the highest byte of the integer that represents the port, and
      * {@code packet[14]} the lowest byte.
      */
-    HOSTS_REQ (0, 11),
+    HOSTS_REQ (0, 11, 3),
 
     /**
      * Response for HOST_REQ.
      * Indicates that the next bytes store the requested information.
      */
-    HOSTS_RESP (0, 12),
+    HOSTS_RESP (0, 12, 4),
 
     /**
      * Request for "connection". If the receiptor peer sends back an ACK
@@ -79,7 +84,7 @@ CODE 0 GROUP:
      * the message "HELLO". This two bytes will contain the port number where
      * the origin peer is waiting for messages.
      */
-    HELLO (0, 7),
+    HELLO (0, 7, 5),
 
     /**
      * Request for "disconnection". If the receiptor peer sends back an ACK
@@ -92,7 +97,7 @@ CODE 0 GROUP:
      * position the highest byte of the integer that represents the port, and
      * {@code packet[9]} the lowest byte.
      */
-    BYE (0, 5),
+    BYE (0, 5, 6),
 
     /**
      * Sends a message requesting a check for the connection. This message
@@ -105,7 +110,7 @@ CODE 0 GROUP:
      * position the highest byte of the integer that represents the port, and
      * {@code packet[14]} the lowest byte.
      */
-    CHECK_CON (0, 11),
+    CHECK_CON (0, 11, 7),
 
 
     /**
@@ -117,7 +122,7 @@ CODE 0 GROUP:
      * BUFF_SIZE), means that the data is not full and another packet will be
      * sent.
      */
-    CONT (0, 6),
+    CONT (0, 6, 8),
 
     /**
      * This message asks the destination peer to change the data flow id.
@@ -138,7 +143,7 @@ CODE 0 GROUP:
      * position the highest byte of the integer that represents the port, and
      * {@code packet[16]} the lowest byte.
      */
-    CHNG_DF_REQ (0, 13),
+    CHNG_DF_REQ (0, 13, 9),
 
     /**
      * This message is a response for a data flow id change from another peer.
@@ -161,7 +166,7 @@ CODE 0 GROUP:
      * position the highest byte of the integer that represents the port, and
      * {@code packet[17]} the lowest byte.
      */
-    CHNG_DF_RESP (0, 14),
+    CHNG_DF_RESP (0, 14, 10),
     
     /**
      * Indicates that the following bytes are information for the application.
@@ -172,7 +177,7 @@ CODE 0 GROUP:
      * position the highest byte of the integer that represents the port, and
      * {@code packet[14]} the lowest byte.
      */
-    INFO (0, 6),
+    INFO (0, 6, 11),
 
 
 /*
@@ -188,7 +193,7 @@ CODE 1 GROUP:
      * position the highest byte of the integer that represents the port, and
      * {@code packet[10]} the lowest byte.
      */
-    PLAIN (1, 7),
+    PLAIN (1, 7, 12),
 
     /**
      * Indicates that the following bytes are data (photo, video or any other
@@ -200,7 +205,7 @@ CODE 1 GROUP:
      * position the highest byte of the integer that represents the port, and
      * {@code packet[9]} the lowest byte.
      */
-    DATA (1, 6);
+    DATA (1, 6, 13);
 
 
 /* ------------------------------------------ */
@@ -219,6 +224,24 @@ CODE 1 GROUP:
      */
     private final int length;
 
+    /**
+     * Byte that identifies the message on the compact framing.
+     */
+    private final byte opcode;
+
+    /**
+     * Messages indexed by their opcode.
+     */
+    private static final ControlMessage [] OPCODES = new ControlMessage [16];
+
+    static {
+
+        for (ControlMessage message : values()) {
+
+            OPCODES [message.opcode] = message;
+        }
+    }
+
    /**
     * Each message must belong to one of the existing groups.
     *
@@ -228,11 +251,32 @@ CODE 1 GROUP:
     *               Length that will have the header, including the control
     *           message itself. The next byte will be data (or the end of the
     *           packet, if no more data is needed).
+    * @param opcode
+    *               Byte that identifies the message on the compact framing.
     */
-    private ControlMessage(int code, int length) {
+    private ControlMessage(int code, int length, int opcode) {
 
         this.code = code;
         this.length = length;
+        this.opcode = (byte) opcode;
+    }
+
+    /**
+     * Returns the message with the given opcode.
+     *
+     * @param opcode
+     *              The opcode read from a compact packet.
+     *
+     *
+     * @return
+     *              The message with that opcode, or {@code null} if no message
+     *          has it.
+     */
+    public static ControlMessage fromOpcode (byte opcode) {
+
+        return ((opcode < 0) || (opcode >= OPCODES.length))?
+                    null :
+                    OPCODES [opcode];
     }
 
     /**
@@ -258,4 +302,28 @@ CODE 1 GROUP:
 
         return length;
     }
+
+    /**
+     * Returns the byte that identifies the message on the compact framing.
+     *
+     * @return
+     *              The value of {@code opcode}
+     */
+    public byte getOpcode () {
+
+        return opcode;
+    }
+
+    /**
+     * Checks if the packets with this message carry the port where the answer
+     * is expected. Only {@code NACK} and {@code HOSTS_RESP} haven't got it.
+     *
+     * @return
+     *              <i>true</i> if the port is sent after the message;
+     *          <i>false</i> otherwise.
+     */
+    public boolean hasPort () {
+
+        return (this != NACK) && (this != HOSTS_RESP);
+    }
 }
@@ -21,6 +21,8 @@ package packets;
 
 import static packets.ControlMessage.*;
 
+import java.util.Arrays;
+
 /**
  * This class has some methods to check if a packet is correctly formed and
  * belongs to a specific kind of message.
@@ -33,11 +35,57 @@ import static packets.ControlMessage.*;
  */
 public class PacketChecker {
 
+    /**
+     * Order in which the messages are checked by
+     * {@link #checkPacket(PacketView)} and {@link #checkPacket(byte[])}.
+     */
+    private static final ControlMessage [] ORDER = {ACK, BYE, CHECK_CON,
+                                                    CHNG_DF_REQ, CHNG_DF_RESP,
+                                                    HELLO, HOSTS_REQ,
+                                                    HOSTS_RESP, NACK, PLAIN,
+                                                    CONT, DATA, INFO};
+
+    /**
+     * Messages that a legacy packet can have, indexed by its group code and
+     * the first letter of the name of the message
+     * ({@code (group << 8) | letter}), in the same order as on
+     * {@link #ORDER}.
+     *
+     * <p>
+     * Every message checks those two bytes, so the rest of them can't be
+     * valid. At most four messages share an entry (the ones beginning by
+     * 'C'), and they are told apart by their first different check.
+     */
+    private static final ControlMessage [][] TABLE = new ControlMessage [2 << 8][];
+
+    static {
+
+        ControlMessage [] none = new ControlMessage [0];
+        ControlMessage [] entry;
+        int key;
+
+        Arrays.fill (TABLE, none);
+
+        for (ControlMessage message : ORDER) {
+
+            key = (message.getCode() << 8) | message.name().charAt (0);
+            entry = Arrays.copyOf (TABLE [key], TABLE [key].length + 1);
+            entry [entry.length - 1] = message;
+
+            TABLE [key] = entry;
+        }
+    }
+
     /**
      * Checks the given packet and returns the type of {@link ControlMessage}
      * that is stored in the array. If there isn't a valid packet, returns
      * {@code null}.
      *
+     * <p>
+     * Only the messages with the same group and first letter as the packet
+     * are checked (see {@link #TABLE}), so a packet costs at most four
+     * checks, instead of the thirteen of the whole {@link #ORDER}.
+     *
      * @param buffer
      *              Array of bytes with the full packet received from the peer.
      *
@@ -47,72 +95,245 @@ public class PacketChecker {
      */
     public static ControlMessage checkPacket (byte [] buffer) {
 
-        if (ACK (buffer)) {
+        /* Group, data flow and, at least, three letters of the message */
+        if (buffer.length < 5) {
 
-            return ACK;
+            return null;
         }
 
-        if (BYE (buffer)) {
+        for (ControlMessage message : TABLE [key (buffer [0], buffer [2])]) {
 
-            return BYE;
+            if (check (buffer, message)) {
+
+                return message;
+            }
         }
 
-        if (CHECK_CON (buffer)) {
+        return null;
+    }
 
-            return CHECK_CON;
-        }
+    /**
+     * Checks the packet on the given view and returns the type of
+     * {@link ControlMessage} that is stored on it, without copying its bytes.
+     * The rules are the same ones as on {@link #checkPacket(byte[])}.
+     *
+     * <p>
+     * The compact packets are also recognised. As they have the opcode of the
+     * message, only that message has to be checked.
+     *
+     * @param view
+     *              View over the full packet received from the peer.
+     *
+     * @return
+     *              The type of {@link ControlMessage} stored in the packet, or
+     *          {@code null} if there wasn't a recognised packet.
+     */
+    public static ControlMessage checkPacket (PacketView view) {
 
-        if (CHNG_DF_REQ (buffer)) {
+        ControlMessage compact;
 
-            return CHNG_DF_REQ;
-        }
+        if (view.isCompact()) {
+
+            if ((view.getLength() < PacketEncoder.COMPACT_HEADER) ||
+                ((compact = ControlMessage.fromOpcode (view.get (2))) == null)) {
 
-        if (CHNG_DF_RESP (buffer)) {
+                return null;
+            }
 
-            return CHNG_DF_RESP;
+            return check (view, compact)? compact : null;
         }
 
-        if (HELLO (buffer)) {
+        /* Group, data flow and, at least, three letters of the message */
+        if (view.getLength() < 5) {
 
-            return HELLO;
+            return null;
         }
 
-        if (HOSTS_REQ (buffer)) {
+        for (ControlMessage message : TABLE [key (view.group(), view.get (2))]) {
+
+            if (check (view, message)) {
 
-            return HOSTS_REQ;
+                return message;
+            }
         }
 
-        if (HOSTS_RESP (buffer)) {
+        return null;
+    }
 
-            return HOSTS_RESP;
-        }
+    /**
+     * Checks if the packet on the given view is a valid message of the given
+     * type. The name of the {@link ControlMessage} is the text that the packet
+     * has after the group and the data flow (or, on a compact packet, its
+     * opcode).
+     *
+     * @param view
+     *              View over the received message.
+     *
+     * @param message
+     *              The expected message.
+     *
+     *
+     * @return
+     *              <i>true</i> if the message is valid, and <i>false</i>
+     *          otherwise.
+     */
+    public static boolean check (PacketView view, ControlMessage message) {
 
-        if (NACK (buffer)) {
+        int args = view.arguments (message);
+        int count = view.getLength() - args;
+        boolean validLength;
 
-            return NACK;
+        /* Malformed port or capabilities on a compact header */
+        if (args < 0) {
+
+            return false;
         }
 
-        if (PLAIN (buffer)) {
+        /* The number of bytes after the port of every message, as explained
+        on the methods with the name of the message */
+        switch (message) {
+
+            case CHNG_DF_REQ:
+                validLength = (count == 1);
+                break;
+
+            case CHNG_DF_RESP:
+                validLength = (count == 0) || (count == 1);
+                break;
+
+            case HOSTS_RESP:
+            case CONT:
+            case INFO:
+            case PLAIN:
+            case DATA:
+                validLength = (count >= 0);
+                break;
+
+            case CHECK_CON:
+                /* The probes are padded until the size being checked */
+                validLength = (count == 0) ||
+                              ((count > 0) && view.isCompact() &&
+                               ((view.flags() & PacketEncoder.FLAG_PROBE) != 0));
+                break;
+
+            case ACK:
+                /* The selective ACKs carry the received chunks */
+                validLength = (count == 0) ||
+                              ((count > 0) && view.isCompact() &&
+                               ((view.flags() & PacketEncoder.FLAG_SACK) != 0));
+                break;
+
+            default:
+                validLength = (count == 0);
+        }
 
-            return PLAIN;
+        if (view.isCompact()) {
+
+            /* Only the payloads of PLAIN and DATA can be compressed, and
+            only an ACK can be selective */
+            return validLength &&
+                   (view.get (2) == message.getOpcode()) &&
+                   validFragment (view, message) &&
+                   (((view.flags() & PacketEncoder.FLAG_COMPRESSED) == 0) ||
+                    (message == PLAIN) || (message == DATA)) &&
+                   (((view.flags() & PacketEncoder.FLAG_SACK) == 0) ||
+                    (message == ACK));
         }
 
-        if (CONT (buffer)) {
+        return validLength &&
+               (view.group() == message.getCode()) &&
+               view.matches (2, message.name());
+    }
 
-            return CONT;
-        }
-        
-        if (DATA (buffer)) {
-            
-            return DATA;
+    /**
+     * Checks if the given byte array is a valid message of the given type,
+     * with the method that has the name of the message.
+     *
+     * @param buffer
+     *              Byte array with the received message.
+     *
+     * @param message
+     *              The expected message.
+     *
+     *
+     * @return
+     *              <i>true</i> if the message is valid, and <i>false</i>
+     *          otherwise.
+     */
+    public static boolean check (byte [] buffer, ControlMessage message) {
+
+        switch (message) {
+
+            case ACK:           return ACK (buffer);
+            case NACK:          return NACK (buffer);
+            case HOSTS_REQ:     return HOSTS_REQ (buffer);
+            case HOSTS_RESP:    return HOSTS_RESP (buffer);
+            case HELLO:         return HELLO (buffer);
+            case BYE:           return BYE (buffer);
+            case CHECK_CON:     return CHECK_CON (buffer);
+            case CONT:          return CONT (buffer);
+            case CHNG_DF_REQ:   return CHNG_DF_REQ (buffer);
+            case CHNG_DF_RESP:  return CHNG_DF_RESP (buffer);
+            case INFO:          return INFO (buffer);
+            case PLAIN:         return PLAIN (buffer);
+            case DATA:          return DATA (buffer);
+            default:            return false;
         }
-        
-        if (INFO (buffer)) {
-            
-            return INFO;
+    }
+
+    /**
+     * Returns the position on {@link #TABLE} of the messages that a legacy
+     * packet can have.
+     *
+     * @param group
+     *              First byte of the packet.
+     *
+     * @param letter
+     *              First letter of the message (the third byte).
+     *
+     *
+     * @return
+     *              The position on the table, or the one of an empty entry if
+     *          the group doesn't exist.
+     */
+    private static int key (int group, byte letter) {
+
+        return ((group == 0) || (group == 1))?
+                    (group << 8) | (letter & 0xFF)
+                  : 0;
+    }
+
+    /**
+     * Checks the fields of a compact fragment: only the {@code PLAIN} messages
+     * (and the chunks of a windowed transfer, on {@code DATA}) can be
+     * fragmented, and the index must be lower than the number of fragments.
+     *
+     * @param view
+     *              View over the received compact message.
+     *
+     * @param message
+     *              The message stored on it.
+     *
+     *
+     * @return
+     *              <i>true</i> if it isn't a fragment, or the fields are valid;
+     *          <i>false</i> otherwise.
+     */
+    private static boolean validFragment (PacketView view, ControlMessage message) {
+
+        int index;
+
+        if ((view.flags() & PacketEncoder.FLAG_FRAGMENT) == 0) {
+
+            return true;
         }
 
-        return null;
+        index = view.varintField (message, PacketEncoder.FLAG_FRAGMENT, 1);
+
+        return ((message == PLAIN) || (message == DATA)) &&
+               (view.varintField (message, PacketEncoder.FLAG_FRAGMENT, 0) >= 0) &&
+               (index >= 0) &&
+               (index < view.varintField (message, PacketEncoder.FLAG_FRAGMENT, 2));
     }
 
 /* ------------------------------------ */
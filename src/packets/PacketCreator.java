@@ -23,6 +23,7 @@ import static packets.ControlMessage.*;
 
 import common.Common;
 import java.net.DatagramPacket;
+import java.nio.ByteBuffer;
 import java.util.ArrayList;
 import java.util.Arrays;
 
@@ -69,30 +70,18 @@ public class PacketCreator {
      */
     public static DatagramPacket ACK (byte dataFlow, int port) {
         
-        /* Creates a buffer of ACK.length */
+        /* Creates a buffer of ACK.length, plus the length of the port */
         byte [] buffer = new byte [ACK.getLength() + 4];
         
-        byte [] aux = ACK.toString().getBytes();
-        byte [] portAux = Common.intToArray(port);
-        
-        DatagramPacket packet;
-        
-        /* Fills the data. The packet has the following structure, being 'x' the
+        /* The packet is written by PacketEncoder. The packet has the following structure, being 'x' the
           parameter dataFlow and p1, p2... the bytes of the port where the 
           answer is expected (p1 is the highest byte):
             Byte: 0  1  2  3  4  5  6  7  8
                   0  x  A  C  K  p1 p2 p3 p4
         */
-        buffer[0] = (byte) ACK.getCode();
-        buffer[1] = dataFlow;
-        
-        /* Fills the control message */
-        System.arraycopy(aux, 0, buffer, 2, aux.length);
-        System.arraycopy(portAux, 0, buffer, aux.length + 2, portAux.length);
-        
-        packet = new DatagramPacket(buffer, buffer.length);
+        PacketEncoder.ACK (ByteBuffer.wrap (buffer), 0, dataFlow, port);
         
-        return packet;
+        return new DatagramPacket(buffer, buffer.length);
     }
     
     /**
@@ -110,23 +99,15 @@ public class PacketCreator {
         
         /* Creates a buffer of NACK.length */
         byte [] buffer = new byte [NACK.getLength()];
-        byte [] aux = NACK.toString().getBytes();
-        DatagramPacket packet;
         
-        /* Fills the data. The packet has the following structure, being 'x' the
+        /* The packet is written by PacketEncoder. The packet has the following structure, being 'x' the
           parameter dataFlow:
             Byte: 0  1  2  3  4  5
                   0  x  N  A  C  K
         */
-        buffer[0] = (byte) NACK.getCode();;
-        buffer[1] = dataFlow;
-        
-        /* Fills the control message */
-        System.arraycopy(aux, 0, buffer, 2, aux.length);
+        PacketEncoder.NACK (ByteBuffer.wrap (buffer), 0, dataFlow);
         
-        packet = new DatagramPacket(buffer, buffer.length);
-        
-        return packet;
+        return new DatagramPacket(buffer, buffer.length);
     }
     
     
@@ -146,30 +127,18 @@ public class PacketCreator {
      */
     public static DatagramPacket HOSTS_REQ (byte dataFlow, int port) {
         
-        /* Creates a buffer of HOSTS_REQ.length, plus the length for the port */
+        /* Creates a buffer of HOSTS_REQ.length, plus the length of the port */
         byte [] buffer = new byte [HOSTS_REQ.getLength() + 4];
         
-        byte [] aux = HOSTS_REQ.toString().getBytes();
-        byte [] portAux = Common.intToArray(port);
-        
-        DatagramPacket packet;
-        
-        /* Fills the data. The packet has the following structure, being 'x' the
+        /* The packet is written by PacketEncoder. The packet has the following structure, being 'x' the
             parameter dataFlow and p1, p2... the bytes of the port where the 
             answer is expected (p1 is the highest byte):
             Byte: 0  1  2  3  4  5  6  7  8  9  10 11 12 13 14
                   0  x  H  O  S  T  S  _  R  E  Q  p1 p2 p3 p4
         */
-        buffer[0] = (byte) HOSTS_REQ.getCode();;
-        buffer[1] = dataFlow;
-        
-        /* Fills the control message  and adds the parameter */
-        System.arraycopy(aux, 0, buffer, 2, aux.length);
-        System.arraycopy(portAux, 0, buffer, aux.length + 2, portAux.length);
-        
-        packet = new DatagramPacket(buffer, buffer.length);
+        PacketEncoder.HOSTS_REQ (ByteBuffer.wrap (buffer), 0, dataFlow, port);
         
-        return packet;
+        return new DatagramPacket(buffer, buffer.length);
     }
     
     /**
@@ -199,27 +168,15 @@ public class PacketCreator {
         /* Creates a buffer of HOSTS_RESP.length + info.length */
         byte [] buffer = new byte [HOSTS_RESP.getLength()
                                    + info.length];
-        byte [] aux = HOSTS_RESP.toString().getBytes();
-        DatagramPacket packet;
         
-        /* Fills the data. The packet has the following structure, being 'x' the
+        /* The packet is written by PacketEncoder. The packet has the following structure, being 'x' the
             parameter dataFlow:
             Byte: 0  1  2  3  4  5  6  7  8  9  10 11 12 ... buffer.length
                   0  x  H  O  S  T  S  _  R  E  S  P   (info)
         */
-        buffer[0] = (byte) HOSTS_RESP.getCode();;
-        buffer[1] = dataFlow;
-        
-        /* Fills the control message */
-        System.arraycopy(aux, 0, buffer, 2, aux.length);
-        
-        /* Copies the information after the header */
-        System.arraycopy(info, 0, buffer, HOSTS_RESP.getLength(),
-                         info.length);
+        PacketEncoder.HOSTS_RESP (ByteBuffer.wrap (buffer), 0, dataFlow, info);
         
-        packet = new DatagramPacket(buffer, buffer.length);
-        
-        return packet;
+        return new DatagramPacket(buffer, buffer.length);
     }
     
     
@@ -239,30 +196,18 @@ public class PacketCreator {
      */
     public static DatagramPacket HELLO (byte dataFlow, int port) {
         
-        /* Creates a buffer of HELLO.length */
+        /* Creates a buffer of HELLO.length, plus the length of the port */
         byte [] buffer = new byte [HELLO.getLength() + 4];
-        byte [] aux = HELLO.toString().getBytes();
-        DatagramPacket packet;
-        byte [] portArray = Common.intToArray(port);
         
-        /* Fills the data. The packet has the following structure, being 'x' the
+        /* The packet is written by PacketEncoder. The packet has the following structure, being 'x' the
             parameter dataFlow and 'p1', 'p2', 'p3' and 'p4' the four positions
             of the byte array representing the parameter "port":
             Byte: 0  1  2  3  4  5  6  7  8  9  10
                   0  x  H  E  L  L  O  p1 p2 p3 p4
         */
-        buffer[0] = (byte) HELLO.getCode();;
-        buffer[1] = dataFlow;
-        
-        /* Fills the control message */
-        System.arraycopy(aux, 0, buffer, 2, aux.length);
-        
-        /* Adds the port number */
-        System.arraycopy(portArray, 0, buffer, aux.length + 2, portArray.length);
+        PacketEncoder.HELLO (ByteBuffer.wrap (buffer), 0, dataFlow, port);
         
-        packet = new DatagramPacket(buffer, buffer.length);
-        
-        return packet;
+        return new DatagramPacket(buffer, buffer.length);
     }
     
     /**
@@ -281,30 +226,18 @@ public class PacketCreator {
      */
     public static DatagramPacket BYE (byte dataFlow, int port) {
         
-        /* Creates a buffer of BYE.length, plus the length of the port array */
+        /* Creates a buffer of BYE.length, plus the length of the port */
         byte [] buffer = new byte [BYE.getLength() + 4];
         
-        byte [] aux = BYE.toString().getBytes();
-        byte [] portAux = Common.intToArray(port);
-        
-        DatagramPacket packet;
-        
-        /* Fills the data. The packet has the following structure, being 'x' the
+        /* The packet is written by PacketEncoder. The packet has the following structure, being 'x' the
             parameter dataFlow and p1, p2... the bytes of the port where the 
             answer is expected (p1 is the highest byte):
             Byte: 0  1  2  3  4  5  6  7  8
                   0  x  B  Y  E  p1 p2 p3 p4
         */
-        buffer[0] = (byte) BYE.getCode();;
-        buffer[1] = dataFlow;
+        PacketEncoder.BYE (ByteBuffer.wrap (buffer), 0, dataFlow, port);
         
-        /* Fills the control message */
-        System.arraycopy(aux, 0, buffer, 2, aux.length);
-        System.arraycopy(portAux, 0, buffer, aux.length + 2, portAux.length);
-        
-        packet = new DatagramPacket(buffer, buffer.length);
-        
-        return packet;
+        return new DatagramPacket(buffer, buffer.length);
     }
     
     
@@ -324,30 +257,18 @@ public class PacketCreator {
      */
     public static DatagramPacket CHECK_CON (byte dataFlow, int port) {
         
-        /* Creates a buffer of CHECK_CON.length */
+        /* Creates a buffer of CHECK_CON.length, plus the length of the port */
         byte [] buffer = new byte [CHECK_CON.getLength() + 4];
-       
-        byte [] aux = CHECK_CON.toString().getBytes();
-        byte [] portAux = Common.intToArray(port);
-        
-        DatagramPacket packet;
         
-        /* Fills the data. The packet has the following structure, being 'x' the
+        /* The packet is written by PacketEncoder. The packet has the following structure, being 'x' the
             parameter dataFlow and p1, p2... the bytes of the port where the 
             answer is expected (p1 is the highest byte):
             Byte: 0  1  2  3  4  5  6  7  8  9  10 11 12 13 14
                   0  x  C  H  E  C  K  _  C  O  N  p1 p2 p3 p4
         */
-        buffer[0] = (byte) CHECK_CON.getCode();;
-        buffer[1] = dataFlow;
+        PacketEncoder.CHECK_CON (ByteBuffer.wrap (buffer), 0, dataFlow, port);
         
-        /* Fills the control message */
-        System.arraycopy(aux, 0, buffer, 2, aux.length);
-        System.arraycopy(portAux, 0, buffer, aux.length + 2, portAux.length);
-        
-        packet = new DatagramPacket(buffer, buffer.length);
-        
-        return packet;
+        return new DatagramPacket(buffer, buffer.length);
     }
     
     
@@ -377,32 +298,18 @@ public class PacketCreator {
         proposedFlow (1 Byte) and the port as the other argument (4 bytes) */
         byte [] buffer = new byte [CHNG_DF_REQ.getLength() + 5];
         
-        byte [] aux = CHNG_DF_REQ.toString().getBytes();
-        byte [] portAux = Common.intToArray(port);
-        
-        DatagramPacket packet;
-        
-        /* Fills the data. The packet has the following structure, being 'x' the
+        /* The packet is written by PacketEncoder. The packet has the following structure, being 'x' the
             parameter dataFlow, 'f' the parameter proposedFlow and p1, p2... 
             the bytes of the port where the answer is expected (p1 is the 
             highest byte):
             Byte: 0  1  2  3  4  5  6  7  8  9  10 11 12 13 14 15 16 17
                   0  x  C  H  N  G  _  D  F  _  R  E  Q  p1 p2 p3 p4 f
         */
-        buffer[0] = (byte) CHNG_DF_REQ.getCode();;
-        buffer[1] = dataFlow;
-        
-        /* Fills the control message and adds the port */
-        System.arraycopy(aux, 0, buffer, 2, aux.length);
-        System.arraycopy(portAux, 0, buffer, aux.length + 2, portAux.length);
-        
-        /* Adds the parameter on the last byte */
-        buffer [buffer.length - 1] = proposedFlow;
+        PacketEncoder.CHNG_DF_REQ (ByteBuffer.wrap (buffer), 0,
+                                   dataFlow, proposedFlow, port);
         
-        packet = new DatagramPacket(buffer, buffer.length);
-        
-        return packet;
-    }  
+        return new DatagramPacket(buffer, buffer.length);
+    }
     
     /**
      * Creates a packet with a CHNG_DF_RESP {@link ControlMessage}.
@@ -442,34 +349,17 @@ public class PacketCreator {
         /* Creates a buffer of the needed length */
         byte [] buffer = new byte [packet_size];
         
-        byte [] aux = CHNG_DF_RESP.toString().getBytes();
-        byte [] portAux = Common.intToArray(port);
-        
-        DatagramPacket packet;
-        
-        /* Fills the data. The packet has the following structure, being 'x' the
+        /* The packet is written by PacketEncoder. The packet has the following structure, being 'x' the
           parameter dataFlow, 'f' the new proposed flow id (only if needed) 
           and p1, p2... the bytes of the port where the answer is expected (p1 
           is the highest byte):
             Byte: 0  1  2  3  4  5  6  7  8  9  10 11 12 13 14 15 16 17 (18)
                   0  x  C  H  N  G  _  D  F  _  R  E  S  P  p1 p2 p3 p4 (f)
         */
-        buffer[0] = (byte) CHNG_DF_RESP.getCode();;
-        buffer[1] = dataFlow;
-        
-        /* Fills the control message and */
-        System.arraycopy(aux, 0, buffer, 2, aux.length);
-        System.arraycopy(portAux, 0, buffer, aux.length + 2, portAux.length);
+        PacketEncoder.CHNG_DF_RESP (ByteBuffer.wrap (buffer), 0,
+                                    dataFlow, accepted, proposedFlow, port);
         
-        /* Adds the required arguments */        
-        if (!accepted) {
-            
-            buffer [packet_size - 1] = proposedFlow;
-        }
-        
-        packet = new DatagramPacket(buffer, buffer.length);
-        
-        return packet;
+        return new DatagramPacket(buffer, buffer.length);
     }
     
     /**
@@ -504,36 +394,48 @@ public class PacketCreator {
             return null;
         }
         
-        /* Creates a buffer of CHECK_CON.length */
+        /* Creates a buffer of INFO.length, plus the port and the info */
         byte [] buffer = new byte [size];
-       
-        byte [] aux = INFO.toString().getBytes();
-        byte [] portAux = Common.intToArray (port);
         
-        DatagramPacket packet;
-        
-        /* Fills the data. The packet has the following structure, being 'x' the
+        /* The packet is written by PacketEncoder. The packet has the following structure, being 'x' the
             parameter dataFlow and p1, p2... the bytes of the port where the 
             answer is expected (p1 is the highest byte):
             Byte: 0  1  2  3  4  5  6  7  8  9  10 ...
                   0  x  I  N  F  O  p1 p2 p3 p4 (info) ...
         */
-        buffer[0] = (byte) INFO.getCode();
-        buffer[1] = dataFlow;
-        
-        /* Fills the control message */
-        System.arraycopy(aux, 0, buffer, 2, aux.length);
-        System.arraycopy(portAux, 0, buffer, aux.length + 2, portAux.length);
-        
-        /* Adds the info */
-        System.arraycopy(info, 0,
-                         buffer, INFO.getLength() + portAux.length,
-                         info.length);
+        PacketEncoder.INFO (ByteBuffer.wrap (buffer), 0, dataFlow, info, port);
         
         /* Creates the packet and returns it */
-        packet = new DatagramPacket(buffer, buffer.length);
-        
-        return packet;
+        return new DatagramPacket(buffer, buffer.length);
+    }
+    
+    
+    /**
+     * Creates a probe of the given size: a {@code CHECK_CON} on the compact
+     * framing, padded with zeros. If the other peer answers it, a datagram of
+     * that size can reach it.
+     *
+     * @param dataFlow
+     *              The flow of this packet.
+     *
+     * @param port
+     *              Port where the answer is expected.
+     *
+     * @param size
+     *              Size of the whole packet, not larger than
+     *          {@code Common.MAX_DATAGRAM_SIZE}.
+     *
+     *
+     * @return
+     *              A completely formed {@link DatagramPacket}.
+     */
+    public static DatagramPacket PROBE (byte dataFlow, int port, int size) {
+
+        byte [] buffer = new byte [size];
+
+        PacketEncoder.probe (ByteBuffer.wrap (buffer), 0, dataFlow, port, size);
+
+        return new DatagramPacket(buffer, buffer.length);
     }
     
     
@@ -563,72 +465,283 @@ public class PacketCreator {
                                                    byte [] plaintext,
                                                    int port) {
         
+        return PLAIN (dataFlow, plaintext, port, Common.BUFF_SIZE);
+    }
+    
+    /**
+     * Creates a packet with the desired plaintext, splitting it on packets of
+     * the given size.
+     * 
+     * @param dataFlow 
+     *              The flow of this packet.
+     * 
+     * @param plaintext 
+     *              The plaintext message.
+     * 
+     * @param port
+     *              Port where the answer is expected.
+     * 
+     * @param maxSize
+     *              Maximum size of every packet (the datagram size of the
+     *          destination, see {@code Host.getDatagramSize()}).
+     * 
+     * 
+     * @return 
+     *              An array of completely formed {@link DatagramPacket}, if the
+     *          size of the text is larger than {@code maxSize}.
+     */
+    public static ArrayList<DatagramPacket> PLAIN (byte dataFlow,
+                                                   byte [] plaintext,
+                                                   int port,
+                                                   int maxSize) {
         
+        return withCONT (PLAIN, dataFlow, plaintext, port, maxSize);
+    }
+
+    /**
+     * Creates the fragments of the given plaintext, on the compact framing.
+     * Every fragment carries the identifier of the message, its index and the
+     * number of fragments, so they can be sent without waiting for each other
+     * and joined on any order.
+     *
+     * @param dataFlow
+     *              The flow of this packet.
+     *
+     * @param plaintext
+     *              The plaintext message.
+     *
+     * @param port
+     *              Port where the answer is expected.
+     *
+     * @param messageId
+     *              Identifier of the message, between <b>0</b> and
+     *          {@code PacketEncoder.MAX_REQUEST_ID}.
+     *
+     *
+     * @return
+     *              An array with the fragments, in order. There's at least one,
+     *          even if the text is empty.
+     */
+    public static ArrayList<DatagramPacket> FRAGMENTS (byte dataFlow,
+                                                       byte [] plaintext,
+                                                       int port,
+                                                       int messageId) {
+
+        return FRAGMENTS (dataFlow, plaintext, port, messageId, Common.BUFF_SIZE);
+    }
+
+    /**
+     * Creates the fragments of the given plaintext, on the compact framing,
+     * with the given maximum size.
+     *
+     * @param dataFlow
+     *              The flow of this packet.
+     *
+     * @param plaintext
+     *              The plaintext message.
+     *
+     * @param port
+     *              Port where the answer is expected.
+     *
+     * @param messageId
+     *              Identifier of the message, between <b>0</b> and
+     *          {@code PacketEncoder.MAX_REQUEST_ID}.
+     *
+     * @param maxSize
+     *              Maximum size of every fragment (the datagram size of the
+     *          destination, see {@code Host.getDatagramSize()}).
+     *
+     *
+     * @return
+     *              An array with the fragments, in order. There's at least one,
+     *          even if the text is empty.
+     */
+    public static ArrayList<DatagramPacket> FRAGMENTS (byte dataFlow,
+                                                       byte [] plaintext,
+                                                       int port,
+                                                       int messageId,
+                                                       int maxSize) {
+
+        return FRAGMENTS (dataFlow, plaintext, port, messageId, maxSize, false);
+    }
+
+    /**
+     * Creates the fragments of the given plaintext, on the compact framing,
+     * with the given maximum size.
+     *
+     * @param dataFlow
+     *              The flow of this packet.
+     *
+     * @param plaintext
+     *              The plaintext message, or the compressed one.
+     *
+     * @param port
+     *              Port where the answer is expected.
+     *
+     * @param messageId
+     *              Identifier of the message, between <b>0</b> and
+     *          {@code PacketEncoder.MAX_REQUEST_ID}.
+     *
+     * @param maxSize
+     *              Maximum size of every fragment (the datagram size of the
+     *          destination, see {@code Host.getDatagramSize()}).
+     *
+     * @param compressed
+     *              If it's <i>true</i>, the message has been compressed with
+     *          {@link Compression#compress(byte[])}, and all the fragments
+     *          carry the {@code PacketEncoder.FLAG_COMPRESSED} flag.
+     *
+     *
+     * @return
+     *              An array with the fragments, in order. There's at least one,
+     *          even if the text is empty.
+     */
+    public static ArrayList<DatagramPacket> FRAGMENTS (byte dataFlow,
+                                                       byte [] plaintext,
+                                                       int port,
+                                                       int messageId,
+                                                       int maxSize,
+                                                       boolean compressed) {
+
         ArrayList<DatagramPacket> list = new ArrayList<>();
-        int size = PLAIN.getLength() + 4 + plaintext.length;
-        
-        boolean largeText = (size > Common.BUFF_SIZE);
-        byte [] buf;
-        
-        /* Adds first the CONT packets */
-        if (largeText) {
-            
-            buf = Arrays.copyOfRange (plaintext,
-                                      Common.BUFF_SIZE - CONT.toString().length(),
-                                      plaintext.length);
-            list = createCONT(dataFlow, buf, port);
-            size = Common.BUFF_SIZE;
+        int flags = compressed? PacketEncoder.FLAG_COMPRESSED : 0;
+        int size = PacketEncoder.fragmentLength (maxSize);
+        int total = Math.max(1, (plaintext.length + size - 1) / size);
+        byte [] buffer;
+        int from;
+        int length;
+
+        for (int i = 0; i < total; i++) {
+
+            from = i * size;
+            buffer = new byte [maxSize];
+            length = PacketEncoder.fragment (ByteBuffer.wrap (buffer), 0,
+                                             dataFlow, plaintext, from,
+                                             Math.min(size, plaintext.length - from),
+                                             port, messageId, i, total, flags);
+
+            list.add (new DatagramPacket(buffer, length));
         }
+
+        return list;
+    }
+
+    /**
+     * Creates a packet with the desired data.
+     * 
+     * @param dataFlow 
+     *              The flow of this packet. This byte will be on the second
+     *          position of the buffer, after the message code.
+     * 
+     * @param data 
+     *              The byte array with the data.
+     * 
+     * @param port
+     *              Port where the answer is expected.
+     * 
+     * 
+     * @return 
+     *              An array of completely formed {@link DatagramPacket}, if the
+     *          size of the data is larger than the max buffer size.
+     */
+    public static ArrayList<DatagramPacket> DATA (byte dataFlow,
+                                                  byte [] data,
+                                                  int port) {
         
-        /* After the continuation packets, adds the first one (with the PLAIN 
-        control message) */
+        return DATA (dataFlow, data, port, Common.BUFF_SIZE);
+    }
+    
+    /**
+     * Creates a packet with the desired data, splitting it on packets of the
+     * given size.
+     * 
+     * @param dataFlow 
+     *              The flow of this packet.
+     * 
+     * @param data 
+     *              The byte array with the data.
+     * 
+     * @param port
+     *              Port where the answer is expected.
+     * 
+     * @param maxSize
+     *              Maximum size of every packet (the datagram size of the
+     *          destination, see {@code Host.getDatagramSize()}).
+     * 
+     * 
+     * @return 
+     *              An array of completely formed {@link DatagramPacket}, if the
+     *          size of the data is larger than {@code maxSize}.
+     */
+    public static ArrayList<DatagramPacket> DATA (byte dataFlow,
+                                                  byte [] data,
+                                                  int port,
+                                                  int maxSize) {
         
-        /* Creates a buffer of the proper length */
-        byte [] buffer = new byte [size];
-        byte [] aux = PLAIN.toString().getBytes();
-        byte [] portAux = Common.intToArray(port);
+        return withCONT (DATA, dataFlow, data, port, maxSize);
+    }
+    
+    /**
+     * Creates a {@code PLAIN} or {@code DATA} packet, on the compact framing,
+     * with data compressed by {@link Compression#compress(byte[])}.
+     * 
+     * <p>
+     * The compressed data isn't split: if it doesn't fit on a packet of the 
+     * given size (leaving room for the identifier of the request), the 
+     * caller should use {@link #FRAGMENTS(byte, byte[], int, int, int, boolean)}
+     * (only for {@code PLAIN}) or send the data uncompressed.
+     * 
+     * @param dataFlow 
+     *              The flow of this packet.
+     * 
+     * @param message 
+     *              {@code PLAIN} or {@code DATA}.
+     * 
+     * @param data 
+     *              The compressed data.
+     * 
+     * @param port
+     *              Port where the answer is expected.
+     * 
+     * @param maxSize
+     *              Maximum size of the packet (the datagram size of the
+     *          destination, see {@code Host.getDatagramSize()}).
+     * 
+     * 
+     * @return 
+     *              A completely formed {@link DatagramPacket}, or {@code null}
+     *          if the data doesn't fit on it.
+     */
+    public static DatagramPacket COMPRESSED (byte dataFlow,
+                                             ControlMessage message,
+                                             byte [] data,
+                                             int port,
+                                             int maxSize) {
         
-        DatagramPacket packet;
+        byte [] buffer = new byte [maxSize - PacketEncoder.MAX_VARINT];
+        int length = PacketEncoder.compressed (ByteBuffer.wrap (buffer), 0,
+                                               message, dataFlow, data, port);
         
-        /* Fills the data. The packet has the following structure, being 'x' the
-            parameter dataFlow and p1, p2... the bytes of the port where the 
-            answer is expected (p1 is the highest byte):
-            Byte: 0  1  2  3  4  5  6  7  8  9  10 11  ... buffer.length
-                  1  x  P  L  A  I  N  p1 p1 p3 p4 (plaintext message)
-        */
-        buffer[0] = (byte) PLAIN.getCode();;
-        buffer[1] = dataFlow;
-        
-        /* Fills the control message */
-        System.arraycopy(aux, 0, buffer, 2, aux.length);
-        System.arraycopy(portAux, 0, buffer, aux.length + 2, portAux.length);
-        /* Copies the data after the header and the argument */
-        System.arraycopy(plaintext,
-                         0, 
-                         buffer,
-                         PLAIN.getLength() + 4,
-                         buffer.length - PLAIN.getLength() - 4);
-        
-        /* Adds the CONT control message, if needed */
-        if (largeText) {
+        if (length < 0) {
             
-            System.arraycopy(CONT.toString().getBytes(),
-                             0,
-                             buffer,
-                             (buffer.length - CONT.toString().length()),
-                             CONT.toString().length());
+            return null;
         }
         
-        packet = new DatagramPacket(buffer, buffer.length);
-        
-        /* Adds the packet as the first item of the list */
-        list.add (0, packet);
-                
-        return list;
+        return new DatagramPacket(Arrays.copyOf (buffer, length), length);
     }
     
+    
+/* --------------------- */
+/* ---- AUX METHODS ---- */
+/* --------------------- */
+    
     /**
-     * Creates a packet with the desired data.
+     * Creates a {@code PLAIN} or {@code DATA} packet with the given data. If
+     * the data doesn't fit on one packet, the first one is followed by
+     * {@code CONT} packets with the rest of it.
+     * 
+     * @param message 
+     *              {@code PLAIN} or {@code DATA}.
      * 
      * @param dataFlow 
      *              The flow of this packet. This byte will be on the second
@@ -640,84 +753,66 @@ public class PacketCreator {
      * @param port
      *              Port where the answer is expected.
      * 
+     * @param maxSize
+     *              Maximum size of every packet.
+     * 
      * 
      * @return 
      *              An array of completely formed {@link DatagramPacket}, if the
      *          size of the data is larger than the max buffer size.
      */
-    public static ArrayList<DatagramPacket> DATA (byte dataFlow,
-                                                  byte [] data,
-                                                  int port) {
-        
+    private static ArrayList<DatagramPacket> withCONT (ControlMessage message,
+                                                       byte dataFlow,
+                                                       byte [] data,
+                                                       int port,
+                                                       int maxSize) {
         
         ArrayList<DatagramPacket> list = new ArrayList<>();
-        int size = DATA.getLength() + 4 + data.length;
+        int args = message.getLength() + 4;
+        int size = args + data.length;
+        int count = data.length;
         
-        boolean largeText = (size > Common.BUFF_SIZE);
-        byte [] buf;
+        boolean largeText = (size > maxSize);
+        byte [] buffer;
         
         /* Adds first the CONT packets */
         if (largeText) {
             
-            buf = Arrays.copyOfRange (data,
-                                      Common.BUFF_SIZE - CONT.toString().length(),
-                                      data.length);
-            list = createCONT(dataFlow, buf, port);
-            size = Common.BUFF_SIZE;
+            size = maxSize;
+            /* The last bytes of the first packet are used by "CONT" */
+            count = size - args - PacketEncoder.moreDataLength();
+            
+            /* The continuation starts on the first byte that doesn't fit on
+            the first packet */
+            list = createCONT (dataFlow, data, count, port, maxSize);
         }
         
         /* After the continuation packets, adds the first one (with the PLAIN 
-        control message) */
-        
-        /* Creates a buffer of the proper length */
-        byte [] buffer = new byte [size];
-        byte [] aux = DATA.toString().getBytes();
-        byte [] portAux = Common.intToArray(port);
-        
-        DatagramPacket packet;
+        or DATA control message) */
+        buffer = new byte [size];
         
-        /* Fills the data. The packet has the following structure, being 'x' the
-            parameter dataFlow and p1, p2... the bytes of the port where the 
-            answer is expected (p1 is the highest byte):
-            Byte: 0  1  2  3  4  5  6  7  8  9  10   ... buffer.length
-                  1  x  D  A  T  A  p1 p1 p3 p4 (plaintext message)
+        /* The packet has the following structure, being 'x' the parameter
+            dataFlow and p1, p2... the bytes of the port where the answer is
+            expected (p1 is the highest byte):
+            Byte: 0  1  2  3  4  5  6  7  8  9  10 11  ... buffer.length
+                  1  x  P  L  A  I  N  p1 p1 p3 p4 (plaintext message) (CONT)
         */
-        buffer[0] = (byte) DATA.getCode();;
-        buffer[1] = dataFlow;
-        
-        /* Fills the control message */
-        System.arraycopy(aux, 0, buffer, 2, aux.length);
-        System.arraycopy(portAux, 0, buffer, aux.length + 2, portAux.length);
-        /* Copies the data after the header and the argument */
-        System.arraycopy(data,
-                         0, 
-                         buffer,
-                         DATA.getLength() + 4,
-                         buffer.length - DATA.getLength() - 4);
-        
-        /* Adds the CONT control message, if needed */
-        if (largeText) {
+        if (message == PLAIN) {
+            
+            PacketEncoder.PLAIN (ByteBuffer.wrap (buffer), 0, dataFlow,
+                                 data, 0, count, port, largeText);
+        } else {
             
-            System.arraycopy(CONT.toString().getBytes(),
-                             0,
-                             buffer,
-                             (buffer.length - CONT.toString().length()),
-                             CONT.toString().length());
+            PacketEncoder.DATA (ByteBuffer.wrap (buffer), 0, dataFlow,
+                                data, 0, count, port, largeText);
         }
         
-        packet = new DatagramPacket(buffer, buffer.length);
-        
         /* Adds the packet as the first item of the list */
-        list.add (0, packet);
+        list.add (0, new DatagramPacket(buffer, buffer.length));
                 
         return list;
     }
     
-    
-/* --------------------- */
-/* ---- AUX METHODS ---- */
-/* --------------------- */
-    
     /**
      * Creates an array of packets with continuation data (with the CONT 
      * control message).
@@ -729,39 +824,41 @@ public class PacketCreator {
      * @param data 
      *              The data with which the packet will be filled.
      * 
+     * @param from 
+     *              Position of the first byte of {@code data} to be sent.
+     * 
      * @param port
      *              Port where the answer is expected.
      * 
+     * @param maxSize
+     *              Maximum size of every packet.
+     * 
      * 
      * @return 
      *              An array of completely formed {@link DatagramPacket}.
      */
     private static ArrayList<DatagramPacket> createCONT (byte dataFlow,
                                                         byte [] data,
-                                                        int port) {
+                                                        int from,
+                                                        int port,
+                                                        int maxSize) {
         
         ArrayList<DatagramPacket> packets = new ArrayList<>();
-        int size =  Common.BUFF_SIZE -
+        int size =  maxSize -
                     (CONT.getLength() + 4 
-                    + CONT.toString().length()),
-            from = 0,
-            to = size;
+                    + PacketEncoder.moreDataLength());
         
-        byte [] buffer;
         DatagramPacket aux;
         
         /* Creates packets until no more data is left */
         while ((from < (data.length - size)) && (size > 0)) {
             
-            buffer = Arrays.copyOfRange (data, from, to);
-            
-            aux = addCONTdata (dataFlow, buffer, port, true);
+            aux = addCONTdata (dataFlow, data, from, size, port, true, maxSize);
             
             if (aux != null) {
                 
                 packets.add (aux);
                 from += size;
-                to += size;
                 
             } else {
                 
@@ -772,16 +869,8 @@ public class PacketCreator {
         }
         
         /* Adds the last chunk of data */
-        size = data.length;
-        buffer = Arrays.copyOfRange (data, from, size);
-        
-        while ((aux = addCONTdata (dataFlow, buffer, port, false)) == null &&
-               (size > 0)) {
-            
-            size--;
-        }
-        
-        if (aux != null) {
+        if ((aux = addCONTdata (dataFlow, data, from, data.length - from,
+                                port, false, maxSize)) != null) {
             
             packets.add(aux);
         }
@@ -801,6 +890,12 @@ public class PacketCreator {
      *          of this data is bigger than the packet max size, returns 
      *          {@code null}.
      * 
+     * @param from 
+     *              Position of the first byte of {@code data} to be sent.
+     * 
+     * @param count 
+     *              Number of bytes of {@code data} to be sent.
+     * 
      * @param port
      *              Port where the answer is expected.
      * 
@@ -809,6 +904,9 @@ public class PacketCreator {
      *          be reserved for the control message "CONT" to notify that more 
      *          data is left.
      * 
+     * @param maxSize
+     *              Maximum size of the packet.
+     * 
      * 
      * @return 
      *              A completely formed {@link DatagramPacket}; or 
@@ -816,58 +914,33 @@ public class PacketCreator {
      */
     private static DatagramPacket addCONTdata (byte dataFlow,
                                                byte [] data,
+                                               int from,
+                                               int count,
                                                int port,
-                                               boolean moreData) {
+                                               boolean moreData,
+                                               int maxSize) {
         
         int size = (moreData)?
-                        CONT.getLength() + 4 + data.length
-                        + CONT.toString().length()
-                      : CONT.getLength() + 4 + data.length;
+                        CONT.getLength() + 4 + count
+                        + PacketEncoder.moreDataLength()
+                      : CONT.getLength() + 4 + count;
         
-        if (size > Common.BUFF_SIZE) {
+        if ((count < 0) || (size > maxSize)) {
             
             return null;
         }
         
         byte [] buffer = new byte [size];
-        byte [] cont = CONT.toString().getBytes();
-        
-        byte [] portAux = Common.intToArray(port);
-        DatagramPacket packet;
-        
         
-        /*  Fills the data. The packet has the following structure, being 'x' the
-            parameter dataFlow and p1, p2... the bytes of the port where the 
-            answer is expected (p1 is the highest byte):
+        /*  The packet is written by PacketEncoder. The packet has the following
+            structure, being 'x' the parameter dataFlow and p1, p2... the bytes
+            of the port where the answer is expected (p1 is the highest byte):
             Byte: 0  1  2  3  4  5  6  7  8  9  10 11  ... buffer.length
-                  0  x  C  O  N  T  p1 p1 p3 p4     (data)
+                  0  x  C  O  N  T  p1 p1 p3 p4     (data)    (CONT)
         */
-        buffer[0] = (byte) CONT.getCode();;
-        buffer[1] = dataFlow;
-        
-        /* Fills the control message and the port number */
-        System.arraycopy(cont, 0, buffer, 2, cont.length);
-        System.arraycopy(portAux, 0, buffer, cont.length + 2, portAux.length);
-        /* Copies the data after the header and the port number */
-        System.arraycopy(data,
-                         0, 
-                         buffer,
-                         CONT.getLength() + 4, 
-                         data.length);
-        
-        /* If there are more data, adds the message "CONT" on the last bytes */
-        if (moreData) {
-            
-            System.arraycopy(cont,
-                             0,
-                             buffer,
-                             (buffer.length - cont.length),
-                             CONT.toString().length());
-        }
+        PacketEncoder.CONT (ByteBuffer.wrap (buffer), 0, dataFlow,
+                            data, from, count, port, moreData);
         
-        
-        packet = new DatagramPacket (buffer, buffer.length);
-        
-        return packet;
+        return new DatagramPacket (buffer, buffer.length);
     }
 }
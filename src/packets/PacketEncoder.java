@@ -0,0 +1,1830 @@
+/*
+ * CAL.
+ *  A P2P chat program that lets you communicate without any infrastructure.
+ *
+ *   Copyright (C) 2015  Foo-Manroot
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package packets;
+
+import static packets.ControlMessage.*;
+
+import common.Common;
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+
+/**
+ * This class has some methods to write the different packets directly into a
+ * buffer given by the caller (for example, one leased from a pool), so no
+ * arrays nor {@link java.net.DatagramPacket}s have to be created.
+ *
+ * <p>
+ * All the methods write the packet starting at the given position of the
+ * buffer, without changing its position nor its limit, and return the number
+ * of bytes written, or <b>-1</b> if the packet doesn't fit between the given
+ * position and the limit of the buffer (in that case, nothing is written).
+ * The packets are the same ones created by {@link PacketCreator}.
+ *
+ * <p>
+ * The packets can also be written on the compact framing, only understood by
+ * the peers that announced {@link Capabilities#COMPACT}:
+ * <pre>
+ *      Byte: 0        1  2       3      4 ...
+ *            COMPACT  x  opcode  flags  [port] [capabilities] [request]
+ *                                              [fragment] (arguments)
+ * </pre>
+ * Being 'x' the data flow and {@code opcode} the value of
+ * {@link ControlMessage#getOpcode()}. The port (only if
+ * {@link ControlMessage#hasPort()}), the capabilities (only if
+ * {@link #FLAG_CAPABILITIES} is set), the identifier of the request (only
+ * if {@link #FLAG_REQUEST_ID} is set) and the identifier of the message, the
+ * index and the number of fragments (only if {@link #FLAG_FRAGMENT} is set)
+ * are written as varints: 7 bits on each
+ * byte, the lowest ones first, with the highest bit set on every byte but the
+ * last one. The "CONT" mark at the end of the packets is replaced by
+ * {@link #FLAG_MORE_DATA}.
+ */
+public class PacketEncoder {
+
+    /**
+     * Text of every {@link ControlMessage}, as it's written on the packets,
+     * indexed by the ordinal of the message.
+     */
+    private static final byte [][] MNEMONICS = new byte [values().length][];
+
+    /**
+     * Text written at the end of a packet when there's more data left.
+     */
+    private static final byte [] MORE_DATA = CONT.name().getBytes(StandardCharsets.US_ASCII);
+
+    /**
+     * First byte of the compact packets, instead of the group of the message.
+     * Its highest bit is set, so it can't be confused with a group, and the
+     * lowest ones are the version of the framing (<b>2</b>).
+     */
+    public static final byte COMPACT = (byte) 0x82;
+
+    /**
+     * Length of the fixed part of a compact header (version, data flow, opcode
+     * and flags).
+     */
+    public static final int COMPACT_HEADER = 4;
+
+    /**
+     * Flag of a compact packet meaning that there is more data to receive (as
+     * "CONT" at the end of a legacy packet).
+     */
+    public static final int FLAG_MORE_DATA = 0x01;
+
+    /**
+     * Flag of a compact packet meaning that the capabilities of the sender are
+     * written after the port.
+     */
+    public static final int FLAG_CAPABILITIES = 0x02;
+
+    /**
+     * Flag of a compact packet meaning that the identifier of the request is
+     * written after the capabilities. The reliable messages carry it, and
+     * their answers echo it, so every answer can be matched to its request.
+     */
+    public static final int FLAG_REQUEST_ID = 0x04;
+
+    /**
+     * Flag of a compact packet meaning that it's a fragment of a longer
+     * message. The identifier of the message, the index of the fragment and
+     * the number of fragments are written after the identifier of the
+     * request, so the fragments can be received on any order.
+     */
+    public static final int FLAG_FRAGMENT = 0x08;
+
+    /**
+     * Flag of a compact {@code CHECK_CON} meaning that it's a probe: the rest
+     * of the datagram is padding, to check if a datagram of that size reaches
+     * the other peer. It's answered like any other {@code CHECK_CON}.
+     */
+    public static final int FLAG_PROBE = 0x10;
+
+    /**
+     * Flag of a compact {@code PLAIN} or {@code DATA} meaning that its
+     * arguments are compressed with Deflate (see {@link Compression}). On a
+     * fragmented message, the whole message is compressed before being split,
+     * and all the fragments carry the flag.
+     */
+    public static final int FLAG_COMPRESSED = 0x20;
+
+    /**
+     * Flag of a compact {@code ACK} that acknowledges the chunks of a windowed
+     * file transfer. Its arguments are varints: the index of the first chunk
+     * not received yet, followed by the first index and the end (the index
+     * after the last one) of every block received after it.
+     */
+    public static final int FLAG_SACK = 0x40;
+
+    /**
+     * Maximum number of blocks on a selective {@code ACK}.
+     */
+    public static final int MAX_SACK_BLOCKS = 4;
+
+    /**
+     * Highest identifier of a request. The identifiers start again from
+     * <b>0</b> after it.
+     */
+    public static final int MAX_REQUEST_ID = 0x0FFFFFFF;
+
+    /**
+     * Maximum length of a varint, enough for 28 bits.
+     */
+    public static final int MAX_VARINT = 4;
+
+    /**
+     * Maximum length of the header of a fragment: the fixed part and five
+     * varints (port, request, message, index and number of fragments).
+     */
+    public static final int MAX_FRAGMENT_HEADER = COMPACT_HEADER + 5 * MAX_VARINT;
+
+    /**
+     * First byte of the datagrams that carry more than one packet for the
+     * same destination. Every packet is written after its length, as a
+     * varint. They are only sent to the peers that negotiated the compact
+     * framing.
+     */
+    public static final byte BUNDLE = (byte) 0x83;
+
+    static {
+
+        for (ControlMessage message : values()) {
+
+            MNEMONICS [message.ordinal()] = message.name()
+                                                   .getBytes(StandardCharsets.US_ASCII);
+        }
+    }
+
+/* -------------------------------------- */
+/* ---- END OF ATTRIBUTE DECLARATION ---- */
+/* -------------------------------------- */
+
+/* ------------------------------------ */
+/* ---- CONTROL MESSAGES - GROUP 0 ---- */
+/* ------------------------------------ */
+
+    /**
+     * Writes an {@code ACK} packet.
+     *
+     * @param buffer
+     *              Buffer where the packet will be written.
+     *
+     * @param at
+     *              Position of the buffer where the packet begins.
+     *
+     * @param dataFlow
+     *              The flow of this packet.
+     *
+     * @param port
+     *              Port that identifies the peer that sent this message.
+     *
+     *
+     * @return
+     *              The length of the packet, or <b>-1</b> if it doesn't fit.
+     */
+    public static int ACK (ByteBuffer buffer, int at, byte dataFlow, int port) {
+
+        return withPort (buffer, at, ACK, dataFlow, port);
+    }
+
+    /**
+     * Writes a {@code NACK} packet.
+     *
+     * @param buffer
+     *              Buffer where the packet will be written.
+     *
+     * @param at
+     *              Position of the buffer where the packet begins.
+     *
+     * @param dataFlow
+     *              The flow of this packet.
+     *
+     *
+     * @return
+     *              The length of the packet, or <b>-1</b> if it doesn't fit.
+     */
+    public static int NACK (ByteBuffer buffer, int at, byte dataFlow) {
+
+        if (!fits (buffer, at, NACK.getLength())) {
+
+            return -1;
+        }
+
+        return header (buffer, at, NACK, dataFlow);
+    }
+
+    /**
+     * Writes a {@code HOSTS_REQ} packet.
+     *
+     * @param buffer
+     *              Buffer where the packet will be written.
+     *
+     * @param at
+     *              Position of the buffer where the packet begins.
+     *
+     * @param dataFlow
+     *              The flow of this packet.
+     *
+     * @param port
+     *              Port where the answer is expected.
+     *
+     *
+     * @return
+     *              The length of the packet, or <b>-1</b> if it doesn't fit.
+     */
+    public static int HOSTS_REQ (ByteBuffer buffer, int at, byte dataFlow, int port) {
+
+        return withPort (buffer, at, HOSTS_REQ, dataFlow, port);
+    }
+
+    /**
+     * Writes a {@code HOSTS_RESP} packet.
+     *
+     * @param buffer
+     *              Buffer where the packet will be written.
+     *
+     * @param at
+     *              Position of the buffer where the packet begins.
+     *
+     * @param dataFlow
+     *              The flow of this packet.
+     *
+     * @param info
+     *              An array of bytes representing all the hosts information,
+     *          as described on {@link PacketCreator#HOSTS_RESP(byte, byte[])}.
+     *
+     *
+     * @return
+     *              The length of the packet, or <b>-1</b> if it doesn't fit.
+     */
+    public static int HOSTS_RESP (ByteBuffer buffer,
+                                  int at,
+                                  byte dataFlow,
+                                  byte [] info) {
+
+        int length = HOSTS_RESP.getLength() + info.length;
+
+        if (!fits (buffer, at, length)) {
+
+            return -1;
+        }
+
+        header (buffer, at, HOSTS_RESP, dataFlow);
+        put (buffer, at + HOSTS_RESP.getLength(), info, 0, info.length);
+
+        return length;
+    }
+
+    /**
+     * Writes a {@code HELLO} packet.
+     *
+     * @param buffer
+     *              Buffer where the packet will be written.
+     *
+     * @param at
+     *              Position of the buffer where the packet begins.
+     *
+     * @param dataFlow
+     *              The flow of this packet.
+     *
+     * @param port
+     *              Port where the sender will wait for an answer.
+     *
+     *
+     * @return
+     *              The length of the packet, or <b>-1</b> if it doesn't fit.
+     */
+    public static int HELLO (ByteBuffer buffer, int at, byte dataFlow, int port) {
+
+        return withPort (buffer, at, HELLO, dataFlow, port);
+    }
+
+    /**
+     * Writes a {@code BYE} packet.
+     *
+     * @param buffer
+     *              Buffer where the packet will be written.
+     *
+     * @param at
+     *              Position of the buffer where the packet begins.
+     *
+     * @param dataFlow
+     *              The flow of this packet.
+     *
+     * @param port
+     *              Port where the answer is expected.
+     *
+     *
+     * @return
+     *              The length of the packet, or <b>-1</b> if it doesn't fit.
+     */
+    public static int BYE (ByteBuffer buffer, int at, byte dataFlow, int port) {
+
+        return withPort (buffer, at, BYE, dataFlow, port);
+    }
+
+    /**
+     * Writes a {@code CHECK_CON} packet.
+     *
+     * @param buffer
+     *              Buffer where the packet will be written.
+     *
+     * @param at
+     *              Position of the buffer where the packet begins.
+     *
+     * @param dataFlow
+     *              The flow of this packet.
+     *
+     * @param port
+     *              Port where the answer is expected.
+     *
+     *
+     * @return
+     *              The length of the packet, or <b>-1</b> if it doesn't fit.
+     */
+    public static int CHECK_CON (ByteBuffer buffer, int at, byte dataFlow, int port) {
+
+        return withPort (buffer, at, CHECK_CON, dataFlow, port);
+    }
+
+    /**
+     * Writes a {@code CHNG_DF_REQ} packet.
+     *
+     * @param buffer
+     *              Buffer where the packet will be written.
+     *
+     * @param at
+     *              Position of the buffer where the packet begins.
+     *
+     * @param dataFlow
+     *              The flow of this packet.
+     *
+     * @param proposedFlow
+     *              The new data flow proposed to the destination peer.
+     *
+     * @param port
+     *              Port where the sender will wait for an answer.
+     *
+     *
+     * @return
+     *              The length of the packet, or <b>-1</b> if it doesn't fit.
+     */
+    public static int CHNG_DF_REQ (ByteBuffer buffer,
+                                   int at,
+                                   byte dataFlow,
+                                   byte proposedFlow,
+                                   int port) {
+
+        int length = CHNG_DF_REQ.getLength() + 5;
+
+        if (!fits (buffer, at, length)) {
+
+            return -1;
+        }
+
+        withPort (buffer, at, CHNG_DF_REQ, dataFlow, port);
+        buffer.put (at + length - 1, proposedFlow);
+
+        return length;
+    }
+
+    /**
+     * Writes a {@code CHNG_DF_RESP} packet.
+     *
+     * @param buffer
+     *              Buffer where the packet will be written.
+     *
+     * @param at
+     *              Position of the buffer where the packet begins.
+     *
+     * @param dataFlow
+     *              The flow of this packet.
+     *
+     * @param accepted
+     *              If it's <i>false</i>, the proposed flow is added at the end
+     *          of the packet.
+     *
+     * @param proposedFlow
+     *              The new data flow proposed to the destination peer. Only
+     *          used if the proposal wasn't accepted.
+     *
+     * @param port
+     *              Port where the answer is expected.
+     *
+     *
+     * @return
+     *              The length of the packet, or <b>-1</b> if it doesn't fit.
+     */
+    public static int CHNG_DF_RESP (ByteBuffer buffer,
+                                    int at,
+                                    byte dataFlow,
+                                    boolean accepted,
+                                    byte proposedFlow,
+                                    int port) {
+
+        int length = accepted? CHNG_DF_RESP.getLength() + 4
+                             : CHNG_DF_RESP.getLength() + 5;
+
+        if (!fits (buffer, at, length)) {
+
+            return -1;
+        }
+
+        withPort (buffer, at, CHNG_DF_RESP, dataFlow, port);
+
+        if (!accepted) {
+
+            buffer.put (at + length - 1, proposedFlow);
+        }
+
+        return length;
+    }
+
+    /**
+     * Writes an {@code INFO} packet.
+     *
+     * @param buffer
+     *              Buffer where the packet will be written.
+     *
+     * @param at
+     *              Position of the buffer where the packet begins.
+     *
+     * @param dataFlow
+     *              The flow of this packet.
+     *
+     * @param info
+     *              Information about the file to be sent.
+     *
+     * @param port
+     *              Port where the answer is expected.
+     *
+     *
+     * @return
+     *              The length of the packet, or <b>-1</b> if it doesn't fit.
+     */
+    public static int INFO (ByteBuffer buffer,
+                            int at,
+                            byte dataFlow,
+                            byte [] info,
+                            int port) {
+
+        return withData (buffer, at, INFO, dataFlow, info, 0, info.length,
+                         port, false);
+    }
+
+/* ----------------------------- */
+/* ---- PLAINTEXT - GROUP 1 ---- */
+/* ----------------------------- */
+
+    /**
+     * Writes a {@code PLAIN} packet with a part of the given text.
+     *
+     * @param buffer
+     *              Buffer where the packet will be written.
+     *
+     * @param at
+     *              Position of the buffer where the packet begins.
+     *
+     * @param dataFlow
+     *              The flow of this packet.
+     *
+     * @param text
+     *              Array with the plaintext message.
+     *
+     * @param from
+     *              Position of the first byte of the text to be written.
+     *
+     * @param length
+     *              Number of bytes of the text to be written.
+     *
+     * @param port
+     *              Port where the answer is expected.
+     *
+     * @param moreData
+     *              If it's <i>true</i>, "CONT" is added at the end of the
+     *          packet, to notify that more data is left.
+     *
+     *
+     * @return
+     *              The length of the packet, or <b>-1</b> if it doesn't fit.
+     */
+    public static int PLAIN (ByteBuffer buffer,
+                             int at,
+                             byte dataFlow,
+                             byte [] text,
+                             int from,
+                             int length,
+                             int port,
+                             boolean moreData) {
+
+        return withData (buffer, at, PLAIN, dataFlow, text, from, length,
+                         port, moreData);
+    }
+
+    /**
+     * Writes a {@code DATA} packet with a part of the given data.
+     *
+     * @param buffer
+     *              Buffer where the packet will be written.
+     *
+     * @param at
+     *              Position of the buffer where the packet begins.
+     *
+     * @param dataFlow
+     *              The flow of this packet.
+     *
+     * @param data
+     *              Array with the data.
+     *
+     * @param from
+     *              Position of the first byte of the data to be written.
+     *
+     * @param length
+     *              Number of bytes of the data to be written.
+     *
+     * @param port
+     *              Port where the answer is expected.
+     *
+     * @param moreData
+     *              If it's <i>true</i>, "CONT" is added at the end of the
+     *          packet, to notify that more data is left.
+     *
+     *
+     * @return
+     *              The length of the packet, or <b>-1</b> if it doesn't fit.
+     */
+    public static int DATA (ByteBuffer buffer,
+                            int at,
+                            byte dataFlow,
+                            byte [] data,
+                            int from,
+                            int length,
+                            int port,
+                            boolean moreData) {
+
+        return withData (buffer, at, DATA, dataFlow, data, from, length,
+                         port, moreData);
+    }
+
+    /**
+     * Writes a {@code CONT} packet with a part of the given data.
+     *
+     * @param buffer
+     *              Buffer where the packet will be written.
+     *
+     * @param at
+     *              Position of the buffer where the packet begins.
+     *
+     * @param dataFlow
+     *              The flow of this packet.
+     *
+     * @param data
+     *              Array with the continuation data.
+     *
+     * @param from
+     *              Position of the first byte of the data to be written.
+     *
+     * @param length
+     *              Number of bytes of the data to be written.
+     *
+     * @param port
+     *              Port where the answer is expected.
+     *
+     * @param moreData
+     *              If it's <i>true</i>, "CONT" is added at the end of the
+     *          packet, to notify that more data is left.
+     *
+     *
+     * @return
+     *              The length of the packet, or <b>-1</b> if it doesn't fit.
+     */
+    public static int CONT (ByteBuffer buffer,
+                            int at,
+                            byte dataFlow,
+                            byte [] data,
+                            int from,
+                            int length,
+                            int port,
+                            boolean moreData) {
+
+        return withData (buffer, at, CONT, dataFlow, data, from, length,
+                         port, moreData);
+    }
+
+/* ------------------------ */
+/* ---- COMPACT FRAMING ---- */
+/* ------------------------ */
+
+    /**
+     * Writes a compact packet without arguments (for example, the
+     * {@code HELLO} and the {@code ACK} that announce the capabilities).
+     *
+     * @param buffer
+     *              Buffer where the packet will be written.
+     *
+     * @param at
+     *              Position of the buffer where the packet begins.
+     *
+     * @param message
+     *              The message of the packet.
+     *
+     * @param dataFlow
+     *              The flow of this packet.
+     *
+     * @param port
+     *              Port where the answer is expected. It's ignored if the
+     *          message hasn't got it.
+     *
+     * @param capabilities
+     *              Capabilities of the sender, or <b>-1</b> to send the packet
+     *          without them.
+     *
+     *
+     * @return
+     *              The length of the packet, or <b>-1</b> if it doesn't fit.
+     */
+    public static int compact (ByteBuffer buffer,
+                               int at,
+                               ControlMessage message,
+                               byte dataFlow,
+                               int port,
+                               int capabilities) {
+
+        return compact (buffer, at, message, dataFlow, port, capabilities, -1);
+    }
+
+    /**
+     * Writes a compact packet without arguments, with the identifier of the
+     * request (for example, an {@code ACK} that echoes it).
+     *
+     * @param buffer
+     *              Buffer where the packet will be written.
+     *
+     * @param at
+     *              Position of the buffer where the packet begins.
+     *
+     * @param message
+     *              The message of the packet.
+     *
+     * @param dataFlow
+     *              The flow of this packet.
+     *
+     * @param port
+     *              Port where the answer is expected. It's ignored if the
+     *          message hasn't got it.
+     *
+     * @param capabilities
+     *              Capabilities of the sender, or <b>-1</b> to send the packet
+     *          without them.
+     *
+     * @param requestId
+     *              Identifier of the request, or <b>-1</b> to send the packet
+     *          without it.
+     *
+     *
+     * @return
+     *              The length of the packet, or <b>-1</b> if it doesn't fit.
+     */
+    public static int compact (ByteBuffer buffer,
+                               int at,
+                               ControlMessage message,
+                               byte dataFlow,
+                               int port,
+                               int capabilities,
+                               int requestId) {
+
+        int flags = flags (0, capabilities, requestId);
+        int length = compactHeaderLength (message, flags, port,
+                                          capabilities, requestId);
+
+        if (!fits (buffer, at, length)) {
+
+            return -1;
+        }
+
+        return compactHeader (buffer, at, message, dataFlow, flags,
+                              port, capabilities, requestId);
+    }
+
+    /**
+     * Writes the given legacy packet on the compact framing.
+     *
+     * @param packet
+     *              View over the legacy packet.
+     *
+     * @param buffer
+     *              Buffer where the packet will be written. It mustn't share
+     *          its content with the viewed packet.
+     *
+     * @param at
+     *              Position of the buffer where the packet begins.
+     *
+     *
+     * @return
+     *              The length of the compact packet, or <b>-1</b> if it doesn't
+     *          fit or the given one isn't a valid legacy packet.
+     */
+    public static int compact (PacketView packet, ByteBuffer buffer, int at) {
+
+        return compact (packet, buffer, at, -1);
+    }
+
+    /**
+     * Writes the given packet on the compact framing, with the identifier of
+     * the request.
+     *
+     * @param packet
+     *              View over the packet (legacy or already compact).
+     *
+     * @param buffer
+     *              Buffer where the packet will be written. It mustn't share
+     *          its content with the viewed packet.
+     *
+     * @param at
+     *              Position of the buffer where the packet begins.
+     *
+     * @param requestId
+     *              Identifier of the request, or <b>-1</b> to send the packet
+     *          without it.
+     *
+     *
+     * @return
+     *              The length of the compact packet, or <b>-1</b> if it doesn't
+     *          fit or the given one isn't a valid packet. If it's already a
+     *          compact packet, it's only written if there's an identifier to
+     *          add to it.
+     */
+    public static int compact (PacketView packet,
+                               ByteBuffer buffer,
+                               int at,
+                               int requestId) {
+
+        ControlMessage message = packet.message();
+        ByteBuffer arguments;
+        int port;
+        int flags = 0;
+        int header;
+
+        if (message == null) {
+
+            return -1;
+        }
+
+        if (packet.isCompact()) {
+
+            return withRequestId (packet, message, buffer, at, requestId);
+        }
+
+        port = message.hasPort()? packet.replyPort() : -1;
+        arguments = packet.payload(packet.arguments());
+
+        /* The "CONT" mark is replaced by the flag */
+        if (((message == PLAIN) || (message == CONT) || (message == DATA))
+            && packet.hasMoreData()) {
+
+            flags = FLAG_MORE_DATA;
+            arguments.limit(arguments.limit() - MORE_DATA.length);
+        }
+
+        flags = flags (flags, -1, requestId);
+        header = compactHeaderLength (message, flags, port, -1, requestId);
+
+        if (!fits (buffer, at, header + arguments.remaining())) {
+
+            return -1;
+        }
+
+        compactHeader (buffer, at, message, packet.dataFlow(), flags,
+                       port, -1, requestId);
+
+        return header + put (buffer, at + header, arguments);
+    }
+
+    /**
+     * Writes a fragment of a {@code PLAIN} message on the compact framing.
+     *
+     * @param buffer
+     *              Buffer where the packet will be written.
+     *
+     * @param at
+     *              Position of the buffer where the packet begins.
+     *
+     * @param dataFlow
+     *              The flow of this packet.
+     *
+     * @param data
+     *              Array with the whole message.
+     *
+     * @param from
+     *              Position of the first byte of the fragment.
+     *
+     * @param count
+     *              Number of bytes of the fragment.
+     *
+     * @param port
+     *              Port where the answer is expected.
+     *
+     * @param messageId
+     *              Identifier of the message, the same on all its fragments.
+     *
+     * @param index
+     *              Index of the fragment, starting at <b>0</b>.
+     *
+     * @param total
+     *              Number of fragments of the message.
+     *
+     *
+     * @return
+     *              The length of the packet, or <b>-1</b> if it doesn't fit.
+     */
+    public static int fragment (ByteBuffer buffer,
+                                int at,
+                                byte dataFlow,
+                                byte [] data,
+                                int from,
+                                int count,
+                                int port,
+                                int messageId,
+                                int index,
+                                int total) {
+
+        return fragment (buffer, at, dataFlow, data, from, count,
+                         port, messageId, index, total, 0);
+    }
+
+    /**
+     * Writes a fragment of a {@code PLAIN} message on the compact framing,
+     * with more flags (for example, {@link #FLAG_COMPRESSED}).
+     *
+     * @param buffer
+     *              Buffer where the packet will be written.
+     *
+     * @param at
+     *              Position of the buffer where the packet begins.
+     *
+     * @param dataFlow
+     *              The flow of this packet.
+     *
+     * @param data
+     *              Array with the whole message.
+     *
+     * @param from
+     *              Position of the first byte of the fragment.
+     *
+     * @param count
+     *              Number of bytes of the fragment.
+     *
+     * @param port
+     *              Port where the answer is expected.
+     *
+     * @param messageId
+     *              Identifier of the message, the same on all its fragments.
+     *
+     * @param index
+     *              Index of the fragment, starting at <b>0</b>.
+     *
+     * @param total
+     *              Number of fragments of the message.
+     *
+     * @param flags
+     *              Flags added to {@link #FLAG_FRAGMENT}. They mustn't have
+     *          any field on the header.
+     *
+     *
+     * @return
+     *              The length of the packet, or <b>-1</b> if it doesn't fit.
+     */
+    public static int fragment (ByteBuffer buffer,
+                                int at,
+                                byte dataFlow,
+                                byte [] data,
+                                int from,
+                                int count,
+                                int port,
+                                int messageId,
+                                int index,
+                                int total,
+                                int flags) {
+
+        return fragment (buffer, at, PLAIN, dataFlow, data, from, count,
+                         port, messageId, index, total, flags);
+    }
+
+    /**
+     * Writes a fragment of a {@code PLAIN} message, or a chunk of a windowed
+     * file transfer ({@code DATA}), on the compact framing. On a chunk, the
+     * identifier of the message is the one of the transfer, and the index and
+     * the number of fragments are the ones of the chunks of the file.
+     *
+     * @param buffer
+     *              Buffer where the packet will be written.
+     *
+     * @param at
+     *              Position of the buffer where the packet begins.
+     *
+     * @param message
+     *              The message of the packet ({@code PLAIN} or {@code DATA}).
+     *
+     * @param dataFlow
+     *              The flow of this packet.
+     *
+     * @param data
+     *              Array with the whole message.
+     *
+     * @param from
+     *              Position of the first byte of the fragment.
+     *
+     * @param count
+     *              Number of bytes of the fragment.
+     *
+     * @param port
+     *              Port where the answer is expected.
+     *
+     * @param messageId
+     *              Identifier of the message, the same on all its fragments.
+     *
+     * @param index
+     *              Index of the fragment, starting at <b>0</b>.
+     *
+     * @param total
+     *              Number of fragments of the message.
+     *
+     * @param flags
+     *              Flags added to {@link #FLAG_FRAGMENT}. They mustn't have
+     *          any field on the header.
+     *
+     *
+     * @return
+     *              The length of the packet, or <b>-1</b> if it doesn't fit.
+     */
+    public static int fragment (ByteBuffer buffer,
+                                int at,
+                                ControlMessage message,
+                                byte dataFlow,
+                                byte [] data,
+                                int from,
+                                int count,
+                                int port,
+                                int messageId,
+                                int index,
+                                int total,
+                                int flags) {
+
+        int header = compactHeaderLength (message, FLAG_FRAGMENT, port, -1, -1)
+                     + varintLength (messageId)
+                     + varintLength (index)
+                     + varintLength (total);
+        int position;
+
+        if ((from < 0) || (count < 0) || (from + count > data.length) ||
+            !fits (buffer, at, header + count)) {
+
+            return -1;
+        }
+
+        position = at + compactHeader (buffer, at, message, dataFlow,
+                                       FLAG_FRAGMENT | flags, port, -1, -1);
+        position += putVarint (buffer, position, messageId);
+        position += putVarint (buffer, position, index);
+        position += putVarint (buffer, position, total);
+
+        put (buffer, position, data, from, count);
+
+        return header + count;
+    }
+
+    /**
+     * Writes a {@code PLAIN} or {@code DATA} packet whose arguments have been
+     * compressed, with the {@link #FLAG_COMPRESSED} flag.
+     *
+     * @param buffer
+     *              Buffer where the packet will be written.
+     *
+     * @param at
+     *              Position of the buffer where the packet begins.
+     *
+     * @param message
+     *              The message of the packet ({@code PLAIN} or {@code DATA}).
+     *
+     * @param dataFlow
+     *              The flow of this packet.
+     *
+     * @param data
+     *              The compressed arguments.
+     *
+     * @param port
+     *              Port where the answer is expected.
+     *
+     *
+     * @return
+     *              The length of the packet, or <b>-1</b> if it doesn't fit.
+     */
+    public static int compressed (ByteBuffer buffer,
+                                  int at,
+                                  ControlMessage message,
+                                  byte dataFlow,
+                                  byte [] data,
+                                  int port) {
+
+        int header = compactHeaderLength (message, FLAG_COMPRESSED, port, -1, -1);
+
+        if (!fits (buffer, at, header + data.length)) {
+
+            return -1;
+        }
+
+        compactHeader (buffer, at, message, dataFlow, FLAG_COMPRESSED, port, -1, -1);
+
+        put (buffer, at + header, data, 0, data.length);
+
+        return header + data.length;
+    }
+
+    /**
+     * Writes a selective {@code ACK} of a windowed file transfer, with the
+     * {@link #FLAG_SACK} flag.
+     *
+     * @param buffer
+     *              Buffer where the packet will be written.
+     *
+     * @param at
+     *              Position of the buffer where the packet begins.
+     *
+     * @param dataFlow
+     *              The flow of this packet.
+     *
+     * @param port
+     *              Port where the answer is expected.
+     *
+     * @param requestId
+     *              Identifier of the acknowledged request, or <b>-1</b> if it
+     *          hadn't got it.
+     *
+     * @param sack
+     *              The index of the first chunk not received yet, followed by
+     *          the first index and the end of every block received after it.
+     *
+     *
+     * @return
+     *              The length of the packet, or <b>-1</b> if it doesn't fit.
+     */
+    public static int sack (ByteBuffer buffer,
+                            int at,
+                            byte dataFlow,
+                            int port,
+                            int requestId,
+                            int [] sack) {
+
+        int flags = flags (FLAG_SACK, -1, requestId);
+        int length = compactHeaderLength (ACK, flags, port, -1, requestId);
+        int position;
+
+        for (int value : sack) {
+
+            length += varintLength (value);
+        }
+
+        if (!fits (buffer, at, length)) {
+
+            return -1;
+        }
+
+        position = at + compactHeader (buffer, at, ACK, dataFlow, flags,
+                                       port, -1, requestId);
+
+        for (int value : sack) {
+
+            position += putVarint (buffer, position, value);
+        }
+
+        return length;
+    }
+
+    /**
+     * Returns the maximum number of bytes of a message that a fragment can
+     * carry.
+     *
+     * @return
+     *              The number of bytes left on a buffer of
+     *          {@code Common.BUFF_SIZE} bytes after the header of a fragment.
+     */
+    public static int fragmentLength () {
+
+        return fragmentLength (Common.BUFF_SIZE);
+    }
+
+    /**
+     * Returns the maximum number of bytes of a message that a fragment of the
+     * given size can carry.
+     *
+     * @param maxSize
+     *              Maximum size of the fragment.
+     *
+     *
+     * @return
+     *              The number of bytes left after the header of a fragment.
+     */
+    public static int fragmentLength (int maxSize) {
+
+        return maxSize - MAX_FRAGMENT_HEADER;
+    }
+
+    /**
+     * Writes a probe: a compact {@code CHECK_CON} with the
+     * {@link #FLAG_PROBE} flag, padded with zeros until the given size.
+     *
+     * @param buffer
+     *              Buffer where the packet will be written.
+     *
+     * @param at
+     *              Position of the buffer where the packet begins.
+     *
+     * @param dataFlow
+     *              The flow of this packet.
+     *
+     * @param port
+     *              Port where the answer is expected.
+     *
+     * @param size
+     *              Size of the whole packet.
+     *
+     *
+     * @return
+     *              The length of the packet ({@code size}), or <b>-1</b> if
+     *          it doesn't fit (or the size is too small for the header).
+     */
+    public static int probe (ByteBuffer buffer,
+                             int at,
+                             byte dataFlow,
+                             int port,
+                             int size) {
+
+        int header = compactHeaderLength (CHECK_CON, FLAG_PROBE, port, -1, -1);
+
+        if ((size < header) || !fits (buffer, at, size)) {
+
+            return -1;
+        }
+
+        compactHeader (buffer, at, CHECK_CON, dataFlow, FLAG_PROBE, port, -1, -1);
+
+        for (int i = at + header; i < at + size; i++) {
+
+            buffer.put (i, (byte) 0);
+        }
+
+        return size;
+    }
+
+    /**
+     * Copies a compact packet without arguments (see {@link PacketTemplates}),
+     * adding the identifier of the request at its end.
+     *
+     * @param buffer
+     *              Buffer where the packet will be written.
+     *
+     * @param at
+     *              Position of the buffer where the packet begins.
+     *
+     * @param template
+     *              The packet, written by
+     *          {@link #compact(ByteBuffer, int, ControlMessage, byte, int, int)}
+     *          without capabilities.
+     *
+     * @param requestId
+     *              Identifier of the request, or <b>-1</b> to copy the packet
+     *          as it is.
+     *
+     *
+     * @return
+     *              The length of the packet, or <b>-1</b> if it doesn't fit.
+     */
+    public static int stamp (ByteBuffer buffer,
+                             int at,
+                             byte [] template,
+                             int requestId) {
+
+        int length = template.length;
+
+        if (requestId >= 0) {
+
+            length += varintLength (requestId);
+        }
+
+        if (!fits (buffer, at, length)) {
+
+            return -1;
+        }
+
+        put (buffer, at, template, 0, template.length);
+
+        /* Without arguments, the identifier is the last field */
+        if (requestId >= 0) {
+
+            buffer.put (at + 3, (byte) (template [3] | FLAG_REQUEST_ID));
+            putVarint (buffer, at + template.length, requestId);
+        }
+
+        return length;
+    }
+
+    /**
+     * Appends a packet to a {@link #BUNDLE} datagram: its length, as a varint,
+     * followed by its bytes.
+     *
+     * @param buffer
+     *              Buffer with the bundle.
+     *
+     * @param at
+     *              Position of the buffer where the packet begins (the end of
+     *          the bundle).
+     *
+     * @param packet
+     *              Buffer with the packet, between its position and its limit.
+     *          If it's written, its position is moved to its limit.
+     *
+     *
+     * @return
+     *              The number of bytes written, or <b>-1</b> if it doesn't fit
+     *          (or it's empty).
+     */
+    public static int bundle (ByteBuffer buffer, int at, ByteBuffer packet) {
+
+        int count = packet.remaining();
+        int header = varintLength (count);
+
+        if ((count == 0) || !fits (buffer, at, header + count)) {
+
+            return -1;
+        }
+
+        putVarint (buffer, at, count);
+
+        return header + put (buffer, at + header, packet);
+    }
+
+    /**
+     * Returns the number of bytes needed to write the given value as a varint.
+     *
+     * @param value
+     *              A positive value, lower than 2^28.
+     *
+     *
+     * @return
+     *              The length of the varint.
+     */
+    public static int varintLength (int value) {
+
+        int length = 1;
+
+        while ((value >>>= 7) != 0) {
+
+            length++;
+        }
+
+        return length;
+    }
+
+/* --------------------- */
+/* ---- AUX METHODS ---- */
+/* --------------------- */
+
+    /**
+     * Returns the length of the text added at the end of the packets when
+     * there's more data left.
+     *
+     * @return
+     *              The length of "CONT".
+     */
+    public static int moreDataLength () {
+
+        return MORE_DATA.length;
+    }
+
+    /**
+     * Checks whether a packet of the given length fits on the buffer.
+     *
+     * @param buffer
+     *              Buffer where the packet will be written.
+     *
+     * @param at
+     *              Position of the buffer where the packet begins.
+     *
+     * @param length
+     *              Length of the packet.
+     *
+     *
+     * @return
+     *              <i>true</i> if there's room from {@code at} to the limit of
+     *          the buffer.
+     */
+    private static boolean fits (ByteBuffer buffer, int at, int length) {
+
+        return (at >= 0) && (length <= buffer.limit() - at);
+    }
+
+    /**
+     * Writes the header of the packet: the group of the message, the data flow
+     * and the text of the message.
+     *
+     * @param buffer
+     *              Buffer where the packet will be written.
+     *
+     * @param at
+     *              Position of the buffer where the packet begins.
+     *
+     * @param message
+     *              The message of the packet.
+     *
+     * @param dataFlow
+     *              The flow of this packet.
+     *
+     *
+     * @return
+     *              The length of the header ({@code message.getLength()}).
+     */
+    private static int header (ByteBuffer buffer,
+                               int at,
+                               ControlMessage message,
+                               byte dataFlow) {
+
+        byte [] mnemonic = MNEMONICS [message.ordinal()];
+
+        buffer.put (at, (byte) message.getCode());
+        buffer.put (at + 1, dataFlow);
+        put (buffer, at + 2, mnemonic, 0, mnemonic.length);
+
+        return message.getLength();
+    }
+
+    /**
+     * Writes a packet with only the header and the port.
+     *
+     * @param buffer
+     *              Buffer where the packet will be written.
+     *
+     * @param at
+     *              Position of the buffer where the packet begins.
+     *
+     * @param message
+     *              The message of the packet.
+     *
+     * @param dataFlow
+     *              The flow of this packet.
+     *
+     * @param port
+     *              Port where the answer is expected.
+     *
+     *
+     * @return
+     *              The length of the packet, or <b>-1</b> if it doesn't fit.
+     */
+    private static int withPort (ByteBuffer buffer,
+                                 int at,
+                                 ControlMessage message,
+                                 byte dataFlow,
+                                 int port) {
+
+        int length = message.getLength() + 4;
+
+        if (!fits (buffer, at, length)) {
+
+            return -1;
+        }
+
+        putPort (buffer, at + header (buffer, at, message, dataFlow), port);
+
+        return length;
+    }
+
+    /**
+     * Writes a packet with the header, the port and the given data.
+     *
+     * @param buffer
+     *              Buffer where the packet will be written.
+     *
+     * @param at
+     *              Position of the buffer where the packet begins.
+     *
+     * @param message
+     *              The message of the packet.
+     *
+     * @param dataFlow
+     *              The flow of this packet.
+     *
+     * @param data
+     *              Array with the data.
+     *
+     * @param from
+     *              Position of the first byte of the data to be written.
+     *
+     * @param count
+     *              Number of bytes of the data to be written.
+     *
+     * @param port
+     *              Port where the answer is expected.
+     *
+     * @param moreData
+     *              If it's <i>true</i>, "CONT" is added at the end.
+     *
+     *
+     * @return
+     *              The length of the packet, or <b>-1</b> if it doesn't fit.
+     */
+    private static int withData (ByteBuffer buffer,
+                                 int at,
+                                 ControlMessage message,
+                                 byte dataFlow,
+                                 byte [] data,
+                                 int from,
+                                 int count,
+                                 int port,
+                                 boolean moreData) {
+
+        int args = message.getLength() + 4;
+        int length = args + count + (moreData? MORE_DATA.length : 0);
+
+        if ((from < 0) || (count < 0) || (from + count > data.length) ||
+            !fits (buffer, at, length)) {
+
+            return -1;
+        }
+
+        putPort (buffer, at + header (buffer, at, message, dataFlow), port);
+        put (buffer, at + args, data, from, count);
+
+        if (moreData) {
+
+            put (buffer, at + args + count, MORE_DATA, 0, MORE_DATA.length);
+        }
+
+        return length;
+    }
+
+    /**
+     * Writes the port on four bytes (the first one is the highest byte),
+     * regardless of the byte order of the buffer.
+     *
+     * @param buffer
+     *              Buffer where the port will be written.
+     *
+     * @param at
+     *              Position of the highest byte.
+     *
+     * @param port
+     *              The port number.
+     */
+    private static void putPort (ByteBuffer buffer, int at, int port) {
+
+        buffer.put (at, (byte) (port >>> 24));
+        buffer.put (at + 1, (byte) (port >>> 16));
+        buffer.put (at + 2, (byte) (port >>> 8));
+        buffer.put (at + 3, (byte) port);
+    }
+
+    /**
+     * Writes a copy of the given compact packet with the identifier of the
+     * request, replacing the previous one (if it had it).
+     *
+     * @param packet
+     *              View over the compact packet.
+     *
+     * @param message
+     *              The message stored on the packet.
+     *
+     * @param buffer
+     *              Buffer where the packet will be written.
+     *
+     * @param at
+     *              Position of the buffer where the packet begins.
+     *
+     * @param requestId
+     *              Identifier of the request.
+     *
+     *
+     * @return
+     *              The length of the packet, or <b>-1</b> if it doesn't fit or
+     *          there isn't any identifier to write.
+     */
+    private static int withRequestId (PacketView packet,
+                                      ControlMessage message,
+                                      ByteBuffer buffer,
+                                      int at,
+                                      int requestId) {
+
+        int start = packet.field (message, FLAG_REQUEST_ID);
+        int end = start;
+        int length;
+        int index;
+        int padding = 0;
+        ByteBuffer source;
+
+        if ((requestId < 0) || (start < 0)) {
+
+            return -1;
+        }
+
+        /* Skips the previous identifier */
+        if ((packet.flags() & FLAG_REQUEST_ID) != 0) {
+
+            end = packet.skipVarint (start);
+        }
+
+        length = start + varintLength (requestId) + packet.getLength() - end;
+
+        /* The probes keep their size: the identifier takes the place of some
+        of their padding */
+        if (((packet.flags() & FLAG_PROBE) != 0) && (end >= 0)) {
+
+            padding = Math.min (Math.max (0, length - packet.getLength()),
+                                packet.getLength() - end);
+            length -= padding;
+        }
+
+        if ((end < 0) || !fits (buffer, at, length)) {
+
+            return -1;
+        }
+
+        /* The header until the identifier, with the new flags */
+        source = packet.payload (0);
+        source.limit (start);
+        put (buffer, at, source);
+
+        buffer.put (at + 3, (byte) (packet.flags() | FLAG_REQUEST_ID));
+
+        /* The identifier and the rest of the packet */
+        index = at + start;
+        index += putVarint (buffer, index, requestId);
+
+        source = packet.payload (end);
+        source.limit (source.limit() - padding);
+        put (buffer, index, source);
+
+        return length;
+    }
+
+    /**
+     * Adds the flags of the optional fields that will be written.
+     *
+     * @param flags
+     *              Flags of the packet.
+     *
+     * @param capabilities
+     *              Capabilities of the sender, or <b>-1</b>.
+     *
+     * @param requestId
+     *              Identifier of the request, or <b>-1</b>.
+     *
+     *
+     * @return
+     *              The given flags, with the ones of the fields added.
+     */
+    private static int flags (int flags, int capabilities, int requestId) {
+
+        if (capabilities >= 0) {
+
+            flags |= FLAG_CAPABILITIES;
+        }
+
+        if (requestId >= 0) {
+
+            flags |= FLAG_REQUEST_ID;
+        }
+
+        return flags;
+    }
+
+    /**
+     * Returns the length of a compact header.
+     *
+     * @param message
+     *              The message of the packet.
+     *
+     * @param flags
+     *              Flags of the packet.
+     *
+     * @param port
+     *              Port where the answer is expected.
+     *
+     * @param capabilities
+     *              Capabilities of the sender.
+     *
+     * @param requestId
+     *              Identifier of the request.
+     *
+     *
+     * @return
+     *              The length of the header, including the varints.
+     */
+    private static int compactHeaderLength (ControlMessage message,
+                                            int flags,
+                                            int port,
+                                            int capabilities,
+                                            int requestId) {
+
+        int length = COMPACT_HEADER;
+
+        if (message.hasPort()) {
+
+            length += varintLength (port);
+        }
+
+        if ((flags & FLAG_CAPABILITIES) != 0) {
+
+            length += varintLength (capabilities);
+        }
+
+        if ((flags & FLAG_REQUEST_ID) != 0) {
+
+            length += varintLength (requestId);
+        }
+
+        return length;
+    }
+
+    /**
+     * Writes a compact header. The caller must have checked that it fits.
+     *
+     * @param buffer
+     *              Buffer where the header will be written.
+     *
+     * @param at
+     *              Position of the buffer where the packet begins.
+     *
+     * @param message
+     *              The message of the packet.
+     *
+     * @param dataFlow
+     *              The flow of this packet.
+     *
+     * @param flags
+     *              Flags of the packet.
+     *
+     * @param port
+     *              Port where the answer is expected.
+     *
+     * @param capabilities
+     *              Capabilities of the sender.
+     *
+     * @param requestId
+     *              Identifier of the request.
+     *
+     *
+     * @return
+     *              The length of the header.
+     */
+    private static int compactHeader (ByteBuffer buffer,
+                                      int at,
+                                      ControlMessage message,
+                                      byte dataFlow,
+                                      int flags,
+                                      int port,
+                                      int capabilities,
+                                      int requestId) {
+
+        int index = at + COMPACT_HEADER;
+
+        buffer.put (at, COMPACT);
+        buffer.put (at + 1, dataFlow);
+        buffer.put (at + 2, message.getOpcode());
+        buffer.put (at + 3, (byte) flags);
+
+        if (message.hasPort()) {
+
+            index += putVarint (buffer, index, port);
+        }
+
+        if ((flags & FLAG_CAPABILITIES) != 0) {
+
+            index += putVarint (buffer, index, capabilities);
+        }
+
+        if ((flags & FLAG_REQUEST_ID) != 0) {
+
+            index += putVarint (buffer, index, requestId);
+        }
+
+        return index - at;
+    }
+
+    /**
+     * Writes the given value as a varint.
+     *
+     * @param buffer
+     *              Buffer where the value will be written.
+     *
+     * @param at
+     *              Position of the first byte (the lowest 7 bits).
+     *
+     * @param value
+     *              A positive value, lower than 2^28.
+     *
+     *
+     * @return
+     *              The number of bytes written.
+     */
+    private static int putVarint (ByteBuffer buffer, int at, int value) {
+
+        int index = at;
+
+        while ((value & ~0x7F) != 0) {
+
+            buffer.put (index++, (byte) ((value & 0x7F) | 0x80));
+            value >>>= 7;
+        }
+
+        buffer.put (index++, (byte) value);
+
+        return index - at;
+    }
+
+    /**
+     * Copies the remaining bytes of the source into the buffer, without
+     * changing the position of the buffer.
+     *
+     * @param buffer
+     *              Buffer where the bytes will be written.
+     *
+     * @param at
+     *              Position of the buffer for the first byte.
+     *
+     * @param source
+     *              Buffer with the bytes, between its position and its limit.
+     *          Its position is moved to its limit.
+     *
+     *
+     * @return
+     *              The number of bytes copied.
+     */
+    private static int put (ByteBuffer buffer, int at, ByteBuffer source) {
+
+        int position = buffer.position();
+        int count = source.remaining();
+
+        buffer.position (at);
+        buffer.put (source);
+        buffer.position (position);
+
+        return count;
+    }
+
+    /**
+     * Copies the given bytes into the buffer, without changing its position.
+     *
+     * @param buffer
+     *              Buffer where the bytes will be written.
+     *
+     * @param at
+     *              Position of the buffer for the first byte.
+     *
+     * @param source
+     *              Array with the bytes.
+     *
+     * @param from
+     *              Position of the first byte on the array.
+     *
+     * @param count
+     *              Number of bytes to be copied.
+     */
+    private static void put (ByteBuffer buffer,
+                             int at,
+                             byte [] source,
+                             int from,
+                             int count) {
+
+        int position;
+
+        if (buffer.hasArray()) {
+
+            System.arraycopy (source, from,
+                              buffer.array(), buffer.arrayOffset() + at,
+                              count);
+            return;
+        }
+
+        /* The bulk copy is relative to the position, that is restored after
+        it */
+        position = buffer.position();
+
+        buffer.position (at);
+        buffer.put (source, from, count);
+        buffer.position (position);
+    }
+}
@@ -0,0 +1,324 @@
+/*
+ * CAL.
+ *  A P2P chat program that lets you communicate without any infrastructure.
+ *
+ *   Copyright (C) 2015  Foo-Manroot
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package packets;
+
+import java.nio.ByteBuffer;
+import java.util.concurrent.ConcurrentHashMap;
+
+/**
+ * Cache with the encoded form of the control messages without arguments
+ * ({@code ACK}, {@code NACK}, {@code CHECK_CON}, {@code HELLO}, {@code BYE}
+ * and {@code HOSTS_REQ}), that are the same, byte by byte, for every data flow
+ * and port.
+ *
+ * <p>
+ * Every template is written once, on the legacy framing and on the compact
+ * one, and then copied straight into the buffer of every packet sent. The
+ * templates are never modified after being created.
+ */
+public class PacketTemplates {
+
+    /**
+     * Templates, indexed by the framing, the message, the data flow and the
+     * port (see {@link #key}).
+     */
+    private final ConcurrentHashMap<Long, byte []> templates;
+
+/* -------------------------------------- */
+/* ---- END OF ATTRIBUTE DECLARATION ---- */
+/* -------------------------------------- */
+
+    /**
+     * Constructor.
+     */
+    public PacketTemplates () {
+
+        this.templates = new ConcurrentHashMap<>();
+    }
+
+    /**
+     * Checks if the given message can be written from a template.
+     *
+     * @param message
+     *              The message.
+     *
+     *
+     * @return
+     *              <i>true</i> if the message hasn't got any argument (apart
+     *          from the port).
+     */
+    public static boolean isTemplate (ControlMessage message) {
+
+        switch (message) {
+
+            case ACK:
+            case NACK:
+            case CHECK_CON:
+            case HELLO:
+            case BYE:
+            case HOSTS_REQ:
+                return true;
+
+            default:
+                return false;
+        }
+    }
+
+    /**
+     * Writes the given message on the legacy framing.
+     *
+     * @param buffer
+     *              Buffer where the packet will be written.
+     *
+     * @param at
+     *              Position of the buffer where the packet begins.
+     *
+     * @param message
+     *              The message, that must be accepted by
+     *          {@link #isTemplate(ControlMessage)}.
+     *
+     * @param dataFlow
+     *              The flow of the packet.
+     *
+     * @param port
+     *              Port where the answer is expected. It's ignored if the
+     *          message hasn't got it.
+     *
+     *
+     * @return
+     *              The length of the packet, or <b>-1</b> if it doesn't fit.
+     */
+    public int stamp (ByteBuffer buffer,
+                      int at,
+                      ControlMessage message,
+                      byte dataFlow,
+                      int port) {
+
+        return PacketEncoder.stamp (buffer, at,
+                                    template (message, dataFlow, port, false),
+                                    -1);
+    }
+
+    /**
+     * Writes the given message on the compact framing.
+     *
+     * @param buffer
+     *              Buffer where the packet will be written.
+     *
+     * @param at
+     *              Position of the buffer where the packet begins.
+     *
+     * @param message
+     *              The message, that must be accepted by
+     *          {@link #isTemplate(ControlMessage)}.
+     *
+     * @param dataFlow
+     *              The flow of the packet.
+     *
+     * @param port
+     *              Port where the answer is expected. It's ignored if the
+     *          message hasn't got it.
+     *
+     * @param requestId
+     *              Identifier of the request, or <b>-1</b> to send the packet
+     *          without it.
+     *
+     *
+     * @return
+     *              The length of the packet, or <b>-1</b> if it doesn't fit.
+     */
+    public int stampCompact (ByteBuffer buffer,
+                             int at,
+                             ControlMessage message,
+                             byte dataFlow,
+                             int port,
+                             int requestId) {
+
+        return PacketEncoder.stamp (buffer, at,
+                                    template (message, dataFlow, port, true),
+                                    requestId);
+    }
+
+    /**
+     * Forgets the templates of the given data flow. It must be called when
+     * the data flow of a room changes, as its templates won't be used again.
+     *
+     * @param dataFlow
+     *              The old data flow.
+     */
+    public void invalidate (byte dataFlow) {
+
+        templates.keySet().removeIf (k -> (byte) (k >>> 32) == dataFlow);
+    }
+
+    /**
+     * Returns the number of templates stored.
+     *
+     * @return
+     *              The number of templates.
+     */
+    public int size () {
+
+        return templates.size();
+    }
+
+/* --------------------- */
+/* ---- AUX METHODS ---- */
+/* --------------------- */
+
+    /**
+     * Returns the template of the given message, creating it if it didn't
+     * exist.
+     *
+     * @param message
+     *              The message.
+     *
+     * @param dataFlow
+     *              The flow of the packet.
+     *
+     * @param port
+     *              Port where the answer is expected.
+     *
+     * @param compact
+     *              <i>true</i> for the compact framing.
+     *
+     *
+     * @return
+     *              The encoded packet. It mustn't be modified.
+     */
+    private byte [] template (ControlMessage message,
+                              byte dataFlow,
+                              int port,
+                              boolean compact) {
+
+        if (!isTemplate (message)) {
+
+            throw new IllegalArgumentException ("No template for " + message);
+        }
+
+        /* The messages without port have the same template for all of them */
+        int value = message.hasPort()? port : 0;
+
+        return templates.computeIfAbsent (key (message, dataFlow, value, compact),
+                                          k -> encode (message, dataFlow,
+                                                       value, compact));
+    }
+
+    /**
+     * Returns the key of a template: the port on the lowest 32 bits, followed
+     * by the data flow, the message and the framing.
+     *
+     * @param message
+     *              The message.
+     *
+     * @param dataFlow
+     *              The flow of the packet.
+     *
+     * @param port
+     *              Port where the answer is expected.
+     *
+     * @param compact
+     *              <i>true</i> for the compact framing.
+     *
+     *
+     * @return
+     *              The key.
+     */
+    private static long key (ControlMessage message,
+                             byte dataFlow,
+                             int port,
+                             boolean compact) {
+
+        return (port & 0xFFFFFFFFL)
+               | ((long) (dataFlow & 0xFF) << 32)
+               | ((long) (message.getOpcode() & 0xFF) << 40)
+               | (compact? (1L << 48) : 0);
+    }
+
+    /**
+     * Writes a new template.
+     *
+     * @param message
+     *              The message.
+     *
+     * @param dataFlow
+     *              The flow of the packet.
+     *
+     * @param port
+     *              Port where the answer is expected.
+     *
+     * @param compact
+     *              <i>true</i> for the compact framing.
+     *
+     *
+     * @return
+     *              The encoded packet.
+     */
+    private static byte [] encode (ControlMessage message,
+                                   byte dataFlow,
+                                   int port,
+                                   boolean compact) {
+
+        ByteBuffer buffer = ByteBuffer.allocate (message.getLength()
+                                                 + 4 + PacketEncoder.MAX_VARINT);
+        byte [] template;
+        int length;
+
+        if (compact) {
+
+            length = PacketEncoder.compact (buffer, 0, message, dataFlow, port, -1);
+
+        } else {
+
+            switch (message) {
+
+                case ACK:
+                    length = PacketEncoder.ACK (buffer, 0, dataFlow, port);
+                    break;
+
+                case NACK:
+                    length = PacketEncoder.NACK (buffer, 0, dataFlow);
+                    break;
+
+                case CHECK_CON:
+                    length = PacketEncoder.CHECK_CON (buffer, 0, dataFlow, port);
+                    break;
+
+                case HELLO:
+                    length = PacketEncoder.HELLO (buffer, 0, dataFlow, port);
+                    break;
+
+                case BYE:
+                    length = PacketEncoder.BYE (buffer, 0, dataFlow, port);
+                    break;
+
+                /* HOSTS_REQ */
+                default:
+                    length = PacketEncoder.HOSTS_REQ (buffer, 0, dataFlow, port);
+            }
+        }
+
+        template = new byte [length];
+
+        buffer.get (template);
+
+        return template;
+    }
+}
@@ -0,0 +1,832 @@
+/*
+ * CAL.
+ *  A P2P chat program that lets you communicate without any infrastructure.
+ *
+ *   Copyright (C) 2015  Foo-Manroot
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package packets;
+
+import java.net.DatagramPacket;
+import java.net.InetAddress;
+import java.nio.ByteBuffer;
+import java.nio.charset.Charset;
+import java.util.Arrays;
+
+/**
+ * Read-only view over a received datagram, that gives access to the fields of
+ * the packet (group, data flow, {@link ControlMessage}, port where the answer
+ * is expected and arguments) without copying its bytes.
+ *
+ * <p>
+ * The view doesn't own the buffer: it's only valid while the buffer isn't
+ * modified (for example, until the buffer is released to the pool where it
+ * was leased). The same view can be reused for another datagram with
+ * {@link #wrap(ByteBuffer, InetAddress, int)}.
+ *
+ * <p>
+ * The packets have the following structure, being 'g' the group of the
+ * message, 'x' the data flow and p1, p2... the bytes of the port where the
+ * answer is expected (p1 is the highest byte):
+ * <pre>
+ *      Byte: 0  1  2 ... n-1   n  n+1 n+2 n+3  n+4 ...
+ *            g  x  (message)   p1 p2  p3  p4   (arguments)
+ * </pre>
+ * Being {@code n} the value of {@code ControlMessage.getLength()}. Not all the
+ * messages have the port or the arguments.
+ *
+ * <p>
+ * The packets on the compact framing (explained on {@link PacketEncoder}) are
+ * also understood, so the fields should be read with {@link #replyPort()} and
+ * {@link #arguments()} instead of with fixed positions.
+ */
+public class PacketView {
+
+    /**
+     * Buffer with the datagram.
+     */
+    private ByteBuffer data;
+
+    /**
+     * Index of the first byte of the datagram on {@code data}.
+     */
+    private int offset;
+
+    /**
+     * Length of the datagram.
+     */
+    private int length;
+
+    /**
+     * Address from where the datagram has been sent.
+     */
+    private InetAddress address;
+
+    /**
+     * Port from where the datagram has been sent.
+     */
+    private int port;
+
+    /**
+     * Message stored on the datagram. It's determined the first time that
+     * it's requested.
+     */
+    private ControlMessage message;
+
+    /**
+     * If this attribute is <i>true</i>, {@code message} has already been
+     * determined (and {@code null} means an unknown message).
+     */
+    private boolean checked;
+
+/* -------------------------------------- */
+/* ---- END OF ATTRIBUTE DECLARATION ---- */
+/* -------------------------------------- */
+
+    /**
+     * Constructor. Creates an empty view, that must be pointed to a datagram
+     * with {@link #wrap(ByteBuffer, InetAddress, int)} before being used.
+     */
+    public PacketView () {
+
+        this.data = null;
+        this.offset = 0;
+        this.length = 0;
+        this.address = null;
+        this.port = -1;
+    }
+
+    /**
+     * Constructor.
+     *
+     * @param data
+     *              Buffer with the datagram, between its position and its
+     *          limit. Neither the buffer nor its position are modified.
+     *
+     * @param address
+     *              Address from where the datagram has been sent.
+     *
+     * @param port
+     *              Port from where the datagram has been sent.
+     */
+    public PacketView (ByteBuffer data, InetAddress address, int port) {
+
+        wrap (data, address, port);
+    }
+
+    /**
+     * Creates a view over the data of the given packet, without copying it.
+     *
+     * @param packet
+     *              The packet to be viewed.
+     *
+     *
+     * @return
+     *              A new view over the data of the packet.
+     */
+    public static PacketView of (DatagramPacket packet) {
+
+        return new PacketView (ByteBuffer.wrap (packet.getData(),
+                                                packet.getOffset(),
+                                                packet.getLength()),
+                               packet.getAddress(),
+                               packet.getPort());
+    }
+
+    /**
+     * Points this view to another datagram.
+     *
+     * @param data
+     *              Buffer with the datagram, between its position and its
+     *          limit. Neither the buffer nor its position are modified.
+     *
+     * @param address
+     *              Address from where the datagram has been sent.
+     *
+     * @param port
+     *              Port from where the datagram has been sent.
+     *
+     *
+     * @return
+     *              This same view.
+     */
+    public final PacketView wrap (ByteBuffer data, InetAddress address, int port) {
+
+        this.data = data;
+        this.offset = data.position();
+        this.length = data.remaining();
+        this.address = address;
+        this.port = port;
+        this.message = null;
+        this.checked = false;
+
+        return this;
+    }
+
+    /**
+     * Returns the byte at the given position of the datagram.
+     *
+     * @param index
+     *              Position of the byte, being <b>0</b> the group of the
+     *          message.
+     *
+     *
+     * @return
+     *              The byte at that position.
+     *
+     * @throws IndexOutOfBoundsException
+     *              If the index isn't inside the datagram.
+     */
+    public byte get (int index) {
+
+        if ((index < 0) || (index >= length)) {
+
+            throw new IndexOutOfBoundsException ("Index " + index
+                                                 + " out of a packet of "
+                                                 + length + " bytes");
+        }
+
+        return data.get (offset + index);
+    }
+
+    /**
+     * Returns the integer stored on four bytes, starting at the given
+     * position (the first byte is the highest one).
+     *
+     * @param index
+     *              Position of the highest byte.
+     *
+     *
+     * @return
+     *              The integer at that position, or <b>-1</b> if there aren't
+     *          four bytes left on the datagram.
+     */
+    public int getInt (int index) {
+
+        if ((index < 0) || (index + 4 > length)) {
+
+            return -1;
+        }
+
+        index += offset;
+
+        return ((data.get (index) & 0xFF) << 24)
+                | ((data.get (index + 1) & 0xFF) << 16)
+                | ((data.get (index + 2) & 0xFF) << 8)
+                | (data.get (index + 3) & 0xFF);
+    }
+
+    /**
+     * Checks whether the given text is stored on the datagram, starting at the
+     * given position.
+     *
+     * @param index
+     *              Position of the first character.
+     *
+     * @param text
+     *              The expected text (only ASCII characters).
+     *
+     *
+     * @return
+     *              <i>true</i> if all the characters are on their place;
+     *          <i>false</i> otherwise.
+     */
+    public boolean matches (int index, String text) {
+
+        if ((index < 0) || (index + text.length() > length)) {
+
+            return false;
+        }
+
+        for (int i = 0; i < text.length(); i++) {
+
+            if (data.get (offset + index + i) != text.charAt (i)) {
+
+                return false;
+            }
+        }
+
+        return true;
+    }
+
+    /**
+     * Returns the group of the message (the first byte of the datagram).
+     *
+     * @return
+     *              The group of the message, or <b>-1</b> if the datagram is
+     *          empty.
+     */
+    public byte group () {
+
+        return (length > 0)? data.get (offset) : -1;
+    }
+
+    /**
+     * Returns the data flow of the message (the second byte of the
+     * datagram).
+     *
+     * @return
+     *              The data flow of the message, or <b>0</b> if the datagram is
+     *          too short.
+     */
+    public byte dataFlow () {
+
+        return (length > 1)? data.get (offset + 1) : 0;
+    }
+
+    /**
+     * Checks if the datagram is on the compact framing.
+     *
+     * @return
+     *              <i>true</i> if its first byte is {@link PacketEncoder#COMPACT};
+     *          <i>false</i> otherwise.
+     */
+    public boolean isCompact () {
+
+        return group() == PacketEncoder.COMPACT;
+    }
+
+    /**
+     * Checks if the datagram is a bundle of packets.
+     *
+     * @return
+     *              <i>true</i> if its first byte is {@link PacketEncoder#BUNDLE};
+     *          <i>false</i> otherwise.
+     */
+    public boolean isBundle () {
+
+        return group() == PacketEncoder.BUNDLE;
+    }
+
+    /**
+     * Returns the flags of a compact datagram.
+     *
+     * @return
+     *              The flags (for example, {@link PacketEncoder#FLAG_MORE_DATA}),
+     *          or <b>0</b> if it isn't a compact datagram.
+     */
+    public int flags () {
+
+        return (isCompact() && (length >= PacketEncoder.COMPACT_HEADER))?
+                    data.get (offset + 3) & 0xFF :
+                    0;
+    }
+
+    /**
+     * Returns the value of the varint that starts at the given position.
+     *
+     * @param index
+     *              Position of the first byte of the varint (the lowest 7
+     *          bits).
+     *
+     *
+     * @return
+     *              The value of the varint, or <b>-1</b> if it doesn't end
+     *          inside the datagram or it's longer than
+     *          {@link PacketEncoder#MAX_VARINT} bytes.
+     */
+    public int getVarint (int index) {
+
+        int value = 0;
+        byte b;
+
+        for (int i = 0; i < PacketEncoder.MAX_VARINT; i++) {
+
+            if ((index + i < 0) || (index + i >= length)) {
+
+                return -1;
+            }
+
+            b = data.get (offset + index + i);
+            value |= (b & 0x7F) << (7 * i);
+
+            if (b >= 0) {
+
+                return value;
+            }
+        }
+
+        return -1;
+    }
+
+    /**
+     * Returns the position of the first argument of the datagram, after the
+     * port (if the message has it), supposing that it stores the given
+     * message.
+     *
+     * @param type
+     *              The message stored on the datagram.
+     *
+     *
+     * @return
+     *              The position of the arguments, or <b>-1</b> if the header of
+     *          a compact datagram is malformed.
+     */
+    int arguments (ControlMessage type) {
+
+        if (!isCompact()) {
+
+            return type.getLength() + (type.hasPort()? 4 : 0);
+        }
+
+        /* After all the optional fields */
+        return field (type, 0x100);
+    }
+
+    /**
+     * Returns the position of a field of the compact header, skipping the
+     * varints written before it.
+     *
+     * @param type
+     *              The message stored on the datagram.
+     *
+     * @param flag
+     *              Flag of the field (the fields are written on the order of
+     *          their flags, after the port), or a higher value to get the
+     *          position after all of them.
+     *
+     *
+     * @return
+     *              The position of the field, or <b>-1</b> if any of the
+     *          previous varints is malformed.
+     */
+    int field (ControlMessage type, int flag) {
+
+        int index = PacketEncoder.COMPACT_HEADER;
+        int flags = flags();
+
+        if (type.hasPort()) {
+
+            index = skipVarint (index);
+        }
+
+        if (((flags & PacketEncoder.FLAG_CAPABILITIES) != 0) &&
+            (PacketEncoder.FLAG_CAPABILITIES < flag)) {
+
+            index = skipVarint (index);
+        }
+
+        if (((flags & PacketEncoder.FLAG_REQUEST_ID) != 0) &&
+            (PacketEncoder.FLAG_REQUEST_ID < flag)) {
+
+            index = skipVarint (index);
+        }
+
+        /* Message identifier, index and number of fragments */
+        if (((flags & PacketEncoder.FLAG_FRAGMENT) != 0) &&
+            (PacketEncoder.FLAG_FRAGMENT < flag)) {
+
+            index = skipVarint (skipVarint (skipVarint (index)));
+        }
+
+        return index;
+    }
+
+    /**
+     * Returns the position after the varint that starts at the given one.
+     *
+     * @param index
+     *              Position of the varint, or <b>-1</b>.
+     *
+     *
+     * @return
+     *              The position of the next byte, or <b>-1</b> if the varint
+     *          is malformed.
+     */
+    int skipVarint (int index) {
+
+        int value = (index < 0)? -1 : getVarint (index);
+
+        return (value < 0)? -1 : index + PacketEncoder.varintLength (value);
+    }
+
+    /**
+     * Returns the message stored on the datagram. It's only checked once for
+     * every datagram.
+     *
+     * @return
+     *              The {@link ControlMessage} stored on the datagram, or
+     *          {@code null} if it isn't a recognised packet.
+     */
+    public ControlMessage message () {
+
+        if (!checked) {
+
+            message = PacketChecker.checkPacket (this);
+            checked = true;
+        }
+
+        return message;
+    }
+
+    /**
+     * Returns the port where the sender expects the answer, stored after the
+     * message.
+     *
+     * @return
+     *              The port number, or <b>-1</b> if it isn't a recognised
+     *          packet or it hasn't got the port.
+     */
+    public int replyPort () {
+
+        ControlMessage type = message();
+
+        if ((type == null) || !type.hasPort()) {
+
+            return -1;
+        }
+
+        return isCompact()?
+                    getVarint (PacketEncoder.COMPACT_HEADER) :
+                    getInt (type.getLength());
+    }
+
+    /**
+     * Returns the capabilities announced by the sender of a compact datagram.
+     *
+     * @return
+     *              The bitmap with the {@link Capabilities}, or <b>-1</b> if
+     *          the datagram hasn't got it.
+     */
+    public int capabilities () {
+
+        return compactField (PacketEncoder.FLAG_CAPABILITIES);
+    }
+
+    /**
+     * Returns the identifier of the request stored on a compact datagram (on
+     * a reliable message, or echoed on its answer).
+     *
+     * @return
+     *              The identifier of the request, or <b>-1</b> if the datagram
+     *          hasn't got it.
+     */
+    public int requestId () {
+
+        return compactField (PacketEncoder.FLAG_REQUEST_ID);
+    }
+
+    /**
+     * Returns the identifier of the message that a compact fragment belongs
+     * to.
+     *
+     * @return
+     *              The identifier of the message, or <b>-1</b> if the datagram
+     *          isn't a fragment.
+     */
+    public int messageId () {
+
+        return compactField (PacketEncoder.FLAG_FRAGMENT, 0);
+    }
+
+    /**
+     * Returns the position of a compact fragment inside its message.
+     *
+     * @return
+     *              The index of the fragment (starting at <b>0</b>), or
+     *          <b>-1</b> if the datagram isn't a fragment.
+     */
+    public int fragmentIndex () {
+
+        return compactField (PacketEncoder.FLAG_FRAGMENT, 1);
+    }
+
+    /**
+     * Returns the number of fragments of the message that a compact fragment
+     * belongs to.
+     *
+     * @return
+     *              The number of fragments, or <b>-1</b> if the datagram isn't
+     *          a fragment.
+     */
+    public int fragmentCount () {
+
+        return compactField (PacketEncoder.FLAG_FRAGMENT, 2);
+    }
+
+    /**
+     * Returns the arguments of a selective {@code ACK} (see
+     * {@link PacketEncoder#FLAG_SACK}).
+     *
+     * @return
+     *              The index of the first chunk not received yet, followed by
+     *          the first index and the end of every block received after it;
+     *          or {@code null} if the datagram isn't a selective {@code ACK}
+     *          or its arguments are malformed.
+     */
+    public int [] sack () {
+
+        int [] sack = new int [1 + 2 * PacketEncoder.MAX_SACK_BLOCKS];
+        int index = arguments();
+        int count = 0;
+
+        if ((message() != ControlMessage.ACK) ||
+            ((flags() & PacketEncoder.FLAG_SACK) == 0)) {
+
+            return null;
+        }
+
+        while (index < length) {
+
+            if ((count == sack.length) || ((sack [count] = getVarint (index)) < 0)) {
+
+                return null;
+            }
+
+            index = skipVarint (index);
+            count++;
+        }
+
+        /* The first chunk, and a pair of indexes for every block */
+        return ((count % 2) == 1)? Arrays.copyOf (sack, count) : null;
+    }
+
+    /**
+     * Returns the value of an optional field of a compact datagram.
+     *
+     * @param flag
+     *              Flag of the field.
+     *
+     *
+     * @return
+     *              The value of the field, or <b>-1</b> if the datagram hasn't
+     *          got it.
+     */
+    private int compactField (int flag) {
+
+        return compactField (flag, 0);
+    }
+
+    /**
+     * Returns one of the values of an optional field of a compact datagram.
+     *
+     * @param flag
+     *              Flag of the field.
+     *
+     * @param n
+     *              Position of the value inside the field (<b>0</b> for the
+     *          first varint).
+     *
+     *
+     * @return
+     *              The value, or <b>-1</b> if the datagram hasn't got it.
+     */
+    private int compactField (int flag, int n) {
+
+        ControlMessage type = message();
+
+        return (type == null)? -1 : varintField (type, flag, n);
+    }
+
+    /**
+     * Returns one of the values of an optional field of a compact datagram,
+     * supposing that it stores the given message.
+     *
+     * @param type
+     *              The message stored on the datagram.
+     *
+     * @param flag
+     *              Flag of the field.
+     *
+     * @param n
+     *              Position of the value inside the field (<b>0</b> for the
+     *          first varint).
+     *
+     *
+     * @return
+     *              The value, or <b>-1</b> if the datagram hasn't got it.
+     */
+    int varintField (ControlMessage type, int flag, int n) {
+
+        int index;
+
+        if ((flags() & flag) == 0) {
+
+            return -1;
+        }
+
+        index = field (type, flag);
+
+        for (int i = 0; i < n; i++) {
+
+            index = skipVarint (index);
+        }
+
+        return (index < 0)? -1 : getVarint (index);
+    }
+
+    /**
+     * Returns the position of the first argument of the datagram, after the
+     * port (if the message has it).
+     *
+     * @return
+     *              The position of the arguments, or the length of the
+     *          datagram if it isn't a recognised packet.
+     */
+    public int arguments () {
+
+        ControlMessage type = message();
+
+        return (type == null)? length : arguments (type);
+    }
+
+    /**
+     * Returns the number of bytes of the arguments, without the "CONT" mark at
+     * the end of the legacy datagrams with more data to receive.
+     *
+     * @return
+     *              The length of the arguments.
+     */
+    public int argumentsLength () {
+
+        int count = length - arguments();
+
+        if (!isCompact() && hasMoreData()) {
+
+            count -= PacketEncoder.moreDataLength();
+        }
+
+        return Math.max (0, count);
+    }
+
+    /**
+     * Returns the arguments of the message, starting at the given position,
+     * without copying them.
+     *
+     * @param index
+     *              Position of the first byte of the arguments (for example,
+     *          {@code ControlMessage.getLength() + 4} to skip the port).
+     *
+     *
+     * @return
+     *              A read-only buffer whose position is <b>0</b> and whose limit
+     *          is the number of bytes from {@code index} to the end of the
+     *          datagram. It shares its content with the viewed buffer.
+     */
+    public ByteBuffer payload (int index) {
+
+        ByteBuffer slice = data.asReadOnlyBuffer();
+
+        index = Math.max (0, Math.min (index, length));
+
+        slice.limit (offset + length).position (offset + index);
+
+        return slice.slice();
+    }
+
+    /**
+     * Copies the given range of the datagram into a new array. It should only
+     * be used when the bytes must outlive the view (or are needed by methods
+     * that only accept an array).
+     *
+     * @param index
+     *              Position of the first byte to be copied.
+     *
+     * @param count
+     *              Number of bytes to be copied.
+     *
+     *
+     * @return
+     *              A new array with the bytes.
+     */
+    public byte [] toArray (int index, int count) {
+
+        ByteBuffer source = data.duplicate();
+        byte [] copy;
+
+        index = Math.max (0, Math.min (index, length));
+        count = Math.max (0, Math.min (count, length - index));
+
+        copy = new byte [count];
+        source.position (offset + index);
+        source.get (copy);
+
+        return copy;
+    }
+
+    /**
+     * Checks if the datagram contains the {@code CONT} control message at the
+     * end (meaning that there is more data to receive), like
+     * {@link PacketChecker#hasMoreData(byte[])}. On a compact datagram,
+     * checks {@link PacketEncoder#FLAG_MORE_DATA} instead.
+     *
+     * @return
+     *              <i>true</i> if the message has "CONT" at the end of it (or
+     *          the flag), and <i>false</i> otherwise.
+     */
+    public boolean hasMoreData () {
+
+        if (isCompact()) {
+
+            return (flags() & PacketEncoder.FLAG_MORE_DATA) != 0;
+        }
+
+        return (length > 4) && matches (length - 4, "CONT");
+    }
+
+/* ----------------------------- */
+/* ---- GETTERS AND SETTERS ---- */
+/* ----------------------------- */
+
+    /**
+     * Returns the address from where the datagram has been sent.
+     *
+     * @return
+     *              The value of {@code address}.
+     */
+    public InetAddress getAddress () {
+
+        return address;
+    }
+
+    /**
+     * Returns the port from where the datagram has been sent.
+     *
+     * @return
+     *              The value of {@code port}.
+     */
+    public int getPort () {
+
+        return port;
+    }
+
+    /**
+     * Returns the length of the datagram.
+     *
+     * @return
+     *              The value of {@code length}.
+     */
+    public int getLength () {
+
+        return length;
+    }
+
+    /**
+     * Returns a string with the text and the bytes of the datagram, to be
+     * shown on the logs.
+     *
+     * @return
+     *              A string with the format
+     *          {@code "\n\tText:(text)\n\tBytes: [(bytes)]"}.
+     */
+    @Override
+    public String toString () {
+
+        byte [] bytes = toArray (0, length);
+
+        return "\n\tText:" + new String (bytes, Charset.defaultCharset())
+               + "\n\tBytes: " + Arrays.toString (bytes);
+    }
+}
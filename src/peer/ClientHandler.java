@@ -21,8 +21,6 @@ package peer;
 
 import static common.Common.logger;
 
-import packets.ControlMessage;
-import control.Notification;
 import packets.PacketCreator;
 import gui.ClientHandlerGUI;
 import java.net.DatagramPacket;
@@ -95,8 +93,6 @@ public class ClientHandler extends Thread {
         ArrayList<Host> hosts;
         ArrayList<DatagramPacket> packetList;
 
-        Notification expectedAnswer;
-
         /* Infinite loop to get user input and send it to the rest of the
         peers */
         while (!end.get()) {
@@ -117,25 +113,21 @@ public class ClientHandler extends Thread {
                                              peer.getServer().getPort());
 
             /* Sends the message to the rest of the peers on the current
-            conversation (4 tries until giving up) */
+            conversation (4 tries until giving up), without waiting for their
+            answers, so the next line can be read right away */
             for (Host h : hosts) {
 
-                for (DatagramPacket packet : packetList) {
+                final String sent = message;
 
-                    expectedAnswer = new Notification(h.getIPaddress(),
-                                                      h.getDataFlow(),
-                                                      ControlMessage.ACK);
+                h.sendAllAsync(packetList, peer, 4).thenAccept(answered -> {
 
-                    if (!h.send(packet, expectedAnswer, peer, 4)) {
+                    if (!answered) {
 
                         logger.logError("Error trying to send the message \"" +
-                                        message + "\" to:" +
+                                        sent + "\" to:" +
                                         "\n" + h.toString());
                     }
-
-                    /* Removes the notification from the list */
-                    peer.getServer().removeNotification(expectedAnswer);
-                }
+                });
             }
         }
     }
@@ -0,0 +1,518 @@
+/*
+ * CAL.
+ *  A P2P chat program that lets you communicate without any infrastructure.
+ *
+ *   Copyright (C) 2015  Foo-Manroot
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package peer;
+
+import common.Common;
+import packets.PacketEncoder;
+import java.net.InetSocketAddress;
+import java.nio.ByteBuffer;
+import java.util.ArrayList;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ScheduledFuture;
+import java.util.concurrent.ScheduledThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.function.BiPredicate;
+import java.util.function.ToIntFunction;
+
+/**
+ * Joins the small packets sent to the same destination into a single
+ * datagram.
+ *
+ * <p>
+ * The first packet for a destination is held for a short time (the budget,
+ * in microseconds). The packets sent to the same destination during that time
+ * are appended to it on a {@link PacketEncoder#BUNDLE} datagram, as long as
+ * they fit on the largest datagram that reaches the destination (and on
+ * {@code Common.BUFF_SIZE} bytes), so the bundle isn't fragmented by IP on
+ * its way. All of them are sent
+ * together when the time runs out (for example, the {@code ACK} to a message
+ * and the answer sent right after it). If only one packet was held, it's sent
+ * alone, as it was.
+ *
+ * <p>
+ * With a budget of <b>0</b>, the packets are sent right away.
+ */
+public class Coalescer {
+
+    /**
+     * Method that sends a datagram to its destination.
+     */
+    private final BiPredicate<ByteBuffer, InetSocketAddress> sender;
+
+    /**
+     * Method that returns the largest datagram, in bytes, that can be sent to
+     * a destination.
+     */
+    private final ToIntFunction<InetSocketAddress> datagramSize;
+
+    /**
+     * Bundles waiting to be sent, indexed by their destination.
+     */
+    private final ConcurrentHashMap<InetSocketAddress, Bundle> pending;
+
+    /**
+     * Time, in microseconds, that a packet can be held waiting for others.
+     */
+    private volatile long budget;
+
+    /**
+     * Number of datagrams sent.
+     */
+    private final LongAdder datagrams;
+
+    /**
+     * Number of packets sent (alone or on a bundle).
+     */
+    private final LongAdder packets;
+
+    /**
+     * Timer shared by all the coalescers to send the bundles when their time
+     * runs out.
+     */
+    private static final ScheduledThreadPoolExecutor FLUSH_TIMER;
+
+    static {
+
+        FLUSH_TIMER = new ScheduledThreadPoolExecutor(1, r -> {
+
+            Thread t = new Thread(r, "Coalescer timer");
+            t.setDaemon(true);
+
+            return t;
+        });
+
+        FLUSH_TIMER.setRemoveOnCancelPolicy(true);
+    }
+
+/* -------------------------------------- */
+/* ---- END OF ATTRIBUTE DECLARATION ---- */
+/* -------------------------------------- */
+
+    /**
+     * Constructor.
+     *
+     * <p>
+     * The bundles are filled up to {@code Common.BUFF_SIZE} bytes, for every
+     * destination.
+     *
+     * @param sender
+     *              Method that sends a datagram (between the position and the
+     *          limit of the buffer) to the given destination, and returns
+     *          <i>true</i> if it has been sent.
+     *
+     * @param budget
+     *              Time, in microseconds, that a packet can be held waiting for
+     *          others to the same destination.
+     */
+    public Coalescer (BiPredicate<ByteBuffer, InetSocketAddress> sender,
+                      long budget) {
+
+        this (sender, budget, destination -> Common.BUFF_SIZE);
+    }
+
+    /**
+     * Constructor.
+     *
+     * @param sender
+     *              Method that sends a datagram (between the position and the
+     *          limit of the buffer) to the given destination, and returns
+     *          <i>true</i> if it has been sent.
+     *
+     * @param budget
+     *              Time, in microseconds, that a packet can be held waiting for
+     *          others to the same destination.
+     *
+     * @param datagramSize
+     *              Method that returns the largest datagram, in bytes, that can
+     *          be sent to a destination (for example, the one found by
+     *          {@link Host#probeDatagramSize(Peer)}). The bundles never get
+     *          larger than it, nor than {@code Common.BUFF_SIZE}.
+     */
+    public Coalescer (BiPredicate<ByteBuffer, InetSocketAddress> sender,
+                      long budget,
+                      ToIntFunction<InetSocketAddress> datagramSize) {
+
+        this.sender = sender;
+        this.datagramSize = datagramSize;
+        this.pending = new ConcurrentHashMap<>();
+        this.budget = Math.max(0, budget);
+        this.datagrams = new LongAdder();
+        this.packets = new LongAdder();
+    }
+
+    /**
+     * Sends a packet to the given destination, or holds it to be sent with the
+     * next ones to the same destination.
+     *
+     * @param data
+     *              Buffer with the packet, between its position and its limit.
+     *          Its position is moved to its limit. It can be reused as soon as
+     *          this method returns.
+     *
+     * @param destination
+     *              Address and port where the packet will be sent.
+     *
+     *
+     * @return
+     *              <i>true</i> if the packet has been sent or is waiting to be
+     *          sent; <i>false</i> if it couldn't be sent.
+     */
+    public boolean send (ByteBuffer data, InetSocketAddress destination) {
+
+        int size = limit (destination);
+
+        /* The packets that can't share a datagram are sent right away */
+        if ((budget <= 0) ||
+            (data.remaining() + 1 + PacketEncoder.MAX_VARINT > size)) {
+
+            flush (destination);
+
+            return transmit (data, destination, 1);
+        }
+
+        while (true) {
+
+            Bundle bundle = pending.computeIfAbsent (destination,
+                                                     d -> new Bundle (d, size));
+
+            synchronized (bundle) {
+
+                /* The bundle has been sent while waiting for it */
+                if (bundle.closed) {
+
+                    continue;
+                }
+
+                if (bundle.add (data)) {
+
+                    /* The first packet starts the timer */
+                    if (bundle.count == 1) {
+
+                        bundle.timer = FLUSH_TIMER.schedule (() -> flush (bundle),
+                                                             budget,
+                                                             TimeUnit.MICROSECONDS);
+                    }
+
+                    return true;
+                }
+            }
+
+            /* There's no room left: this bundle is sent, and the packet goes
+            on the next one */
+            flush (bundle);
+        }
+    }
+
+    /**
+     * Sends right away the packets held for the given destination.
+     *
+     * @param destination
+     *              Address and port of the destination.
+     */
+    public void flush (InetSocketAddress destination) {
+
+        Bundle bundle = pending.get (destination);
+
+        if (bundle != null) {
+
+            flush (bundle);
+        }
+    }
+
+    /**
+     * Sends right away all the packets held.
+     */
+    public void flush () {
+
+        for (Bundle bundle : new ArrayList<>(pending.values())) {
+
+            flush (bundle);
+        }
+    }
+
+/* ----------------------------- */
+/* ---- GETTERS AND SETTERS ---- */
+/* ----------------------------- */
+
+    /**
+     * Returns the time that a packet can be held waiting for others.
+     *
+     * @return
+     *              The budget, in microseconds.
+     */
+    public long getBudget () {
+
+        return budget;
+    }
+
+    /**
+     * Changes the time that a packet can be held waiting for others. With
+     * <b>0</b>, the packets are sent right away.
+     *
+     * @param budget
+     *              The new budget, in microseconds.
+     */
+    public void setBudget (long budget) {
+
+        this.budget = Math.max(0, budget);
+
+        if (this.budget == 0) {
+
+            flush ();
+        }
+    }
+
+    /**
+     * Returns the number of datagrams sent.
+     *
+     * @return
+     *              The number of datagrams sent since this coalescer was
+     *          created.
+     */
+    public long getDatagrams () {
+
+        return datagrams.sum();
+    }
+
+    /**
+     * Returns the number of packets sent, alone or with others.
+     *
+     * @return
+     *              The number of packets sent since this coalescer was
+     *          created.
+     */
+    public long getPackets () {
+
+        return packets.sum();
+    }
+
+/* --------------------- */
+/* ---- AUX METHODS ---- */
+/* --------------------- */
+
+    /**
+     * Returns the largest bundle that can be sent to the given destination.
+     *
+     * @param destination
+     *              Address and port of the destination.
+     *
+     *
+     * @return
+     *              The largest datagram that reaches the destination, but not
+     *          more than {@code Common.BUFF_SIZE} bytes.
+     */
+    private int limit (InetSocketAddress destination) {
+
+        return Math.min (Common.BUFF_SIZE, datagramSize.applyAsInt (destination));
+    }
+
+    /**
+     * Sends the given bundle, if it hasn't been sent yet, and gives its buffer
+     * back to the pool.
+     *
+     * @param bundle
+     *              The bundle to be sent.
+     */
+    private void flush (Bundle bundle) {
+
+        ByteBuffer data;
+
+        synchronized (bundle) {
+
+            if (bundle.closed) {
+
+                return;
+            }
+
+            bundle.closed = true;
+            pending.remove (bundle.destination, bundle);
+
+            if (bundle.timer != null) {
+
+                bundle.timer.cancel (false);
+            }
+        }
+
+        data = bundle.buffer;
+
+        try {
+            /* A single packet is sent alone, without the bundle header */
+            if (bundle.count == 1) {
+
+                data.limit (bundle.length);
+                data.position (bundle.first);
+
+            } else {
+
+                data.limit (bundle.length);
+                data.position (0);
+            }
+
+            if (bundle.count > 0) {
+
+                transmit (data, bundle.destination, bundle.count);
+            }
+
+        } finally {
+
+            Common.bufferPool.release (data);
+        }
+    }
+
+    /**
+     * Sends a datagram and counts it.
+     *
+     * @param data
+     *              Buffer with the datagram.
+     *
+     * @param destination
+     *              Address and port of the destination.
+     *
+     * @param count
+     *              Number of packets on the datagram.
+     *
+     *
+     * @return
+     *              <i>true</i> if it has been sent.
+     */
+    private boolean transmit (ByteBuffer data,
+                              InetSocketAddress destination,
+                              int count) {
+
+        if (!sender.test (data, destination)) {
+
+            return false;
+        }
+
+        datagrams.increment();
+        packets.add (count);
+
+        return true;
+    }
+
+/* ------------------------- */
+/* ---- AUXILIARY CLASS ---- */
+/* ------------------------- */
+
+    /**
+     * Packets held for a destination. All its fields are protected by the
+     * lock of the bundle.
+     */
+    private static final class Bundle {
+
+        /**
+         * Destination of the packets.
+         */
+        private final InetSocketAddress destination;
+
+        /**
+         * Buffer with the bundle, leased from {@code Common.bufferPool}.
+         */
+        private final ByteBuffer buffer;
+
+        /**
+         * Largest length of the bundle.
+         */
+        private final int size;
+
+        /**
+         * Number of packets on the bundle.
+         */
+        private int count;
+
+        /**
+         * Position of the first packet (after its length).
+         */
+        private int first;
+
+        /**
+         * Length of the bundle.
+         */
+        private int length;
+
+        /**
+         * Task that sends the bundle when its time runs out.
+         */
+        private ScheduledFuture<?> timer;
+
+        /**
+         * If this attribute is <i>true</i>, the bundle has been sent (or is
+         * being sent) and no more packets can be added.
+         */
+        private boolean closed;
+
+        /**
+         * Constructor.
+         *
+         * @param destination
+         *              Destination of the packets.
+         *
+         * @param size
+         *              Largest length of the bundle.
+         */
+        private Bundle (InetSocketAddress destination, int size) {
+
+            this.destination = destination;
+            this.size = size;
+            this.buffer = Common.bufferPool.lease();
+            this.count = 0;
+            this.length = 1;
+            this.closed = false;
+
+            buffer.clear();
+            buffer.put (0, PacketEncoder.BUNDLE);
+        }
+
+        /**
+         * Appends a packet to the bundle.
+         *
+         * @param data
+         *              Buffer with the packet.
+         *
+         *
+         * @return
+         *              <i>true</i> if it has been added; <i>false</i> if there
+         *          isn't room for it.
+         */
+        private boolean add (ByteBuffer data) {
+
+            int size = data.remaining();
+            int written;
+
+            buffer.limit (this.size);
+
+            if ((written = PacketEncoder.bundle (buffer, length, data)) < 0) {
+
+                return false;
+            }
+
+            if (count == 0) {
+
+                first = length + written - size;
+            }
+
+            length += written;
+            count++;
+
+            return true;
+        }
+    }
+}
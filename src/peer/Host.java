@@ -25,11 +25,23 @@ import java.io.IOException;
 import java.io.Serializable;
 import java.net.DatagramPacket;
 import java.net.DatagramSocket;
+import java.net.Inet6Address;
 import java.net.InetAddress;
+import java.net.InetSocketAddress;
+import java.net.NetworkInterface;
+import java.nio.ByteBuffer;
+import java.nio.channels.DatagramChannel;
 import java.util.Date;
+import java.util.List;
+import java.util.concurrent.CompletableFuture;
 import common.Common;
+import packets.Capabilities;
 import packets.ControlMessage;
+import control.CongestionControl;
+import control.Ledbat;
+import control.NewReno;
 import control.Notification;
+import control.RTTEstimator;
 import packets.PacketCreator;
 import java.net.UnknownHostException;
 
@@ -58,30 +70,32 @@ public class Host implements Serializable {
     private Date lastConnection = new Date();
     
     /**
-     * Smoothed round trip time, like the one used on TCP.
-     * 
-     * <p>
-     * Used to calculate the time to wait before retransmitting a packet, as 
-     * described in <a href="https://tools.ietf.org/html/rfc6298">RFC 6298</a>.
-     * 
-     * <p>
-     * If its value is {@code -1}, no RTT measures has been taken, so this 
-     * attribute isn't initialised yet and can't be used to calculate the RTO.
+     * Retransmission timeout used until the first RTT measure is taken, in
+     * milliseconds.
      */
-    private float SRTT = -1;
+    public static final long INITIAL_RTO = 1000;
     
     /**
-     * Round Trip Time Variation, like the one used on TCP.
-     * 
-     * <p>
-     * Used to calculate the time to wait before retransmitting a packet, as 
-     * described in <a href="https://tools.ietf.org/html/rfc6298">RFC 6298</a>.
+     * Lowest retransmission timeout, in milliseconds (the one recommended on
+     * <a href="https://tools.ietf.org/html/rfc6298">RFC 6298</a>).
+     */
+    public static final long MIN_RTO = 1000;
+    
+    /**
+     * Highest retransmission timeout, in milliseconds.
+     */
+    public static final long MAX_RTO = 60000;
+    
+    /**
+     * Estimator of the round trip time to this host, used to calculate the 
+     * time to wait before retransmitting a packet, as described in 
+     * <a href="https://tools.ietf.org/html/rfc6298">RFC 6298</a>.
      * 
      * <p>
-     * If its value is {@code -1}, no RTT measures has been taken, so this 
-     * attribute isn't initialised yet and can't be used to calculate the RTO.
+     * It depends on the path to the host, so it isn't stored with it (see 
+     * {@link #getRTTEstimator()}).
      */
-    private float RTTVAR = -1;
+    private transient volatile RTTEstimator estimator = null;
     
     /**
      * Indicates which communication this host belongs to.
@@ -91,6 +105,48 @@ public class Host implements Serializable {
      */
     private byte dataFlow;
     
+    /**
+     * Largest datagram, in bytes, that has reached this host, found by
+     * {@link #probeDatagramSize(Peer)}. If its value is {@code 0}, the host
+     * hasn't been probed and {@code Common.BUFF_SIZE} is used.
+     * 
+     * <p>
+     * It depends on the path to the host, so it isn't stored with it.
+     */
+    private transient volatile int datagramSize = 0;
+    
+    /**
+     * Congestion controller of the bulk transfers to this host (see
+     * {@link #congestionControl(boolean)}). If its value is {@code null}, no
+     * transfer has been sent yet.
+     * 
+     * <p>
+     * It depends on the path to the host, so it isn't stored with it.
+     */
+    private transient volatile CongestionControl congestion = null;
+    
+    /**
+     * Sizes tried, in ascending order, when probing the path to this host.
+     * The first one fits on an Ethernet frame, and the last one is the largest
+     * UDP datagram.
+     */
+    private static final int [] PROBE_SIZES = {1472,
+                                               Common.BUFF_SIZE,
+                                               8192,
+                                               32768,
+                                               Common.MAX_DATAGRAM_SIZE};
+    
+    /**
+     * Number of tries for every probe, before taking that size as too big.
+     */
+    private static final int PROBE_TRIES = 2;
+    
+    /**
+     * Channel shared by all the hosts to send the packets that don't go
+     * through the server of a peer. It's opened the first time it's needed.
+     */
+    private static DatagramChannel sharedChannel = null;
+    
 /* -------------------------------------- */
 /* ---- END OF ATTRIBUTE DECLARATION ---- */
 /* -------------------------------------- */
@@ -210,23 +266,17 @@ public class Host implements Serializable {
      *          come back after a message has been sent.
      * 
      * @return 
-     *              The updated value of {@code SRTT}.
+     *              The updated smoothed round trip time.
      */
     public float updateRTT (float sampleRTT) {
         
-        float alpha = (1 / 8);
-        float beta = (1 / 4);
-        
-        /* If any of the needed attributes are negative, no measures has been
-        taken yet */
-        if (SRTT < 0 || RTTVAR < 0) {
+        float SRTT = getRTTEstimator().sample (sampleRTT);
+        CongestionControl controller = congestion;
         
-            SRTT = sampleRTT;
-            RTTVAR = (sampleRTT / 2);
-        } else {
-        
-            RTTVAR = (1 - beta) * RTTVAR + beta * Math.abs(SRTT - sampleRTT);
-            SRTT = (1 - alpha) * SRTT + alpha * sampleRTT;
+        /* The delay-based controllers also learn from these measures */
+        if (controller != null) {
+            
+            controller.onRTT (sampleRTT, new Date().getTime());
         }
         
         return SRTT;
@@ -236,31 +286,26 @@ public class Host implements Serializable {
      * Returns the retransmission timeout (the time to wait before a packet to
      * be retransmitted), calculated as described in 
      * <a href="https://tools.ietf.org/html/rfc6298">RFC 6298</a>.
+     * 
+     * @return 
+     *              The current RTO, in milliseconds, already backed off if 
+     *          the last packets timed out.
      */
-    private float getRTO () {
-        
-        /* Constant defined on the RFC 6298 */
-        float k = 4;
-        float RTO;
+    public long getRTO () {
         
-        /* If any of the needed attributes are negative, no measures has been
-        taken yet, so it must return the default value (1 second) */
-        if (SRTT < 0 || RTTVAR < 0) {
-            
-            return 1000;
-        }
-        
-        /* Calculates the RTO */
-        RTO = (SRTT + k * RTTVAR);
-        
-        return (RTO < 1000)?
-                    1000 :
-                    RTO;
+        return getRTTEstimator().getRTO();
     }
     
     /**
      * Sends a packet to the host and waits for the response.
      * 
+     * <p>
+     * This method blocks the calling thread until the answer is received or
+     * all the tries have failed. Every try waits for the current RTO, that is
+     * doubled after every timeout. To send many packets at the same time, 
+     * {@link #sendAsync(DatagramPacket, Notification, Peer, int)} should be
+     * used instead.
+     * 
      * @param packet
      *              Packet to be sent.
      * 
@@ -283,104 +328,166 @@ public class Host implements Serializable {
                          Peer origin,
                          int tries) {
         
-        float count;
-        boolean retransmitted = false;
-        DatagramPacket aux;
-        Notification notification;
-        long sendTime;
-        float maxWaitTime = getRTO();
+        return sendAsync (packet, waitedResponse, origin, tries).join();
+    }
+    
+    /**
+     * Sends a packet to the host and returns a future that will be completed 
+     * when the response is received or all the tries have failed.
+     * 
+     * <p>
+     * The packet is sent on the calling thread. If the answer doesn't come
+     * back before the retransmission timeout, the packet is sent again by the
+     * scheduler shared by all the hosts ({@code Common.retransmissions}), so 
+     * no thread is blocked while waiting.
+     * 
+     * <p>
+     * The same packet can be sent to many hosts at the same time: its 
+     * destination is only changed while it's being sent.
+     * 
+     * <p>
+     * The expiry time of the notification is raised, if needed, so it's still
+     * waiting for the answer to the last try, even if the RTO has been backed
+     * off up to {@link #MAX_RTO}.
+     * 
+     * <p>
+     * Every call needs a new notification: if it has already been answered, 
+     * the packet isn't sent.
+     * 
+     * @param packet
+     *              Packet to be sent.
+     * 
+     * @param waitedResponse 
+     *                  Notification to be sent to the server.
+     * 
+     * @param origin 
+     *              Peer that's sending the packet.
+     * 
+     * @param tries
+     *              The number of tries to wait for a response.
+     * 
+     * 
+     * @return 
+     *              A future completed with <i>true</i> if the response was 
+     *          received correctly, or <i>false</i> if it wasn't.
+     * 
+     * 
+     * @throws IllegalArgumentException
+     *              If the notification has already been answered.
+     */
+    public CompletableFuture<Boolean> sendAsync (DatagramPacket packet,
+                                                 Notification waitedResponse,
+                                                 Peer origin,
+                                                 int tries) {
         
-        do {
-            try {
-                
-                /* Creates the socket, sets the destination address to the
-                packet and sends it */
-                try (DatagramSocket socket = new DatagramSocket()) {
-                    
-                    count = 0.1f;
-                    aux = packet;
-                    notification = waitedResponse;
-                    
-                    aux.setAddress(IPaddress);
-                    aux.setPort(port);
-                    
-                    sendTime = System.currentTimeMillis();
-                    socket.send(aux);
-                    
-                    /* Notifies the server and waits for the answer */
-                    origin.getServer().addNotification(notification);
-                    
-                    /* Waits until the message comes back or the wait time
-                    runs out */
-                    while (!notification.isReceived() && count <= 0.4) {
-                        
-                        Thread.sleep((long) (maxWaitTime * count));
-                        
-                        /* Decreases the counter, so it waits (waitTime x 0'1),
-                        then (waitTime x 0'2), and so on, until it comes to 
-                        (waitTime x 0'4), so the total slept time equals
-                        (waiTime x 1) */
-                        count += 0.1;
-                    }
-                    
-                    
-                    if (waitedResponse.isReceived()) {
-                        
-                        /* Updates the last connection date */
-                        updateLastConnection();
-                        
-                        /* Only updates the RTT if the packet hasn't been 
-                        retransmitted (Karn's algorithm) */
-                        if (!retransmitted) {
-                            
-                            updateRTT (System.currentTimeMillis() - sendTime);
-                        }
-                        
-                        return true;
-                    } 
-                    
-                    retransmitted = true;
-                }
-
-            } catch (IOException | InterruptedException ex) {
-
-                logger.logError("Exception at Host.send(): " 
-                                 + ex.getMessage() + "\n");
-            }
+        return submit (packet, waitedResponse, origin, tries, -1);
+    }
+    
+    /**
+     * Sends a packet to the host and returns a future that will be completed 
+     * when the response is received or all the tries have failed, waiting 
+     * always the given time for the answer to every try.
+     * 
+     * <p>
+     * It must be used when the answer doesn't depend only on the round trip 
+     * time (for example, when the user has to accept the request, or when 
+     * the packet may be too large to get to the host): the timeouts don't 
+     * back off the RTO of the host, and the answer isn't taken as a sample 
+     * of its RTT.
+     * 
+     * @param packet
+     *              Packet to be sent.
+     * 
+     * @param waitedResponse 
+     *                  Notification to be sent to the server.
+     * 
+     * @param origin 
+     *              Peer that's sending the packet.
+     * 
+     * @param tries
+     *              The number of tries to wait for a response.
+     * 
+     * @param timeout
+     *              Time to wait for the answer to every try, in milliseconds.
+     * 
+     * 
+     * @return 
+     *              A future completed with <i>true</i> if the response was 
+     *          received correctly, or <i>false</i> if it wasn't.
+     * 
+     * 
+     * @throws IllegalArgumentException
+     *              If the notification has already been answered.
+     */
+    public CompletableFuture<Boolean> sendAsync (DatagramPacket packet,
+                                                 Notification waitedResponse,
+                                                 Peer origin,
+                                                 int tries,
+                                                 long timeout) {
+        
+        return submit (packet, waitedResponse, origin, tries, timeout);
+    }
+    
+    /**
+     * Sends the given packets to the host, one after the other, without 
+     * blocking the calling thread: every packet is sent when the answer to 
+     * the previous one has arrived (or all its tries have failed), so they 
+     * arrive in order. The answer expected for every packet is an 
+     * {@code ACK}, and its notification is removed when it's done.
+     * 
+     * @param packets
+     *              Packets to be sent.
+     * 
+     * @param origin 
+     *              Peer that's sending the packets.
+     * 
+     * @param tries
+     *              The number of tries to wait for the answer to every packet.
+     * 
+     * 
+     * @return 
+     *              A future completed with <i>true</i> if all the packets 
+     *          were answered, or <i>false</i> if any of them wasn't.
+     */
+    public CompletableFuture<Boolean> sendAllAsync (List<DatagramPacket> packets,
+                                                    Peer origin,
+                                                    int tries) {
+        
+        CompletableFuture<Boolean> retVal = CompletableFuture.completedFuture(true);
+        
+        for (DatagramPacket packet : packets) {
             
-        } while (--tries > 0);
+            retVal = retVal.thenCompose(previous -> {
+                
+                Notification waitedResponse = new Notification(IPaddress,
+                                                               dataFlow,
+                                                               ControlMessage.ACK);
+                
+                return sendAsync (packet, waitedResponse, origin, tries)
+                        .whenComplete((r, ex) -> 
+                            origin.getServer().removeNotification(waitedResponse))
+                        .thenApply(answered -> answered && previous);
+            });
+        }
         
-        return waitedResponse.isReceived();
+        return retVal;
     }
     
     
     /**
      * Sends a packet to the host without waiting for a response.
      * 
+     * <p>
+     * The packet is sent from a channel shared by all the hosts, not from the
+     * server port. When the server of the peer is available, 
+     * {@link ServerThread#send(DatagramPacket, Host)} should be used instead.
+     * 
      * @param packet
      *              Packet to be sent.
      */
     public void send (DatagramPacket packet) {
         
-        try {
-            /* Creates the socket, sets the destination address to the
-            packet and sends it */ 
-            try (DatagramSocket socket = new DatagramSocket()) {
-                
-                packet.setAddress(IPaddress);
-                packet.setPort(port);
-                
-                socket.send(packet);
-                
-                /* Updates the last connection date */
-                updateLastConnection();
-            }
-            
-        } catch (IOException ex) {
-            
-            logger.logError("Exception at Host.send(): " 
-                             + ex.getMessage() + "\n");
-        }
+        send (packet, port);
     }
     
     /**
@@ -394,19 +501,26 @@ public class Host implements Serializable {
      */
     public void send (DatagramPacket packet, int port) {
                 
+        DatagramChannel channel = sharedChannel ();
+        
+        if (channel == null) {
+            
+            return;
+        }
+        
         try {
-            /* Creates the socket, sets the destination address to the
-            packet and sends it */ 
-            try (DatagramSocket socket = new DatagramSocket()) {
-                
-                packet.setAddress(IPaddress);
-                packet.setPort(port);
-                
-                socket.send(packet);
-                
-                /* Updates the last connection date */
-                updateLastConnection();
-            }
+            /* Sets the destination address to the packet and sends it through
+            the shared channel */
+            packet.setAddress(IPaddress);
+            packet.setPort(port);
+            
+            channel.send(ByteBuffer.wrap(packet.getData(), 
+                                         packet.getOffset(), 
+                                         packet.getLength()),
+                         new InetSocketAddress(IPaddress, port));
+            
+            /* Updates the last connection date */
+            updateLastConnection();
             
         } catch (IOException ex) {
             
@@ -429,6 +543,23 @@ public class Host implements Serializable {
      */
     public boolean checkConnection (Peer origin) {
         
+        return checkConnectionAsync (origin).join();
+    }
+    
+    /**
+     * Tries to communicate with this host by sending 4 packets, without 
+     * blocking the calling thread.
+     * 
+     * 
+     * @param origin 
+     *              Peer that's checking this host's connection.
+     * 
+     * @return 
+     *              A future completed with <i>true</i> if at least one packet 
+     *          received an answer, or <i>false</i> if none of them does.
+     */
+    public CompletableFuture<Boolean> checkConnectionAsync (Peer origin) {
+        
         DatagramPacket packet = PacketCreator.CHECK_CON (dataFlow, 
                                                          origin.getServer().getPort());
         Notification notif = new Notification(IPaddress,
@@ -436,7 +567,56 @@ public class Host implements Serializable {
                                               ControlMessage.ACK);
         int tries = 4;
         
-        return send (packet, notif, origin, tries);
+        return sendAsync (packet, notif, origin, tries).whenComplete((r, ex) -> 
+            
+            /* Removes the notification from the list */
+            origin.getServer().removeNotification(notif)
+        );
+    }
+    
+    
+    /**
+     * Finds the largest datagram that can reach this host, without blocking
+     * the calling thread, and keeps it on {@code datagramSize}.
+     * 
+     * <p>
+     * Probes of increasing sizes (see {@link PacketCreator#PROBE}) are sent 
+     * until one of them doesn't get an answer. Java can't set the 
+     * "don't fragment" bit, so a probe larger than the path MTU could arrive 
+     * fragmented by IP; to avoid it, the sizes are limited by the MTU of the 
+     * local interface used to reach the host.
+     * 
+     * <p>
+     * Only the hosts that support {@link Capabilities#LARGE} are probed; the 
+     * rest of them keep {@code Common.BUFF_SIZE} (and can be probed again, 
+     * once the capabilities have been negotiated). That size is also kept 
+     * when no probe gets an answer.
+     * 
+     * @param origin 
+     *              Peer that's probing this host.
+     * 
+     * @return 
+     *              A future completed with the size found, in bytes.
+     */
+    public CompletableFuture<Integer> probeDatagramSize (Peer origin) {
+        
+        ServerThread server = origin.getServer();
+        
+        if (!Capabilities.supports(server.getCapabilities(IPaddress, port),
+                                   Capabilities.LARGE)) {
+            
+            return CompletableFuture.completedFuture(Common.BUFF_SIZE);
+        }
+        
+        return probe (origin, linkLimit(), 0, 0).thenApply(found -> {
+            
+            datagramSize = (found > 0)? found : Common.BUFF_SIZE;
+            
+            /* The server joins the small packets up to this size */
+            server.setDatagramSize(IPaddress, port, datagramSize);
+            
+            return datagramSize;
+        });
     }
     
     
@@ -496,11 +676,230 @@ public class Host implements Serializable {
         return "IPaddress: " + IPaddress
                + "\n\tPort: " + port
                + "\n\tLast connection: " + lastConnection
-               + "\n\tRTT: " + ((SRTT < 0)? "-" : SRTT)
+               + "\n\tRTT: " + ((getRTTEstimator().getSamples() == 0)?
+                                        "-"
+                                      : getRTTEstimator().getSRTT())
                + "\n\tData flow: " + dataFlow 
                + "\n";
     }
     
+/* --------------------------- */
+/* ---- AUXILIARY METHODS ---- */
+/* --------------------------- */
+    
+    /**
+     * Sends a packet to the host through the retransmission scheduler (see 
+     * {@link #sendAsync(DatagramPacket, Notification, Peer, int)}).
+     * 
+     * @param packet
+     *              Packet to be sent.
+     * 
+     * @param waitedResponse 
+     *                  Notification to be sent to the server.
+     * 
+     * @param origin 
+     *              Peer that's sending the packet.
+     * 
+     * @param tries
+     *              The number of tries to wait for a response.
+     * 
+     * @param timeout
+     *              Time to wait for the answer to every try, in milliseconds, 
+     *          or <b>-1</b> to wait the RTO of the host.
+     * 
+     * 
+     * @return 
+     *              A future completed with <i>true</i> if the response was 
+     *          received correctly, or <i>false</i> if it wasn't.
+     */
+    private CompletableFuture<Boolean> submit (DatagramPacket packet,
+                                               Notification waitedResponse,
+                                               Peer origin,
+                                               int tries,
+                                               long timeout) {
+        
+        ServerThread server = origin.getServer();
+        CompletableFuture<Boolean> result;
+        Runnable send;
+        
+        /* The answer to a previous request would be taken as the answer to 
+        this one, and the packet would never be sent */
+        if (waitedResponse.getAnswer().isDone()) {
+            
+            throw new IllegalArgumentException ("Notification already answered: "
+                                                + waitedResponse);
+        }
+        
+        /* The peers that speak the compact framing echo the identifier of the 
+        request on its ACK, so the answer can't be taken for the one of 
+        another packet sent to this host */
+        if ((waitedResponse.getMessage() == ControlMessage.ACK) &&
+            (waitedResponse.getRequestId() < 0)) {
+            
+            waitedResponse.setRequestId(origin.getServer().nextRequestId(this));
+        }
+        
+        /* Every try waits, at most, the highest RTO (or the fixed timeout), and 
+        the answer to any of them must still be matched */
+        waitedResponse.setExpiryTime(Math.max(waitedResponse.getExpiryTime(),
+                                              tries * ((timeout < 0)? 
+                                                            MAX_RTO 
+                                                          : timeout)));
+        
+        /* Notifies the server before sending the packet, so the answer can't 
+        arrive before it's expected */
+        server.addNotification(waitedResponse);
+        
+        send = () -> {
+            
+            synchronized (packet) {
+                
+                server.send(packet, this, waitedResponse.getRequestId());
+            }
+        };
+        
+        result = (timeout < 0)?
+                    Common.retransmissions.submit (send, 
+                                                   waitedResponse.getAnswer(), 
+                                                   tries, 
+                                                   getRTTEstimator(), 
+                                                   this::updateRTT)
+                  : Common.retransmissions.submit (send, 
+                                                   waitedResponse.getAnswer(), 
+                                                   tries, 
+                                                   timeout);
+        
+        return result.thenApply(answered -> {
+                    
+                    /* Updates the last connection date */
+                    if (answered) {
+                        
+                        updateLastConnection();
+                    }
+                    
+                    return answered;
+                });
+    }
+    
+    /**
+     * Returns the channel shared by all the hosts to send packets, opening it
+     * if it hadn't been opened yet (or if it was closed).
+     * 
+     * @return 
+     *              The value of {@code sharedChannel}, or {@code null} if it
+     *          couldn't be opened.
+     */
+    private static synchronized DatagramChannel sharedChannel () {
+        
+        if ((sharedChannel == null) || !sharedChannel.isOpen()) {
+            
+            try {
+                
+                sharedChannel = DatagramChannel.open();
+                
+            } catch (IOException ex) {
+                
+                logger.logError("Exception at Host.sharedChannel(): " 
+                                 + ex.getMessage() + "\n");
+                sharedChannel = null;
+            }
+        }
+        
+        return sharedChannel;
+    }
+    
+    /**
+     * Sends the probes from the given one onwards, until one of them doesn't 
+     * get an answer.
+     * 
+     * @param origin 
+     *              Peer that's probing this host.
+     * 
+     * @param limit 
+     *              Largest size that can be tried.
+     * 
+     * @param index 
+     *              Position on {@code PROBE_SIZES} of the next size.
+     * 
+     * @param found 
+     *              Largest size that got an answer, or <b>0</b>.
+     * 
+     * 
+     * @return 
+     *              A future completed with the largest size that got an 
+     *          answer, or <b>0</b> if none of them did.
+     */
+    private CompletableFuture<Integer> probe (Peer origin,
+                                              int limit,
+                                              int index,
+                                              int found) {
+        
+        DatagramPacket packet;
+        Notification notif;
+        int size;
+        
+        if ((index >= PROBE_SIZES.length) || 
+            ((size = Math.min(PROBE_SIZES [index], limit)) <= found)) {
+            
+            return CompletableFuture.completedFuture(found);
+        }
+        
+        packet = PacketCreator.PROBE (dataFlow, origin.getServer().getPort(), size);
+        notif = new Notification(IPaddress, dataFlow, ControlMessage.ACK);
+        
+        /* An oversized probe gets no answer, but it doesn't mean the host is 
+        slower: the RTO isn't backed off */
+        return sendAsync (packet, notif, origin, PROBE_TRIES, getRTO())
+                .whenComplete((r, ex) -> 
+                    
+                    /* Removes the notification from the list */
+                    origin.getServer().removeNotification(notif)
+                )
+                .exceptionally(ex -> false)
+                .thenCompose(answered -> answered?
+                                    probe (origin, limit, index + 1, size)
+                                  : CompletableFuture.completedFuture(found)
+                );
+    }
+    
+    /**
+     * Returns the largest UDP payload that can leave the local interface used
+     * to reach this host without being fragmented: its MTU minus the IP and 
+     * UDP headers.
+     * 
+     * @return 
+     *              The size, in bytes, or {@code Common.BUFF_SIZE} if the 
+     *          interface couldn't be found.
+     */
+    private int linkLimit () {
+        
+        NetworkInterface nif;
+        int headers = (IPaddress instanceof Inet6Address)? 48 : 28;
+        int mtu;
+        
+        /* Connecting a datagram socket sends nothing, but chooses the local 
+        address (and so the interface) for the destination */
+        try (DatagramSocket socket = new DatagramSocket()) {
+            
+            socket.connect(IPaddress, port);
+            
+            nif = NetworkInterface.getByInetAddress(socket.getLocalAddress());
+            
+            if ((nif == null) || ((mtu = nif.getMTU()) <= headers)) {
+                
+                return Common.BUFF_SIZE;
+            }
+            
+            return Math.min(mtu - headers, Common.MAX_DATAGRAM_SIZE);
+            
+        } catch (IOException ex) {
+            
+            logger.logError("Exception at Host.linkLimit(): " 
+                             + ex.getMessage() + "\n");
+            return Common.BUFF_SIZE;
+        }
+    }
+    
 /* ----------------------------- */
 /* ---- GETTERS AND SETTERS ---- */
 /* ----------------------------- */
@@ -551,6 +950,113 @@ public class Host implements Serializable {
         return port;
     }
 
+    /**
+     * Returns the largest datagram that can be sent to this host.
+     * 
+     * @return 
+     *              The value of {@code datagramSize}, or 
+     *          {@code Common.BUFF_SIZE} if the host hasn't been probed yet.
+     */
+    public int getDatagramSize () {
+        
+        int size = datagramSize;
+        
+        return (size > 0)? size : Common.BUFF_SIZE;
+    }
+    
+    /**
+     * Checks whether the path to this host has already been probed.
+     * 
+     * @return 
+     *              <i>true</i> if {@link #probeDatagramSize(Peer)} has 
+     *          finished for this host.
+     */
+    public boolean isProbed () {
+        
+        return datagramSize > 0;
+    }
+
+    /**
+     * Returns the congestion controller of the bulk transfers to this host,
+     * creating a new one if there wasn't any, if it isn't of the asked kind
+     * or if the size of the datagrams has changed since it was created.
+     * 
+     * @param background 
+     *              If <i>true</i>, the controller must yield to the rest of 
+     *          the traffic ({@link Ledbat}); if not, it's a {@link NewReno}.
+     * 
+     * 
+     * @return 
+     *              The value of {@code congestion}.
+     */
+    public synchronized CongestionControl congestionControl (boolean background) {
+        
+        CongestionControl controller = congestion;
+        
+        if ((controller == null) ||
+            (controller.isBackground() != background) ||
+            (controller.getSegmentSize() != getDatagramSize())) {
+            
+            controller = background?
+                            new Ledbat (getDatagramSize())
+                          : new NewReno (getDatagramSize());
+            congestion = controller;
+        }
+        
+        return controller;
+    }
+    
+    /**
+     * Returns the estimator of the round trip time to this host, with its 
+     * statistics (smoothed RTT, variation, lowest and highest samples and 
+     * timeouts). It's created when it's first needed, as it isn't stored with 
+     * the host.
+     * 
+     * @return 
+     *              The value of {@code estimator}.
+     */
+    public RTTEstimator getRTTEstimator () {
+        
+        RTTEstimator current = estimator;
+        
+        if (current == null) {
+            
+            synchronized (this) {
+                
+                if ((current = estimator) == null) {
+                    
+                    current = new RTTEstimator (INITIAL_RTO, MIN_RTO, MAX_RTO);
+                    estimator = current;
+                }
+            }
+        }
+        
+        return current;
+    }
+    
+    /**
+     * Returns the congestion controller of the bulk transfers to this host.
+     * 
+     * @return 
+     *              The value of {@code congestion}, or {@code null} if no 
+     *          transfer has been sent yet.
+     */
+    public CongestionControl getCongestionControl () {
+        
+        return congestion;
+    }
+    
+    /**
+     * Changes the congestion controller of the bulk transfers to this host.
+     * 
+     * @param controller 
+     *              The new value for {@code congestion}.
+     */
+    public void setCongestionControl (CongestionControl controller) {
+        
+        this.congestion = controller;
+    }
+
     /**
      * Returns the time when the last communication with this host took place.
      * 
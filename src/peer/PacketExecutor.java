@@ -0,0 +1,835 @@
+/*
+ * CAL.
+ *  A P2P chat program that lets you communicate without any infrastructure.
+ *
+ *   Copyright (C) 2015  Foo-Manroot
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package peer;
+
+import files.FileSharer;
+
+import java.util.ArrayDeque;
+import java.util.HashMap;
+import java.util.concurrent.PriorityBlockingQueue;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * Bounded executor for the handlers of the received packets.
+ *
+ * <p>
+ * The handlers are distributed among a fixed number of lanes. Each lane has a
+ * single worker thread and a queue of limited capacity, so the handlers given
+ * with the same key (the packets of the same sender) always go to the same
+ * lane and are run in the order they arrived, while the packets of different
+ * senders are spread among all the lanes.
+ *
+ * <p>
+ * Every handler has a {@link Priority}. The worker of a lane always takes the
+ * handler with the highest priority, so the control messages and the text
+ * aren't delayed by the bulk data that arrived before them. The handlers with
+ * the same priority are run on the order they arrived.
+ *
+ * <p>
+ * The priority only applies between different senders: the handlers of the
+ * same sender are always run in the order they arrived, whatever their class
+ * (otherwise, a {@code BYE} could be handled before the {@code PLAIN} sent
+ * before it, that would then come from an unknown host). Only the oldest
+ * handler of every sender waits on the queue of the lane, and the next one
+ * takes its place when it starts running.
+ *
+ * <p>
+ * When the peer receives more packets than it can process, they are dropped
+ * instead of creating more threads:
+ * <ul>
+ *  <li>
+ *      The bulk packets (the {@code DATA} of the files) are dropped as soon as
+ *  the queue of their lane holds more than {@code bulkLimit} handlers, leaving
+ *  the rest of the room to the control traffic.
+ *  </li>
+ *  <li>
+ *      Any other packet is only dropped when the queue of its lane is full.
+ *  </li>
+ * </ul>
+ *
+ * Every dropped packet is counted. The sender of a dropped packet doesn't
+ * receive an answer, so it will be retransmitted later.
+ */
+public class PacketExecutor {
+
+    /**
+     * Classes of packets, from the highest priority to the lowest.
+     */
+    public static enum Priority {
+
+        /**
+         * Control messages ({@code ACK}, {@code HELLO}, {@code CHECK_CON}...).
+         */
+        CONTROL,
+
+        /**
+         * Text of the chat ({@code PLAIN} and its {@code CONT} fragments).
+         */
+        TEXT,
+
+        /**
+         * Bulk data of the files ({@code DATA}).
+         */
+        BULK
+    }
+
+    /**
+     * Default number of lanes (and worker threads).
+     */
+    public static final int DEFAULT_THREADS = Math.max (8,
+                                    4 * Runtime.getRuntime().availableProcessors());
+
+    /**
+     * Default fraction of the queue of a lane that can be occupied by handlers
+     * before the bulk packets start being dropped.
+     */
+    public static final float DEFAULT_BULK_FRACTION = 0.5f;
+
+    /**
+     * Lowest number of bulk handlers that every lane accepts by default. All
+     * the chunks of a file transfer come from the same sender, so they go to
+     * the same lane: it must hold, at least, a full window of them (twice, so
+     * there's room for a second transfer), or the chunks would be dropped and
+     * taken as losses by the congestion control of the sender.
+     */
+    public static final int DEFAULT_BULK_LIMIT = 2 * FileSharer.MAX_WINDOW;
+
+    /**
+     * Default capacity of the queues, among all the lanes.
+     */
+    public static final int DEFAULT_CAPACITY = Math.max (1024,
+                                    DEFAULT_THREADS
+                                    * Math.round (DEFAULT_BULK_LIMIT
+                                                  / DEFAULT_BULK_FRACTION));
+
+    /**
+     * The lanes, each one with a single-threaded executor.
+     */
+    private final Lane [] lanes;
+
+    /**
+     * Maximum number of handlers on the queue of each lane.
+     */
+    private final int laneCapacity;
+
+    /**
+     * Number of handlers on the queue of a lane from which the bulk packets
+     * are dropped.
+     */
+    private final int bulkLimit;
+
+    /**
+     * Counter to spread among the lanes the handlers given without a key.
+     */
+    private final AtomicInteger next;
+
+    /**
+     * Counter to keep the order of arrival among the handlers with the same
+     * priority.
+     */
+    private final AtomicLong sequence;
+
+    /**
+     * Number of handlers accepted, for each priority.
+     */
+    private final LongAdder [] accepted;
+
+    /**
+     * Number of packets dropped, for each priority.
+     */
+    private final LongAdder [] dropped;
+
+    /**
+     * Number of handlers run, for each priority.
+     */
+    private final LongAdder [] handled;
+
+    /**
+     * Total time (in nanoseconds) that the handlers have been waiting on the
+     * queue, for each priority.
+     */
+    private final LongAdder [] totalWait;
+
+    /**
+     * Longest time (in nanoseconds) that a handler has been waiting on the
+     * queue, for each priority.
+     */
+    private final AtomicLong [] maxWait;
+
+/* -------------------------------------- */
+/* ---- END OF ATTRIBUTE DECLARATION ---- */
+/* -------------------------------------- */
+
+    /**
+     * Constructor.
+     *
+     * <p>
+     * Creates an executor with the default values.
+     */
+    public PacketExecutor () {
+
+        this (DEFAULT_THREADS, DEFAULT_CAPACITY, DEFAULT_BULK_FRACTION);
+    }
+
+    /**
+     * Constructor.
+     *
+     * @param threads
+     *              Number of lanes, each one with a worker thread. The
+     *          threads are created when needed and end after some time
+     *          without work.
+     *
+     * @param capacity
+     *              Maximum number of handlers waiting, divided equally among
+     *          the lanes.
+     *
+     * @param bulkFraction
+     *              Fraction (between 0 and 1) of the capacity of a lane that
+     *          can be occupied before the bulk packets start being dropped.
+     */
+    public PacketExecutor (int threads, int capacity, float bulkFraction) {
+
+        AtomicInteger count = new AtomicInteger (0);
+        int classes = Priority.values().length;
+
+        this.lanes = new Lane [Math.max (1, threads)];
+        this.laneCapacity = Math.max (1, (capacity + lanes.length - 1)
+                                          / lanes.length);
+        this.bulkLimit = Math.round (laneCapacity
+                                     * Math.min (1, Math.max (0, bulkFraction)));
+        this.next = new AtomicInteger (0);
+        this.sequence = new AtomicLong (0);
+
+        this.accepted = new LongAdder [classes];
+        this.dropped = new LongAdder [classes];
+        this.handled = new LongAdder [classes];
+        this.totalWait = new LongAdder [classes];
+        this.maxWait = new AtomicLong [classes];
+
+        for (int i = 0; i < classes; i++) {
+
+            accepted [i] = new LongAdder();
+            dropped [i] = new LongAdder();
+            handled [i] = new LongAdder();
+            totalWait [i] = new LongAdder();
+            maxWait [i] = new AtomicLong (0);
+        }
+
+        for (int i = 0; i < lanes.length; i++) {
+
+            /* The queue isn't bounded by itself; the capacity is checked
+            before adding each handler */
+            ThreadPoolExecutor executor = new ThreadPoolExecutor (1, 1,
+                                                    60, TimeUnit.SECONDS,
+                                                    new PriorityBlockingQueue<> (),
+                                                    r -> {
+
+                Thread t = new Thread (r, "Packet handler "
+                                          + count.incrementAndGet());
+                t.setDaemon (true);
+
+                return t;
+            });
+
+            executor.allowCoreThreadTimeOut (true);
+            lanes [i] = new Lane (executor);
+        }
+    }
+
+    /**
+     * Queues the handler of a packet on any lane, or drops it if the lane is
+     * overloaded. The order in which the handlers are run isn't guaranteed.
+     *
+     * @param handler
+     *              The handler of the received packet.
+     *
+     * @param priority
+     *              Class of the packet.
+     *
+     *
+     * @return
+     *              <i>true</i> if the handler has been accepted; <i>false</i>
+     *          if it has been dropped.
+     */
+    public boolean execute (Runnable handler, Priority priority) {
+
+        return execute (handler,
+                        priority,
+                        lanes [Math.floorMod (next.getAndIncrement(),
+                                              lanes.length)],
+                        null);
+    }
+
+    /**
+     * Queues the handler of a packet on the lane of the given key, or drops it
+     * if the lane is overloaded. The handlers given with the same key are run
+     * one after the other, on the same order this method was called, even if
+     * their priorities are different.
+     *
+     * @param handler
+     *              The handler of the received packet.
+     *
+     * @param priority
+     *              Class of the packet.
+     *
+     * @param key
+     *              Key of the sender of the packet.
+     *
+     *
+     * @return
+     *              <i>true</i> if the handler has been accepted; <i>false</i>
+     *          if it has been dropped.
+     */
+    public boolean execute (Runnable handler, Priority priority, int key) {
+
+        return execute (handler, priority, lanes [lane (key)], key);
+    }
+
+    /**
+     * Queues the handler of a packet on the given lane, or drops it if the
+     * lane is overloaded.
+     *
+     * @param handler
+     *              The handler of the received packet.
+     *
+     * @param priority
+     *              Class of the packet.
+     *
+     * @param lane
+     *              The lane where the handler will be run.
+     *
+     * @param key
+     *              Key of the sender of the packet, or {@code null} if the
+     *          order doesn't matter.
+     *
+     *
+     * @return
+     *              <i>true</i> if the handler has been accepted; <i>false</i>
+     *          if it has been dropped.
+     */
+    private boolean execute (Runnable handler,
+                             Priority priority,
+                             Lane lane,
+                             Integer key) {
+
+        int limit = (priority == Priority.BULK)? bulkLimit : laneCapacity;
+        Task task;
+        ArrayDeque<Task> flow;
+
+        synchronized (lane) {
+
+            if (lane.waiting >= limit) {
+
+                dropped [priority.ordinal()].increment();
+                return false;
+            }
+
+            task = new Task (handler, priority, lane, key);
+            flow = (key == null)? null : lane.flows.get (key);
+
+            if (flow != null) {
+
+                /* There's an older handler of the same sender waiting or
+                running: this one waits behind it */
+                flow.add (task);
+
+            } else {
+
+                try {
+
+                    lane.executor.execute (task);
+
+                } catch (RejectedExecutionException ex) {
+
+                    dropped [priority.ordinal()].increment();
+                    return false;
+                }
+
+                if (key != null) {
+
+                    lane.flows.put (key, new ArrayDeque<> ());
+                }
+            }
+
+            lane.waiting++;
+        }
+
+        accepted [priority.ordinal()].increment();
+        return true;
+    }
+
+    /**
+     * Stops the executor. The handlers already queued are still run, but no
+     * more are accepted.
+     */
+    public void shutdown () {
+
+        for (Lane lane : lanes) {
+
+            lane.executor.shutdown();
+        }
+    }
+
+    /**
+     * Returns the index of the lane for the given key.
+     *
+     * @param key
+     *              Key of the sender of a packet.
+     *
+     *
+     * @return
+     *              The index of the lane on {@code lanes}.
+     */
+    public int lane (int key) {
+
+        /* Mixes the highest bits, so similar keys don't end on the same lane */
+        key ^= (key >>> 16);
+        key *= 0x45d9f3b;
+        key ^= (key >>> 16);
+
+        return Math.floorMod (key, lanes.length);
+    }
+
+/* ----------------------------- */
+/* ---- GETTERS AND SETTERS ---- */
+/* ----------------------------- */
+
+    /**
+     * Returns the number of handlers waiting for a worker, on all the lanes.
+     *
+     * @return
+     *              The current size of the queues.
+     */
+    public int getQueueDepth () {
+
+        int depth = 0;
+
+        for (Lane lane : lanes) {
+
+            depth += lane.waiting;
+        }
+
+        return depth;
+    }
+
+    /**
+     * Returns the number of handlers waiting on the given lane.
+     *
+     * @param lane
+     *              Index of the lane.
+     *
+     *
+     * @return
+     *              The current size of the queue of the lane.
+     */
+    public int getQueueDepth (int lane) {
+
+        return lanes [lane].waiting;
+    }
+
+    /**
+     * Returns the maximum number of handlers that can be waiting, on all the
+     * lanes.
+     *
+     * @return
+     *              The capacity of all the queues.
+     */
+    public int getCapacity () {
+
+        return laneCapacity * lanes.length;
+    }
+
+    /**
+     * Returns the number of lanes.
+     *
+     * @return
+     *              The length of {@code lanes}.
+     */
+    public int getLanes () {
+
+        return lanes.length;
+    }
+
+    /**
+     * Returns the number of handlers on the queue of a lane from which the
+     * bulk packets are dropped.
+     *
+     * @return
+     *              The value of {@code bulkLimit}.
+     */
+    public int getBulkLimit () {
+
+        return bulkLimit;
+    }
+
+    /**
+     * Returns the number of workers that are running a handler right now.
+     *
+     * @return
+     *              The approximate number of active workers.
+     */
+    public int getActiveWorkers () {
+
+        int active = 0;
+
+        for (Lane lane : lanes) {
+
+            active += lane.executor.getActiveCount();
+        }
+
+        return active;
+    }
+
+    /**
+     * Returns the number of worker threads that currently exist.
+     *
+     * @return
+     *              The current size of the pool.
+     */
+    public int getPoolSize () {
+
+        int size = 0;
+
+        for (Lane lane : lanes) {
+
+            size += lane.executor.getPoolSize();
+        }
+
+        return size;
+    }
+
+    /**
+     * Returns the maximum number of worker threads.
+     *
+     * @return
+     *              The maximum size of the pool.
+     */
+    public int getMaxWorkers () {
+
+        return lanes.length;
+    }
+
+    /**
+     * Returns the number of packets of the given class dropped so far.
+     *
+     * @param priority
+     *              Class of the packets.
+     *
+     *
+     * @return
+     *              The number of dropped packets.
+     */
+    public long getDropped (Priority priority) {
+
+        return dropped [priority.ordinal()].sum();
+    }
+
+    /**
+     * Returns the number of packets dropped so far.
+     *
+     * @return
+     *              The number of packets of all the classes dropped.
+     */
+    public long getRejected () {
+
+        long sum = 0;
+
+        for (LongAdder d : dropped) {
+
+            sum += d.sum();
+        }
+
+        return sum;
+    }
+
+    /**
+     * Returns the number of handlers of the given class accepted so far.
+     *
+     * @param priority
+     *              Class of the packets.
+     *
+     *
+     * @return
+     *              The number of accepted handlers.
+     */
+    public long getAccepted (Priority priority) {
+
+        return accepted [priority.ordinal()].sum();
+    }
+
+    /**
+     * Returns the number of handlers accepted so far.
+     *
+     * @return
+     *              The number of handlers of all the classes accepted.
+     */
+    public long getAccepted () {
+
+        long sum = 0;
+
+        for (LongAdder a : accepted) {
+
+            sum += a.sum();
+        }
+
+        return sum;
+    }
+
+    /**
+     * Returns the number of handlers of the given class that have been run.
+     *
+     * @param priority
+     *              Class of the packets.
+     *
+     *
+     * @return
+     *              The number of handlers run.
+     */
+    public long getHandled (Priority priority) {
+
+        return handled [priority.ordinal()].sum();
+    }
+
+    /**
+     * Returns the mean time that the handlers of the given class have waited
+     * on the queue before being run.
+     *
+     * @param priority
+     *              Class of the packets.
+     *
+     *
+     * @return
+     *              The mean waiting time, in microseconds, or <b>0</b> if no
+     *          handler has been run yet.
+     */
+    public double getMeanWait (Priority priority) {
+
+        long count = handled [priority.ordinal()].sum();
+
+        return (count == 0)?
+                    0
+                    : totalWait [priority.ordinal()].sum() / (count * 1000.0);
+    }
+
+    /**
+     * Returns the longest time that a handler of the given class has waited on
+     * the queue before being run.
+     *
+     * @param priority
+     *              Class of the packets.
+     *
+     *
+     * @return
+     *              The longest waiting time, in microseconds.
+     */
+    public double getMaxWait (Priority priority) {
+
+        return maxWait [priority.ordinal()].get() / 1000.0;
+    }
+
+    @Override
+    public String toString () {
+
+        StringBuilder str = new StringBuilder();
+
+        str.append ("Queue: ").append (getQueueDepth())
+           .append ("/").append (getCapacity())
+           .append ("\n\tWorkers: ").append (getActiveWorkers())
+           .append (" active, ").append (getPoolSize())
+           .append ("/").append (getMaxWorkers());
+
+        for (Priority p : Priority.values()) {
+
+            str.append ("\n\t").append (p)
+               .append (": accepted ").append (getAccepted (p))
+               .append (", dropped ").append (getDropped (p))
+               .append (", wait ")
+               .append (String.format ("%.1f", getMeanWait (p)))
+               .append (" us (max ")
+               .append (String.format ("%.1f", getMaxWait (p)))
+               .append (" us)");
+        }
+
+        return str.append ("\n").toString();
+    }
+
+/* --------------------------- */
+/* ---- AUXILIARY CLASSES ---- */
+/* --------------------------- */
+
+    /**
+     * A lane: a worker thread with its queue, and the handlers of every sender
+     * waiting behind the one on the queue.
+     */
+    private static final class Lane {
+
+        /**
+         * Single-threaded executor of the lane.
+         */
+        private final ThreadPoolExecutor executor;
+
+        /**
+         * Handlers waiting behind the oldest one of every sender, by the key
+         * of the sender. A key is only here while a handler of the sender is
+         * on the queue of the executor or running.
+         */
+        private final HashMap<Integer, ArrayDeque<Task>> flows;
+
+        /**
+         * Number of handlers waiting on the lane, either on the queue or on
+         * {@code flows}.
+         */
+        private volatile int waiting;
+
+        /**
+         * Constructor.
+         *
+         * @param executor
+         *              Single-threaded executor of the lane.
+         */
+        private Lane (ThreadPoolExecutor executor) {
+
+            this.executor = executor;
+            this.flows = new HashMap<> ();
+            this.waiting = 0;
+        }
+    }
+
+    /**
+     * A handler waiting on the queue of a lane, ordered by its priority and,
+     * then, by its order of arrival.
+     */
+    private final class Task implements Runnable, Comparable<Task> {
+
+        /**
+         * The handler of the packet.
+         */
+        private final Runnable handler;
+
+        /**
+         * Class of the packet.
+         */
+        private final Priority priority;
+
+        /**
+         * Order of arrival.
+         */
+        private final long order;
+
+        /**
+         * Value of {@link System#nanoTime()} when the handler was queued.
+         */
+        private final long queued;
+
+        /**
+         * Lane of the handler.
+         */
+        private final Lane lane;
+
+        /**
+         * Key of the sender, or {@code null}.
+         */
+        private final Integer key;
+
+        /**
+         * Constructor.
+         *
+         * @param handler
+         *              The handler of the packet.
+         *
+         * @param priority
+         *              Class of the packet.
+         *
+         * @param lane
+         *              Lane of the handler.
+         *
+         * @param key
+         *              Key of the sender, or {@code null}.
+         */
+        private Task (Runnable handler, Priority priority, Lane lane, Integer key) {
+
+            this.handler = handler;
+            this.priority = priority;
+            this.lane = lane;
+            this.key = key;
+            this.order = sequence.getAndIncrement();
+            this.queued = System.nanoTime();
+        }
+
+        /**
+         * Puts the next handler of the sender on the queue, updates the
+         * waiting time of the class and runs the handler.
+         */
+        @Override
+        public void run () {
+
+            long wait = System.nanoTime() - queued;
+            int i = priority.ordinal();
+            ArrayDeque<Task> flow;
+            Task following;
+
+            synchronized (lane) {
+
+                lane.waiting--;
+
+                if (key != null) {
+
+                    flow = lane.flows.get (key);
+                    following = flow.poll();
+
+                    if (following == null) {
+
+                        lane.flows.remove (key);
+
+                    } else {
+
+                        /* The lane has a single worker (this thread), so the
+                        next handler can't start until this one ends. It's
+                        added directly to the queue, so it's also run after
+                        a shutdown */
+                        lane.executor.getQueue().add (following);
+                    }
+                }
+            }
+
+            handled [i].increment();
+            totalWait [i].add (wait);
+            maxWait [i].accumulateAndGet (wait, Math::max);
+
+            handler.run();
+        }
+
+        @Override
+        public int compareTo (Task other) {
+
+            if (priority != other.priority) {
+
+                return priority.compareTo (other.priority);
+            }
+
+            return Long.compare (order, other.order);
+        }
+    }
+}
@@ -22,12 +22,18 @@ package peer;
 import static common.Common.logger;
 
 import common.Common;
+import packets.Capabilities;
+import packets.Compression;
 import packets.ControlMessage;
 import control.Notification;
 import packets.PacketCreator;
+import packets.PacketEncoder;
 import java.net.DatagramPacket;
 import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.concurrent.CompletableFuture;
 import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.atomic.AtomicInteger;
 
 /**
  * This class represents a node of the chat room.
@@ -51,6 +57,12 @@ public class Peer {
      */
     private final ConcurrentLinkedQueue<ClientHandler> clients;
     
+    /**
+     * Identifier of the next message sent on fragments. All the fragments of
+     * a message carry the same one, so the receiver can join them.
+     */
+    private final AtomicInteger messageIds = new AtomicInteger();
+    
     
 /* -------------------------------------- */
 /* ---- END OF ATTRIBUTE DECLARATION ---- */
@@ -64,8 +76,22 @@ public class Peer {
      */
     public Peer (int port) {
         
+        this(port, ServerThread.ReceiveEngine.BLOCKING);
+    }
+    
+    /**
+     * Constructor.
+     * 
+     * @param port
+     *              Port where the socket will be created.
+     * 
+     * @param engine 
+     *              Engine that the server will use to receive the datagrams.
+     */
+    public Peer (int port, ServerThread.ReceiveEngine engine) {
+        
         /* Creates the server thread and starts it */
-        server = new ServerThread(port, this);
+        server = new ServerThread(port, this, engine);
         server.start();
         
         if (server.getSocket() != null) {
@@ -89,8 +115,22 @@ public class Peer {
      */
     public Peer () {
         
+        this(ServerThread.ReceiveEngine.BLOCKING);
+    }
+    
+    /**
+     * Constructor.
+     * 
+     * <p>
+     * This method starts the peer on the first available port.
+     * 
+     * @param engine 
+     *              Engine that the server will use to receive the datagrams.
+     */
+    public Peer (ServerThread.ReceiveEngine engine) {
+        
         /* Creates the server thread and starts it */
-        server = new ServerThread(this);
+        server = new ServerThread(this, engine);
         server.start();
         
         if (server.getSocket() != null) {
@@ -204,6 +244,16 @@ public class Peer {
             return false;
         }
         
+        /* Announces the capabilities of this peer with a compact HELLO, if
+        they haven't been negotiated yet with that peer. The legacy peers
+        discard it and answer the usual one, sent after it */
+        if ((server.getCapabilities() != Capabilities.NONE) &&
+            (server.getCapabilities(host.getIPaddress(), host.getPort())
+                == Capabilities.NONE)) {
+            
+            server.sendHELLO(chatRoom, host);
+        }
+        
         /* Creates a HELLO packet and sends it to the destination host */
         packet = PacketCreator.HELLO(chatRoom, server.getPort());
         
@@ -215,6 +265,10 @@ public class Peer {
         if (notif.isReceived()) {
             
             hostsList.add(host);
+            
+            /* Finds the largest datagram that reaches the host, while the 
+            rest of the exchange goes on */
+            host.probeDatagramSize(this);
         }
         
         /* Removes the notification from the list */
@@ -241,6 +295,11 @@ public class Peer {
      * Ends the data exchange with the hosts in the given chat room and notifies
      * it to the hosts in that room before deleting them from the list.
      * 
+     * <p>
+     * This method blocks the calling thread until all the hosts have answered
+     * or all the tries have failed; 
+     * {@link #leaveChatRoomAsync(byte)} doesn't.
+     * 
      * @param chatID 
      *              Identifier of the data flow from that room.
      * 
@@ -250,33 +309,49 @@ public class Peer {
      */
     public boolean leaveChatRoom (byte chatID) {
         
-        boolean retVal = true;        
+        return leaveChatRoomAsync(chatID).join();
+    }
+    
+    /**
+     * Ends the data exchange with the hosts in the given chat room and notifies
+     * it to the hosts in that room, without blocking the calling thread. 
+     * Every host is deleted from the list when it answers or all the tries 
+     * have failed.
+     * 
+     * @param chatID 
+     *              Identifier of the data flow from that room.
+     * 
+     * 
+     * @return 
+     *              A future completed with <i>true</i> if all the known peers 
+     *          acknowledged the message.
+     */
+    public CompletableFuture<Boolean> leaveChatRoomAsync (byte chatID) {
+        
         /* Creates a list with all the host in that room */
         ArrayList<Host> hosts = hostsList.search(chatID);
+        CompletableFuture<Boolean> retVal = CompletableFuture.completedFuture(true);
         DatagramPacket packet;
-        Notification waitedResponse;
         
-        /* Sends a message to each host trying to end the conversation. If,
-        after 4 tries, the host didn't responded, it's removed from the list
-        anyways */
+        /* Sends a message to each host trying to end the conversation, all of
+        them at the same time */
         for (Host h : hosts) {
             
             /* Sets the parameters and sends the packet */
             packet = PacketCreator.BYE(chatID, server.getPort());
-            waitedResponse = new Notification(h.getIPaddress(),
-                                              h.getDataFlow(),
-                                              ControlMessage.ACK);
+            Notification waitedResponse = new Notification(h.getIPaddress(),
+                                                           h.getDataFlow(),
+                                                           ControlMessage.ACK);
             
-            /* If the answer didn't came back, sets the return value to false */
-            retVal = (h.send(packet, waitedResponse, this, 4))?
-                        retVal :
-                        false;
-            
-            /* Removes the notification from the list */
-            server.removeNotification(waitedResponse);
-            
-            /* Removes the host form the list */
-            hostsList.remove(h);
+            /* If, after 4 tries, the host didn't responded, it's removed from 
+            the list anyways */
+            retVal = h.sendAsync(packet, waitedResponse, this, 4)
+                        .whenComplete((r, ex) -> {
+                            
+                            server.removeNotification(waitedResponse);
+                            hostsList.remove(h);
+                        })
+                        .thenCombine(retVal, (answered, all) -> answered && all);
         }
         
         /* Searches for the client that was controlling that data flow and 
@@ -429,13 +504,23 @@ public class Peer {
         
         boolean retVal = true;
         StringBuilder msg = new StringBuilder();
+        ArrayList<Host> hosts = new ArrayList<>(hostsList.getHosts());
+        ArrayList<CompletableFuture<Boolean>> answers = new ArrayList<>();
         
-        for (Host h : hostsList.getHosts()) {
+        /* Checks all the hosts at the same time */
+        for (Host h : hosts) {
+            
+            answers.add(h.checkConnectionAsync(this));
+        }
+        
+        for (int i = 0; i < hosts.size(); i++) {
+            
+            Host h = hosts.get(i);
             
             msg.append("Checking connection with:\n ").
                     append(h.toString());
             
-            if (!h.checkConnection(this)) {
+            if (!answers.get(i).join()) {
                 
                 msg.append("\t-Failure.\n\n");
                 retVal = false;
@@ -630,6 +715,11 @@ public class Peer {
      * a list with all the hosts that didn't answered back with an {@code ACK}
      * {@link ControlMessage}.
      * 
+     * <p>
+     * This method blocks the calling thread until all the hosts have answered
+     * or all the tries have failed; {@link #sendMessageAsync(String, byte)} 
+     * doesn't.
+     * 
      * @param message 
      *              Message to be sent.
      * 
@@ -643,43 +733,203 @@ public class Peer {
      */
     public ArrayList<Host> sendMessage (String message, byte chatRoom) {
         
-        ArrayList<Host> failures = new ArrayList<>();
+        return sendMessageAsync(message, chatRoom).join();
+    }
+    
+    /**
+     * Sends the message to all the hosts on the given chat room at the same 
+     * time, without blocking the calling thread.
+     * 
+     * <p>
+     * The packets to every host are sent in order (each one after the answer 
+     * to the previous one), but the hosts don't wait for each other, so the 
+     * message takes about one round trip, no matter how many hosts are on 
+     * the room, and a slow host doesn't delay the rest.
+     * 
+     * @param message 
+     *              Message to be sent.
+     * 
+     * @param chatRoom
+     *              Chat room where the message will be sent.
+     * 
+     * 
+     * @return 
+     *              A future completed with a list of all the hosts that didn't
+     *          answer to the message.
+     */
+    public CompletableFuture<ArrayList<Host>> sendMessageAsync (String message,
+                                                                 byte chatRoom) {
+        
+        ArrayList<Host> hosts = hostsList.search(chatRoom);
+        ArrayList<CompletableFuture<Boolean>> answers = new ArrayList<>();
         ArrayList<DatagramPacket> packetList;
-        Notification expectedAnswer;
+        ArrayList<DatagramPacket> packets;
+        HashMap<Integer, ArrayList<DatagramPacket>> fragmentsBySize = new HashMap<>();
+        HashMap<Integer, ArrayList<DatagramPacket>> compressedBySize = new HashMap<>();
+        DatagramPacket single;
+        byte [] text = message.getBytes();
+        byte [] deflated = null;
+        boolean triedDeflate = false;
+        boolean fragmented;
+        int messageId = -1;
+        int size;
         
         
         packetList = PacketCreator.PLAIN(chatRoom,
-                                         message.getBytes(),
+                                         text,
                                          server.getPort());
         
         /* Sends the message to the rest of the peers on the current
         conversation (4 tries until giving up) */
-        for (Host h : hostsList.search(chatRoom)) {
-
-            for (DatagramPacket packet : packetList) {
+        for (Host h : hosts) {
+            
+            packets = packetList;
+            size = h.getDatagramSize();
+            fragmented = false;
+            
+            /* The text is compressed once, for all the peers that can inflate 
+            it, and only sent compressed if it gets shorter */
+            if (!triedDeflate && server.supports(h, Capabilities.DEFLATE)) {
                 
-                expectedAnswer = new Notification(h.getIPaddress(),
-                                                  h.getDataFlow(),
-                                                  ControlMessage.ACK);
-
-                /* If the sending fails, adds the host to the list */
-                if (!h.send(packet, expectedAnswer, this, 4)) {
-
-                    logger.logError("Error trying to send the message \"" + 
-                                    message + "\" to:" + 
-                                    "\n" + h.toString());
-                    if (!failures.contains(h)) {
+                deflated = Compression.compress(text);
+                triedDeflate = true;
+            }
+            
+            /* All the hosts receive the same message identifier, even if the
+            fragments have different sizes */
+            if ((messageId < 0) && server.isCompact(h)) {
+                
+                messageId = messageIds.getAndIncrement()
+                            & PacketEncoder.MAX_REQUEST_ID;
+            }
+            
+            if ((deflated != null) && server.supports(h, Capabilities.DEFLATE)) {
+                
+                /* The compressed text goes on a single packet, if it fits, or
+                on fragments */
+                if ((packets = compressedBySize.get(size)) == null) {
+                    
+                    single = PacketCreator.COMPRESSED(chatRoom, 
+                                                      ControlMessage.PLAIN,
+                                                      deflated,
+                                                      server.getPort(),
+                                                      size);
+                    
+                    if (single != null) {
+                        
+                        packets = new ArrayList<>();
+                        packets.add(single);
                         
-                        failures.add(h);
+                    } else {
+                        
+                        packets = PacketCreator.FRAGMENTS(chatRoom,
+                                                          deflated,
+                                                          server.getPort(),
+                                                          messageId,
+                                                          size,
+                                                          true);
                     }
+                    
+                    compressedBySize.put(size, packets);
                 }
+                
+                fragmented = (packets.size() > 1);
+                
+            } else if (server.isCompact(h)) {
+                
+                /* The peers that speak the compact framing may take larger 
+                datagrams, if the path to them has been probed */
+                if (size != Common.BUFF_SIZE) {
+
+                    packets = PacketCreator.PLAIN(chatRoom, 
+                                                  text, 
+                                                  server.getPort(),
+                                                  size);
+                }
+                
+                /* They also receive all the fragments at once, instead of 
+                one after the other */
+                if (packets.size() > 1) {
+                    
+                    if ((packets = fragmentsBySize.get(size)) == null) {
 
-                /* Removes the notification from the list */
-                server.removeNotification(expectedAnswer);
+                        packets = PacketCreator.FRAGMENTS(chatRoom,
+                                                          text,
+                                                          server.getPort(),
+                                                          messageId,
+                                                          size);
+                        fragmentsBySize.put(size, packets);
+                    }
+                    
+                    fragmented = true;
+                }
             }
+            
+            /* The fragments can arrive on any order, so they are all sent 
+            at once; the rest of the packets are sent one after the other */
+            answers.add((fragmented)?
+                            sendFragmentsAsync(h, packets)
+                          : h.sendAllAsync(packets, this, 4));
+        }
+        
+        return CompletableFuture.allOf(answers.toArray(new CompletableFuture<?> [0]))
+                .thenApply(done -> {
+                    
+                    ArrayList<Host> failures = new ArrayList<>();
+                    
+                    for (int i = 0; i < hosts.size(); i++) {
+                        
+                        /* If the sending failed, adds the host to the list */
+                        if (!answers.get(i).join()) {
+                            
+                            logger.logError("Error trying to send the message \"" + 
+                                            message + "\" to:" + 
+                                            "\n" + hosts.get(i).toString());
+                            failures.add(hosts.get(i));
+                        }
+                    }
+                    
+                    return failures;
+                });
+    }
+    
+    /**
+     * Sends all the fragments of a message to the given host, without waiting
+     * for the answer to one before sending the next one.
+     * 
+     * @param host
+     *              Host where the fragments will be sent.
+     * 
+     * @param fragments
+     *              Fragments of the message, created with 
+     *          {@link PacketCreator#FRAGMENTS(byte, byte[], int, int)}.
+     * 
+     * 
+     * @return 
+     *              A future completed with <i>true</i> if all the fragments 
+     *          have been acknowledged, or <i>false</i> otherwise.
+     */
+    private CompletableFuture<Boolean> sendFragmentsAsync (Host host, 
+                                                           ArrayList<DatagramPacket> fragments) {
+        
+        CompletableFuture<Boolean> retVal = CompletableFuture.completedFuture(true);
+        
+        for (DatagramPacket fragment : fragments) {
+            
+            /* Every fragment has its own request identifier, so every ACK 
+            answers only one of them */
+            Notification waitedResponse = new Notification(host.getIPaddress(),
+                                                           host.getDataFlow(),
+                                                           ControlMessage.ACK);
+            
+            /* Removes the notification from the list when it's done */
+            retVal = host.sendAsync(fragment, waitedResponse, this, 4)
+                        .whenComplete((r, ex) -> 
+                                server.removeNotification(waitedResponse))
+                        .thenCombine(retVal, (answered, all) -> answered && all);
         }
         
-        return failures;
+        return retVal;
     }
     
 /* ----------------------------- */
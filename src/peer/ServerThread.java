@@ -25,23 +25,37 @@ import static packets.ControlMessage.*;
 import static control.Notification.*;
 
 import common.Common;
+import packets.Capabilities;
+import packets.Compression;
 import packets.ControlMessage;
+import control.DuplicateFilter;
 import control.Notification;
+import control.NotificationTable;
+import control.Reassembler;
 import gui.files.FileShareGUI;
 import gui.main.FXMLPeerController;
-import packets.PacketChecker;
 import packets.PacketCreator;
+import packets.PacketEncoder;
+import packets.PacketTemplates;
+import packets.PacketView;
 import java.io.IOException;
 import java.net.DatagramPacket;
 import java.net.DatagramSocket;
 import java.net.InetAddress;
-import java.net.SocketException;
+import java.net.InetSocketAddress;
+import java.net.SocketAddress;
+import java.nio.ByteBuffer;
+import java.nio.channels.ClosedChannelException;
+import java.nio.channels.DatagramChannel;
+import java.nio.channels.SelectionKey;
+import java.nio.channels.Selector;
 import java.util.Arrays;
-import java.util.Date;
+import java.util.List;
 import java.util.ResourceBundle;
+import java.util.concurrent.ConcurrentHashMap;
 import java.util.concurrent.ConcurrentLinkedQueue;
-import java.util.concurrent.Executors;
-import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
 import javafx.application.Platform;
 
 /**
@@ -50,14 +64,48 @@ import javafx.application.Platform;
 public class ServerThread extends Thread {
 
     /**
-     * Server socket.
+     * Engines that can be used to receive the incoming datagrams.
+     */
+    public static enum ReceiveEngine {
+
+        /**
+         * A single thread blocked on {@code DatagramChannel.receive()}, one
+         * datagram per wakeup.
+         */
+        BLOCKING,
+
+        /**
+         * A non-blocking {@link DatagramChannel} registered on a
+         * {@link Selector}. Every wakeup drains all the datagrams that are
+         * ready, reusing the same receive buffer.
+         */
+        SELECTOR
+    }
+
+    /**
+     * Channel bound to the server port.
+     */
+    private DatagramChannel channel;
+
+    /**
+     * Server socket (the socket adaptor of {@code channel}).
      */
     private DatagramSocket socket;
 
     /**
-     * Thread of pools that will handle all the incoming packets.
+     * Engine used to receive the datagrams.
+     */
+    private final ReceiveEngine engine;
+
+    /**
+     * Selector used when {@code engine} is {@code ReceiveEngine.SELECTOR}.
      */
-    ThreadPoolExecutor pool = (ThreadPoolExecutor) Executors.newCachedThreadPool();
+    private volatile Selector selector;
+
+    /**
+     * Bounded pool of threads that will handle all the incoming packets.
+     */
+    private final PacketExecutor pool;
 
     /**
      * Peer that has created this server.
@@ -70,9 +118,104 @@ public class ServerThread extends Thread {
     private final int port;
 
     /**
-     * List of notifications.
+     * Table with the notifications waiting for an answer.
+     */
+    private final NotificationTable notifications;
+
+    /**
+     * Capabilities announced by this peer on the {@code HELLO} packets and
+     * their answers.
+     */
+    private volatile int capabilities;
+
+    /**
+     * Capabilities negotiated with every other peer, identified by its address
+     * and the port of its server. The peers that aren't on the table are
+     * treated as legacy peers.
+     */
+    private final ConcurrentHashMap<InetSocketAddress, Integer> negotiated;
+
+    /**
+     * Largest datagram that reaches every other peer, identified by its
+     * address and the port of its server, once the path to it has been
+     * probed. The rest of the peers take {@code Common.BUFF_SIZE}.
+     */
+    private final ConcurrentHashMap<InetSocketAddress, Integer> datagramSizes;
+
+    /**
+     * Identifier of the next request sent on the compact framing to every
+     * host. It's increased for every request, so the answers can be matched
+     * to the exact request they acknowledge.
+     *
+     * <p>
+     * Every host has its own counter, so the identifiers that it receives are
+     * consecutive and its {@link DuplicateFilter} window isn't moved by the
+     * requests sent to the other hosts.
+     */
+    private final ConcurrentHashMap<InetSocketAddress, AtomicInteger> requestIds;
+
+    /**
+     * Fragments of the {@code PLAIN} messages received on the compact
+     * framing, waiting for the rest of their message.
+     */
+    private final Reassembler reassembler;
+
+    /**
+     * Encoded forms of the control messages without arguments, copied into
+     * the buffer of every packet instead of being written again.
+     */
+    private final PacketTemplates templates;
+
+    /**
+     * Requests already received from every peer, so the retransmitted ones
+     * aren't shown or written twice.
+     */
+    private final DuplicateFilter duplicates;
+
+    /**
+     * Number of request identifiers remembered for every peer.
+     */
+    private static final int DUPLICATE_WINDOW = 4096;
+
+    /**
+     * Maximum number of messages being joined at once for every sender.
+     */
+    private static final int REASSEMBLY_MESSAGES = 8;
+
+    /**
+     * Maximum number of fragments of a message.
+     */
+    private static final int REASSEMBLY_FRAGMENTS = 64;
+
+    /**
+     * Time, in milliseconds, to receive all the fragments of a message.
+     */
+    private static final long REASSEMBLY_TIMEOUT = 10000;
+
+    /**
+     * Maximum length, in bytes, of an inflated message: the same as the
+     * longest message that can be sent without compression.
+     */
+    private static final int MAX_INFLATED_MESSAGE = REASSEMBLY_FRAGMENTS
+                                                    * Common.MAX_DATAGRAM_SIZE;
+
+    /**
+     * Joins the small packets sent to the same peer on a single datagram. Only
+     * the peers that negotiated the compact framing can unpack them.
+     */
+    private final Coalescer coalescer;
+
+    /**
+     * Time, in microseconds, that a packet for a compact peer can be held
+     * waiting for others to the same peer.
+     */
+    private static final long COALESCE_BUDGET = 200;
+
+    /**
+     * Maximum time, in nanoseconds, to wait for room on the socket buffer
+     * when a packet is sent.
      */
-    private final ConcurrentLinkedQueue<Notification> notifications;
+    private static final long SEND_TIMEOUT = TimeUnit.SECONDS.toNanos(1);
 
 /* -------------------------------------- */
 /* ---- END OF ATTRIBUTE DECLARATION ---- */
@@ -89,53 +232,116 @@ public class ServerThread extends Thread {
      */
     public ServerThread (int port, Peer peer) {
 
-        this.peer = peer;
-        this.port = port;
+        this(port, peer, ReceiveEngine.BLOCKING);
+    }
 
-        this.notifications = new ConcurrentLinkedQueue<>();
 
-        try {
-            /* Initialises the server thread */
-            socket = new DatagramSocket (port);
+    /**
+     * Constructor.
+     *
+     * <p>
+     * This method starts the server on the first available port.
+     *
+     * @param peer
+     *              Peer that has created this server.
+     */
+    public ServerThread (Peer peer) {
 
-        } catch (SocketException ex) {
+        this(0, peer, ReceiveEngine.BLOCKING);
+    }
 
-            logger.logError("Exception at ServerThread(): "
-                            + ex.getMessage() + "\n");
+    /**
+     * Constructor.
+     *
+     * <p>
+     * This method starts the server on the first available port.
+     *
+     * @param peer
+     *              Peer that has created this server.
+     *
+     * @param engine
+     *              Engine that will be used to receive the datagrams.
+     */
+    public ServerThread (Peer peer, ReceiveEngine engine) {
 
-            socket = null;
-        }
+        this(0, peer, engine);
     }
 
+    /**
+     * Constructor.
+     *
+     * @param port
+     *              Port where the server will be listening. If it's
+     *          <b>0</b>, the first available port is used.
+     *
+     * @param peer
+     *              Peer that has created this server.
+     *
+     * @param engine
+     *              Engine that will be used to receive the datagrams.
+     */
+    public ServerThread (int port, Peer peer, ReceiveEngine engine) {
+
+        this(port, peer, engine, new PacketExecutor());
+    }
 
     /**
      * Constructor.
      *
-     * <p>
-     * This method starts the server on the first available port.
+     * @param port
+     *              Port where the server will be listening. If it's
+     *          <b>0</b>, the first available port is used.
      *
      * @param peer
      *              Peer that has created this server.
+     *
+     * @param engine
+     *              Engine that will be used to receive the datagrams.
+     *
+     * @param pool
+     *              Executor that will run the handlers of the received
+     *          packets.
      */
-    public ServerThread (Peer peer) {
+    public ServerThread (int port,
+                         Peer peer,
+                         ReceiveEngine engine,
+                         PacketExecutor pool) {
 
         this.peer = peer;
-
-        this.notifications = new ConcurrentLinkedQueue<>();
+        this.engine = engine;
+        this.pool = pool;
+
+        this.notifications = new NotificationTable();
+        this.capabilities = Capabilities.SUPPORTED;
+        this.negotiated = new ConcurrentHashMap<>();
+        this.datagramSizes = new ConcurrentHashMap<>();
+        this.requestIds = new ConcurrentHashMap<>();
+        this.duplicates = new DuplicateFilter(DUPLICATE_WINDOW);
+        this.coalescer = new Coalescer(this::transmit,
+                                       COALESCE_BUDGET,
+                                       this::getDatagramSize);
+        this.reassembler = new Reassembler(REASSEMBLY_MESSAGES,
+                                           REASSEMBLY_FRAGMENTS,
+                                           REASSEMBLY_TIMEOUT);
+        this.templates = new PacketTemplates();
 
         try {
-            /* Initialises the server thread */
-            socket = new DatagramSocket ();
+            /* Initialises the server channel. Its socket adaptor is used by
+            the rest of the program */
+            channel = DatagramChannel.open();
+            channel.bind(new InetSocketAddress(port));
+            socket = channel.socket();
 
-        } catch (SocketException ex) {
+        } catch (IOException ex) {
 
             logger.logError("Exception at ServerThread(): "
                             + ex.getMessage() + "\n");
 
+            channel = null;
             socket = null;
         }
 
-        port = socket.getLocalPort();
+        this.port = (socket == null)? port : socket.getLocalPort();
     }
 
     /**
@@ -144,9 +350,6 @@ public class ServerThread extends Thread {
     @Override
     public void run () {
 
-        DatagramPacket received;
-        PacketHandler handler;
-
         /* If the socket hsn't been created correctly, dowsn't perform
         any action */
         if (socket == null) {
@@ -154,182 +357,1281 @@ public class ServerThread extends Thread {
             return;
         }
 
+        switch (engine) {
+
+            case SELECTOR:
+                runSelector();
+                break;
+
+            default:
+                runBlocking();
+        }
+    }
+
+    /**
+     * Receive loop of the {@code ReceiveEngine.BLOCKING} engine.
+     *
+     * <p>
+     * Every datagram is received on a buffer leased from
+     * {@code Common.largeBufferPool}, so the datagrams larger than
+     * {@code Common.BUFF_SIZE} aren't cut (see {@link #receive}).
+     */
+    private void runBlocking () {
+
+        ByteBuffer buffer = null;
+        SocketAddress source;
+        InetSocketAddress sourceAddr;
+
         /* Infinite loop to receive datagrams */
         while (true) {
 
-            /* Reserves memory for the packet to be received */
-            received = PacketCreator.voidPacket (Common.BUFF_SIZE);
+            if (buffer == null) {
+
+                buffer = Common.largeBufferPool.lease();
+            }
 
             try {
                 /* Waits until a message is available */
-                socket.receive(received);
+                source = channel.receive(buffer);
+
+                buffer.flip();
+                sourceAddr = (InetSocketAddress) source;
 
-                handler = new PacketHandler (received);
-                /* Adds a new task to the thread pool */
-                pool.execute(handler);
+                /* Adds a new task to the thread pool. If it takes the
+                buffer, another one is leased for the next datagram */
+                if (receive (buffer, sourceAddr.getAddress(), sourceAddr.getPort())) {
 
-                /* Cleans the notifications that were created more than
-                10 minutes ago */
-                cleanNotifications();
+                    buffer = null;
+                } else {
+
+                    buffer.clear();
+                }
 
-            } catch (SocketException ex) {
+            } catch (ClosedChannelException ex) {
 
                 /* Exception thrown when the socket is closed while this thread
-                is blocked at socket.receive() */
+                is blocked at channel.receive() */
                 logger.logWarning("Server closed.\n");
                 break;
 
-            }catch (IOException ex) {
+            } catch (IOException ex) {
+
+                if (socket.isClosed()) {
+
+                    logger.logWarning("Server closed.\n");
+                    break;
+                }
 
                 logger.logError("IOException at ServerThread.run(): "
                             + ex.getMessage() + "\n");
                 /* An error happened, so this message can't be shown */
-                //continue;
+                buffer.clear();
             }
-
-            /* Gets the message and prints it */
-//            System.out.println(java.util.Arrays.toString(received.getData()));
         }
+
+        Common.largeBufferPool.release(buffer);
     }
 
     /**
-     * Closes the socket and stops the server loop.
+     * Receive loop of the {@code ReceiveEngine.SELECTOR} engine.
      *
-     * @return
-     *              <i>true</i> if the socket has been correctly closed;
-     *          <i>false</i> otherwise.
+     * <p>
+     * Every time the selector wakes up, all the datagrams waiting on the
+     * channel are read and dispatched to the pool, so there's no syscall to
+     * block again per datagram. Every datagram is received on a buffer leased
+     * from {@code Common.largeBufferPool} (see {@link #receive}).
      */
-    public boolean close () {
+    private void runSelector () {
 
-        socket.close();
+        ByteBuffer [] buffer = {null};
 
-        return socket.isClosed();
+        try (Selector sel = Selector.open()) {
+
+            selector = sel;
+
+            channel.configureBlocking(false);
+            channel.register(sel, SelectionKey.OP_READ);
+
+            while (channel.isOpen()) {
+
+                sel.select();
+                sel.selectedKeys().clear();
+
+                drain(buffer);
+            }
+
+        } catch (ClosedChannelException ex) {
+
+            /* The channel has been closed while the selector was waiting */
+        } catch (IOException ex) {
+
+            logger.logError("IOException at ServerThread.runSelector(): "
+                            + ex.getMessage() + "\n");
+        }
+
+        Common.largeBufferPool.release(buffer [0]);
+        logger.logWarning("Server closed.\n");
     }
 
     /**
-     * Eliminates every notification that has been on the list for more than
-     * 10 minutes.
+     * Reads all the datagrams ready on the channel and adds a
+     * {@link PacketHandler} to the pool for each one of them.
+     *
+     * @param buffer
+     *              Array with the buffer where the next datagram will be
+     *          received, or {@code null} if a new one has to be leased. The
+     *          buffers taken by a handler are replaced, and the one left on
+     *          the array is kept for the next call.
+     *
+     * @return
+     *              The number of datagrams read.
      */
-    public void cleanNotifications () {
+    private int drain (ByteBuffer [] buffer) throws IOException {
+
+        SocketAddress source;
+        InetSocketAddress sourceAddr;
+        int count = 0;
+
+        while (true) {
+
+            if (buffer [0] == null) {
+
+                buffer [0] = Common.largeBufferPool.lease();
+            }
 
-        Date currentDate = new Date ();
-        /* 10 minutes = 600.000 milliseconds */
-        long eraseTime = 600000;
+            if ((source = channel.receive(buffer [0])) == null) {
 
-        for (Notification n : notifications) {
+                break;
+            }
+
+            buffer [0].flip();
+            sourceAddr = (InetSocketAddress) source;
+
+            if (receive (buffer [0], sourceAddr.getAddress(), sourceAddr.getPort())) {
 
-            if ((currentDate.getTime() - n.getCreationDate().getTime())
-                    > eraseTime) {
+                buffer [0] = null;
+            } else {
 
-                notifications.remove(n);
+                buffer [0].clear();
             }
+
+            count++;
         }
+
+        return count;
     }
 
     /**
-     * Adds a new notification to the list. If it wasn't already there, this
-     * method returns <i>true</i>.
+     * Hands the received datagram to the pool.
+     *
+     * <p>
+     * The datagrams that fit on {@code Common.BUFF_SIZE} bytes (almost all of
+     * them) are copied to a buffer of {@code Common.bufferPool}, so the large
+     * buffer can be used again to receive the next one; only the larger ones
+     * keep the buffer where they were received. If the datagram is a bundle of
+     * packets, every packet is copied to its own buffer and handed
+     * separately, on the same order.
+     *
+     * @param buffer
+     *              Buffer leased from {@code Common.largeBufferPool}, with the
+     *          datagram between its position and its limit.
+     *
+     * @param address
+     *              Address from where the datagram has been sent.
+     *
+     * @param port
+     *              Port from where the datagram has been sent.
      *
-     * @param notification
-     *              A notification with the message that must come back as a
-     *          response.
      *
      * @return
-     *              <i>true</i> if the element has been added; <i>false</i> if
-     *          it hasn't been added (if it was already on the list).
+     *              <i>true</i> if the buffer has been given to a handler (and
+     *          can't be used anymore); <i>false</i> if it can be used again.
      */
-    public boolean addNotification (Notification notification) {
+    private boolean receive (ByteBuffer buffer, InetAddress address, int port) {
+
+        PacketView datagram = new PacketView (buffer, address, port);
+        int index = 1;
+        int length;
+
+        if (!datagram.isBundle()) {
+
+            if (buffer.remaining() > Common.BUFF_SIZE) {
 
-        if (!notifications.contains(notification)) {
+                dispatch (new PacketHandler (buffer, address, port));
+                return true;
+            }
 
-            return (notifications.add(notification));
+            dispatch (new PacketHandler (copy (buffer), address, port));
+            return false;
         }
 
-        /* Cleans the notification list */
-        cleanNotifications();
+        while (index < datagram.getLength()) {
+
+            length = datagram.getVarint (index);
+
+            if ((length <= 0) ||
+                (length > Common.BUFF_SIZE) ||
+                (index + PacketEncoder.varintLength (length) + length
+                    > datagram.getLength())) {
+
+                logger.logWarning("Malformed bundle from "
+                                  + address + ":" + port + "\n");
+                break;
+            }
+
+            index += PacketEncoder.varintLength (length);
+
+            dispatch (new PacketHandler (copy (datagram.payload (index), length),
+                                         address,
+                                         port));
+
+            index += length;
+        }
 
         return false;
     }
 
-
     /**
-     * Removes the given notification from the list.
+     * Copies the given bytes to a buffer leased from {@code Common.bufferPool}.
      *
-     * @param notification
-     *              The notification to be removed (if it's on the list).
+     * @param data
+     *              Buffer with the bytes, between its position and its limit
+     *          (that mustn't be longer than {@code Common.BUFF_SIZE}). Its
+     *          position is moved to its limit.
+     *
+     *
+     * @return
+     *              The new buffer, with the bytes between its position and its
+     *          limit.
      */
-    public void removeNotification (Notification notification) {
+    private static ByteBuffer copy (ByteBuffer data) {
 
-        notifications.remove(notification);
+        ByteBuffer copy = Common.bufferPool.lease();
+
+        copy.put (data);
+        copy.flip();
+
+        return copy;
     }
 
     /**
-     * Searches the given {@link DatagramPacket} on the list of
-     * {@link Notification} and returns it if it was a message for which
-     * the client was waiting.
+     * Copies the first bytes of the given buffer to a buffer leased from
+     * {@code Common.bufferPool}.
      *
-     * @param packet
-     *              The packet that possibly contains a notification.
+     * @param data
+     *              Buffer with the bytes, from its position.
+     *
+     * @param length
+     *              Number of bytes to copy (not more than
+     *          {@code Common.BUFF_SIZE}).
      *
      *
      * @return
-     *              The notification that pointed to the given message, or
-     *          {@code null} if it hasn't been found.
+     *              The new buffer, with the bytes between its position and its
+     *          limit.
      */
-    public Notification searchNotification (DatagramPacket packet) {
+    private static ByteBuffer copy (ByteBuffer data, int length) {
 
-        /* Iterates through the list until finds a packet that matches the
-        searched one (or the list is over) */
-        for (Notification n : notifications) {
+        data.limit (data.position() + length);
 
-            if (n.checkPacket (packet)) {
+        return copy (data);
+    }
 
-                return n;
-            }
-        }
+    /**
+     * Gives back a buffer to the pool it was leased from, according to its
+     * size.
+     *
+     * @param buffer
+     *              A buffer leased from {@code Common.bufferPool} or from
+     *          {@code Common.largeBufferPool}.
+     */
+    private static void release (ByteBuffer buffer) {
 
-        return null;
+        if ((buffer != null) && (buffer.capacity() > Common.BUFF_SIZE)) {
+
+            Common.largeBufferPool.release(buffer);
+        } else {
+
+            Common.bufferPool.release(buffer);
+        }
     }
 
     /**
-     * Searches the given {@link DatagramPacket} on the list of
-     * {@link Notification} and returns it if it was a message for which
-     * the client was waiting.
-     *
-     * @param sourceAddr
-     *              The address from where the packet has been sent.
+     * Hands the given handler to the pool. If the pool is overloaded, the
+     * packet is dropped (the bulk data first) and counted.
      *
-     * @param dataFlow
-     *              The data flow of the packet.
+     * <p>
+     * The control messages and the text are handled before the bulk data that
+     * is waiting on the same lane, so they aren't delayed by a file transfer.
      *
+     * <p>
+     * All the packets from the same sender go to the same lane of the pool, so
+     * they are handled in the order they arrived (the {@code CONT} fragments
+     * and the {@code DATA} chunks of a file must be processed in order).
      *
-     * @return
-     *              The notification that pointed to the given message, or
-     *          {@code null} if it hasn't been found.
+     * @param handler
+     *              The handler of the received packet.
      */
-    public Notification searchNotification (InetAddress sourceAddr,
-                                            byte dataFlow) {
-
-        /* Searches a waiting notification (if exists) that matches the
-        source of this NACK and removes it */
-        for (Notification n : notifications) {
+    private void dispatch (PacketHandler handler) {
 
-            if (n.getSourceAddress().equals(sourceAddr) &&
-                n.getSourceDataFlow() == dataFlow) {
+        if (!pool.execute (handler, handler.priority(), handler.senderKey())) {
 
-                return n;
-            }
+            handler.discard();
         }
-
-        return null;
     }
 
-/* ----------------------------- */
-/* ---- GETTERS AND SETTERS ---- */
-/* ----------------------------- */
-
     /**
-     * Returns the current socket that's being used.
+     * Closes the socket and stops the server loop.
+     *
+     * @return
+     *              <i>true</i> if the socket has been correctly closed;
+     *          <i>false</i> otherwise.
+     */
+    public boolean close () {
+
+        Selector sel = selector;
+
+        /* The packets still held are sent before closing */
+        coalescer.flush();
+        socket.close();
+        pool.shutdown();
+
+        /* Wakes up the selector so the receive loop can end */
+        if (sel != null) {
+
+            sel.wakeup();
+        }
+
+        return socket.isClosed();
+    }
+
+    /**
+     * Sends a packet through the server channel to the address and port set
+     * on it.
+     *
+     * <p>
+     * All the outgoing traffic of the peer should be sent with this method, so
+     * the answers leave from the server port and no socket has to be created
+     * for each packet. It can be called by many threads at the same time.
+     *
+     * @param packet
+     *              The packet to be sent, with its destination already set.
+     *
+     *
+     * @return
+     *              <i>true</i> if the packet has been sent; <i>false</i>
+     *          otherwise.
+     */
+    public boolean send (DatagramPacket packet) {
+
+        return send (packet, -1);
+    }
+
+    /**
+     * Sends a packet through the server channel to the address and port set
+     * on it, with the identifier of the request (only if the destination has
+     * negotiated the compact framing).
+     *
+     * @param packet
+     *              The packet to be sent, with its destination already set.
+     *
+     * @param requestId
+     *              Identifier of the request (returned by
+     *          {@link #nextRequestId(Host)}), or <b>-1</b>.
+     *
+     *
+     * @return
+     *              <i>true</i> if the packet has been sent; <i>false</i>
+     *          otherwise.
+     */
+    public boolean send (DatagramPacket packet, int requestId) {
+
+        ByteBuffer buffer = Common.bufferPool.lease();
+
+        try {
+
+            return send (packet, buffer, requestId);
+
+        } finally {
+
+            Common.bufferPool.release(buffer);
+        }
+    }
+
+    /**
+     * Sends the given data through the server channel.
+     *
+     * <p>
+     * It can be called by many threads at the same time. The packets to the
+     * peers that negotiated the compact framing may be held for a short time
+     * and sent on the same datagram as the next ones to the same peer (see
+     * {@link Coalescer}).
+     *
+     * @param data
+     *              Buffer with the datagram to be sent, between its position
+     *          and its limit. Its position is moved to its limit.
+     *
+     * @param destination
+     *              Address and port where the datagram will be sent.
+     *
+     *
+     * @return
+     *              <i>true</i> if the datagram has been sent (or is waiting to
+     *          be sent with others); <i>false</i> otherwise.
+     */
+    public boolean send (ByteBuffer data, InetSocketAddress destination) {
+
+        if (isCompact (destination)) {
+
+            return coalescer.send (data, destination);
+        }
+
+        return transmit (data, destination);
+    }
+
+    /**
+     * Sends the given data through the server channel right away.
+     *
+     * <p>
+     * It can be called by many threads at the same time. The direct buffers
+     * are sent without any intermediate copy.
+     *
+     * @param data
+     *              Buffer with the datagram to be sent, between its position
+     *          and its limit. Its position is moved to its limit.
+     *
+     * @param destination
+     *              Address and port where the datagram will be sent.
+     *
+     *
+     * @return
+     *              <i>true</i> if the datagram has been sent; <i>false</i>
+     *          otherwise.
+     */
+    private boolean transmit (ByteBuffer data, InetSocketAddress destination) {
+
+        long deadline;
+
+        if (channel == null) {
+
+            return false;
+        }
+
+        deadline = System.nanoTime() + SEND_TIMEOUT;
+
+        try {
+            /* On non-blocking mode (used by the selector engine) the datagram
+            isn't sent if the socket buffer is full, so it's tried again until
+            there's room for it */
+            while (channel.send (data, destination) == 0) {
+
+                if (System.nanoTime() > deadline) {
+
+                    logger.logWarning("Timeout while sending a packet to "
+                                      + destination + "\n");
+                    return false;
+                }
+
+                Thread.yield();
+            }
+
+        } catch (IOException ex) {
+
+            logger.logError("Exception at ServerThread.send(): "
+                            + ex.getMessage() + "\n");
+            return false;
+        }
+
+        return true;
+    }
+
+    /**
+     * Copies the packet to the given buffer and sends it through the server
+     * channel to the address and port set on it.
+     *
+     * <p>
+     * If the destination has negotiated {@link Capabilities#COMPACT}, the
+     * packet is written on the compact framing.
+     *
+     * @param packet
+     *              The packet to be sent, with its destination already set.
+     *
+     * @param buffer
+     *              Direct buffer leased from {@code Common.bufferPool}, used
+     *          to send the data. Its previous content is lost.
+     *
+     * @param requestId
+     *              Identifier of the request, or <b>-1</b>. It's only sent on
+     *          the compact framing.
+     *
+     *
+     * @return
+     *              <i>true</i> if the packet has been sent; <i>false</i>
+     *          otherwise.
+     */
+    private boolean send (DatagramPacket packet,
+                          ByteBuffer buffer,
+                          int requestId) {
+
+        ByteBuffer data;
+        ByteBuffer large;
+        InetSocketAddress destination = new InetSocketAddress (packet.getAddress(),
+                                                               packet.getPort());
+        int length;
+
+        /* The packets larger than the buffers of the pool are written on a
+        large one */
+        if ((packet.getLength() > buffer.capacity()) &&
+            (packet.getLength() <= Common.MAX_DATAGRAM_SIZE)) {
+
+            large = Common.largeBufferPool.lease();
+
+            try {
+
+                return send (packet, large, requestId);
+
+            } finally {
+
+                Common.largeBufferPool.release(large);
+            }
+        }
+
+        if (packet.getLength() > buffer.capacity()) {
+
+            data = ByteBuffer.wrap (packet.getData(),
+                                    packet.getOffset(),
+                                    packet.getLength());
+
+        } else {
+
+            buffer.clear();
+
+            if (isCompact (destination) &&
+                ((length = compact (PacketView.of (packet),
+                                    buffer,
+                                    requestId)) > 0)) {
+
+                buffer.limit (length);
+            } else {
+
+                buffer.put (packet.getData(),
+                            packet.getOffset(),
+                            packet.getLength());
+                buffer.flip();
+            }
+
+            data = buffer;
+        }
+
+        return send (data, destination);
+    }
+
+    /**
+     * Writes the given packet on the compact framing. The messages without
+     * arguments are copied from their template (see {@link PacketTemplates}),
+     * instead of being encoded again.
+     *
+     * @param view
+     *              View over the packet, on the legacy framing.
+     *
+     * @param buffer
+     *              Buffer where the packet will be written, from its first
+     *          position.
+     *
+     * @param requestId
+     *              Identifier of the request, or <b>-1</b>.
+     *
+     *
+     * @return
+     *              The length of the compact packet, or <b>-1</b> if it
+     *          couldn't be written.
+     */
+    private int compact (PacketView view, ByteBuffer buffer, int requestId) {
+
+        ControlMessage message = view.message();
+
+        if ((message != null) &&
+            !view.isCompact() &&
+            PacketTemplates.isTemplate (message) &&
+            (view.argumentsLength() == 0)) {
+
+            return templates.stampCompact (buffer, 0, message, view.dataFlow(),
+                                           message.hasPort()?
+                                                view.replyPort()
+                                              : port,
+                                           requestId);
+        }
+
+        return PacketEncoder.compact (view, buffer, 0, requestId);
+    }
+
+    /**
+     * Sends a packet through the server channel to the given host.
+     *
+     * @param packet
+     *              The packet to be sent. Its destination address and port
+     *          are changed to the ones of the host.
+     *
+     * @param destination
+     *              The host where the packet will be sent.
+     *
+     *
+     * @return
+     *              <i>true</i> if the packet has been sent; <i>false</i>
+     *          otherwise.
+     */
+    public boolean send (DatagramPacket packet, Host destination) {
+
+        return send (packet, destination, -1);
+    }
+
+    /**
+     * Sends a packet through the server channel to the given host, with the
+     * identifier of the request (for example, a {@code NACK} that echoes it).
+     *
+     * @param packet
+     *              The packet to be sent. Its destination address and port
+     *          are changed to the ones of the host.
+     *
+     * @param destination
+     *              The host where the packet will be sent.
+     *
+     * @param requestId
+     *              Identifier of the request, or <b>-1</b>. It's only sent on
+     *          the compact framing.
+     *
+     *
+     * @return
+     *              <i>true</i> if the packet has been sent; <i>false</i>
+     *          otherwise.
+     */
+    public boolean send (DatagramPacket packet, Host destination, int requestId) {
+
+        packet.setAddress(destination.getIPaddress());
+        packet.setPort(destination.getPort());
+
+        if (!send (packet, requestId)) {
+
+            return false;
+        }
+
+        /* Updates the last connection date */
+        destination.updateLastConnection();
+
+        return true;
+    }
+
+    /**
+     * Sends all the given packets through the server channel, one after the
+     * other, to the address and port set on each one.
+     *
+     * @param packets
+     *              The packets to be sent, with their destination already set.
+     *
+     *
+     * @return
+     *              The number of packets that have been sent.
+     */
+    public int send (List<DatagramPacket> packets) {
+
+        ByteBuffer buffer = Common.bufferPool.lease();
+        int sent = 0;
+
+        try {
+            /* The same buffer is used for all of them */
+            for (DatagramPacket p : packets) {
+
+                if (send (p, buffer, -1)) {
+
+                    sent++;
+                }
+            }
+
+        } finally {
+
+            Common.bufferPool.release(buffer);
+        }
+
+        return sent;
+    }
+
+    /**
+     * Sends an {@code ACK} to the given host. The packet is written directly
+     * into a buffer of {@code Common.bufferPool}, so nothing is allocated to
+     * encode it.
+     *
+     * @param dataFlow
+     *              The flow of the packet.
+     *
+     * @param destination
+     *              The host where the packet will be sent. If it's sent, its
+     *          last connection date is updated.
+     *
+     *
+     * @return
+     *              <i>true</i> if the packet has been sent; <i>false</i>
+     *          otherwise.
+     */
+    public boolean sendACK (byte dataFlow, Host destination) {
+
+        return sendACK (dataFlow, destination, false, -1);
+    }
+
+    /**
+     * Sends an {@code ACK} to the given host, echoing the identifier of the
+     * acknowledged request.
+     *
+     * @param dataFlow
+     *              The flow of the packet.
+     *
+     * @param destination
+     *              The host where the packet will be sent. If it's sent, its
+     *          last connection date is updated.
+     *
+     * @param requestId
+     *              Identifier of the acknowledged request, or <b>-1</b> if it
+     *          hadn't got it.
+     *
+     *
+     * @return
+     *              <i>true</i> if the packet has been sent; <i>false</i>
+     *          otherwise.
+     */
+    public boolean sendACK (byte dataFlow, Host destination, int requestId) {
+
+        return sendACK (dataFlow, destination, false, requestId);
+    }
+
+    /**
+     * Sends an {@code ACK} to the given host, on the compact framing if the
+     * host has negotiated it.
+     *
+     * @param dataFlow
+     *              The flow of the packet.
+     *
+     * @param destination
+     *              The host where the packet will be sent. If it's sent, its
+     *          last connection date is updated.
+     *
+     * @param announce
+     *              If it's <i>true</i> (when answering a {@code HELLO}), the
+     *          capabilities of this peer are added to a compact {@code ACK}.
+     *
+     * @param requestId
+     *              Identifier of the acknowledged request, or <b>-1</b> if it
+     *          hadn't got it.
+     *
+     *
+     * @return
+     *              <i>true</i> if the packet has been sent; <i>false</i>
+     *          otherwise.
+     */
+    public boolean sendACK (byte dataFlow,
+                            Host destination,
+                            boolean announce,
+                            int requestId) {
+
+        ByteBuffer buffer = Common.bufferPool.lease();
+        InetSocketAddress address = new InetSocketAddress(destination.getIPaddress(),
+                                                          destination.getPort());
+
+        try {
+
+            if (isCompact (address) && announce) {
+
+                buffer.limit(PacketEncoder.compact(buffer, 0, ACK, dataFlow, port,
+                                                   capabilities, requestId));
+            } else if (isCompact (address)) {
+
+                buffer.limit(templates.stampCompact(buffer, 0, ACK, dataFlow,
+                                                    port, requestId));
+            } else {
+
+                buffer.limit(templates.stamp(buffer, 0, ACK, dataFlow, port));
+            }
+
+            if (!send (buffer, address)) {
+
+                return false;
+            }
+
+        } finally {
+
+            Common.bufferPool.release(buffer);
+        }
+
+        /* Updates the last connection date */
+        destination.updateLastConnection();
+
+        return true;
+    }
+
+    /**
+     * Sends a selective {@code ACK} of a windowed file transfer to the given
+     * host (see {@code PacketEncoder.FLAG_SACK}). The host must have
+     * negotiated {@link Capabilities#WINDOW}.
+     *
+     * @param dataFlow
+     *              The flow of the packet.
+     *
+     * @param destination
+     *              The host where the packet will be sent. If it's sent, its
+     *          last connection date is updated.
+     *
+     * @param requestId
+     *              Identifier of the acknowledged request, or <b>-1</b> if it
+     *          hadn't got it.
+     *
+     * @param sack
+     *              The first chunk not received yet, followed by the first
+     *          index and the end of every block received after it.
+     *
+     *
+     * @return
+     *              <i>true</i> if the packet has been sent; <i>false</i>
+     *          otherwise.
+     */
+    public boolean sendSACK (byte dataFlow,
+                             Host destination,
+                             int requestId,
+                             int [] sack) {
+
+        ByteBuffer buffer = Common.bufferPool.lease();
+        InetSocketAddress address = new InetSocketAddress(destination.getIPaddress(),
+                                                          destination.getPort());
+
+        try {
+
+            buffer.limit(PacketEncoder.sack(buffer, 0, dataFlow, port,
+                                            requestId, sack));
+
+            if (!send (buffer, address)) {
+
+                return false;
+            }
+
+        } finally {
+
+            Common.bufferPool.release(buffer);
+        }
+
+        /* Updates the last connection date */
+        destination.updateLastConnection();
+
+        return true;
+    }
+
+    /**
+     * Sends a {@code NACK} to the given host, on the compact framing if the
+     * host has negotiated it.
+     *
+     * @param dataFlow
+     *              The flow of the packet.
+     *
+     * @param destination
+     *              The host where the packet will be sent.
+     *
+     * @param requestId
+     *              Identifier of the rejected request, or <b>-1</b> if it
+     *          hadn't got it.
+     *
+     *
+     * @return
+     *              <i>true</i> if the packet has been sent; <i>false</i>
+     *          otherwise.
+     */
+    public boolean sendNACK (byte dataFlow, Host destination, int requestId) {
+
+        ByteBuffer buffer = Common.bufferPool.lease();
+        InetSocketAddress address = new InetSocketAddress(destination.getIPaddress(),
+                                                          destination.getPort());
+
+        try {
+
+            if (isCompact (address)) {
+
+                buffer.limit(templates.stampCompact(buffer, 0, NACK, dataFlow,
+                                                    port, requestId));
+            } else {
+
+                buffer.limit(templates.stamp(buffer, 0, NACK, dataFlow, port));
+            }
+
+            return send (buffer, address);
+
+        } finally {
+
+            Common.bufferPool.release(buffer);
+        }
+    }
+
+    /**
+     * Sends a compact {@code HELLO} with the capabilities of this peer to the
+     * given host, without waiting for the answer.
+     *
+     * <p>
+     * A peer that understands it answers with a compact {@code ACK} with its
+     * own capabilities, so both of them know the features that can be used.
+     * A legacy peer discards it, so the usual {@code HELLO} must still be sent
+     * after this one.
+     *
+     * @param dataFlow
+     *              The flow of the packet.
+     *
+     * @param destination
+     *              The host where the packet will be sent.
+     *
+     *
+     * @return
+     *              <i>true</i> if the packet has been sent; <i>false</i>
+     *          otherwise.
+     */
+    public boolean sendHELLO (byte dataFlow, Host destination) {
+
+        ByteBuffer buffer = Common.bufferPool.lease();
+
+        try {
+
+            buffer.limit(PacketEncoder.compact(buffer, 0, HELLO, dataFlow, port,
+                                               capabilities));
+
+            return send (buffer, new InetSocketAddress(destination.getIPaddress(),
+                                                       destination.getPort()));
+        } finally {
+
+            Common.bufferPool.release(buffer);
+        }
+    }
+
+    /**
+     * Returns the identifier for a new request to the given host. The answer
+     * to the request must echo it, so many requests to the same host can be
+     * waiting for their answers at the same time. The identifiers are taken
+     * from a counter of the host, so every host receives them in sequence.
+     *
+     * @param destination
+     *              The host where the request will be sent.
+     *
+     *
+     * @return
+     *              The identifier of the request, or <b>-1</b> if the host
+     *          hasn't negotiated the compact framing (so it won't echo it).
+     */
+    public int nextRequestId (Host destination) {
+
+        if (!isCompact (destination)) {
+
+            return -1;
+        }
+
+        return requestIds.computeIfAbsent (new InetSocketAddress (destination.getIPaddress(),
+                                                                  destination.getPort()),
+                                           k -> new AtomicInteger ())
+                         .getAndIncrement() & PacketEncoder.MAX_REQUEST_ID;
+    }
+
+    /**
+     * Checks if the packets to the given host can be sent on the compact
+     * framing.
+     *
+     * @param destination
+     *              The other peer.
+     *
+     *
+     * @return
+     *              <i>true</i> if both peers have the
+     *          {@link Capabilities#COMPACT} capability.
+     */
+    public boolean isCompact (Host destination) {
+
+        return isCompact (new InetSocketAddress (destination.getIPaddress(),
+                                                 destination.getPort()));
+    }
+
+    /**
+     * Checks if the given capability has been negotiated with a host.
+     *
+     * @param destination
+     *              The other peer.
+     *
+     * @param capability
+     *              The capability (for example, {@link Capabilities#DEFLATE}).
+     *
+     *
+     * @return
+     *              <i>true</i> if both peers have the capability.
+     */
+    public boolean supports (Host destination, int capability) {
+
+        return Capabilities.supports (getCapabilities (destination.getIPaddress(),
+                                                       destination.getPort()),
+                                      capability);
+    }
+
+    /**
+     * Stores the capabilities announced by another peer, keeping only the ones
+     * that this peer also supports.
+     *
+     * @param address
+     *              Address of the other peer.
+     *
+     * @param serverPort
+     *              Port where the server of the other peer is listening.
+     *
+     * @param announced
+     *              Capabilities announced by the other peer.
+     */
+    public void negotiate (InetAddress address, int serverPort, int announced) {
+
+        negotiated.put (new InetSocketAddress (address, serverPort),
+                        Capabilities.negotiate (capabilities, announced));
+
+        /* The other peer may have been started again, with a new counter for
+        its requests */
+        duplicates.reset (address, serverPort);
+    }
+
+    /**
+     * Returns the capabilities negotiated with another peer.
+     *
+     * @param address
+     *              Address of the other peer.
+     *
+     * @param serverPort
+     *              Port where the server of the other peer is listening.
+     *
+     *
+     * @return
+     *              The capabilities that can be used with that peer, or
+     *          {@code Capabilities.NONE} if they haven't been negotiated.
+     */
+    public int getCapabilities (InetAddress address, int serverPort) {
+
+        return negotiated.getOrDefault (new InetSocketAddress (address, serverPort),
+                                        Capabilities.NONE);
+    }
+
+    /**
+     * Stores the largest datagram that reaches another peer, so the packets
+     * joined to it (see {@link Coalescer}) don't get larger.
+     *
+     * @param address
+     *              Address of the other peer.
+     *
+     * @param serverPort
+     *              Port where the server of the other peer is listening.
+     *
+     * @param size
+     *              The largest datagram, in bytes.
+     */
+    public void setDatagramSize (InetAddress address, int serverPort, int size) {
+
+        datagramSizes.put (new InetSocketAddress (address, serverPort), size);
+    }
+
+    /**
+     * Returns the largest datagram that reaches another peer.
+     *
+     * @param destination
+     *              Address and port of the server of the other peer.
+     *
+     *
+     * @return
+     *              The size stored with
+     *          {@link #setDatagramSize(InetAddress, int, int)}, or
+     *          {@code Common.BUFF_SIZE} if the path hasn't been probed.
+     */
+    public int getDatagramSize (InetSocketAddress destination) {
+
+        return datagramSizes.getOrDefault (destination, Common.BUFF_SIZE);
+    }
+
+    /**
+     * Checks if the packets to the given destination can be sent on the
+     * compact framing.
+     *
+     * @param destination
+     *              Address and port of the server of the other peer.
+     *
+     *
+     * @return
+     *              <i>true</i> if both peers have the
+     *          {@link Capabilities#COMPACT} capability.
+     */
+    private boolean isCompact (InetSocketAddress destination) {
+
+        Integer negotiatedCapabilities = negotiated.get (destination);
+
+        return (negotiatedCapabilities != null) &&
+               Capabilities.supports (negotiatedCapabilities & capabilities,
+                                      Capabilities.COMPACT);
+    }
+
+    /**
+     * Eliminates every notification that has been on the list for more than
+     * its expiry time.
+     *
+     * <p>
+     * The expired notifications are removed on the background, so there's no
+     * need to call this method on every received packet.
+     */
+    public void cleanNotifications () {
+
+        notifications.removeExpired();
+    }
+
+    /**
+     * Adds a new notification to the list. If it wasn't already there, this
+     * method returns <i>true</i>.
+     *
+     * @param notification
+     *              A notification with the message that must come back as a
+     *          response.
+     *
+     * @return
+     *              <i>true</i> if the element has been added; <i>false</i> if
+     *          it hasn't been added (if it was already on the list).
+     */
+    public boolean addNotification (Notification notification) {
+
+        return notifications.add(notification);
+    }
+
+
+    /**
+     * Removes the given notification from the list.
+     *
+     * @param notification
+     *              The notification to be removed (if it's on the list).
+     */
+    public void removeNotification (Notification notification) {
+
+        notifications.remove(notification);
+    }
+
+    /**
+     * Searches the given {@link DatagramPacket} on the list of
+     * {@link Notification} and returns it if it was a message for which
+     * the client was waiting.
+     *
+     * @param packet
+     *              The packet that possibly contains a notification.
+     *
+     *
+     * @return
+     *              The notification that pointed to the given message, or
+     *          {@code null} if it hasn't been found.
+     */
+    public Notification searchNotification (DatagramPacket packet) {
+
+        PacketView view = PacketView.of (packet);
+
+        return searchNotification (view, view.message());
+    }
+
+    /**
+     * Searches the given {@link DatagramPacket}, whose type has already been
+     * determined, on the list of {@link Notification} and returns it if it was
+     * a message for which the client was waiting.
+     *
+     * @param packet
+     *              The packet that possibly contains a notification.
+     *
+     * @param type
+     *              The {@link ControlMessage} stored on the packet.
+     *
+     *
+     * @return
+     *              The notification that pointed to the given message, or
+     *          {@code null} if it hasn't been found.
+     */
+    public Notification searchNotification (DatagramPacket packet,
+                                            ControlMessage type) {
+
+        /* Looks up the fields of the packet on the table */
+        return notifications.search (packet, type);
+    }
+
+    /**
+     * Searches the packet on the given view, whose type has already been
+     * determined, on the list of {@link Notification} and returns it if it was
+     * a message for which the client was waiting.
+     *
+     * @param view
+     *              View over the packet that possibly contains a notification.
+     *
+     * @param type
+     *              The {@link ControlMessage} stored on the packet.
+     *
+     *
+     * @return
+     *              The notification that pointed to the given message, or
+     *          {@code null} if it hasn't been found.
+     */
+    public Notification searchNotification (PacketView view,
+                                            ControlMessage type) {
+
+        /* Looks up the fields of the packet on the table */
+        return notifications.search (view, type);
+    }
+
+    /**
+     * Searches the given {@link DatagramPacket} on the list of
+     * {@link Notification} and returns it if it was a message for which
+     * the client was waiting.
+     *
+     * @param sourceAddr
+     *              The address from where the packet has been sent.
+     *
+     * @param dataFlow
+     *              The data flow of the packet.
+     *
+     *
+     * @return
+     *              The notification that pointed to the given message, or
+     *          {@code null} if it hasn't been found.
+     */
+    public Notification searchNotification (InetAddress sourceAddr,
+                                            byte dataFlow) {
+
+        return searchNotification (sourceAddr, dataFlow, -1);
+    }
+
+    /**
+     * Searches a notification waiting for an answer from the given address
+     * and data flow, preferring the one sent with the given request
+     * identifier.
+     *
+     * @param sourceAddr
+     *              The address from where the packet has been sent.
+     *
+     * @param dataFlow
+     *              The data flow of the packet.
+     *
+     * @param requestId
+     *              Identifier of the request echoed on the packet, or
+     *          <b>-1</b>.
+     *
+     *
+     * @return
+     *              The notification that pointed to the given message, or
+     *          {@code null} if it hasn't been found.
+     */
+    public Notification searchNotification (InetAddress sourceAddr,
+                                            byte dataFlow,
+                                            int requestId) {
+
+        /* Searches a waiting notification (if exists) that matches the
+        source of this NACK */
+        return notifications.search (sourceAddr, dataFlow, requestId);
+    }
+
+/* ----------------------------- */
+/* ---- GETTERS AND SETTERS ---- */
+/* ----------------------------- */
+
+    /**
+     * Returns the current socket that's being used.
      *
      * @return
      *              The value of {@code server}, an instance of
@@ -341,14 +1643,73 @@ public class ServerThread extends Thread {
     }
 
     /**
-     * Returns the port on which the server is listening.
+     * Returns the port on which the server is listening.
+     *
+     * @return
+     *              The value of {@code port}.
+     */
+    public int getPort () {
+
+        return port;
+    }
+
+    /**
+     * Returns the executor that runs the handlers of the received packets. It
+     * can be used to know its load and the number of dropped packets.
+     *
+     * @return
+     *              The value of {@code pool}.
+     */
+    public PacketExecutor getExecutor () {
+
+        return pool;
+    }
+
+    /**
+     * Returns the engine used to receive the datagrams.
+     *
+     * @return
+     *              The value of {@code engine}.
+     */
+    public ReceiveEngine getEngine () {
+
+        return engine;
+    }
+
+    /**
+     * Returns the capabilities announced by this peer.
+     *
+     * @return
+     *              The value of {@code capabilities}.
+     */
+    public int getCapabilities () {
+
+        return capabilities;
+    }
+
+    /**
+     * Changes the capabilities announced by this peer. Setting
+     * {@code Capabilities.NONE} makes the peer behave as a legacy one (it
+     * doesn't send compact packets, although it still understands them).
+     *
+     * @param capabilities
+     *              The new value for {@code capabilities}.
+     */
+    public void setCapabilities (int capabilities) {
+
+        this.capabilities = capabilities;
+    }
+
+    /**
+     * Returns the coalescer that joins the packets sent to the compact peers,
+     * to change its budget or read its counters.
      *
      * @return
-     *              The value of {@code port}.
+     *              The value of {@code coalescer}
      */
-    public int getPort () {
+    public Coalescer getCoalescer () {
 
-        return port;
+        return coalescer;
     }
 
 /* --------------------- */
@@ -362,20 +1723,28 @@ public class ServerThread extends Thread {
     private final class PacketHandler implements Runnable {
 
         /**
-         * Packet that this object will have to process.
+         * Leased buffer with the received datagram, between its position and
+         * its limit. It's given back to the pool when the handler ends.
          */
-        private final DatagramPacket packet;
+        private final ByteBuffer data;
 
         /**
-         * Buffer with the received message.
+         * View over {@code data}, used by the handlers to read the fields of
+         * the packet without copying them.
          */
-        private final byte [] buffer;
+        private final PacketView view;
 
         /**
          * Data flow marked by the packet header.
          */
         private final byte dataFlow;
 
+        /**
+         * Class of the packet, determined by its header as soon as it's
+         * received.
+         */
+        private final PacketExecutor.Priority priority;
+
     /* -------------------------------------- */
     /* ---- END OF ATTRIBUTE DECLARATION ---- */
     /* -------------------------------------- */
@@ -383,25 +1752,110 @@ public class ServerThread extends Thread {
         /**
          * Constructor.
          *
-         * @param packet
-         *              Packet that will be processed and answered from this
-         *          handler.
+         * <p>
+         * The handler takes the ownership of the buffer, that mustn't be used
+         * after calling this constructor. It's released to its pool when the
+         * handler has been run, or by {@link #discard()} if it's never run.
+         *
+         * @param data
+         *              Buffer leased from {@code Common.bufferPool} (or from
+         *          {@code Common.largeBufferPool}, if the datagram doesn't fit
+         *          on the small ones) with the received datagram, between its
+         *          position and its limit.
+         *
+         * @param address
+         *              Address from where the datagram has been sent.
+         *
+         * @param sourcePort
+         *              Port from where the datagram has been sent.
+         */
+        protected PacketHandler (ByteBuffer data,
+                                 InetAddress address,
+                                 int sourcePort) {
+
+            this.data = data;
+            this.view = new PacketView (data, address, sourcePort);
+            this.dataFlow = view.dataFlow();
+            this.priority = classify (view);
+        }
+
+        /**
+         * Gives back the buffer of a handler that won't be run (if the packet
+         * has been dropped).
+         */
+        protected void discard () {
+
+            release (data);
+        }
+
+        /**
+         * Returns a key that identifies the sender of the packet by its
+         * address, port and data flow.
+         *
+         * @return
+         *              The hash of the sender of the packet.
+         */
+        protected int senderKey () {
+
+            int key = view.getAddress().hashCode();
+
+            key = 31 * key + view.getPort();
+            key = 31 * key + dataFlow;
+
+            return key;
+        }
+
+        /**
+         * Returns the class of the packet, used to decide which packets are
+         * handled first.
+         *
+         * @return
+         *              {@code Priority.BULK} for the {@code DATA} packets;
+         *          {@code Priority.TEXT} for {@code PLAIN} and {@code CONT};
+         *          and {@code Priority.CONTROL} for the rest.
+         */
+        protected PacketExecutor.Priority priority () {
+
+            return priority;
+        }
+
+        /**
+         * Determines the class of a packet by looking only at its header, so
+         * it doesn't need to be fully checked.
+         *
+         * @param view
+         *              View over the received datagram.
+         *
+         *
+         * @return
+         *              {@code Priority.BULK} for the {@code DATA} packets;
+         *          {@code Priority.TEXT} for {@code PLAIN} and {@code CONT};
+         *          and {@code Priority.CONTROL} for the rest.
          */
-        protected PacketHandler (DatagramPacket packet) {
+        private PacketExecutor.Priority classify (PacketView view) {
 
-            this.packet = packet;
+            /* The compact packets have the opcode, so they're fully checked */
+            if (view.isCompact()) {
 
-            /* Innitialices the buffer with the message */
-            buffer = new byte [packet.getLength()];
-            byte [] packetData = packet.getData();
+                return (view.message() == DATA)?
+                            PacketExecutor.Priority.BULK :
+                        ((view.message() == PLAIN) || (view.message() == CONT))?
+                            PacketExecutor.Priority.TEXT :
+                            PacketExecutor.Priority.CONTROL;
+            }
+
+            if ((view.group() == DATA.getCode()) && view.matches(2, "DATA")) {
+
+                return PacketExecutor.Priority.BULK;
+            }
 
-            /* Gets rid of the unused bytes */
-            System.arraycopy(packetData, 0, buffer, 0, packet.getLength());
+            if (((view.group() == PLAIN.getCode()) && view.matches(2, "PLAI")) ||
+                ((view.group() == CONT.getCode()) && view.matches(2, "CONT"))) {
 
-            this.dataFlow = buffer [1];
-//
-//            System.out.println("Text: " + new String (buffer) +
-//                                "\nBytes: " + java.util.Arrays.toString(buffer) + "\n");
+                return PacketExecutor.Priority.TEXT;
+            }
+
+            return PacketExecutor.Priority.CONTROL;
         }
 
         /**
@@ -413,79 +1867,95 @@ public class ServerThread extends Thread {
 
             ControlMessage message;
 
-            message = PacketChecker.checkPacket(buffer);
+            /* The handlers read the packet from the leased buffer, so it's
+            given back once they have finished */
+            try {
 
-            if (message == null) {
+                message = view.message();
 
-                logger.logWarning("Unknown message received."
-                            + "\n\tFrom " + packet.getAddress()
-                            + "\n\tText:" + new String(buffer)
-                            + "\n\tBytes: " + Arrays.toString(buffer)
-                            + "\n");
-                return;
-            }
+                if (message == null) {
 
-            /* Determines the nature of the packet, looking at the header */
-            switch (message) {
+                    logger.logWarning("Unknown message received."
+                                + "\n\tFrom " + view.getAddress()
+                                + view
+                                + "\n");
+                    return;
+                }
 
-                case ACK:
-                    handleACK ();
-                    break;
+                /* Stores the capabilities announced by the sender (on a
+                HELLO or its answer) */
+                if (view.capabilities() >= 0) {
 
-                case BYE:
-                    handleBYE ();
-                    break;
+                    negotiate (view.getAddress(),
+                               view.replyPort(),
+                               view.capabilities());
+                }
 
-                case CHECK_CON:
-                    handleCHECK_CON ();
-                    break;
+                /* Determines the nature of the packet, looking at the header */
+                switch (message) {
 
-                case CONT:
-                    handleCONT ();
-                    break;
+                    case ACK:
+                        handleACK ();
+                        break;
 
-                case CHNG_DF_REQ:
-                    handleCHNG_DF_REQ ();
-                    break;
+                    case BYE:
+                        handleBYE ();
+                        break;
 
-                case CHNG_DF_RESP:
-                    handleCHNG_DF_RESP ();
-                    break;
+                    case CHECK_CON:
+                        handleCHECK_CON ();
+                        break;
 
-                case HELLO:
-                    handleHELLO ();
-                    break;
+                    case CONT:
+                        handleCONT ();
+                        break;
 
-                case HOSTS_REQ:
-                    handleHOSTS_REQ ();
-                    break;
+                    case CHNG_DF_REQ:
+                        handleCHNG_DF_REQ ();
+                        break;
 
-                case HOSTS_RESP:
-                    handleHOSTS_RESP ();
-                    break;
+                    case CHNG_DF_RESP:
+                        handleCHNG_DF_RESP ();
+                        break;
 
-                case NACK:
-                    handleNACK ();
-                    break;
+                    case HELLO:
+                        handleHELLO ();
+                        break;
 
-                case PLAIN:
-                    handlePLAIN ();
-                    break;
+                    case HOSTS_REQ:
+                        handleHOSTS_REQ ();
+                        break;
 
-                case DATA:
-                    handleDATA ();
-                    break;
+                    case HOSTS_RESP:
+                        handleHOSTS_RESP ();
+                        break;
 
-                case INFO:
-                    handleINFO ();
-                    break;
+                    case NACK:
+                        handleNACK ();
+                        break;
 
-                default:
-                    logger.logWarning("Unsupported message received."
-                            + "\n\tFrom " + packet.getAddress()
-                            + "\n\tText:" + new String(buffer)
-                            + "\n\tBytes: " + Arrays.toString(buffer)
-                            + "\n");
+                    case PLAIN:
+                        handlePLAIN ();
+                        break;
+
+                    case DATA:
+                        handleDATA ();
+                        break;
+
+                    case INFO:
+                        handleINFO ();
+                        break;
+
+                    default:
+                        logger.logWarning("Unsupported message received."
+                                + "\n\tFrom " + view.getAddress()
+                                + view
+                                + "\n");
+                }
+
+            } finally {
+
+                release (data);
             }
         }
 
@@ -501,18 +1971,34 @@ public class ServerThread extends Thread {
             Notification notif;
             byte newDF;
 
-            byte [] aux = new byte [4];
-            System.arraycopy(buffer, ACK.getLength(),
-                             aux, 0, aux.length);
-            int portAux = Common.arrayToInt(aux);
+            int portAux = view.replyPort();
 
             Host sender = peer.getHostsList().search(dataFlow,
-                                                     packet.getAddress(),
+                                                     view.getAddress(),
                                                      portAux);
 
+            int [] sack = view.sack();
+
+            /* The selective ACKs of the chunks of a windowed transfer go
+            straight to its window (only the answer to the INFO, that accepts
+            the transfer, has a request identifier) */
+            if ((sack != null) && (view.requestId() < 0)) {
+
+                if ((sender == null) || !fileObserver.notifyAck (sender, sack)) {
+
+                    logger.logWarning("Unexpected selective ACK:"
+                                + "\nFrom " + view.getAddress().toString()
+                                + ":" + view.getPort()
+                                + view
+                                + "\n");
+                }
+
+                return;
+            }
+
             /* Checks if it was one of the messages that the client was waiting
             for */
-            if ((notif = searchNotification (packet)) != null) {
+            if ((notif = searchNotification (view, ACK)) != null) {
 
                 /* If it was an answer for a DF_CHG_RESP, changes the data
                 flow of the sender, as the proposal has been accepted */
@@ -533,22 +2019,23 @@ public class ServerThread extends Thread {
                 if ((sender != null) && 
                     (fileObserver.containsHost (sender))) {
                     
-                    fileObserver.notifyAnswer(sender, true);
+                    fileObserver.notifyAnswer(sender, true, (sack != null));
                 }
 
                 /* The notification was on the list -> removes it (the
                 attribute "received" has already been set to "true" on
-                Notification.checkPacket(), called inside
+                NotificationTable.search(), called inside
                 searchNotification()) */
                 notifications.remove(notif);
-            } else {
+            } else if (view.capabilities() < 0) {
 
-                /* Unknown message, maybe a duplicate of another one */
+                /* Unknown message, maybe a duplicate of another one (the
+                answers to the compact HELLO and to the legacy one that is
+                sent after it are expected, so they aren't reported) */
                 logger.logWarning("Unexpected ACK message. Possible duplicate:"
-                            + "\nFrom " + packet.getAddress().toString()
-                            + ":" + packet.getPort()
-                            + "\n\tText:" + new String(buffer)
-                            + "\n\tBytes: " + Arrays.toString(buffer)
+                            + "\nFrom " + view.getAddress().toString()
+                            + ":" + view.getPort()
+                            + view
                             + "\n");
             }
         }
@@ -561,15 +2048,17 @@ public class ServerThread extends Thread {
          */
         private void handleNACK () {
 
-            InetAddress sourceAddr = packet.getAddress();
+            InetAddress sourceAddr = view.getAddress();
             Notification notif;
             
             Host sender = peer.getHostsList().search(dataFlow,
-                                                     packet.getAddress());
+                                                     view.getAddress());
 
             /* Searches a waiting notification (if exists) that matches the
             source of this NACK and removes it */
-            if ((notif = searchNotification(sourceAddr, dataFlow)) != null) {
+            if ((notif = searchNotification(sourceAddr,
+                                            dataFlow,
+                                            view.requestId())) != null) {
 
                 /**
                  * If the ACK was an answer for a data transfer request,
@@ -585,9 +2074,8 @@ public class ServerThread extends Thread {
             } else {
                 /* Prints the error message */
                 logger.logWarning("Unexpected NACK message received:"
-                            + "\nFrom " + packet.getAddress() + ":"
-                            + "\n\tText:" + new String(buffer)
-                            + "\n\tBytes: " + Arrays.toString(buffer)
+                            + "\nFrom " + view.getAddress() + ":"
+                            + view
                             + "\n");
             }
         }
@@ -605,29 +2093,25 @@ public class ServerThread extends Thread {
             DatagramPacket response;
             Host sender;
 
-            byte [] aux = new byte [4];
-            System.arraycopy(buffer, HOSTS_REQ.getLength(),
-                             aux, 0, aux.length);
-            int portAux = Common.arrayToInt(aux);
+            int portAux = view.replyPort();
 
             /* Searches the sender host on the list */
             if (
                 (sender = peer.getHostsList().search(dataFlow,
-                                                     packet.getAddress(),
+                                                     view.getAddress(),
                                                      portAux)
                 ) != null) {
 
                 /* Creates a HOSTS_RESP packet and sends it back */
                 response = peer.getHostsList().genHOSTS_RESP(dataFlow);
-                sender.send(response);
+                send (response, sender);
 
             } else {
 
                  logger.logWarning("HOSTS_REQ message received from an "
                             + "unknown sender:"
-                            + "\nFrom " + packet.getAddress() + ":"
-                            + "\n\tText:" + new String(buffer)
-                            + "\n\tBytes: " + Arrays.toString(buffer)
+                            + "\nFrom " + view.getAddress() + ":"
+                            + view
                             + "\n");
             }
         }
@@ -646,23 +2130,23 @@ public class ServerThread extends Thread {
             ConcurrentLinkedQueue<Host> addedHosts;
             /* Gets the argument on the HOSTS_RESP message (the bytes
             representation of the hosts) */
-            int args = HOSTS_RESP.getLength();
-            byte [] info = new byte [buffer.length - args];
-
-            System.arraycopy(buffer, args, info, 0, info.length);
+            int args = view.arguments();
 
             /* Checks if it was one of the messages that the client was waiting
             for */
-            if ((notif = searchNotification(packet)) != null) {
+            if ((notif = searchNotification(view, HOSTS_RESP)) != null) {
 
                 /* The notification was on the list -> removes it (the
                 attribute "received" has already been set to "true" on
-                Notification.checkPacket(), called inside
+                NotificationTable.search(), called inside
                 searchNotification()) */
                 notifications.remove(notif);
 
                 /* Extracts and adds the information on the list */
-                if ((addedHosts = peer.getHostsList().readPacket(info)) != null) {
+                if ((addedHosts = peer.getHostsList()
+                                        .readPacket(view.toArray(args,
+                                                                 view.getLength() - args))
+                    ) != null) {
 
                     if (!addedHosts.isEmpty()) {
 
@@ -678,9 +2162,8 @@ public class ServerThread extends Thread {
 
                     /* Malformed packet */
                     logger.logWarning("Malformed HOSTS_RESP packet. "
-                                + "\nFrom " + packet.getAddress() + ":"
-                                + "\n\tText:" + new String(buffer)
-                                + "\n\tBytes: " + Arrays.toString(buffer)
+                                + "\nFrom " + view.getAddress() + ":"
+                                + view
                                 + "\n");
                 }
 
@@ -689,9 +2172,8 @@ public class ServerThread extends Thread {
                 /* Unknown message, maybe a duplicate of another one */
                 logger.logWarning("Unexpected HOSTS_RESP message. "
                             + "Possible duplicate:"
-                            + "\nFrom " + packet.getAddress() + ":"
-                            + "\n\tText:" + new String(buffer)
-                            + "\n\tBytes: " + Arrays.toString(buffer)
+                            + "\nFrom " + view.getAddress() + ":"
+                            + view
                             + "\n");
             }
         }
@@ -710,25 +2192,20 @@ public class ServerThread extends Thread {
          */
         private void handleHELLO () {
 
-            DatagramPacket response;
             /* Gets the argument on the HELLO message (the port where the sender
             peer will be listening) */
-            int args = HELLO.getLength();
-            byte [] portArray = {buffer[args],
-                                 buffer[args + 1],
-                                 buffer[args + 2],
-                                 buffer[args + 3]};
+            int senderPort = view.replyPort();
 
             /* Creates an object representing the sender host */
-            Host sender = new Host(packet.getAddress(),
-                                   Common.arrayToInt(portArray),
+            Host sender = new Host(view.getAddress(),
+                                   senderPort,
                                    dataFlow);
 
             /* Searches the sender host on the list. If the sender wasn't
             on it, adds it */
             if (peer.getHostsList().search(dataFlow,
-                                           packet.getAddress(),
-                                           Common.arrayToInt(portArray)
+                                           view.getAddress(),
+                                           senderPort
                 )  == null) {
 
                 /* Adds the host to the list */
@@ -738,8 +2215,7 @@ public class ServerThread extends Thread {
                     Common.connectionObserver.connectionAccepted(dataFlow);
 
                     /* Creates an ACK packet and sends it back */
-                    response = PacketCreator.ACK(sender.getDataFlow(), port);
-                    sender.send(response);
+                    sendACK (sender.getDataFlow(), sender, true, view.requestId());
 
                     logger.logWarning("New host on the room: "
                                      + sender.toString());
@@ -747,15 +2223,20 @@ public class ServerThread extends Thread {
             } else {
 
                 /* Sends an ACK packet back */
-                response = PacketCreator.ACK(sender.getDataFlow(), port);
-                sender.send(response);
-
-                logger.logWarning("HELLO message received from an already "
-                            + "known sender:"
-                            + "\nFrom " + packet.getAddress() + ":"
-                            + "\n\tText:" + new String(buffer)
-                            + "\n\tBytes: " + Arrays.toString(buffer)
-                            + "\n");
+                sendACK (sender.getDataFlow(), sender, true, view.requestId());
+
+                /* The legacy HELLO sent after a compact one is expected */
+                if (view.isCompact() ||
+                    !Capabilities.supports (getCapabilities (view.getAddress(),
+                                                             senderPort),
+                                            Capabilities.COMPACT)) {
+
+                    logger.logWarning("HELLO message received from an already "
+                                + "known sender:"
+                                + "\nFrom " + view.getAddress() + ":"
+                                + view
+                                + "\n");
+                }
             }
         }
 
@@ -769,27 +2250,22 @@ public class ServerThread extends Thread {
          */
         private void handleBYE () {
 
-            DatagramPacket response;
             /* Creates an object representing the sender host */
             Host sender;
             String msg;
 
-            byte [] aux = new byte [4];
-            System.arraycopy(buffer, BYE.getLength(),
-                             aux, 0, aux.length);
-            int portAux = Common.arrayToInt(aux);
+            int portAux = view.replyPort();
 
             /* Searches the sender host on the list. If the sender was on it,
             deletes it. If not, doesn't answer back */
             if (
                 (sender = peer.getHostsList().search(dataFlow,
-                                                     packet.getAddress(),
+                                                     view.getAddress(),
                                                      portAux)
                 ) != null) {
 
                 /* Creates an ACK packet and sends it back */
-                response = PacketCreator.ACK(sender.getDataFlow(), port);
-                sender.send(response);
+                sendACK (sender.getDataFlow(), sender, view.requestId());
 
                 /* Removes the sender from the known hosts list */
                 peer.getHostsList().remove(sender);
@@ -807,9 +2283,8 @@ public class ServerThread extends Thread {
             } else {
 
                 logger.logWarning("BYE message received from an unknown sender:"
-                            + "\nFrom " + packet.getAddress() + ":"
-                            + "\n\tText:" + new String(buffer)
-                            + "\n\tBytes: " + Arrays.toString(buffer)
+                            + "\nFrom " + view.getAddress() + ":"
+                            + view
                             + "\n");
             }
         }
@@ -828,31 +2303,25 @@ public class ServerThread extends Thread {
          */
         private void handleCHECK_CON () {
 
-            DatagramPacket response;
             Host sender;
 
-            byte [] aux = new byte [4];
-            System.arraycopy(buffer, CHECK_CON.getLength(),
-                             aux, 0, aux.length);
-            int portAux = Common.arrayToInt(aux);
+            int portAux = view.replyPort();
 
             /* Searches the sender on its list. If its not found, returns
             without sending an answer back */
             if ((sender = peer.getHostsList().search(dataFlow,
-                                                     packet.getAddress(),
+                                                     view.getAddress(),
                                                      portAux)
                 ) != null) {
 
                 /* As the sender is known, creates an ACK packet sends it */
-                response = PacketCreator.ACK(sender.getDataFlow(), port);
-                sender.send(response);
+                sendACK (sender.getDataFlow(), sender, view.requestId());
             } else {
 
                 logger.logWarning("CHECK_CON message received from an unknown "
                         + "sender:"
-                        + "\nFrom " + packet.getAddress() + ":"
-                        + "\n\tText:" + new String(buffer)
-                        + "\n\tBytes: " + Arrays.toString(buffer)
+                        + "\nFrom " + view.getAddress() + ":"
+                        + view
                         + "\n");
             }
         }
@@ -876,22 +2345,18 @@ public class ServerThread extends Thread {
             Host sender;
             Notification expectedAnswer;
 
-            byte [] aux = new byte [4];
-            System.arraycopy(buffer, CHNG_DF_REQ.getLength(),
-                             aux, 0, aux.length);
-            int senderPort = Common.arrayToInt(aux);
+            int senderPort = view.replyPort();
 
             byte [] argsAnswer;
             /* Gets the second argument on the message (the proposed data
-            flow). 4 extra bytes must be added to get this argument because the
-            first one is the port number */
-            int args = CHNG_DF_REQ.getLength() + 4;
-            byte proposedDF = buffer[args];
+            flow), after the port number */
+            int args = view.arguments();
+            byte proposedDF = view.get(args);
 
             /* Searches the sender host on the list */
             if (
                 (sender = peer.getHostsList().search(dataFlow,
-                                                     packet.getAddress(),
+                                                     view.getAddress(),
                                                      senderPort)
                 ) != null) {
 
@@ -906,8 +2371,7 @@ public class ServerThread extends Thread {
                     message back */
                     if (proposedDF == Common.RESERVED_DATA_FLOW) {
 
-                        response = PacketCreator.NACK(dataFlow);
-                        sender.send(response);
+                        sendNACK (dataFlow, sender, -1);
                         return;
                     }
 
@@ -927,7 +2391,7 @@ public class ServerThread extends Thread {
 
                     /* Sends the message */
                     notifications.add(expectedAnswer);
-                    sender.send(response);
+                    send (response, sender);
 
                     return;
                 }
@@ -963,8 +2427,7 @@ public class ServerThread extends Thread {
                     message back */
                     if (proposedDF == Common.RESERVED_DATA_FLOW) {
 
-                        response = PacketCreator.NACK(dataFlow);
-                        sender.send(response);
+                        sendNACK (dataFlow, sender, -1);
                         return;
                     }
 
@@ -982,14 +2445,13 @@ public class ServerThread extends Thread {
 
                 /* Sends the message */
                 notifications.add(expectedAnswer);
-                sender.send(response);
+                send (response, sender);
             } else {
 
                  logger.logWarning("CHNG_DF_REQ message received from an "
                                     + "unknown sender:"
-                                    + "\nFrom " + packet.getAddress() + ":"
-                                    + "\n\tText:" + new String(buffer)
-                                    + "\n\tBytes: " + Arrays.toString(buffer)
+                                    + "\nFrom " + view.getAddress() + ":"
+                                    + view
                                     + "\n");
             }
         }
@@ -1008,38 +2470,31 @@ public class ServerThread extends Thread {
             DatagramPacket response;
             Host sender;
 
-            byte [] aux = new byte [4];
-            System.arraycopy(buffer, CHNG_DF_RESP.getLength(),
-                             aux, 0, aux.length);
-            int senderPort = Common.arrayToInt(aux);
+            int senderPort = view.replyPort();
 
             Notification notification;
             byte [] argsACK;
             /* Gets the second argument on the message (the proposed data
-            flow). 4 extra bytes must be added to get this argument because the
-            first one is the port number */
-            int args = CHNG_DF_RESP.getLength() + 4;
+            flow), after the port number */
+            int args = view.arguments();
             byte proposedDF;
 
             /* Searches the sender host on the list */
             if (
                 (sender = peer.getHostsList().search(dataFlow,
-                                                     packet.getAddress(),
+                                                     view.getAddress(),
                                                      senderPort)
                ) != null) {
 
                 /* If the request has been accepted, sends an ACK back and
                 changes the data flow ID on the hosts list. If there's any
                 argument, it must begin on packet[args] -> (length > args) */
-                if (packet.getLength() <= args) {
-
-                    /* No args -> request ACCEPTED.
-                       Creates an ACK packet */
-                    response = PacketCreator.ACK(dataFlow, port);
+                if (view.getLength() <= args) {
 
+                    /* No args -> request ACCEPTED. */
                     /* Searches the expected notification and deletes it after
                     getting the arguments (the new data flow id) */
-                    notification = searchNotification(packet);
+                    notification = searchNotification(view, CHNG_DF_RESP);
 
                     if (!notification.hasArgs()) {
 
@@ -1050,18 +2505,20 @@ public class ServerThread extends Thread {
 
                     proposedDF = notification.getArgs()[0];
 
-                    /* Changes the data flow of the host from the list */
+                    /* Changes the data flow of the host from the list. The
+                    templates of the old one won't be used again */
                     peer.addHostDF(sender, proposedDF);
+                    templates.invalidate(dataFlow);
 
                     /* Finnaly, sends the ACK message */
-                    sender.send(response);
+                    sendACK (dataFlow, sender);
 
                 } else {
 
                     /* With args -> request REJECTED
                        If the argument is Common.RESERVED_DATA_FLOW, it means
                        that the other peer can't handle another connection */
-                    if ((proposedDF = buffer [args]) == Common.RESERVED_DATA_FLOW) {
+                    if ((proposedDF = view.get(args)) == Common.RESERVED_DATA_FLOW) {
 
                         return;
                     }
@@ -1071,13 +2528,9 @@ public class ServerThread extends Thread {
                     proposed ID */
                     if (peer.isAvailable(proposedDF)) {
 
-                        /* Changes the host's data flow and sends an
-                        ACK message */
-                        response = PacketCreator.ACK(dataFlow, port);
-
                         /* Searches the expected notification and deletes it
                         after getting the arguments (the new data flow id) */
-                        notification = searchNotification(packet);
+                        notification = searchNotification(view, CHNG_DF_RESP);
 
                         if (notification == null || !notification.hasArgs()) {
 
@@ -1086,11 +2539,14 @@ public class ServerThread extends Thread {
                             return;
                         }
 
-                        /* Changes the data flow of the host from the list */
+                        /* Changes the host's data flow and sends an ACK
+                        message. The templates of the old one won't be used
+                        again */
                         peer.addHostDF(sender, proposedDF);
+                        templates.invalidate(dataFlow);
 
                         /* Finnaly, sends the ACK message */
-                        sender.send(response);
+                        sendACK (dataFlow, sender);
 
                         removeNotification(notification);
 
@@ -1119,19 +2575,18 @@ public class ServerThread extends Thread {
                                                               proposedDF,
                                                               port);
 
-                        /* Sends the message and adds te notification to the
-                        list */
-                        sender.send(response);
+                        /* Adds the notification to the list and sends the
+                        message */
                         notifications.add(notification);
+                        send (response, sender);
                     }
                 }
 
             } else {
 
                 logger.logWarning("Unexpected CHNG_DF_RESP:"
-                            + "\nFrom " + packet.getAddress() + ":"
-                            + "\n\tText:" + new String(buffer)
-                            + "\n\tBytes: " + Arrays.toString(buffer)
+                            + "\nFrom " + view.getAddress() + ":"
+                            + view
                             + "\n");
             }
         }
@@ -1143,25 +2598,21 @@ public class ServerThread extends Thread {
 
             Host sender;
 
-            byte [] aux = new byte [4];
-            System.arraycopy(buffer, INFO.getLength(),
-                             aux, 0,
-                             aux.length);
-
-            int portAux = Common.arrayToInt (aux);
+            int portAux = view.replyPort();
             ResourceBundle resources;
             
-            byte [] info = new byte [buffer.length - INFO.getLength() - 4];
-            
-            System.arraycopy(buffer, INFO.getLength() + 4,
-                             info, 0,
-                             info.length);
+            /* The text is copied, as it's shown after the buffer has been
+            released */
+            int args = view.arguments();
+            byte [] info = view.toArray(args, view.getLength() - args);
+            int requestId = view.requestId();
+
             resources = ResourceBundle.getBundle(Common.resourceBundle,
                                                  FXMLPeerController.currentLocale);
             /* Searches the sender on its list. If its not found, returns
             without sending an answer back */
             if ((sender = peer.getHostsList().search(dataFlow,
-                                                     packet.getAddress(),
+                                                     view.getAddress(),
                                                      portAux)
                 ) != null) {
 
@@ -1170,7 +2621,6 @@ public class ServerThread extends Thread {
                     String fileInfo = new String (info);
                     String fileName = new String ();
                     int index = 0;
-                    DatagramPacket response;
                     
                     /* Shows a dialog to accept or reject the file transfer */
                     if (FileShareGUI.showConfirmationDialog(resources,
@@ -1197,19 +2647,30 @@ public class ServerThread extends Thread {
                         /* Adds the file to the list of the observer */
                         fileName = FileShareGUI.selectSavePath (fileName);
                         
-                        fileObserver.addFile (sender, fileName);
-                        
-                        /* As the sender is known and the petition has been 
-                        accepted, creates an ACK packet and sends it */
-                        response = PacketCreator.ACK(sender.getDataFlow(), port);
-                        sender.send (response);
+                        /* If both peers support it, the transfer is accepted
+                        with a selective ACK, so the file is sent with many
+                        chunks in flight */
+                        if (supports (sender, Capabilities.WINDOW)) {
+                            
+                            fileObserver.addWindowedFile (sender, fileName);
+                            
+                            sendSACK (sender.getDataFlow(), sender, requestId,
+                                      new int [] {0});
+                            
+                        } else {
+                            
+                            fileObserver.addFile (sender, fileName);
+                            
+                            /* As the sender is known and the petition has been 
+                            accepted, creates an ACK packet and sends it */
+                            sendACK (sender.getDataFlow(), sender, requestId);
+                        }
                         
                     } else {
                         
                         /* The petition has been rejected, so a NACK message is
                         sent back */
-                        response = PacketCreator.NACK (sender.getDataFlow());
-                        sender.send (response);
+                        sendNACK (sender.getDataFlow(), sender, requestId);
                     }
                 });
                 
@@ -1218,9 +2679,8 @@ public class ServerThread extends Thread {
                 /* Unknown sender */
                 logger.logWarning("INFO message from an unknown source."
                         + "\nMessage: "
-                        + "\nFrom " + packet.getAddress() + ":"
-                        + "\n\tText:" + new String(buffer)
-                        + "\n\tBytes: " + Arrays.toString(buffer)
+                        + "\nFrom " + view.getAddress() + ":"
+                        + view
                         + "\n");
             }
         }
@@ -1236,22 +2696,50 @@ public class ServerThread extends Thread {
          */
         private void handlePLAIN () {
 
-            DatagramPacket response;
             Host sender;
 
-            byte [] aux = new byte [4];
-            System.arraycopy(buffer, PLAIN.getLength(),
-                             aux, 0, aux.length);
-            int portAux = Common.arrayToInt(aux);
+            int portAux = view.replyPort();
+
+            /* A retransmitted message is only acknowledged again */
+            if (isDuplicate ()) {
+
+                return;
+            }
+
+            /* The fragments are stored until the whole message arrives */
+            if (view.fragmentCount() > 0) {
+
+                handleFragment ();
+                return;
+            }
 
             /* Gets the second argument on the PLAIN message (the plain text),
             being aware that the first argument (the port) uses 4 bytes */
-            byte [] msgAux = parsePlain (PLAIN.getLength());
+            byte [] msgAux;
+
+            if (isCompressed ()) {
+
+                if ((msgAux = inflate (view.payload(view.arguments()),
+                                       MAX_INFLATED_MESSAGE)) == null) {
+
+                    return;
+                }
+
+                msgAux = Arrays.copyOf (msgAux, msgAux.length + 2);
+
+                /* Appends a carry return to the end of the message */
+                msgAux [msgAux.length - 2] = '\r';
+                msgAux [msgAux.length - 1] = '\n';
+
+            } else {
+
+                msgAux = parsePlain ();
+            }
 
             /* Searches the sender on its list. If its not found, returns
             without sending an answer back */
             if ((sender = peer.getHostsList().search(dataFlow,
-                                                     packet.getAddress(),
+                                                     view.getAddress(),
                                                      portAux)
                 ) != null) {
 
@@ -1259,16 +2747,71 @@ public class ServerThread extends Thread {
                 logger.logMsg(new String (msgAux), sender, true);
 
                 /* As the sender is known, creates an ACK packet and sends it */
-                response = PacketCreator.ACK(sender.getDataFlow(), port);
-                sender.send(response);
+                sendACK (sender.getDataFlow(), sender, view.requestId());
             } else {
 
                 /* Unknown sender */
                 logger.logWarning("PLAIN message from an unknown source."
                         + "\nMessage: "
-                        + "\nFrom " + packet.getAddress() + ":"
-                        + "\n\tText:" + new String(buffer)
-                        + "\n\tBytes: " + Arrays.toString(buffer)
+                        + "\nFrom " + view.getAddress() + ":"
+                        + view
+                        + "\n");
+            }
+        }
+
+        /**
+         * Handles a fragment of a {@code PLAIN} message, received on the
+         * compact framing.
+         *
+         * <p>
+         * If the sender is known, stores the fragment and sends an
+         * {@code ACK} back; when all the fragments have arrived, shows the
+         * whole message. If it isn't, shows a warning note and doesn't send
+         * anything back.
+         */
+        private void handleFragment () {
+
+            Host sender;
+            byte [] msgAux;
+
+            int portAux = view.replyPort();
+
+            /* Searches the sender on its list. If its not found, returns
+            without sending an answer back */
+            if ((sender = peer.getHostsList().search(dataFlow,
+                                                     view.getAddress(),
+                                                     portAux)
+                ) != null) {
+
+                msgAux = reassembler.add (view.getAddress(),
+                                          portAux,
+                                          dataFlow,
+                                          view.messageId(),
+                                          view.fragmentIndex(),
+                                          view.fragmentCount(),
+                                          view.payload(view.arguments()));
+
+                /* The whole message was compressed before being split */
+                if ((msgAux != null) && isCompressed ()) {
+
+                    msgAux = inflate (ByteBuffer.wrap (msgAux), MAX_INFLATED_MESSAGE);
+                }
+
+                /* Shows the message on screen, once it's complete */
+                if (msgAux != null) {
+
+                    logger.logMsg(new String (msgAux) + "\r\n", sender, true);
+                }
+
+                /* Every fragment is acknowledged, even the duplicated ones */
+                sendACK (sender.getDataFlow(), sender, view.requestId());
+            } else {
+
+                /* Unknown sender */
+                logger.logWarning("PLAIN fragment from an unknown source."
+                        + "\nMessage: "
+                        + "\nFrom " + view.getAddress() + ":"
+                        + view
                         + "\n");
             }
         }
@@ -1283,84 +2826,232 @@ public class ServerThread extends Thread {
          */
         private void handleDATA () {
 
-            DatagramPacket response;
             Host sender;
 
-            byte [] aux = new byte [4];
-            System.arraycopy(buffer, DATA.getLength(),
-                             aux, 0,
-                             aux.length);
-            int portAux = Common.arrayToInt(aux);
+            int portAux = view.replyPort();
             
-            byte data [] = new byte [buffer.length - DATA.getLength() - 4];
-            System.arraycopy(buffer, DATA.getLength() + 4,
-                             data, 0,
-                             data.length);
+            /* The data is written directly from the received buffer */
+            ByteBuffer payload = view.payload(view.arguments());
+            byte [] inflated;
+
+            /* A retransmitted chunk is only acknowledged again */
+            if (isDuplicate ()) {
+
+                return;
+            }
+
+            /* The chunks of a windowed transfer are written on their place */
+            if (view.fragmentCount() > 0) {
+
+                handleChunk ();
+                return;
+            }
+
+            /* A chunk is never larger than a datagram */
+            if (isCompressed ()) {
+
+                if ((inflated = inflate (payload, Common.MAX_DATAGRAM_SIZE)) == null) {
+
+                    return;
+                }
+
+                payload = ByteBuffer.wrap (inflated);
+            }
 
             /* Searches the sender on its list. If its not found, returns
             without sending an answer back */
             if ((sender = peer.getHostsList().search(dataFlow,
-                                                     packet.getAddress(),
+                                                     view.getAddress(),
                                                      portAux)
                 ) != null) {
                 
                 /* Appends the received information to the file */
-                fileObserver.writeToFile (sender, data);
+                fileObserver.writeToFile (sender, payload);
                 
                 /* As the sender is known, creates an ACK packet and sends it */
-                response = PacketCreator.ACK (sender.getDataFlow(), port);
-                sender.send (response);
+                sendACK (sender.getDataFlow(), sender, view.requestId());
 
             } else {
 
                 /* Unknown sender */
                 logger.logWarning("DATA received from an unknown source."
                         + "\nMessage: "
-                        + "\nFrom " + packet.getAddress() + ":"
-                        + "\n\tText:" + new String(buffer)
-                        + "\n\tBytes: " + Arrays.toString(buffer)
+                        + "\nFrom " + view.getAddress() + ":"
+                        + view
+                        + "\n");
+            }
+        }
+
+        /**
+         * Handles a chunk of a windowed file transfer, received as a compact
+         * {@code DATA} fragment.
+         *
+         * <p>
+         * If the sender is known, writes the chunk on its place of the file
+         * and sends a selective {@code ACK} back with all the chunks received
+         * so far, even if the chunk was a duplicate. If it isn't, shows a
+         * warning note and doesn't send anything back.
+         */
+        private void handleChunk () {
+
+            Host sender;
+            int [] sack;
+
+            int portAux = view.replyPort();
+            ByteBuffer payload = view.payload(view.arguments());
+            byte [] inflated;
+
+            if (isCompressed ()) {
+
+                if ((inflated = inflate (payload, Common.MAX_DATAGRAM_SIZE)) == null) {
+
+                    return;
+                }
+
+                payload = ByteBuffer.wrap (inflated);
+            }
+
+            if ((sender = peer.getHostsList().search(dataFlow,
+                                                     view.getAddress(),
+                                                     portAux)
+                ) != null) {
+
+                sack = fileObserver.writeChunk (sender,
+                                                view.messageId(),
+                                                view.fragmentIndex(),
+                                                view.fragmentCount(),
+                                                payload);
+
+                if (sack != null) {
+
+                    sendSACK (sender.getDataFlow(), sender, -1, sack);
+                }
+
+            } else {
+
+                /* Unknown sender */
+                logger.logWarning("DATA chunk received from an unknown source."
+                        + "\nMessage: "
+                        + "\nFrom " + view.getAddress() + ":"
+                        + view
                         + "\n");
             }
         }
+
 /* --------------------- */
 /* ---- AUX METHODS ---- */
 /* --------------------- */
         
         /**
-         * Parses the given plaintext message. If there's a CONT message at
-         * the end of the buffer, strips it and creates a notification.
+         * Checks whether the arguments of the received packet are compressed
+         * (see {@code PacketEncoder.FLAG_COMPRESSED}).
+         *
+         *
+         * @return
+         *              <i>true</i> if the packet is compact and has the flag.
+         */
+        private boolean isCompressed () {
+
+            return view.isCompact() &&
+                   ((view.flags() & PacketEncoder.FLAG_COMPRESSED) != 0);
+        }
+
+        /**
+         * Inflates the compressed arguments of the received packet. If they
+         * are malformed, shows a warning note; the packet isn't acknowledged,
+         * and its request is forgotten so a retransmission is handled again.
+         *
+         * @param data
+         *              Buffer with the compressed data.
+         *
+         * @param maxLength
+         *              Maximum length of the inflated data.
+         *
+         *
+         * @return
+         *              The inflated data, or {@code null} if it's malformed.
+         */
+        private byte [] inflate (ByteBuffer data, int maxLength) {
+
+            byte [] inflated = Compression.decompress (data, maxLength);
+
+            if (inflated == null) {
+
+                logger.logWarning("Malformed compressed data."
+                        + "\nFrom " + view.getAddress() + ":"
+                        + view
+                        + "\n");
+
+                duplicates.forget (view.getAddress(),
+                                   view.replyPort(),
+                                   view.requestId());
+            }
+
+            return inflated;
+        }
+
+        /**
+         * Checks whether the received request (identified by the request
+         * identifier on the compact framing) has already been received from
+         * a known sender. If so, sends the {@code ACK} again, as the first one
+         * may have been lost.
+         *
+         * <p>
+         * The packets without identifier, and the ones from unknown senders,
+         * are never taken as duplicates.
          *
          *
-         * @param args
-         *              Byte where the arguments start (the returned value
-         *          of {@code ControlMessage.getLength()}).
+         * @return
+         *              <i>true</i> if the packet is a duplicate and mustn't be
+         *          handled again; <i>false</i> otherwise.
+         */
+        private boolean isDuplicate () {
+
+            Host sender;
+
+            if ((view.requestId() < 0) ||
+                ((sender = peer.getHostsList().search(dataFlow,
+                                                      view.getAddress(),
+                                                      view.replyPort())
+                 ) == null) ||
+                duplicates.accept (view.getAddress(),
+                                   view.replyPort(),
+                                   view.requestId())) {
+
+                return false;
+            }
+
+            sendACK (sender.getDataFlow(), sender, view.requestId());
+
+            return true;
+        }
+
+        /**
+         * Parses the given plaintext message. If there's a CONT message at
+         * the end of the buffer (or the flag, on a compact packet), strips it
+         * and creates a notification.
          *
          *
          * @return
          *              A byte array with the plaintext message, ready to
          *          be printed.
          */
-        private byte [] parsePlain (int args) {
+        private byte [] parsePlain () {
 
             /* Gets the second argument on the PLAIN message (the plain text),
-            being aware that the first argument (the port) uses 4 bytes */
+            after the port */
+            int args = view.arguments();
             byte [] msgAux;
             Notification notif;
 
             /* If there is more data left, creates a notification */
-            if (PacketChecker.hasMoreData (buffer)) {
-
-                /* Avoids showing the last 4 bytes ("CONT") */
-                msgAux = new byte [packet.getLength() - args - 4 - 4];
+            if (view.hasMoreData()) {
 
-                System.arraycopy (packet.getData(),
-                                  args + 4,
-                                  msgAux,
-                                  0,
-                                  msgAux.length);
+                /* Avoids showing the "CONT" mark */
+                msgAux = view.toArray(args, view.argumentsLength());
 
                 /* Creates and adds the notification */
-                notif = new Notification(packet.getAddress(),
+                notif = new Notification(view.getAddress(),
                                          dataFlow,
                                          CONT,
                                          new byte [] {CONT_PLAIN});
@@ -1369,13 +3060,9 @@ public class ServerThread extends Thread {
 
             } else {
                 /* Adds two more bytes for the carry return */
-                msgAux = new byte [packet.getLength() - args - 4 + 2];
+                msgAux = new byte [view.argumentsLength() + 2];
 
-                System.arraycopy (packet.getData(),
-                                  args + 4,
-                                  msgAux,
-                                  0,
-                                  msgAux.length);
+                view.payload(args).get(msgAux, 0, msgAux.length - 2);
 
                 /* Appends a carry return to the end of the message */
                 msgAux [msgAux.length - 2] = '\r';
@@ -1396,26 +3083,27 @@ public class ServerThread extends Thread {
          */
         private void handleCONT () {
 
-            DatagramPacket response;
             Host sender;
             Notification notif;
 
-            byte [] aux = new byte [4];
-            System.arraycopy(buffer, CONT.getLength(),
-                             aux, 0, aux.length);
-
-            int portAux = Common.arrayToInt(aux);
+            int portAux = view.replyPort();
             String msg;
 
+            /* A retransmitted continuation is only acknowledged again */
+            if (isDuplicate ()) {
+
+                return;
+            }
+
             /* Searches the sender on its list. If its not found, returns
             without sending an answer back */
             if ((sender = peer.getHostsList().search(dataFlow,
-                                                     packet.getAddress(),
+                                                     view.getAddress(),
                                                      portAux)
                 ) != null) {
 
                 /* Checks if there was any notification for a CONT message */
-                if ((notif = searchNotification(packet)) != null) {
+                if ((notif = searchNotification(view, CONT)) != null) {
 
                     /* Handles differently the data continuations and the
                     plaintext ones */
@@ -1424,7 +3112,7 @@ public class ServerThread extends Thread {
                         switch (notif.getArgs()[0]) {
 
                             case CONT_PLAIN:
-                                msg = new String (parsePlain(CONT.getLength()));
+                                msg = new String (parsePlain());
                                 /* Shows the message on screen */
                                 logger.logMsg(msg,
                                               sender,
@@ -1443,16 +3131,14 @@ public class ServerThread extends Thread {
                 }
 
                 /* As the sender is known, creates an ACK packet and sends it */
-                response = PacketCreator.ACK(sender.getDataFlow(), port);
-                sender.send(response);
+                sendACK (sender.getDataFlow(), sender, view.requestId());
             } else {
 
                 /* Unknown sender */
                 logger.logWarning("CONT message from an unknown source."
                         + "\nMessage: "
-                        + "\nFrom " + packet.getAddress() + ":"
-                        + "\n\tText:" + new String(buffer)
-                        + "\n\tBytes: " + Arrays.toString(buffer)
+                        + "\nFrom " + view.getAddress() + ":"
+                        + view
                         + "\n");
             }
         }
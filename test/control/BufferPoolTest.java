@@ -0,0 +1,172 @@
+/*
+ * To change this license header, choose License Headers in Project Properties.
+ * To change this template file, choose Tools | Templates
+ * and open the template in the editor.
+ */
+package control;
+
+import common.BufferPool;
+import common.Common;
+import packets.PacketCreator;
+import peer.Peer;
+import java.net.DatagramPacket;
+import java.net.InetAddress;
+import java.net.InetSocketAddress;
+import java.nio.ByteBuffer;
+import java.nio.channels.DatagramChannel;
+import java.util.List;
+import org.junit.Test;
+import static org.junit.Assert.*;
+
+/**
+ *
+ */
+public class BufferPoolTest {
+
+    /**
+     * Test of lease and release methods, of class BufferPool.
+     */
+    @Test
+    public void testLeaseRelease () {
+        System.out.println("lease/release");
+
+        BufferPool instance = new BufferPool(Common.BUFF_SIZE, 1);
+        ByteBuffer first = instance.lease();
+
+        assertTrue(first.isDirect());
+        assertEquals(Common.BUFF_SIZE, first.capacity());
+        assertEquals(1, instance.getOutstanding());
+
+        first.put((byte) 1).flip();
+        instance.release(first);
+
+        /* The same buffer comes back, cleared */
+        ByteBuffer second = instance.lease();
+
+        assertSame(first, second);
+        assertEquals(0, second.position());
+        assertEquals(second.capacity(), second.limit());
+        assertEquals(1, instance.getAllocated());
+
+        /* Only one free buffer is kept */
+        ByteBuffer third = instance.lease();
+
+        instance.release(second);
+        instance.release(third);
+
+        assertEquals(1, instance.getIdle());
+        assertEquals(0, instance.getOutstanding());
+
+        /* Foreign buffers aren't kept */
+        instance.lease();
+        instance.release(ByteBuffer.allocate(Common.BUFF_SIZE));
+        assertEquals(0, instance.getIdle());
+    }
+
+    /**
+     * The buffers not released must be reported with the place where they
+     * were leased.
+     */
+    @Test
+    public void testLeakDetection () {
+        System.out.println("leak detection");
+
+        BufferPool instance = new BufferPool(Common.BUFF_SIZE, 10);
+        ByteBuffer released;
+        List<Throwable> leaks;
+
+        instance.setLeakDetection(true);
+
+        released = instance.lease();
+        instance.lease();
+        instance.release(released);
+
+        leaks = instance.getLeaks();
+
+        assertEquals(1, leaks.size());
+        assertEquals("testLeakDetection",
+                     leaks.get(0).getStackTrace() [1].getMethodName());
+
+        /* Released twice */
+        try {
+
+            instance.release(released);
+            fail("The second release must be detected");
+
+        } catch (IllegalStateException ex) {
+
+            /* Expected */
+        }
+    }
+
+    /**
+     * All the buffers used to receive the packets and send the answers must be
+     * given back, and reused, on a sustained exchange.
+     */
+    @Test
+    public void testSteadyState () throws Exception {
+        System.out.println("steady state");
+
+        BufferPool pool = Common.bufferPool;
+        Peer peer;
+        int rounds = 5000;
+        long allocated;
+
+        pool.setLeakDetection(true);
+        peer = new Peer();
+
+        try (DatagramChannel client = DatagramChannel.open()) {
+
+            InetSocketAddress server = new InetSocketAddress(InetAddress.getLoopbackAddress(),
+                                                             peer.getServer().getPort());
+            ByteBuffer answer = ByteBuffer.allocate(Common.BUFF_SIZE);
+            DatagramPacket hello;
+            DatagramPacket check;
+
+            client.bind(new InetSocketAddress(InetAddress.getLoopbackAddress(), 0));
+
+            hello = PacketCreator.HELLO((byte) 5, client.socket().getLocalPort());
+            check = PacketCreator.CHECK_CON((byte) 5, client.socket().getLocalPort());
+
+            client.send(ByteBuffer.wrap(hello.getData(), 0, hello.getLength()), server);
+            client.receive(answer);
+
+            /* Warm up */
+            for (int i = 0; i < 100; i++) {
+
+                client.send(ByteBuffer.wrap(check.getData(), 0, check.getLength()), server);
+                answer.clear();
+                client.receive(answer);
+            }
+
+            allocated = pool.getAllocated();
+
+            for (int i = 0; i < rounds; i++) {
+
+                client.send(ByteBuffer.wrap(check.getData(), 0, check.getLength()), server);
+                answer.clear();
+                client.receive(answer);
+            }
+
+            /* The last handler may still be giving back its buffer. Only the
+            buffer of the receive loop can still be leased */
+            for (int i = 0; (i < 50) && (pool.getOutstanding() > 1); i++) {
+
+                Thread.sleep(10);
+            }
+
+            System.out.println("\t" + (pool.getAllocated() - allocated)
+                               + " buffers allocated for " + (2 * rounds)
+                               + " packets");
+
+            assertTrue(pool.getOutstanding() <= 1);
+            assertTrue(pool.getLeaks().size() <= 1);
+            assertTrue(pool.getAllocated() - allocated < 10);
+
+        } finally {
+
+            peer.getServer().close();
+            pool.setLeakDetection(false);
+        }
+    }
+}
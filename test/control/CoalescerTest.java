@@ -0,0 +1,312 @@
+/*
+ * To change this license header, choose License Headers in Project Properties.
+ * To change this template file, choose Tools | Templates
+ * and open the template in the editor.
+ */
+package control;
+
+import common.Common;
+import packets.Capabilities;
+import packets.ControlMessage;
+import packets.PacketCreator;
+import packets.PacketEncoder;
+import packets.PacketView;
+import peer.Coalescer;
+import peer.Peer;
+import java.net.DatagramPacket;
+import java.net.InetAddress;
+import java.net.InetSocketAddress;
+import java.nio.ByteBuffer;
+import java.nio.channels.DatagramChannel;
+import java.util.ArrayList;
+import java.util.List;
+import org.junit.Test;
+import static org.junit.Assert.*;
+
+/**
+ *
+ */
+public class CoalescerTest {
+
+    private final InetSocketAddress destination
+            = new InetSocketAddress(InetAddress.getLoopbackAddress(), 1234);
+
+    private final byte dataFlow = 3;
+
+    /**
+     * Returns a buffer with the bytes of the packet.
+     */
+    private ByteBuffer data (DatagramPacket packet) {
+
+        return ByteBuffer.wrap(packet.getData(), packet.getOffset(), packet.getLength());
+    }
+
+    /**
+     * Returns the packets on the given datagram (one if it isn't a bundle).
+     */
+    private List<byte []> unpack (ByteBuffer datagram) {
+
+        PacketView view = new PacketView(datagram, InetAddress.getLoopbackAddress(), 0);
+        List<byte []> packets = new ArrayList<>();
+        int index = 1;
+        int length;
+
+        if (!view.isBundle()) {
+
+            packets.add(view.toArray(0, view.getLength()));
+            return packets;
+        }
+
+        while (index < view.getLength()) {
+
+            length = view.getVarint(index);
+            index += PacketEncoder.varintLength(length);
+            packets.add(view.toArray(index, length));
+            index += length;
+        }
+
+        return packets;
+    }
+
+    /**
+     * The packets sent during the budget must be sent on a single datagram,
+     * on the same order.
+     */
+    @Test
+    public void testBundle () throws InterruptedException {
+        System.out.println("bundle");
+
+        List<ByteBuffer> sent = new ArrayList<>();
+        Coalescer instance = new Coalescer((data, address) -> {
+
+            ByteBuffer copy = ByteBuffer.allocate(data.remaining());
+
+            synchronized (sent) {
+
+                copy.put(data);
+                copy.flip();
+                sent.add(copy);
+                sent.notifyAll();
+            }
+
+            return true;
+
+        }, 1000000);
+        DatagramPacket ack = PacketCreator.ACK(dataFlow, 1);
+        DatagramPacket plain = PacketCreator.PLAIN(dataFlow, "Hi".getBytes(), 1).get(0);
+        List<byte []> packets;
+
+        assertTrue(instance.send(data(ack), destination));
+        assertTrue(instance.send(data(plain), destination));
+        assertTrue(sent.isEmpty());
+
+        instance.flush();
+
+        assertEquals(1, sent.size());
+        assertTrue(new PacketView(sent.get(0), null, 0).isBundle());
+
+        packets = unpack(sent.get(0));
+
+        assertEquals(2, packets.size());
+        assertArrayEquals(ack.getData(), packets.get(0));
+        assertArrayEquals(plain.getData(), packets.get(1));
+        assertEquals(2, instance.getPackets());
+        assertEquals(1, instance.getDatagrams());
+
+        /* A single packet is sent alone, when its time runs out */
+        sent.clear();
+        instance.setBudget(1000);
+        instance.send(data(ack), destination);
+
+        synchronized (sent) {
+
+            long limit = System.currentTimeMillis() + 5000;
+
+            while (sent.isEmpty() && (System.currentTimeMillis() < limit)) {
+
+                sent.wait(100);
+            }
+        }
+
+        assertEquals(1, sent.size());
+        assertArrayEquals(ack.getData(), unpack(sent.get(0)).get(0));
+        assertFalse(new PacketView(sent.get(0), null, 0).isBundle());
+    }
+
+    /**
+     * The packets that don't fit are sent on the next datagram, and nothing is
+     * held without budget.
+     */
+    @Test
+    public void testLimits () {
+        System.out.println("limits");
+
+        List<Integer> lengths = new ArrayList<>();
+        Coalescer instance = new Coalescer((data, address) -> {
+
+            lengths.add(data.remaining());
+            data.position(data.limit());
+
+            return true;
+
+        }, 1000000);
+        ByteBuffer big = ByteBuffer.allocate(1500);
+
+        instance.send(big.duplicate(), destination);
+        instance.send(big.duplicate(), destination);
+
+        /* The first one is sent alone to make room for the second one */
+        assertEquals(1, lengths.size());
+        assertEquals(1500, (int) lengths.get(0));
+
+        /* The packets too big for a bundle are sent right away, after the
+        ones already held */
+        instance.send(ByteBuffer.allocate(Common.BUFF_SIZE), destination);
+
+        assertEquals(3, lengths.size());
+        assertEquals(Common.BUFF_SIZE, (int) lengths.get(2));
+
+        instance.setBudget(0);
+        instance.send(big.duplicate(), destination);
+
+        assertEquals(4, lengths.size());
+    }
+
+    /**
+     * The bundles to a host whose path takes 1472 bytes must never be larger,
+     * so they aren't fragmented by IP.
+     */
+    @Test
+    public void testDatagramSize () {
+        System.out.println("datagram size");
+
+        List<Integer> lengths = new ArrayList<>();
+        InetSocketAddress other = new InetSocketAddress(InetAddress.getLoopbackAddress(), 4321);
+        Coalescer instance = new Coalescer((data, address) -> {
+
+            lengths.add(data.remaining());
+            data.position(data.limit());
+
+            return true;
+
+        }, 1000000, address -> address.equals(destination)? 1472 : 65507);
+        ByteBuffer medium = ByteBuffer.allocate(800);
+
+        /* Two packets of 800 bytes don't fit together */
+        instance.send(medium.duplicate(), destination);
+        instance.send(medium.duplicate(), destination);
+        instance.flush();
+
+        assertEquals(2, lengths.size());
+        assertEquals(800, (int) lengths.get(0));
+        assertEquals(800, (int) lengths.get(1));
+
+        /* Neither does one that doesn't leave room for the header */
+        lengths.clear();
+        instance.send(ByteBuffer.allocate(1470), destination);
+
+        assertEquals(1, lengths.size());
+
+        /* The other destination is still limited by the size of the buffers */
+        lengths.clear();
+        instance.send(medium.duplicate(), other);
+        instance.send(medium.duplicate(), other);
+        instance.send(medium.duplicate(), other);
+        instance.flush();
+
+        assertEquals(2, lengths.size());
+        assertTrue(lengths.get(0) <= Common.BUFF_SIZE);
+        assertTrue(lengths.get(0) > 1600);
+    }
+
+    /**
+     * The server must join the packets to a host up to the size found for
+     * it.
+     */
+    @Test
+    public void testServerDatagramSize () {
+        System.out.println("server datagram size");
+
+        Peer peer = new Peer();
+
+        try {
+
+            peer.getServer().setDatagramSize(destination.getAddress(),
+                                             destination.getPort(),
+                                             1472);
+
+            assertEquals(1472, peer.getServer().getDatagramSize(destination));
+            assertEquals(Common.BUFF_SIZE,
+                         peer.getServer().getDatagramSize(
+                                new InetSocketAddress(destination.getAddress(), 4321)));
+        } finally {
+
+            peer.getServer().close();
+        }
+    }
+
+    /**
+     * The server must handle every packet of a bundle.
+     */
+    @Test
+    public void testReceive () throws Exception {
+        System.out.println("receive");
+
+        Peer peer = new Peer();
+
+        try (DatagramChannel compact = DatagramChannel.open()) {
+
+            InetSocketAddress server = new InetSocketAddress(InetAddress.getLoopbackAddress(),
+                                                             peer.getServer().getPort());
+            ByteBuffer answer = ByteBuffer.allocate(Common.BUFF_SIZE);
+            ByteBuffer hello = ByteBuffer.allocate(20);
+            ByteBuffer bundle = ByteBuffer.allocate(Common.BUFF_SIZE);
+            int compactPort;
+            int length = 1;
+            int acks = 0;
+
+            compact.bind(new InetSocketAddress(InetAddress.getLoopbackAddress(), 0));
+            compactPort = compact.socket().getLocalPort();
+
+            /* Negotiates the compact framing */
+            hello.limit(PacketEncoder.compact(hello, 0, ControlMessage.HELLO, dataFlow,
+                                              compactPort, Capabilities.SUPPORTED));
+            compact.send(hello, server);
+            compact.receive(answer);
+
+            /* Two CHECK_CON on the same datagram */
+            bundle.put(0, PacketEncoder.BUNDLE);
+
+            for (int i = 0; i < 2; i++) {
+
+                length += PacketEncoder.bundle(bundle, length,
+                                               data(PacketCreator.CHECK_CON(dataFlow,
+                                                                            compactPort)));
+            }
+
+            bundle.limit(length);
+            compact.send(bundle, server);
+
+            /* Both of them are answered (maybe on the same datagram too) */
+            while (acks < 2) {
+
+                answer.clear();
+                compact.receive(answer);
+                answer.flip();
+
+                for (byte [] packet : unpack(answer)) {
+
+                    assertEquals(ControlMessage.ACK,
+                                 new PacketView(ByteBuffer.wrap(packet), null, 0).message());
+                    acks++;
+                }
+            }
+
+            assertEquals(2, acks);
+
+        } finally {
+
+            peer.getServer().close();
+        }
+    }
+}
@@ -0,0 +1,331 @@
+/*
+ * To change this license header, choose License Headers in Project Properties.
+ * To change this template file, choose Tools | Templates
+ * and open the template in the editor.
+ */
+package control;
+
+import common.Common;
+import packets.Capabilities;
+import packets.ControlMessage;
+import packets.PacketCreator;
+import packets.PacketEncoder;
+import packets.PacketView;
+import peer.Peer;
+import java.net.DatagramPacket;
+import java.net.InetAddress;
+import java.net.InetSocketAddress;
+import java.nio.ByteBuffer;
+import java.nio.channels.DatagramChannel;
+import java.util.ArrayList;
+import java.util.Random;
+import org.junit.Test;
+import static org.junit.Assert.*;
+
+/**
+ *
+ */
+public class CompactFramingTest {
+
+    private final int port = 54321;
+
+    private final byte dataFlow = 3;
+
+    /**
+     * Returns one packet of every message.
+     */
+    private ArrayList<DatagramPacket> samples () {
+
+        ArrayList<DatagramPacket> packets = new ArrayList<>();
+
+        packets.add(PacketCreator.ACK(dataFlow, port));
+        packets.add(PacketCreator.NACK(dataFlow));
+        packets.add(PacketCreator.HOSTS_REQ(dataFlow, port));
+        packets.add(PacketCreator.HOSTS_RESP(dataFlow, "hosts".getBytes()));
+        packets.add(PacketCreator.HELLO(dataFlow, port));
+        packets.add(PacketCreator.BYE(dataFlow, port));
+        packets.add(PacketCreator.CHECK_CON(dataFlow, port));
+        packets.add(PacketCreator.CHNG_DF_REQ(dataFlow, (byte) 9, port));
+        packets.add(PacketCreator.CHNG_DF_RESP(dataFlow, true, (byte) 9, port));
+        packets.add(PacketCreator.CHNG_DF_RESP(dataFlow, false, (byte) 9, port));
+        packets.add(PacketCreator.INFO(dataFlow, "Name: a.txt".getBytes(), port));
+        packets.addAll(PacketCreator.PLAIN(dataFlow, new byte [5000], port));
+        packets.addAll(PacketCreator.DATA(dataFlow, "data".getBytes(), port));
+
+        return packets;
+    }
+
+    /**
+     * Returns a view over the bytes written on the buffer.
+     */
+    private PacketView view (ByteBuffer buffer, int length) {
+
+        ByteBuffer data = buffer.duplicate();
+
+        data.position(0).limit(length);
+
+        return new PacketView(data, InetAddress.getLoopbackAddress(), port);
+    }
+
+    /**
+     * Every legacy packet written on the compact framing must be shorter, and
+     * have the same fields.
+     */
+    @Test
+    public void testCompact () {
+        System.out.println("compact");
+
+        ByteBuffer buffer = ByteBuffer.allocateDirect(Common.BUFF_SIZE);
+
+        for (DatagramPacket packet : samples()) {
+
+            PacketView legacy = PacketView.of(packet);
+            int length = PacketEncoder.compact(legacy, buffer, 0);
+            PacketView compact = view(buffer, length);
+
+            assertTrue(length > 0);
+            assertTrue(length < packet.getLength());
+            assertTrue(compact.isCompact());
+            assertEquals(legacy.message(), compact.message());
+            assertEquals(legacy.dataFlow(), compact.dataFlow());
+            assertEquals(legacy.replyPort(), compact.replyPort());
+            assertEquals(legacy.hasMoreData(), compact.hasMoreData());
+            assertArrayEquals(legacy.toArray(legacy.arguments(), legacy.argumentsLength()),
+                              compact.toArray(compact.arguments(), compact.argumentsLength()));
+            assertEquals(-1, compact.requestId());
+
+            /* With the identifier of the request */
+            length = PacketEncoder.compact(legacy, buffer, 0, 1 << 20);
+            compact = view(buffer, length);
+
+            assertEquals(legacy.message(), compact.message());
+            assertEquals(1 << 20, compact.requestId());
+            assertArrayEquals(legacy.toArray(legacy.arguments(), legacy.argumentsLength()),
+                              compact.toArray(compact.arguments(), compact.argumentsLength()));
+
+            /* Already compact */
+            assertEquals(-1, PacketEncoder.compact(compact, ByteBuffer.allocate(100), 0));
+        }
+    }
+
+    /**
+     * Test of the capabilities announced on a compact packet.
+     */
+    @Test
+    public void testCapabilities () {
+        System.out.println("capabilities");
+
+        ByteBuffer buffer = ByteBuffer.allocate(20);
+        int length;
+
+        length = PacketEncoder.compact(buffer, 0, ControlMessage.HELLO, dataFlow,
+                                       port, Capabilities.SUPPORTED);
+
+        assertEquals(ControlMessage.HELLO, view(buffer, length).message());
+        assertEquals(port, view(buffer, length).replyPort());
+        assertEquals(Capabilities.SUPPORTED, view(buffer, length).capabilities());
+
+        length = PacketEncoder.compact(buffer, 0, ControlMessage.ACK, dataFlow,
+                                       port, -1);
+
+        assertEquals(ControlMessage.ACK, view(buffer, length).message());
+        assertEquals(-1, view(buffer, length).capabilities());
+        assertEquals(-1, PacketView.of(PacketCreator.HELLO(dataFlow, port)).capabilities());
+
+        /* With the identifier of the request after the capabilities */
+        length = PacketEncoder.compact(buffer, 0, ControlMessage.ACK, dataFlow,
+                                       port, Capabilities.SUPPORTED, 300);
+
+        assertEquals(ControlMessage.ACK, view(buffer, length).message());
+        assertEquals(port, view(buffer, length).replyPort());
+        assertEquals(Capabilities.SUPPORTED, view(buffer, length).capabilities());
+        assertEquals(300, view(buffer, length).requestId());
+        assertEquals(length, view(buffer, length).arguments());
+
+        /* Negotiation */
+        assertEquals(Capabilities.SUPPORTED,
+                     Capabilities.negotiate(Capabilities.SUPPORTED, 0xFF));
+        assertEquals(Capabilities.NONE,
+                     Capabilities.negotiate(Capabilities.SUPPORTED, -1));
+        assertFalse(Capabilities.supports(Capabilities.NONE, Capabilities.COMPACT));
+    }
+
+    /**
+     * The malformed compact packets mustn't be recognised.
+     */
+    @Test
+    public void testMalformed () {
+        System.out.println("malformed");
+
+        Random random = new Random(42);
+        ByteBuffer buffer = ByteBuffer.allocate(10);
+        int length = PacketEncoder.compact(buffer, 0, ControlMessage.ACK, dataFlow,
+                                           port, -1);
+
+        /* Cut port */
+        assertNull(view(buffer, length - 1).message());
+
+        /* Extra bytes */
+        assertNull(view(buffer, length + 1).message());
+
+        /* Unknown opcode */
+        buffer.put(2, (byte) 15);
+        assertNull(view(buffer, length).message());
+
+        /* Changed bytes */
+        for (int i = 0; i < 2000; i++) {
+
+            byte [] bytes = new byte [random.nextInt(12)];
+
+            random.nextBytes(bytes);
+
+            if (bytes.length > 0) {
+
+                bytes [0] = PacketEncoder.COMPACT;
+            }
+
+            PacketView view = new PacketView(ByteBuffer.wrap(bytes),
+                                             InetAddress.getLoopbackAddress(),
+                                             port);
+
+            if (view.message() != null) {
+
+                assertTrue(view.arguments() <= bytes.length);
+            }
+        }
+    }
+
+    /**
+     * A legacy peer must get legacy answers, and a peer that announces its
+     * capabilities must get compact ones.
+     */
+    @Test
+    public void testNegotiation () throws Exception {
+        System.out.println("negotiation");
+
+        Peer peer = new Peer();
+
+        try (DatagramChannel legacy = DatagramChannel.open();
+             DatagramChannel compact = DatagramChannel.open()) {
+
+            InetSocketAddress server = new InetSocketAddress(InetAddress.getLoopbackAddress(),
+                                                             peer.getServer().getPort());
+            ByteBuffer answer = ByteBuffer.allocate(Common.BUFF_SIZE);
+            ByteBuffer hello = ByteBuffer.allocate(20);
+            DatagramPacket packet;
+            PacketView view;
+            int legacyPort;
+            int compactPort;
+
+            legacy.bind(new InetSocketAddress(InetAddress.getLoopbackAddress(), 0));
+            compact.bind(new InetSocketAddress(InetAddress.getLoopbackAddress(), 0));
+            legacyPort = legacy.socket().getLocalPort();
+            compactPort = compact.socket().getLocalPort();
+
+            /* Legacy HELLO -> legacy ACK, with its exact length */
+            packet = PacketCreator.HELLO(dataFlow, legacyPort);
+            legacy.send(ByteBuffer.wrap(packet.getData(), 0, packet.getLength()), server);
+            legacy.receive(answer);
+            answer.flip();
+
+            view = new PacketView(answer, InetAddress.getLoopbackAddress(), 0);
+
+            assertFalse(view.isCompact());
+            assertEquals(ControlMessage.ACK, view.message());
+            assertEquals(ControlMessage.ACK.getLength() + 4, view.getLength());
+
+            /* Compact HELLO -> compact ACK with the capabilities */
+            hello.limit(PacketEncoder.compact(hello, 0, ControlMessage.HELLO, dataFlow,
+                                              compactPort, Capabilities.SUPPORTED));
+            compact.send(hello, server);
+            answer.clear();
+            compact.receive(answer);
+            answer.flip();
+
+            view = new PacketView(answer, InetAddress.getLoopbackAddress(), 0);
+
+            assertTrue(view.isCompact());
+            assertEquals(ControlMessage.ACK, view.message());
+            assertEquals(peer.getServer().getPort(), view.replyPort());
+            assertEquals(Capabilities.SUPPORTED, view.capabilities());
+            assertEquals(Capabilities.SUPPORTED,
+                         peer.getServer().getCapabilities(InetAddress.getLoopbackAddress(),
+                                                          compactPort));
+
+            /* Next legacy packets are answered on the compact framing */
+            packet = PacketCreator.CHECK_CON(dataFlow, compactPort);
+            compact.send(ByteBuffer.wrap(packet.getData(), 0, packet.getLength()), server);
+            answer.clear();
+            compact.receive(answer);
+            answer.flip();
+
+            view = new PacketView(answer, InetAddress.getLoopbackAddress(), 0);
+
+            assertTrue(view.isCompact());
+            assertEquals(ControlMessage.ACK, view.message());
+            assertEquals(-1, view.capabilities());
+
+        } finally {
+
+            peer.getServer().close();
+        }
+    }
+
+    /**
+     * The fragments of a message must be valid packets, carry their position
+     * on the message, and give back the message when joined on any order.
+     */
+    @Test
+    public void testFragments () {
+        System.out.println("fragments");
+
+        byte [] text = new byte [5000];
+        Reassembler reassembler = new Reassembler(4, 16, 10000);
+        ArrayList<DatagramPacket> fragments;
+        byte [] joined = null;
+
+        new Random(7).nextBytes(text);
+        fragments = PacketCreator.FRAGMENTS(dataFlow, text, port, 300);
+
+        assertEquals(3, fragments.size());
+
+        for (int i = fragments.size() - 1; i >= 0; i--) {
+
+            DatagramPacket packet = fragments.get(i);
+            PacketView view = PacketView.of(packet);
+
+            assertTrue(packet.getLength() <= Common.BUFF_SIZE);
+            assertTrue(view.isCompact());
+            assertEquals(ControlMessage.PLAIN, view.message());
+            assertEquals(port, view.replyPort());
+            assertEquals(300, view.messageId());
+            assertEquals(i, view.fragmentIndex());
+            assertEquals(3, view.fragmentCount());
+            assertNull(joined);
+
+            joined = reassembler.add(InetAddress.getLoopbackAddress(), port, dataFlow,
+                                     view.messageId(), view.fragmentIndex(),
+                                     view.fragmentCount(),
+                                     view.payload(view.arguments()));
+        }
+
+        assertArrayEquals(text, joined);
+
+        /* A request identifier added when it's sent mustn't change the rest */
+        ByteBuffer buffer = ByteBuffer.allocate(Common.BUFF_SIZE);
+        PacketView view = view(buffer, PacketEncoder.compact(PacketView.of(fragments.get(1)),
+                                                             buffer, 0, 77));
+
+        assertEquals(ControlMessage.PLAIN, view.message());
+        assertEquals(77, view.requestId());
+        assertEquals(300, view.messageId());
+        assertEquals(1, view.fragmentIndex());
+        assertEquals(3, view.fragmentCount());
+        assertEquals(PacketEncoder.fragmentLength(), view.argumentsLength());
+
+        /* A fragment with a wrong position isn't a valid packet */
+        fragments.get(0).getData() [9] = 5;
+
+        assertNull(PacketView.of(fragments.get(0)).message());
+    }
+}
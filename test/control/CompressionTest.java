@@ -0,0 +1,145 @@
+/*
+ * To change this license header, choose License Headers in Project Properties.
+ * To change this template file, choose Tools | Templates
+ * and open the template in the editor.
+ */
+package control;
+
+import packets.Compression;
+import packets.ControlMessage;
+import packets.PacketCreator;
+import packets.PacketEncoder;
+import packets.PacketView;
+import java.io.ByteArrayOutputStream;
+import java.net.DatagramPacket;
+import java.nio.ByteBuffer;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Random;
+import org.junit.Test;
+import static org.junit.Assert.*;
+
+/**
+ *
+ */
+public class CompressionTest {
+
+    private final int port = 54321;
+
+    private final byte dataFlow = 3;
+
+    /**
+     * Returns a text that can be compressed.
+     */
+    private byte [] text (int length) {
+
+        byte [] text = new byte [length];
+
+        for (int i = 0; i < length; i++) {
+
+            text [i] = (byte) ('a' + (i % 7));
+        }
+
+        return text;
+    }
+
+    /**
+     * The compressed data must give back the original one, and the data that
+     * doesn't get shorter mustn't be compressed.
+     */
+    @Test
+    public void testCompress () {
+        System.out.println("compress");
+
+        byte [] text = text(5000);
+        byte [] random = new byte [5000];
+        byte [] deflated = Compression.compress(text);
+
+        assertNotNull(deflated);
+        assertTrue(deflated.length < text.length);
+        assertArrayEquals(text, Compression.decompress(ByteBuffer.wrap(deflated), 5000));
+
+        /* Random data doesn't get shorter */
+        new Random(5).nextBytes(random);
+
+        assertNull(Compression.compress(random));
+
+        /* Too short to be worth it */
+        assertNull(Compression.compress(text(Compression.MIN_LENGTH - 1)));
+    }
+
+    /**
+     * The malformed data, and the data that inflates beyond the limit, must be
+     * rejected.
+     */
+    @Test
+    public void testMalformed () {
+        System.out.println("malformed");
+
+        byte [] deflated = Compression.compress(text(100000));
+
+        assertNull(Compression.decompress(ByteBuffer.wrap(deflated), 99999));
+        assertNull(Compression.decompress(ByteBuffer.wrap(Arrays.copyOf(deflated,
+                                                                        deflated.length / 2)),
+                                          100000));
+        assertNull(Compression.decompress(ByteBuffer.wrap(new byte [] {1, 2, 3, 4}),
+                                          100000));
+
+        /* The instance of the thread can still be used */
+        assertEquals(100000,
+                     Compression.decompress(ByteBuffer.wrap(deflated), 100000).length);
+    }
+
+    /**
+     * The compressed packets must be valid, carry the flag, and give back the
+     * text.
+     */
+    @Test
+    public void testPackets () {
+        System.out.println("packets");
+
+        byte [] text = text(20000);
+        byte [] deflated = Compression.compress(text);
+        DatagramPacket packet = PacketCreator.COMPRESSED(dataFlow, ControlMessage.PLAIN,
+                                                         deflated, port, 2048);
+        PacketView view = PacketView.of(packet);
+        ByteArrayOutputStream joined = new ByteArrayOutputStream();
+        ArrayList<DatagramPacket> fragments;
+
+        assertEquals(ControlMessage.PLAIN, view.message());
+        assertEquals(port, view.replyPort());
+        assertTrue((view.flags() & PacketEncoder.FLAG_COMPRESSED) != 0);
+        assertArrayEquals(text, Compression.decompress(view.payload(view.arguments()),
+                                                       text.length));
+
+        /* Data that doesn't fit isn't split */
+        assertNull(PacketCreator.COMPRESSED(dataFlow, ControlMessage.DATA,
+                                            new byte [3000], port, 2048));
+
+        /* The fragments carry the flag, and their data is the compressed text */
+        fragments = PacketCreator.FRAGMENTS(dataFlow, new byte [5000], port, 7, 2048, true);
+
+        assertEquals(3, fragments.size());
+
+        for (DatagramPacket fragment : fragments) {
+
+            view = PacketView.of(fragment);
+
+            assertEquals(ControlMessage.PLAIN, view.message());
+            assertTrue((view.flags() & PacketEncoder.FLAG_COMPRESSED) != 0);
+
+            byte [] bytes = new byte [view.argumentsLength()];
+
+            view.payload(view.arguments()).get(bytes);
+            joined.write(bytes, 0, bytes.length);
+        }
+
+        assertEquals(5000, joined.size());
+
+        /* Only PLAIN and DATA can be compressed */
+        packet = PacketCreator.COMPRESSED(dataFlow, ControlMessage.PLAIN, deflated, port, 2048);
+        packet.getData() [2] = ControlMessage.INFO.getOpcode();
+
+        assertNull(PacketView.of(packet).message());
+    }
+}
@@ -0,0 +1,181 @@
+/*
+ * To change this license header, choose License Headers in Project Properties.
+ * To change this template file, choose Tools | Templates
+ * and open the template in the editor.
+ */
+package control;
+
+import files.SendWindow;
+import org.junit.Test;
+import static org.junit.Assert.*;
+
+/**
+ *
+ */
+public class CongestionControlTest {
+
+    private final int segment = 1000;
+
+    /**
+     * Test of the growth and the reductions of the NewReno window.
+     */
+    @Test
+    public void testNewReno () {
+        System.out.println("NewReno");
+
+        NewReno instance = new NewReno(segment);
+        int initial = instance.getWindow();
+
+        /* Initial window of RFC 6928 */
+        assertEquals(10 * segment, initial);
+        assertTrue(instance.isSlowStart());
+        assertFalse(instance.isBackground());
+
+        /* The window limits the bytes in flight */
+        for (int i = 0; i < 10; i++) {
+
+            assertTrue(instance.canSend(segment));
+            instance.onSent(segment);
+        }
+
+        assertFalse(instance.canSend(segment));
+        assertEquals(10 * segment, instance.getInFlight());
+
+        /* Slow start: a segment more for every one acknowledged */
+        for (int i = 0; i < 10; i++) {
+
+            instance.onAck(segment, 50, i);
+        }
+
+        assertEquals(0, instance.getInFlight());
+        assertEquals(2 * initial, instance.getWindow());
+
+        /* A loss halves the bytes in flight and leaves slow start */
+        for (int i = 0; i < 20; i++) {
+
+            instance.onSent(segment);
+        }
+
+        instance.onLoss(100);
+
+        assertEquals(1, instance.getLossEvents());
+        assertEquals(10 * segment, instance.getWindow());
+        assertFalse(instance.isSlowStart());
+
+        /* Congestion avoidance: a segment more for every window */
+        for (int i = 0; i < 10; i++) {
+
+            instance.onAck(segment, 50, 100 + i);
+        }
+
+        assertTrue(instance.getWindow() >= 11 * segment - 50);
+        assertTrue(instance.getWindow() <= 11 * segment);
+
+        /* A timeout sends again from a single segment */
+        instance.onTimeout(200);
+
+        assertEquals(1, instance.getTimeouts());
+        assertEquals(segment, instance.getWindow());
+
+        instance.onAbandon(instance.getInFlight());
+
+        assertEquals(0, instance.getInFlight());
+        assertTrue(instance.canSend(segment));
+    }
+
+    /**
+     * Test of the LEDBAT window, that must grow while the queuing delay is
+     * below the target and shrink when it's above it.
+     */
+    @Test
+    public void testLedbat () {
+        System.out.println("Ledbat");
+
+        Ledbat instance = new Ledbat(segment, 100);
+        int window;
+        long now = 0;
+
+        assertTrue(instance.isBackground());
+        assertEquals(0, instance.getQueuingDelay(), 0);
+
+        /* No queue: the window grows, up to a segment over the bytes in flight */
+        for (int i = 0; i < 50; i++) {
+
+            while (instance.canSend(segment)) {
+
+                instance.onSent(segment);
+            }
+
+            instance.onAck(segment, 40, now++);
+        }
+
+        assertEquals(40, instance.getBaseDelay(), 0);
+        assertEquals(0, instance.getQueuingDelay(), 0);
+        assertTrue(instance.getWindow() > 10 * segment);
+        assertTrue(instance.getWindow() <= instance.getInFlight() + 2 * segment);
+
+        /* Queuing delay over the target: the window shrinks */
+        window = instance.getWindow();
+
+        for (int i = 0; i < 20; i++) {
+
+            instance.onSent(segment);
+            instance.onAck(segment, 300, now++);
+        }
+
+        assertEquals(260, instance.getQueuingDelay(), 0);
+        assertTrue(instance.getWindow() < window);
+        assertTrue(instance.getWindow() >= CongestionControl.MIN_SEGMENTS * segment);
+
+        /* The samples of other messages also count */
+        for (int i = 0; i < 4; i++) {
+
+            instance.onRTT(40, now++);
+        }
+
+        assertEquals(0, instance.getQueuingDelay(), 0);
+
+        instance.onLoss(now);
+
+        assertEquals(1, instance.getLossEvents());
+    }
+
+    /**
+     * Test of the controller of a window: all the chunks lost on the same
+     * window of data must shrink it only once.
+     */
+    @Test
+    public void testSendWindow () {
+        System.out.println("send window");
+
+        NewReno congestion = new NewReno(segment);
+        SendWindow instance = new SendWindow(100, 64, segment, congestion, 0);
+        int sent = 0;
+
+        /* Only the initial window is sent */
+        while (instance.poll(0) >= 0) {
+
+            sent++;
+        }
+
+        assertEquals(10, sent);
+        assertEquals(10 * segment, congestion.getInFlight());
+
+        /* Chunks 0, 1 and 2 lost: a single reduction */
+        assertTrue(instance.acknowledge(new int [] {0, 3, 10}, 10));
+
+        assertEquals(1, congestion.getLossEvents());
+        assertEquals(0, congestion.getTimeouts());
+        assertTrue(congestion.getWindow() < 10 * segment);
+
+        /* They are sent again, and a repeated acknowledgement changes nothing */
+        assertEquals(0, instance.poll(10));
+        assertFalse(instance.acknowledge(new int [] {0, 3, 10}, 20));
+
+        assertEquals(1, congestion.getLossEvents());
+
+        instance.close();
+
+        assertEquals(0, congestion.getInFlight());
+    }
+}
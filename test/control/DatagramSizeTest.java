@@ -0,0 +1,158 @@
+/*
+ * To change this license header, choose License Headers in Project Properties.
+ * To change this template file, choose Tools | Templates
+ * and open the template in the editor.
+ */
+package control;
+
+import common.Common;
+import packets.ControlMessage;
+import packets.PacketChecker;
+import packets.PacketCreator;
+import packets.PacketEncoder;
+import packets.PacketView;
+import peer.Host;
+import peer.Peer;
+import java.io.ByteArrayOutputStream;
+import java.net.DatagramPacket;
+import java.net.InetAddress;
+import java.nio.ByteBuffer;
+import java.util.ArrayList;
+import java.util.Random;
+import java.util.concurrent.TimeUnit;
+import org.junit.Test;
+import static org.junit.Assert.*;
+
+/**
+ *
+ */
+public class DatagramSizeTest {
+
+    private final int port = 54321;
+
+    private final byte dataFlow = 3;
+
+    /**
+     * The probes must be valid packets of the asked size, even after adding
+     * the request identifier.
+     */
+    @Test
+    public void testProbe () {
+        System.out.println("probe");
+
+        DatagramPacket probe = PacketCreator.PROBE(dataFlow, port, 8192);
+        ByteBuffer buffer = ByteBuffer.allocate(Common.MAX_DATAGRAM_SIZE);
+        PacketView view = PacketView.of(probe);
+        int length;
+
+        assertEquals(8192, probe.getLength());
+        assertTrue(view.isCompact());
+        assertEquals(ControlMessage.CHECK_CON, view.message());
+        assertEquals(port, view.replyPort());
+        assertTrue(PacketChecker.check(view, ControlMessage.CHECK_CON));
+
+        length = PacketEncoder.compact(view, buffer, 0, 0x0FFFFFF);
+        view = new PacketView(buffer, InetAddress.getLoopbackAddress(), 0);
+        buffer.limit(length);
+
+        assertEquals(8192, length);
+        assertEquals(0x0FFFFFF, view.requestId());
+        assertEquals(ControlMessage.CHECK_CON, view.message());
+
+        /* A padded CHECK_CON without the flag isn't valid */
+        probe.getData() [3] &= ~PacketEncoder.FLAG_PROBE;
+
+        assertNull(PacketView.of(probe).message());
+    }
+
+    /**
+     * The text must be split on packets of the given size, without losing any
+     * byte between them.
+     */
+    @Test
+    public void testLargePackets () {
+        System.out.println("large packets");
+
+        byte [] text = new byte [20000];
+        ByteArrayOutputStream joined = new ByteArrayOutputStream();
+        ArrayList<DatagramPacket> packets;
+
+        new Random(11).nextBytes(text);
+        packets = PacketCreator.PLAIN(dataFlow, text, port, 8192);
+
+        assertEquals(3, packets.size());
+
+        for (DatagramPacket packet : packets) {
+
+            PacketView view = PacketView.of(packet);
+            ByteBuffer data = view.payload(view.arguments());
+
+            assertTrue(packet.getLength() <= 8192);
+            assertNotNull(view.message());
+
+            /* Removes the "CONT" mark */
+            if (view.hasMoreData()) {
+
+                data.limit(data.limit() - 4);
+            }
+
+            byte [] bytes = new byte [data.remaining()];
+
+            data.get(bytes);
+            joined.write(bytes, 0, bytes.length);
+        }
+
+        assertArrayEquals(text, joined.toByteArray());
+
+        /* The fragments take the given size, too */
+        packets = PacketCreator.FRAGMENTS(dataFlow, text, port, 1, 8192);
+
+        assertEquals(3, packets.size());
+
+        for (DatagramPacket packet : packets) {
+
+            assertTrue(packet.getLength() <= 8192);
+        }
+
+        /* The default one is still the size of the buffers */
+        for (DatagramPacket packet : PacketCreator.DATA(dataFlow, text, port)) {
+
+            assertTrue(packet.getLength() <= Common.BUFF_SIZE);
+        }
+    }
+
+    /**
+     * On the loopback interface, datagrams larger than the buffers must reach
+     * the other peer.
+     */
+    @Test
+    public void testProbeLoopback () throws Exception {
+        System.out.println("probe loopback");
+
+        Peer origin = new Peer();
+        Peer destination = new Peer();
+
+        try {
+
+            Host host = new Host(InetAddress.getLoopbackAddress(),
+                                 destination.getServer().getPort(),
+                                 dataFlow);
+
+            assertFalse(host.isProbed());
+            assertEquals(Common.BUFF_SIZE, host.getDatagramSize());
+
+            origin.joinChatRoom(host, dataFlow);
+
+            int size = host.probeDatagramSize(origin).get(10, TimeUnit.SECONDS);
+
+            assertTrue(host.isProbed());
+            assertTrue(size > Common.BUFF_SIZE);
+            assertEquals(size, host.getDatagramSize());
+
+        } finally {
+
+            origin.getServer().close();
+            destination.getServer().close();
+        }
+    }
+}
@@ -0,0 +1,183 @@
+/*
+ * To change this license header, choose License Headers in Project Properties.
+ * To change this template file, choose Tools | Templates
+ * and open the template in the editor.
+ */
+package control;
+
+import packets.Capabilities;
+import peer.Host;
+import peer.Peer;
+import java.net.InetAddress;
+import org.junit.Test;
+import static org.junit.Assert.*;
+
+/**
+ *
+ */
+public class DuplicateFilterTest {
+
+    private final InetAddress address = InetAddress.getLoopbackAddress();
+
+    private final int port = 1234;
+
+    /**
+     * Every identifier must be accepted once, in any order, while it's inside
+     * the window.
+     */
+    @Test
+    public void testAccept () {
+        System.out.println("accept");
+
+        DuplicateFilter instance = new DuplicateFilter(64);
+
+        assertTrue(instance.accept(address, port, 10));
+        assertFalse(instance.accept(address, port, 10));
+        assertTrue(instance.accept(address, port, 12));
+        assertTrue(instance.accept(address, port, 11));
+        assertFalse(instance.accept(address, port, 11));
+        assertFalse(instance.accept(address, port, 12));
+
+        /* Older than the first one, but inside the window */
+        assertTrue(instance.accept(address, port, 5));
+        assertFalse(instance.accept(address, port, 5));
+
+        /* Another sender has its own window */
+        assertTrue(instance.accept(address, port + 1, 10));
+
+        /* Without identifier, nothing can be checked */
+        assertTrue(instance.accept(address, port, -1));
+        assertTrue(instance.accept(address, port, -1));
+    }
+
+    /**
+     * The window must move with the highest identifier, and forget the ones
+     * that are left behind.
+     */
+    @Test
+    public void testWindow () {
+        System.out.println("window");
+
+        DuplicateFilter instance = new DuplicateFilter(64);
+
+        assertTrue(instance.accept(address, port, 0));
+        assertTrue(instance.accept(address, port, 100));
+
+        /* Left behind the window */
+        assertFalse(instance.accept(address, port, 1));
+
+        /* The bits reused by the window have been cleared */
+        assertTrue(instance.accept(address, port, 64));
+        assertTrue(instance.accept(address, port, 99));
+        assertFalse(instance.accept(address, port, 100));
+
+        /* The identifiers wrap around */
+        instance = new DuplicateFilter(64);
+
+        assertTrue(instance.accept(address, port, 0x0FFFFFFE));
+        assertTrue(instance.accept(address, port, 1));
+        assertTrue(instance.accept(address, port, 0x0FFFFFFF));
+        assertFalse(instance.accept(address, port, 0x0FFFFFFE));
+        assertTrue(instance.accept(address, port, 0));
+    }
+
+    /**
+     * After a reset, the identifiers must be accepted again.
+     */
+    @Test
+    public void testReset () {
+        System.out.println("reset");
+
+        DuplicateFilter instance = new DuplicateFilter(64);
+
+        assertTrue(instance.accept(address, port, 5000));
+        assertFalse(instance.accept(address, port, 0));
+
+        instance.reset(address, port);
+
+        assertTrue(instance.accept(address, port, 0));
+        assertTrue(instance.accept(address, port, 5000));
+    }
+
+    /**
+     * A request that couldn't be handled must be accepted again when it's
+     * retransmitted, without forgetting the other ones.
+     */
+    @Test
+    public void testForget () {
+        System.out.println("forget");
+
+        DuplicateFilter instance = new DuplicateFilter(64);
+
+        assertTrue(instance.accept(address, port, 10));
+        assertTrue(instance.accept(address, port, 11));
+
+        instance.forget(address, port, 11);
+        instance.forget(address, port, 10);
+
+        assertTrue(instance.accept(address, port, 11));
+        assertFalse(instance.accept(address, port, 11));
+        assertTrue(instance.accept(address, port, 10));
+
+        assertTrue(instance.accept(address, port, 12));
+        instance.forget(address, port, 11);
+        assertTrue(instance.accept(address, port, 11));
+        assertFalse(instance.accept(address, port, 12));
+
+        /* Behind the window, it's still a duplicate */
+        assertTrue(instance.accept(address, port, 200));
+        instance.forget(address, port, 12);
+        assertFalse(instance.accept(address, port, 12));
+
+        /* Unknown senders and packets without identifier are ignored */
+        instance.forget(address, port + 1, 10);
+        instance.forget(address, port, -1);
+        assertFalse(instance.accept(address, port, 200));
+    }
+
+    /**
+     * A request retransmitted after many requests to other hosts mustn't be
+     * taken as a duplicate: every host receives the identifiers of its own
+     * counter.
+     */
+    @Test
+    public void testRetransmissionAfterOtherHosts () {
+        System.out.println("retransmission after other hosts");
+
+        Peer peer = new Peer();
+        Host receiver = new Host(address, port, (byte) 1);
+        Host other = new Host(address, port + 1, (byte) 1);
+        DuplicateFilter instance = new DuplicateFilter(4096);
+        int lost;
+        int next;
+
+        try {
+
+            peer.getServer().negotiate(address, port, Capabilities.SUPPORTED);
+            peer.getServer().negotiate(address, port + 1, Capabilities.SUPPORTED);
+
+            assertTrue(instance.accept(address, port, peer.getServer().nextRequestId(receiver)));
+
+            /* This one is lost, and the sender goes on with the other host */
+            lost = peer.getServer().nextRequestId(receiver);
+
+            for (int i = 0; i < 5000; i++) {
+
+                peer.getServer().nextRequestId(other);
+            }
+
+            next = peer.getServer().nextRequestId(receiver);
+
+            assertEquals(lost + 1, next);
+            assertTrue(instance.accept(address, port, next));
+
+            /* The retransmission arrives after more than 4096 identifiers */
+            assertTrue(instance.accept(address, port, lost));
+            assertFalse(instance.accept(address, port, lost));
+
+        } finally {
+
+            peer.getServer().close();
+        }
+    }
+}
@@ -0,0 +1,152 @@
+/*
+ * To change this license header, choose License Headers in Project Properties.
+ * To change this template file, choose Tools | Templates
+ * and open the template in the editor.
+ */
+package control;
+
+import common.Common;
+import packets.ControlMessage;
+import packets.PacketCreator;
+import peer.Host;
+import peer.Peer;
+import java.net.DatagramSocket;
+import java.net.InetAddress;
+import java.util.ArrayList;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.TimeUnit;
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+import static org.junit.Assert.*;
+
+/**
+ * Tests of {@code Host.sendAsync()} between two peers on the loopback
+ * interface.
+ */
+public class HostSendAsyncTest {
+
+    private Peer origin;
+
+    private Peer destination;
+
+    private final byte dataFlow = 3;
+
+    @Before
+    public void setUp () {
+
+        origin = new Peer();
+        destination = new Peer();
+    }
+
+    @After
+    public void tearDown () {
+
+        origin.getServer().close();
+        destination.getServer().close();
+    }
+
+    /**
+     * Many requests in flight at the same time must be answered without
+     * waiting for each other.
+     */
+    @Test
+    public void testConcurrentRequests () throws Exception {
+        System.out.println("sendAsync - concurrent requests");
+
+        ArrayList<CompletableFuture<Boolean>> answers = new ArrayList<>();
+        long start = System.nanoTime();
+
+        for (int i = 0; i < 50; i++) {
+
+            /* A different data flow for every request, so every ACK has its
+            own notification */
+            byte df = (byte) (dataFlow + i);
+            Host host = new Host(InetAddress.getLoopbackAddress(),
+                                 destination.getServer().getPort(),
+                                 df);
+
+            answers.add(host.sendAsync(PacketCreator.HELLO(df, origin.getServer().getPort()),
+                                       new Notification(host.getIPaddress(), df, ControlMessage.ACK),
+                                       origin,
+                                       4));
+        }
+
+        for (CompletableFuture<Boolean> answer : answers) {
+
+            assertTrue(answer.get(10, TimeUnit.SECONDS));
+        }
+
+        System.out.println("\t50 requests answered in "
+                           + TimeUnit.NANOSECONDS.toMillis(System.nanoTime() - start)
+                           + " ms");
+    }
+
+    /**
+     * If nobody answers, the future must be completed with <i>false</i> after
+     * all the tries.
+     */
+    @Test
+    public void testNoAnswer () throws Exception {
+        System.out.println("sendAsync - no answer");
+
+        int port;
+
+        /* A port where nobody is listening */
+        try (DatagramSocket socket = new DatagramSocket()) {
+
+            port = socket.getLocalPort();
+        }
+
+        Host host = new Host(InetAddress.getLoopbackAddress(), port, dataFlow);
+        Notification notif = new Notification(host.getIPaddress(), dataFlow, ControlMessage.ACK);
+        CompletableFuture<Boolean> answer;
+
+        answer = host.sendAsync(PacketCreator.CHECK_CON(dataFlow, origin.getServer().getPort()),
+                                notif,
+                                origin,
+                                2);
+
+        /* The notification waits until the last try could be answered */
+        assertTrue(notif.getExpiryTime() >= 2 * Host.MAX_RTO);
+
+        assertFalse(answer.isDone());
+        assertFalse(answer.get(10, TimeUnit.SECONDS));
+
+        origin.getServer().removeNotification(notif);
+    }
+
+    /**
+     * The packets given to sendAllAsync() must be sent one after the other,
+     * while the ones to other hosts are sent at the same time.
+     */
+    @Test
+    public void testSendAll () throws Exception {
+        System.out.println("sendAllAsync");
+
+        ArrayList<CompletableFuture<Boolean>> answers = new ArrayList<>();
+
+        for (int i = 0; i < 10; i++) {
+
+            byte df = (byte) (dataFlow + i);
+            Host host = new Host(InetAddress.getLoopbackAddress(),
+                                 destination.getServer().getPort(),
+                                 df);
+            ArrayList<java.net.DatagramPacket> packets = new ArrayList<>();
+
+            for (int j = 0; j < 5; j++) {
+
+                packets.add(PacketCreator.HELLO(df, origin.getServer().getPort()));
+            }
+
+            answers.add(host.sendAllAsync(packets, origin, 4));
+        }
+
+        for (CompletableFuture<Boolean> answer : answers) {
+
+            assertTrue(answer.get(10, TimeUnit.SECONDS));
+        }
+
+        assertEquals(0, Common.retransmissions.getOutstanding());
+    }
+}
@@ -0,0 +1,211 @@
+/*
+ * To change this license header, choose License Headers in Project Properties.
+ * To change this template file, choose Tools | Templates
+ * and open the template in the editor.
+ */
+package control;
+
+import packets.ControlMessage;
+import packets.PacketChecker;
+import packets.PacketCreator;
+import peer.Host;
+import java.net.DatagramPacket;
+import java.net.InetAddress;
+import java.util.ArrayList;
+import java.util.EnumMap;
+import org.junit.Test;
+import static org.junit.Assert.*;
+
+/**
+ * Compares the search of the notifications classifying the packet once for
+ * every notification ({@code Notification.checkPacket(packet)}) and only once
+ * for every packet ({@code Notification.checkPacket(packet, type)}).
+ */
+public class NotificationSearchTest {
+
+    private final int port = 1234;
+
+    private final byte dataFlow = 1;
+
+    private final InetAddress address = InetAddress.getLoopbackAddress();
+
+    /**
+     * Returns a well-formed packet of every message type.
+     */
+    private EnumMap<ControlMessage, DatagramPacket> samples () {
+
+        EnumMap<ControlMessage, DatagramPacket> samples = new EnumMap<>(ControlMessage.class);
+        byte [] info;
+
+        info = new Host(address, port, dataFlow).getInfo();
+
+        samples.put(ControlMessage.ACK, PacketCreator.ACK(dataFlow, port));
+        samples.put(ControlMessage.NACK, PacketCreator.NACK(dataFlow));
+        samples.put(ControlMessage.HOSTS_REQ, PacketCreator.HOSTS_REQ(dataFlow, port));
+        samples.put(ControlMessage.HOSTS_RESP, PacketCreator.HOSTS_RESP(dataFlow, info));
+        samples.put(ControlMessage.HELLO, PacketCreator.HELLO(dataFlow, port));
+        samples.put(ControlMessage.BYE, PacketCreator.BYE(dataFlow, port));
+        samples.put(ControlMessage.CHECK_CON, PacketCreator.CHECK_CON(dataFlow, port));
+        samples.put(ControlMessage.CHNG_DF_REQ,
+                    PacketCreator.CHNG_DF_REQ(dataFlow, (byte) 2, port));
+        samples.put(ControlMessage.CHNG_DF_RESP,
+                    PacketCreator.CHNG_DF_RESP(dataFlow, false, (byte) 2, port));
+        samples.put(ControlMessage.INFO,
+                    PacketCreator.INFO(dataFlow, "info".getBytes(), port));
+        samples.put(ControlMessage.PLAIN,
+                    PacketCreator.PLAIN(dataFlow, "plain text".getBytes(), port).get(0));
+        samples.put(ControlMessage.DATA,
+                    PacketCreator.DATA(dataFlow, new byte [1500], port).get(0));
+
+        /* The CONT packets are the second ones of a long message */
+        samples.put(ControlMessage.CONT,
+                    PacketCreator.PLAIN(dataFlow, new byte [3000], port).get(1));
+
+        for (DatagramPacket p : samples.values()) {
+
+            p.setAddress(address);
+        }
+
+        return samples;
+    }
+
+    /**
+     * Returns a list with pending notifications of every message type and
+     * some data flows, but none from the given data flow.
+     */
+    private ArrayList<Notification> pending (int dataFlows) {
+
+        ArrayList<Notification> pending = new ArrayList<>();
+
+        for (int i = 0; i < dataFlows; i++) {
+
+            for (ControlMessage m : ControlMessage.values()) {
+
+                pending.add(new Notification(address, (byte) (dataFlow + 1 + i), m));
+            }
+        }
+
+        return pending;
+    }
+
+    /**
+     * Both methods must give the same result for every combination of
+     * message and notification.
+     */
+    @Test
+    public void testSameResults () {
+
+        System.out.println("notification search - same results");
+
+        EnumMap<ControlMessage, DatagramPacket> samples = samples();
+
+        for (ControlMessage expected : ControlMessage.values()) {
+
+            for (ControlMessage m : ControlMessage.values()) {
+
+                DatagramPacket packet = samples.get(m);
+                ControlMessage type = PacketChecker.checkPacket(packet.getData());
+                Notification n = new Notification(address, dataFlow, expected);
+
+                assertEquals(m, type);
+                assertEquals(expected == m, n.checkPacket(packet));
+                assertEquals(expected == m, n.checkPacket(packet, type));
+
+                /* With the port of the answer */
+                n.setPort(port);
+                assertEquals(n.checkPacket(packet), n.checkPacket(packet, type));
+            }
+        }
+
+        /* Unknown packets */
+        DatagramPacket garbage = new DatagramPacket(new byte [] {7, 7, 7}, 3, address, port);
+        Notification n = new Notification(address, dataFlow, ControlMessage.ACK);
+
+        assertFalse(n.checkPacket(garbage));
+        assertFalse(n.checkPacket(garbage, PacketChecker.checkPacket(garbage.getData())));
+    }
+
+    /**
+     * Measures the search of a packet of every message type on a list of
+     * pending notifications that don't match it, and prints the results.
+     */
+    @Test
+    public void benchmark () {
+
+        System.out.println("notification search - benchmark (ns/packet)");
+
+        int iterations = 2000;
+        long totalPerNotification = 0;
+        long totalOnce = 0;
+        EnumMap<ControlMessage, DatagramPacket> samples = samples();
+        ArrayList<Notification> pending = pending(4);
+
+        /* Warm-up */
+        for (DatagramPacket packet : samples.values()) {
+
+            time(packet, pending, iterations, true);
+            time(packet, pending, iterations, false);
+        }
+
+        for (ControlMessage m : ControlMessage.values()) {
+
+            DatagramPacket packet = samples.get(m);
+            long perNotification = Long.MAX_VALUE;
+            long once = Long.MAX_VALUE;
+
+            /* Keeps the best of some rounds, to filter out the noise */
+            for (int round = 0; round < 5; round++) {
+
+                perNotification = Math.min(perNotification,
+                                           time(packet, pending, iterations, true));
+                once = Math.min(once, time(packet, pending, iterations, false));
+            }
+
+            totalPerNotification += perNotification;
+            totalOnce += once;
+
+            System.out.printf("\t%-12s per notification: %8.1f\tonce: %8.1f%n",
+                              m,
+                              (double) perNotification / iterations,
+                              (double) once / iterations);
+        }
+
+        System.out.printf("\t%-12s per notification: %8.1f\tonce: %8.1f%n",
+                          "total",
+                          (double) totalPerNotification / iterations,
+                          (double) totalOnce / iterations);
+    }
+
+    /**
+     * Returns the nanoseconds taken to search the given packet on the list
+     * the given number of times.
+     */
+    private long time (DatagramPacket packet,
+                       ArrayList<Notification> pending,
+                       int iterations,
+                       boolean perNotification) {
+
+        long start = System.nanoTime();
+
+        for (int i = 0; i < iterations; i++) {
+
+            if (perNotification) {
+
+                for (Notification n : pending) {
+
+                    assertFalse(n.checkPacket(packet));
+                }
+            } else {
+
+                ControlMessage type = PacketChecker.checkPacket(packet.getData());
+
+                for (Notification n : pending) {
+
+                    assertFalse(n.checkPacket(packet, type));
+                }
+            }
+        }
+
+        return System.nanoTime() - start;
+    }
+}
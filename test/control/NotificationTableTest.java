@@ -0,0 +1,261 @@
+/*
+ * To change this license header, choose License Headers in Project Properties.
+ * To change this template file, choose Tools | Templates
+ * and open the template in the editor.
+ */
+package control;
+
+import packets.ControlMessage;
+import packets.PacketChecker;
+import packets.PacketCreator;
+import packets.PacketEncoder;
+import packets.PacketView;
+import java.net.DatagramPacket;
+import java.net.InetAddress;
+import java.nio.ByteBuffer;
+import java.util.ArrayList;
+import java.util.Random;
+import org.junit.Before;
+import org.junit.Test;
+import static org.junit.Assert.*;
+
+/**
+ *
+ */
+public class NotificationTableTest {
+
+    private NotificationTable instance;
+
+    private final InetAddress address = InetAddress.getLoopbackAddress();
+
+    private final byte dataFlow = 1;
+
+    private final int port = 1234;
+
+    @Before
+    public void setUp () {
+
+        instance = new NotificationTable();
+    }
+
+    /**
+     * Returns the given packet with the source address set.
+     */
+    private DatagramPacket from (DatagramPacket packet, InetAddress source) {
+
+        packet.setAddress(source);
+
+        return packet;
+    }
+
+    /**
+     * Test of add and remove methods, of class NotificationTable.
+     */
+    @Test
+    public void testAddRemove () {
+        System.out.println("add/remove");
+
+        Notification n = new Notification(address, dataFlow, ControlMessage.ACK);
+
+        assertTrue(instance.add(n));
+        assertFalse(instance.add(n));
+        assertEquals(1, instance.size());
+
+        instance.remove(n);
+        assertEquals(0, instance.size());
+
+        /* Removing it again does nothing */
+        instance.remove(n);
+        assertEquals(0, instance.size());
+    }
+
+    /**
+     * Test of search method, of class NotificationTable.
+     */
+    @Test
+    public void testSearch () {
+        System.out.println("search");
+
+        DatagramPacket ack = from(PacketCreator.ACK(dataFlow, port), address);
+        Notification any = new Notification(address, dataFlow, ControlMessage.ACK);
+        Notification withPort = new Notification(address, dataFlow, ControlMessage.ACK);
+        Notification otherFlow = new Notification(address, (byte) 2, ControlMessage.ACK);
+
+        withPort.setPort(port);
+
+        instance.add(otherFlow);
+        assertNull(instance.search(ack, ControlMessage.ACK));
+
+        instance.add(any);
+        instance.add(withPort);
+
+        /* The ones waiting for that port are found first */
+        assertSame(withPort, instance.search(ack, ControlMessage.ACK));
+        assertTrue(withPort.isReceived());
+        assertFalse(any.isReceived());
+
+        instance.remove(withPort);
+        assertSame(any, instance.search(ack, ControlMessage.ACK));
+
+        /* Other port, message or type */
+        withPort.setPort(port + 1);
+        instance.add(withPort);
+        instance.remove(any);
+        assertNull(instance.search(ack, ControlMessage.ACK));
+        assertNull(instance.search(ack, ControlMessage.NACK));
+        assertNull(instance.search(ack, null));
+
+        /* Search used with NACK */
+        assertSame(otherFlow, instance.search(address, (byte) 2));
+        assertNull(instance.search(address, (byte) 3));
+    }
+
+    /**
+     * The answers that echo the identifier of the request must complete that
+     * request, and not another one waiting for an answer from the same host.
+     */
+    @Test
+    public void testRequestId () {
+        System.out.println("request ID");
+
+        Notification first = new Notification(address, dataFlow, ControlMessage.ACK);
+        Notification second = new Notification(address, dataFlow, ControlMessage.ACK);
+        Notification legacy = new Notification(address, dataFlow, ControlMessage.ACK);
+        ByteBuffer buffer = ByteBuffer.allocate(20);
+
+        first.setRequestId(1);
+        second.setRequestId(2);
+
+        instance.add(first);
+        instance.add(second);
+
+        /* Out of order */
+        buffer.limit(PacketEncoder.compact(buffer, 0, ControlMessage.ACK, dataFlow,
+                                           port, -1, 2));
+
+        assertSame(second, instance.search(new PacketView(buffer, address, port),
+                                           ControlMessage.ACK));
+        assertFalse(first.isReceived());
+        assertTrue(second.checkPacket(new PacketView(buffer, address, port),
+                                      ControlMessage.ACK));
+        assertFalse(first.checkPacket(new PacketView(buffer, address, port),
+                                      ControlMessage.ACK));
+        instance.remove(second);
+
+        /* An answer without identifier only completes the requests sent
+        without it */
+        assertNull(instance.search(from(PacketCreator.ACK(dataFlow, port), address),
+                                   ControlMessage.ACK));
+
+        instance.add(legacy);
+        assertSame(legacy, instance.search(from(PacketCreator.ACK(dataFlow, port), address),
+                                           ControlMessage.ACK));
+
+        /* Search used with NACK */
+        assertSame(first, instance.search(address, dataFlow, 1));
+        assertSame(legacy, instance.search(address, dataFlow, 7));
+    }
+
+    /**
+     * The table must find the same notifications as checking all of them, one
+     * by one.
+     */
+    @Test
+    public void testSameAsScan () throws Exception {
+        System.out.println("same as scan");
+
+        Random random = new Random(42);
+        ArrayList<Notification> list = new ArrayList<>();
+        ControlMessage [] types = {ControlMessage.ACK,
+                                   ControlMessage.HOSTS_RESP,
+                                   ControlMessage.CHNG_DF_RESP};
+        InetAddress [] addresses = {address,
+                                    InetAddress.getByName("127.0.0.2"),
+                                    InetAddress.getByName("::1")};
+
+        for (int i = 0; i < 500; i++) {
+
+            Notification n = new Notification(addresses [random.nextInt(3)],
+                                              (byte) random.nextInt(4),
+                                              types [random.nextInt(3)]);
+            if (random.nextBoolean()) {
+
+                n.setPort(port + random.nextInt(3));
+            }
+
+            list.add(n);
+            instance.add(n);
+        }
+
+        for (int i = 0; i < 2000; i++) {
+
+            byte df = (byte) random.nextInt(4);
+            int p = port + random.nextInt(3);
+            DatagramPacket packet;
+
+            switch (random.nextInt(3)) {
+
+                case 0:
+                    packet = PacketCreator.ACK(df, p);
+                    break;
+
+                case 1:
+                    packet = PacketCreator.HOSTS_RESP(df, new byte [10]);
+                    break;
+
+                default:
+                    packet = PacketCreator.CHNG_DF_RESP(df, true, (byte) 0, p);
+            }
+
+            from(packet, addresses [random.nextInt(3)]);
+
+            ControlMessage type = PacketChecker.checkPacket(packet.getData());
+            Notification found = instance.search(packet, type);
+            boolean expected = false;
+
+            for (Notification n : list) {
+
+                expected |= n.checkPacket(packet, type);
+            }
+
+            assertEquals(expected, found != null);
+
+            if (found != null) {
+
+                assertTrue(found.checkPacket(packet, type));
+                instance.remove(found);
+                list.remove(found);
+            }
+        }
+
+        assertEquals(list.size(), instance.size());
+    }
+
+    /**
+     * The notifications must be removed after their expiry time.
+     */
+    @Test
+    public void testExpiry () throws InterruptedException {
+        System.out.println("expiry");
+
+        Notification expiring = new Notification(address, dataFlow, ControlMessage.ACK);
+        Notification staying = new Notification(address, dataFlow, ControlMessage.HOSTS_RESP);
+
+        expiring.setExpiryTime(200);
+        instance.add(expiring);
+        instance.add(staying);
+
+        for (int i = 0; (i < 50) && (instance.size() > 1); i++) {
+
+            Thread.sleep(100);
+        }
+
+        assertEquals(1, instance.size());
+        assertNull(instance.search(from(PacketCreator.ACK(dataFlow, port), address),
+                                   ControlMessage.ACK));
+
+        /* Removing it before it expires cancels the expiration */
+        instance.remove(staying);
+        assertTrue(staying.timeout.isCancelled());
+    }
+}
@@ -0,0 +1,168 @@
+/*
+ * To change this license header, choose License Headers in Project Properties.
+ * To change this template file, choose Tools | Templates
+ * and open the template in the editor.
+ */
+package control;
+
+import packets.ControlMessage;
+import packets.PacketChecker;
+import packets.PacketCreator;
+import peer.Host;
+import java.net.DatagramPacket;
+import java.net.InetAddress;
+import java.util.Arrays;
+import java.util.EnumMap;
+
+/**
+ * Compares the classification of the packets checking every message in order
+ * ({@link #chain(byte[])}, the old {@code PacketChecker.checkPacket()}) and
+ * looking up the candidates on the table of {@link PacketChecker}.
+ *
+ * <p>
+ * It's not a unit test, as the times depend on the machine. Run it with:
+ * <pre>
+ * java control.PacketCheckerBenchmark [iterations]
+ * </pre>
+ */
+public class PacketCheckerBenchmark {
+
+    private static final int port = 1234;
+
+    private static final byte dataFlow = 1;
+
+    /**
+     * Order of the checks of the chain.
+     */
+    private static final ControlMessage [] ORDER = {ControlMessage.ACK,
+                                                    ControlMessage.BYE,
+                                                    ControlMessage.CHECK_CON,
+                                                    ControlMessage.CHNG_DF_REQ,
+                                                    ControlMessage.CHNG_DF_RESP,
+                                                    ControlMessage.HELLO,
+                                                    ControlMessage.HOSTS_REQ,
+                                                    ControlMessage.HOSTS_RESP,
+                                                    ControlMessage.NACK,
+                                                    ControlMessage.PLAIN,
+                                                    ControlMessage.CONT,
+                                                    ControlMessage.DATA,
+                                                    ControlMessage.INFO};
+
+    /**
+     * Classifies the packet checking all the messages, one after another, until
+     * one of them is valid.
+     */
+    static ControlMessage chain (byte [] buffer) {
+
+        for (ControlMessage m : ORDER) {
+
+            if (PacketChecker.check(buffer, m)) {
+
+                return m;
+            }
+        }
+
+        return null;
+    }
+
+    /**
+     * Returns the bytes of a well-formed packet of every message type.
+     */
+    static EnumMap<ControlMessage, byte []> samples () {
+
+        EnumMap<ControlMessage, DatagramPacket> packets = new EnumMap<>(ControlMessage.class);
+        EnumMap<ControlMessage, byte []> samples = new EnumMap<>(ControlMessage.class);
+        byte [] info;
+
+        info = new Host(InetAddress.getLoopbackAddress(), port, dataFlow).getInfo();
+
+        packets.put(ControlMessage.ACK, PacketCreator.ACK(dataFlow, port));
+        packets.put(ControlMessage.NACK, PacketCreator.NACK(dataFlow));
+        packets.put(ControlMessage.HOSTS_REQ, PacketCreator.HOSTS_REQ(dataFlow, port));
+        packets.put(ControlMessage.HOSTS_RESP, PacketCreator.HOSTS_RESP(dataFlow, info));
+        packets.put(ControlMessage.HELLO, PacketCreator.HELLO(dataFlow, port));
+        packets.put(ControlMessage.BYE, PacketCreator.BYE(dataFlow, port));
+        packets.put(ControlMessage.CHECK_CON, PacketCreator.CHECK_CON(dataFlow, port));
+        packets.put(ControlMessage.CHNG_DF_REQ,
+                    PacketCreator.CHNG_DF_REQ(dataFlow, (byte) 2, port));
+        packets.put(ControlMessage.CHNG_DF_RESP,
+                    PacketCreator.CHNG_DF_RESP(dataFlow, false, (byte) 2, port));
+        packets.put(ControlMessage.INFO,
+                    PacketCreator.INFO(dataFlow, "info".getBytes(), port));
+        packets.put(ControlMessage.PLAIN,
+                    PacketCreator.PLAIN(dataFlow, "plain text".getBytes(), port).get(0));
+        packets.put(ControlMessage.DATA,
+                    PacketCreator.DATA(dataFlow, new byte [1500], port).get(0));
+
+        /* The CONT packets are the second ones of a long message */
+        packets.put(ControlMessage.CONT,
+                    PacketCreator.PLAIN(dataFlow, new byte [3000], port).get(1));
+
+        for (ControlMessage m : packets.keySet()) {
+
+            DatagramPacket p = packets.get(m);
+
+            samples.put(m, Arrays.copyOfRange(p.getData(),
+                                              p.getOffset(),
+                                              p.getOffset() + p.getLength()));
+        }
+
+        return samples;
+    }
+
+    public static void main (String [] args) {
+
+        int iterations = (args.length > 0)? Integer.parseInt(args[0]) : 1000000;
+        EnumMap<ControlMessage, byte []> samples = samples();
+        long totalChain = 0;
+        long totalTable = 0;
+        int found = 0;
+
+        System.out.println("ns per packet (" + iterations + " iterations)");
+
+        for (ControlMessage m : samples.keySet()) {
+
+            byte [] buffer = samples.get(m);
+            long start;
+            long chain;
+            long table;
+
+            /* Warm up */
+            for (int i = 0; i < iterations; i++) {
+
+                found += (chain(buffer) == m)? 1 : 0;
+                found += (PacketChecker.checkPacket(buffer) == m)? 1 : 0;
+            }
+
+            start = System.nanoTime();
+            for (int i = 0; i < iterations; i++) {
+
+                found += (chain(buffer) == m)? 1 : 0;
+            }
+            chain = System.nanoTime() - start;
+
+            start = System.nanoTime();
+            for (int i = 0; i < iterations; i++) {
+
+                found += (PacketChecker.checkPacket(buffer) == m)? 1 : 0;
+            }
+            table = System.nanoTime() - start;
+
+            totalChain += chain;
+            totalTable += table;
+
+            System.out.printf("\t%-12s chain: %6.1f\ttable: %6.1f%n",
+                              m,
+                              (double) chain / iterations,
+                              (double) table / iterations);
+        }
+
+        System.out.printf("\t%-12s chain: %6.1f\ttable: %6.1f%n",
+                          "average",
+                          (double) totalChain / iterations / samples.size(),
+                          (double) totalTable / iterations / samples.size());
+
+        /* Keeps the results alive */
+        System.out.println("\t(" + found + " packets recognised)");
+    }
+}
@@ -194,4 +194,55 @@ public class PacketCheckerTest {
         assertTrue(result);
     }
 
+    /**
+     * Test of checkPacket method, of class PacketChecker: the lookup on the
+     * table must give the same result as checking all the messages in order,
+     * for well-formed packets and for damaged or random ones.
+     */
+    @Test
+    public void testCheckPacketTable() {
+        System.out.println("checkPacketTable");
+
+        java.util.Random random = new java.util.Random(42);
+
+        for (byte [] sample : PacketCheckerBenchmark.samples().values()) {
+
+            assertEquals(PacketCheckerBenchmark.chain(sample),
+                         PacketChecker.checkPacket(sample));
+
+            /* Every byte changed, one at a time */
+            for (int i = 0; i < Math.min(sample.length, 64); i++) {
+
+                byte [] damaged = sample.clone();
+
+                for (int value = 0; value < 256; value += 7) {
+
+                    damaged[i] = (byte) value;
+
+                    assertEquals(PacketCheckerBenchmark.chain(damaged),
+                                 PacketChecker.checkPacket(damaged));
+                }
+            }
+
+            /* Truncated packets */
+            for (int length = 0; length < sample.length; length++) {
+
+                byte [] truncated = java.util.Arrays.copyOf(sample, length);
+
+                assertEquals(PacketCheckerBenchmark.chain(truncated),
+                             PacketChecker.checkPacket(truncated));
+            }
+        }
+
+        for (int i = 0; i < 10000; i++) {
+
+            byte [] buffer = new byte [random.nextInt(64)];
+
+            random.nextBytes(buffer);
+
+            assertEquals(PacketCheckerBenchmark.chain(buffer),
+                         PacketChecker.checkPacket(buffer));
+        }
+    }
+
 }
@@ -0,0 +1,181 @@
+/*
+ * To change this license header, choose License Headers in Project Properties.
+ * To change this template file, choose Tools | Templates
+ * and open the template in the editor.
+ */
+package control;
+
+import common.Common;
+import packets.ControlMessage;
+import packets.PacketChecker;
+import packets.PacketCreator;
+import packets.PacketEncoder;
+import java.lang.management.ManagementFactory;
+import java.net.DatagramPacket;
+import java.nio.ByteBuffer;
+import java.util.Arrays;
+import org.junit.Test;
+import static org.junit.Assert.*;
+
+/**
+ *
+ */
+public class PacketEncoderTest {
+
+    private final int port = 54321;
+
+    private final byte dataFlow = 3;
+
+    /**
+     * Returns the bytes written on the buffer, from the given position.
+     */
+    private byte [] written (ByteBuffer buffer, int at, int length) {
+
+        byte [] bytes = new byte [length];
+
+        for (int i = 0; i < length; i++) {
+
+            bytes [i] = buffer.get(at + i);
+        }
+
+        return bytes;
+    }
+
+    /**
+     * Every message written on a buffer must be the same one created by
+     * PacketCreator, and the position and limit of the buffer mustn't change.
+     */
+    @Test
+    public void testSamePackets () {
+        System.out.println("same packets");
+
+        ByteBuffer buffer = ByteBuffer.allocateDirect(Common.BUFF_SIZE);
+        byte [] info = "Name: a.txt".getBytes();
+        byte [] text = "Hello".getBytes();
+        int at = 7;
+
+        buffer.position(3);
+
+        assertArrayEquals(PacketCreator.ACK(dataFlow, port).getData(),
+                          written(buffer, at, PacketEncoder.ACK(buffer, at, dataFlow, port)));
+        assertArrayEquals(PacketCreator.NACK(dataFlow).getData(),
+                          written(buffer, at, PacketEncoder.NACK(buffer, at, dataFlow)));
+        assertArrayEquals(PacketCreator.HOSTS_REQ(dataFlow, port).getData(),
+                          written(buffer, at, PacketEncoder.HOSTS_REQ(buffer, at, dataFlow, port)));
+        assertArrayEquals(PacketCreator.HOSTS_RESP(dataFlow, info).getData(),
+                          written(buffer, at, PacketEncoder.HOSTS_RESP(buffer, at, dataFlow, info)));
+        assertArrayEquals(PacketCreator.HELLO(dataFlow, port).getData(),
+                          written(buffer, at, PacketEncoder.HELLO(buffer, at, dataFlow, port)));
+        assertArrayEquals(PacketCreator.BYE(dataFlow, port).getData(),
+                          written(buffer, at, PacketEncoder.BYE(buffer, at, dataFlow, port)));
+        assertArrayEquals(PacketCreator.CHECK_CON(dataFlow, port).getData(),
+                          written(buffer, at, PacketEncoder.CHECK_CON(buffer, at, dataFlow, port)));
+        assertArrayEquals(PacketCreator.CHNG_DF_REQ(dataFlow, (byte) 9, port).getData(),
+                          written(buffer, at, PacketEncoder.CHNG_DF_REQ(buffer, at, dataFlow,
+                                                                        (byte) 9, port)));
+        assertArrayEquals(PacketCreator.CHNG_DF_RESP(dataFlow, false, (byte) 9, port).getData(),
+                          written(buffer, at, PacketEncoder.CHNG_DF_RESP(buffer, at, dataFlow,
+                                                                         false, (byte) 9, port)));
+        assertArrayEquals(PacketCreator.INFO(dataFlow, info, port).getData(),
+                          written(buffer, at, PacketEncoder.INFO(buffer, at, dataFlow, info, port)));
+        assertArrayEquals(PacketCreator.PLAIN(dataFlow, text, port).get(0).getData(),
+                          written(buffer, at, PacketEncoder.PLAIN(buffer, at, dataFlow, text,
+                                                                  0, text.length, port, false)));
+
+        assertEquals(3, buffer.position());
+        assertEquals(buffer.capacity(), buffer.limit());
+    }
+
+    /**
+     * The fragments of a long text must be valid packets, and carry the CONT
+     * mark on all of them but the last one.
+     */
+    @Test
+    public void testFragments () {
+        System.out.println("fragments");
+
+        byte [] text = new byte [3 * Common.BUFF_SIZE];
+        int last;
+
+        Arrays.fill(text, (byte) 'a');
+
+        for (DatagramPacket packet : PacketCreator.DATA(dataFlow, text, port)) {
+
+            assertTrue(packet.getLength() <= Common.BUFF_SIZE);
+        }
+
+        last = PacketCreator.PLAIN(dataFlow, text, port).size() - 1;
+
+        for (int i = 0; i <= last; i++) {
+
+            byte [] data = PacketCreator.PLAIN(dataFlow, text, port).get(i).getData();
+
+            assertEquals((i == 0)? ControlMessage.PLAIN : ControlMessage.CONT,
+                         PacketChecker.checkPacket(data));
+            assertEquals(i != last, PacketChecker.hasMoreData(data));
+        }
+    }
+
+    /**
+     * If the packet doesn't fit, nothing must be written.
+     */
+    @Test
+    public void testNoRoom () {
+        System.out.println("no room");
+
+        ByteBuffer buffer = ByteBuffer.allocate(20);
+        byte [] text = new byte [10];
+
+        buffer.limit(14);
+
+        assertEquals(-1, PacketEncoder.CHECK_CON(buffer, 0, dataFlow, port));
+        assertEquals(-1, PacketEncoder.ACK(buffer, 7, dataFlow, port));
+        assertEquals(-1, PacketEncoder.PLAIN(buffer, 0, dataFlow, text, 0, 10, port, false));
+        assertEquals(-1, PacketEncoder.PLAIN(buffer, 0, dataFlow, text, 5, 6, port, false));
+        assertArrayEquals(new byte [20], buffer.array());
+
+        assertEquals(ControlMessage.ACK.getLength() + 4,
+                     PacketEncoder.ACK(buffer, 5, dataFlow, port));
+    }
+
+    /**
+     * Encoding into a reused buffer mustn't allocate anything.
+     */
+    @Test
+    public void testNoAllocation () {
+        System.out.println("no allocation");
+
+        com.sun.management.ThreadMXBean threads
+                = (com.sun.management.ThreadMXBean) ManagementFactory.getThreadMXBean();
+        ByteBuffer buffer = ByteBuffer.allocateDirect(Common.BUFF_SIZE);
+        byte [] text = new byte [1000];
+        long id = Thread.currentThread().getId();
+        long before;
+        long allocated;
+        long length = 0;
+        int rounds = 100000;
+
+        /* Warm up */
+        for (int i = 0; i < rounds; i++) {
+
+            length += PacketEncoder.ACK(buffer, 0, dataFlow, i);
+            length += PacketEncoder.PLAIN(buffer, 0, dataFlow, text, 0, text.length, i, true);
+        }
+
+        before = threads.getThreadAllocatedBytes(id);
+
+        for (int i = 0; i < rounds; i++) {
+
+            length += PacketEncoder.ACK(buffer, 0, dataFlow, i);
+            length += PacketEncoder.PLAIN(buffer, 0, dataFlow, text, 0, text.length, i, true);
+        }
+
+        allocated = threads.getThreadAllocatedBytes(id) - before;
+
+        System.out.println("\t" + allocated + " bytes allocated for "
+                           + (2 * rounds) + " packets");
+
+        assertTrue(length > 0);
+        assertTrue(allocated < 10000);
+    }
+}
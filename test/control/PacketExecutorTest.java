@@ -0,0 +1,399 @@
+/*
+ * To change this license header, choose License Headers in Project Properties.
+ * To change this template file, choose Tools | Templates
+ * and open the template in the editor.
+ */
+package control;
+
+import files.FileSharer;
+import peer.PacketExecutor;
+import peer.PacketExecutor.Priority;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.HashSet;
+import java.util.Random;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import org.junit.After;
+import org.junit.Test;
+import static org.junit.Assert.*;
+
+/**
+ *
+ */
+public class PacketExecutorTest {
+
+    private PacketExecutor instance;
+
+    private final CountDownLatch release = new CountDownLatch(1);
+
+    @After
+    public void tearDown () {
+
+        release.countDown();
+
+        if (instance != null) {
+
+            instance.shutdown();
+        }
+    }
+
+    /**
+     * Task that waits until the test ends.
+     */
+    private void block () {
+
+        try {
+
+            release.await(10, TimeUnit.SECONDS);
+
+        } catch (InterruptedException ex) {
+
+            Thread.currentThread().interrupt();
+        }
+    }
+
+    /**
+     * The bulk packets must be dropped before the control ones, and every
+     * dropped packet must be counted.
+     */
+    @Test
+    public void testShedding () throws Exception {
+        System.out.println("shedding");
+
+        CountDownLatch started = new CountDownLatch(1);
+
+        instance = new PacketExecutor(1, 4, 0.5f);
+        assertEquals(2, instance.getBulkLimit());
+
+        /* Keeps the only worker busy */
+        assertTrue(instance.execute(() -> { started.countDown(); block(); }, Priority.CONTROL));
+        assertTrue(started.await(5, TimeUnit.SECONDS));
+
+        assertTrue(instance.execute(this::block, Priority.BULK));
+        assertTrue(instance.execute(this::block, Priority.CONTROL));
+        assertEquals(2, instance.getQueueDepth());
+
+        /* Over the limit for the bulk packets, but there's room for control */
+        assertFalse(instance.execute(this::block, Priority.BULK));
+        assertTrue(instance.execute(this::block, Priority.CONTROL));
+        assertTrue(instance.execute(this::block, Priority.CONTROL));
+        assertEquals(4, instance.getQueueDepth());
+
+        /* Full */
+        assertFalse(instance.execute(this::block, Priority.CONTROL));
+        assertFalse(instance.execute(this::block, Priority.BULK));
+
+        assertEquals(2, instance.getDropped(Priority.BULK));
+        assertEquals(1, instance.getDropped(Priority.CONTROL));
+        assertEquals(3, instance.getRejected());
+        assertEquals(5, instance.getAccepted());
+        assertEquals(1, instance.getActiveWorkers());
+    }
+
+    /**
+     * A full window of a file transfer must fit on the lane of its sender
+     * with the default values, even if the worker is busy.
+     */
+    @Test
+    public void testWindowFitsOnLane () throws Exception {
+        System.out.println("window fits on lane");
+
+        CountDownLatch started = new CountDownLatch(1);
+        int key = 31 * 1234 + 7;
+
+        instance = new PacketExecutor();
+        assertTrue(instance.getBulkLimit() >= FileSharer.MAX_WINDOW);
+
+        /* Keeps the worker of the lane busy */
+        assertTrue(instance.execute(() -> { started.countDown(); block(); }, Priority.BULK, key));
+        assertTrue(started.await(5, TimeUnit.SECONDS));
+
+        for (int i = 0; i < FileSharer.MAX_WINDOW; i++) {
+
+            assertTrue(instance.execute(this::block, Priority.BULK, key));
+        }
+
+        assertEquals(FileSharer.MAX_WINDOW, instance.getQueueDepth(instance.lane(key)));
+        assertEquals(0, instance.getDropped(Priority.BULK));
+    }
+
+    /**
+     * A burst of packets mustn't create more threads than the limit.
+     */
+    @Test
+    public void testBoundedWorkers () throws Exception {
+        System.out.println("bounded workers");
+
+        AtomicInteger running = new AtomicInteger(0);
+
+        instance = new PacketExecutor(4, 1000, 1);
+
+        for (int i = 0; i < 500; i++) {
+
+            assertTrue(instance.execute(() -> { running.incrementAndGet(); block(); },
+                                        Priority.CONTROL));
+        }
+
+        for (int i = 0; (i < 50) && (running.get() < 4); i++) {
+
+            Thread.sleep(20);
+        }
+
+        assertEquals(4, running.get());
+        assertEquals(4, instance.getPoolSize());
+        assertEquals(496, instance.getQueueDepth());
+        assertEquals(0, instance.getRejected());
+    }
+
+    /**
+     * The control packets must be run before the text, and the text before
+     * the bulk data, even if they arrived later.
+     */
+    @Test
+    public void testPriorityOrder () throws Exception {
+        System.out.println("priority order");
+
+        CountDownLatch started = new CountDownLatch(1);
+        CountDownLatch done = new CountDownLatch(6);
+        ArrayList<String> order = new ArrayList<>();
+        Priority [] arrivals = {Priority.BULK, Priority.BULK, Priority.TEXT,
+                                Priority.CONTROL, Priority.TEXT, Priority.CONTROL};
+
+        instance = new PacketExecutor(1, 100, 1);
+
+        /* Keeps the only worker busy while the rest arrive */
+        instance.execute(() -> { started.countDown(); block(); }, Priority.BULK);
+        assertTrue(started.await(5, TimeUnit.SECONDS));
+
+        for (int i = 0; i < arrivals.length; i++) {
+
+            String name = arrivals [i] + " " + i;
+
+            assertTrue(instance.execute(() -> {
+
+                synchronized (order) {
+
+                    order.add(name);
+                }
+
+                done.countDown();
+            }, arrivals [i]));
+        }
+
+        release.countDown();
+        assertTrue(done.await(5, TimeUnit.SECONDS));
+
+        assertEquals(Arrays.asList("CONTROL 3", "CONTROL 5",
+                                             "TEXT 2", "TEXT 4",
+                                             "BULK 0", "BULK 1"),
+                     order);
+    }
+
+    /**
+     * The packets of the same sender must be run in the order they arrived,
+     * whatever their class; the priority only applies between senders.
+     */
+    @Test
+    public void testPriorityBetweenSenders () throws Exception {
+        System.out.println("priority between senders");
+
+        CountDownLatch started = new CountDownLatch(1);
+        CountDownLatch done = new CountDownLatch(5);
+        ArrayList<String> order = new ArrayList<>();
+        Priority [] arrivals = {Priority.BULK, Priority.TEXT, Priority.CONTROL,
+                                Priority.TEXT, Priority.CONTROL};
+        int [] senders = {1, 1, 1, 2, 2};
+
+        instance = new PacketExecutor(1, 100, 1);
+
+        /* Keeps the only worker busy while the rest arrive */
+        instance.execute(() -> { started.countDown(); block(); }, Priority.BULK);
+        assertTrue(started.await(5, TimeUnit.SECONDS));
+
+        for (int i = 0; i < arrivals.length; i++) {
+
+            String name = arrivals [i] + " " + senders [i] + "." + i;
+
+            assertTrue(instance.execute(() -> {
+
+                synchronized (order) {
+
+                    order.add(name);
+                }
+
+                done.countDown();
+            }, arrivals [i], senders [i]));
+        }
+
+        assertEquals(5, instance.getQueueDepth());
+
+        release.countDown();
+        assertTrue(done.await(5, TimeUnit.SECONDS));
+
+        /* The text of the second sender overtakes the bulk data of the first
+        one, but the control packets never overtake the older packets of their
+        own sender */
+        assertEquals(Arrays.asList("TEXT 2.3", "CONTROL 2.4",
+                                   "BULK 1.0", "TEXT 1.1", "CONTROL 1.2"),
+                     order);
+        assertEquals(0, instance.getQueueDepth());
+    }
+
+    /**
+     * During a flood of bulk data, the control packets mustn't wait behind it.
+     */
+    @Test
+    public void testWaitPerClass () throws Exception {
+        System.out.println("wait per class");
+
+        int packets = 5000;
+        CountDownLatch done = new CountDownLatch(packets + packets / 10);
+
+        instance = new PacketExecutor(1, 2 * packets, 1);
+
+        for (int i = 0; i < packets; i++) {
+
+            /* Every bulk packet takes some time to be handled */
+            assertTrue(instance.execute(() -> {
+
+                long end = System.nanoTime() + 20000;
+
+                while (System.nanoTime() < end) {
+
+                    Thread.onSpinWait();
+                }
+
+                done.countDown();
+            }, Priority.BULK));
+
+            if ((i % 10) == 0) {
+
+                assertTrue(instance.execute(done::countDown, Priority.CONTROL));
+            }
+        }
+
+        assertTrue(done.await(30, TimeUnit.SECONDS));
+
+        System.out.println("\tmean wait:"
+                           + " control " + (long) instance.getMeanWait(Priority.CONTROL) + " us,"
+                           + " bulk " + (long) instance.getMeanWait(Priority.BULK) + " us");
+
+        assertEquals(packets / 10, instance.getHandled(Priority.CONTROL));
+        assertTrue(instance.getMeanWait(Priority.CONTROL)
+                   < instance.getMeanWait(Priority.BULK) / 10);
+    }
+
+    /**
+     * Sends the given number of numbered packets from every sender, mixed at
+     * random, and returns the number of packets handled out of order.
+     */
+    private int stress (boolean keyed, int senders, int packets) throws Exception {
+
+        Random random = new Random(42);
+        int [] next = new int [senders];
+        int [] last = new int [senders];
+        AtomicInteger disorders = new AtomicInteger(0);
+        CountDownLatch done = new CountDownLatch(senders * packets);
+        Set<Thread> threads = Collections.newSetFromMap(new ConcurrentHashMap<>());
+        int remaining = senders * packets;
+
+        while (remaining > 0) {
+
+            int s = random.nextInt(senders);
+
+            if (next [s] >= packets) {
+
+                continue;
+            }
+
+            int seq = ++next [s];
+            Runnable handler = () -> {
+
+                /* Under a lock, so the check is also valid when the packets
+                of a sender are run on different threads */
+                synchronized (last) {
+
+                    if (seq < last [s]) {
+
+                        disorders.incrementAndGet();
+                    }
+
+                    last [s] = Math.max(last [s], seq);
+                }
+
+                threads.add(Thread.currentThread());
+                done.countDown();
+            };
+
+            /* The key is built like the ones of the handlers of ServerThread */
+            if (keyed) {
+
+                assertTrue(instance.execute(handler, Priority.CONTROL, 31 * (s + 1000) + 7));
+            } else {
+
+                assertTrue(instance.execute(handler, Priority.CONTROL));
+            }
+
+            remaining--;
+        }
+
+        assertTrue(done.await(30, TimeUnit.SECONDS));
+
+        if (keyed) {
+
+            assertTrue(threads.size() > 1);
+        }
+
+        return disorders.get();
+    }
+
+    /**
+     * The packets of every sender must be handled in the order they were
+     * received, while different senders are spread among the lanes.
+     */
+    @Test
+    public void testOrderPerSender () throws Exception {
+        System.out.println("order per sender");
+
+        int senders = 32;
+        int packets = 20000;
+        long start;
+
+        instance = new PacketExecutor(8, senders * packets, 1);
+
+        start = System.nanoTime();
+        assertEquals(0, stress(true, senders, packets));
+
+        System.out.println("\t" + (senders * packets) + " packets in "
+                           + TimeUnit.NANOSECONDS.toMillis(System.nanoTime() - start)
+                           + " ms, lanes used: " + usedLanes(senders));
+
+        /* Without a key, the packets of the same sender go to any lane */
+        instance.shutdown();
+        instance = new PacketExecutor(8, senders * packets, 1);
+
+        System.out.println("\tout of order without key: "
+                           + stress(false, senders, packets));
+    }
+
+    /**
+     * Returns the number of different lanes assigned to the keys used by
+     * {@code stress()}.
+     */
+    private int usedLanes (int senders) {
+
+        Set<Integer> used = new HashSet<>();
+
+        for (int s = 0; s < senders; s++) {
+
+            used.add(instance.lane(31 * (s + 1000) + 7));
+        }
+
+        return used.size();
+    }
+}
@@ -0,0 +1,133 @@
+/*
+ * To change this license header, choose License Headers in Project Properties.
+ * To change this template file, choose Tools | Templates
+ * and open the template in the editor.
+ */
+package control;
+
+import packets.ControlMessage;
+import packets.PacketCreator;
+import packets.PacketEncoder;
+import packets.PacketTemplates;
+import packets.PacketView;
+import java.net.DatagramPacket;
+import java.nio.ByteBuffer;
+import java.util.Arrays;
+import org.junit.Test;
+import static org.junit.Assert.*;
+
+/**
+ *
+ */
+public class PacketTemplatesTest {
+
+    private final int port = 54321;
+
+    private final byte dataFlow = 3;
+
+    /**
+     * Returns the bytes written on the buffer.
+     */
+    private byte [] written (ByteBuffer buffer, int length) {
+
+        assertTrue(length > 0);
+
+        return Arrays.copyOf(buffer.array(), length);
+    }
+
+    /**
+     * The templates must be the same packets created by
+     * {@link PacketCreator} and {@link PacketEncoder}.
+     */
+    @Test
+    public void testSameBytes () {
+        System.out.println("same bytes");
+
+        PacketTemplates instance = new PacketTemplates();
+        ByteBuffer buffer = ByteBuffer.allocate(64);
+        ByteBuffer expected = ByteBuffer.allocate(64);
+        DatagramPacket [] packets = {
+            PacketCreator.ACK(dataFlow, port),
+            PacketCreator.NACK(dataFlow),
+            PacketCreator.CHECK_CON(dataFlow, port),
+            PacketCreator.HELLO(dataFlow, port),
+            PacketCreator.BYE(dataFlow, port),
+            PacketCreator.HOSTS_REQ(dataFlow, port)
+        };
+        ControlMessage [] messages = {
+            ControlMessage.ACK,
+            ControlMessage.NACK,
+            ControlMessage.CHECK_CON,
+            ControlMessage.HELLO,
+            ControlMessage.BYE,
+            ControlMessage.HOSTS_REQ
+        };
+
+        for (int i = 0; i < messages.length; i++) {
+
+            assertTrue(PacketTemplates.isTemplate(messages [i]));
+
+            /* Twice: the second one is copied from the template */
+            for (int j = 0; j < 2; j++) {
+
+                assertArrayEquals(Arrays.copyOf(packets [i].getData(), packets [i].getLength()),
+                                  written(buffer, instance.stamp(buffer, 0, messages [i],
+                                                                 dataFlow, port)));
+
+                assertArrayEquals(written(expected,
+                                          PacketEncoder.compact(expected, 0, messages [i],
+                                                                dataFlow, port, -1, 300)),
+                                  written(buffer,
+                                          instance.stampCompact(buffer, 0, messages [i],
+                                                                dataFlow, port, 300)));
+
+                assertArrayEquals(written(expected,
+                                          PacketEncoder.compact(expected, 0, messages [i],
+                                                                dataFlow, port, -1)),
+                                  written(buffer,
+                                          instance.stampCompact(buffer, 0, messages [i],
+                                                                dataFlow, port, -1)));
+
+                /* The server stamps them instead of transcoding the packet */
+                assertArrayEquals(written(expected,
+                                          PacketEncoder.compact(PacketView.of(packets [i]),
+                                                                expected, 0, 300)),
+                                  written(buffer,
+                                          instance.stampCompact(buffer, 0, messages [i],
+                                                                dataFlow, port, 300)));
+            }
+        }
+
+        assertFalse(PacketTemplates.isTemplate(ControlMessage.PLAIN));
+
+        /* It doesn't fit */
+        assertEquals(-1, instance.stamp(ByteBuffer.allocate(4), 0, ControlMessage.ACK,
+                                        dataFlow, port));
+    }
+
+    /**
+     * The templates of a data flow must be forgotten when it changes, and the
+     * rest of them kept.
+     */
+    @Test
+    public void testInvalidate () {
+        System.out.println("invalidate");
+
+        PacketTemplates instance = new PacketTemplates();
+        ByteBuffer buffer = ByteBuffer.allocate(64);
+
+        instance.stamp(buffer, 0, ControlMessage.ACK, dataFlow, port);
+        instance.stampCompact(buffer, 0, ControlMessage.ACK, dataFlow, port, 1);
+        instance.stamp(buffer, 0, ControlMessage.ACK, (byte) -3, port);
+
+        assertEquals(3, instance.size());
+
+        instance.invalidate(dataFlow);
+
+        assertEquals(1, instance.size());
+
+        instance.invalidate((byte) -3);
+
+        assertEquals(0, instance.size());
+    }
+}
@@ -0,0 +1,210 @@
+/*
+ * To change this license header, choose License Headers in Project Properties.
+ * To change this template file, choose Tools | Templates
+ * and open the template in the editor.
+ */
+package control;
+
+import packets.ControlMessage;
+import packets.PacketChecker;
+import packets.PacketCreator;
+import packets.PacketView;
+import java.net.DatagramPacket;
+import java.net.InetAddress;
+import java.nio.ByteBuffer;
+import java.nio.ReadOnlyBufferException;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Random;
+import org.junit.Test;
+import static org.junit.Assert.*;
+
+/**
+ *
+ */
+public class PacketViewTest {
+
+    private final int port = 1234;
+
+    private final byte dataFlow = 3;
+
+    /**
+     * Returns one packet of every message.
+     */
+    private ArrayList<DatagramPacket> samples () {
+
+        ArrayList<DatagramPacket> packets = new ArrayList<>();
+
+        packets.add(PacketCreator.ACK(dataFlow, port));
+        packets.add(PacketCreator.NACK(dataFlow));
+        packets.add(PacketCreator.HOSTS_REQ(dataFlow, port));
+        packets.add(PacketCreator.HELLO(dataFlow, port));
+        packets.add(PacketCreator.BYE(dataFlow, port));
+        packets.add(PacketCreator.CHECK_CON(dataFlow, port));
+        packets.add(PacketCreator.CHNG_DF_REQ(dataFlow, (byte) 9, port));
+        packets.add(PacketCreator.CHNG_DF_RESP(dataFlow, true, (byte) 9, port));
+        packets.add(PacketCreator.CHNG_DF_RESP(dataFlow, false, (byte) 9, port));
+        packets.add(PacketCreator.INFO(dataFlow, "Name: a.txt".getBytes(), port));
+        packets.addAll(PacketCreator.PLAIN(dataFlow, new byte [5000], port));
+        packets.addAll(PacketCreator.DATA(dataFlow, new byte [5000], port));
+
+        return packets;
+    }
+
+    /**
+     * Returns the bytes of the packet.
+     */
+    private byte [] bytes (DatagramPacket packet) {
+
+        return Arrays.copyOfRange(packet.getData(),
+                                  packet.getOffset(),
+                                  packet.getOffset() + packet.getLength());
+    }
+
+    /**
+     * Creates a view over the given bytes, placed in the middle of a bigger
+     * buffer.
+     */
+    private PacketView view (byte [] bytes) {
+
+        ByteBuffer buffer = ByteBuffer.allocateDirect(bytes.length + 20);
+
+        buffer.position(10);
+        buffer.put(bytes);
+        buffer.limit(10 + bytes.length).position(10);
+
+        return new PacketView(buffer, InetAddress.getLoopbackAddress(), port);
+    }
+
+    /**
+     * The message of the view must be the same one that
+     * {@code PacketChecker.checkPacket(byte[])} finds on the copied bytes.
+     */
+    @Test
+    public void testMessage () {
+        System.out.println("message");
+
+        for (DatagramPacket packet : samples()) {
+
+            byte [] bytes = bytes(packet);
+            PacketView view = view(bytes);
+
+            assertNotNull(view.message());
+            assertEquals(PacketChecker.checkPacket(bytes), view.message());
+            assertEquals(PacketChecker.checkPacket(bytes),
+                         PacketView.of(packet).message());
+        }
+    }
+
+    /**
+     * Also with malformed packets (cut or with changed bytes).
+     */
+    @Test
+    public void testMalformed () {
+        System.out.println("malformed");
+
+        Random random = new Random(42);
+
+        for (DatagramPacket packet : samples()) {
+
+            byte [] bytes = bytes(packet);
+
+            for (int i = 0; i < 200; i++) {
+
+                byte [] mutated = Arrays.copyOf(bytes,
+                                                random.nextInt(bytes.length + 2));
+
+                if (mutated.length > 0) {
+
+                    mutated [random.nextInt(Math.min(mutated.length, 16))]
+                            = (byte) random.nextInt(128);
+                }
+
+                assertEquals(PacketChecker.checkPacket(mutated),
+                             view(mutated).message());
+            }
+        }
+    }
+
+    /**
+     * Test of the fields of the packet.
+     */
+    @Test
+    public void testFields () {
+        System.out.println("fields");
+
+        byte [] bytes = bytes(PacketCreator.CHNG_DF_REQ(dataFlow, (byte) 9, port));
+        PacketView view = view(bytes);
+
+        assertEquals(ControlMessage.CHNG_DF_REQ.getCode(), view.group());
+        assertEquals(dataFlow, view.dataFlow());
+        assertEquals(port, view.replyPort());
+        assertEquals(9, view.get(ControlMessage.CHNG_DF_REQ.getLength() + 4));
+        assertEquals(InetAddress.getLoopbackAddress(), view.getAddress());
+        assertEquals(port, view.getPort());
+
+        /* Without port */
+        view = view(bytes(PacketCreator.NACK(dataFlow)));
+
+        assertEquals(ControlMessage.NACK, view.message());
+        assertEquals(-1, view.replyPort());
+
+        try {
+
+            view.get(view.getLength());
+            fail("Out of the packet");
+
+        } catch (IndexOutOfBoundsException ex) {
+
+            /* Expected */
+        }
+    }
+
+    /**
+     * The payload must share the bytes of the packet, and can't be modified.
+     */
+    @Test
+    public void testPayload () {
+        System.out.println("payload");
+
+        byte [] text = "Name: a.txt".getBytes();
+        byte [] bytes = bytes(PacketCreator.INFO(dataFlow, text, port));
+        int args = ControlMessage.INFO.getLength() + 4;
+        PacketView view = view(bytes);
+        ByteBuffer payload = view.payload(args);
+        byte [] read = new byte [payload.remaining()];
+
+        payload.get(read);
+
+        assertArrayEquals(text, read);
+        assertArrayEquals(text, view.toArray(args, view.getLength() - args));
+        assertTrue(payload.isReadOnly());
+        assertEquals(0, view.payload(view.getLength()).remaining());
+
+        try {
+
+            view.payload(args).put((byte) 0);
+            fail("The payload must be read-only");
+
+        } catch (ReadOnlyBufferException ex) {
+
+            /* Expected */
+        }
+    }
+
+    /**
+     * Test of hasMoreData method, of class PacketView.
+     */
+    @Test
+    public void testHasMoreData () {
+        System.out.println("hasMoreData");
+
+        for (DatagramPacket packet : PacketCreator.PLAIN(dataFlow, new byte [5000], port)) {
+
+            byte [] bytes = bytes(packet);
+
+            assertEquals(PacketChecker.hasMoreData(bytes),
+                         view(bytes).hasMoreData());
+        }
+    }
+}
@@ -0,0 +1,157 @@
+/*
+ * To change this license header, choose License Headers in Project Properties.
+ * To change this template file, choose Tools | Templates
+ * and open the template in the editor.
+ */
+package control;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.CountDownLatch;
+import org.junit.Test;
+import static org.junit.Assert.*;
+
+/**
+ *
+ */
+public class RTTEstimatorTest {
+
+    /**
+     * Test of sample method, of class RTTEstimator: the estimate must follow
+     * the samples with the gains of RFC 6298.
+     */
+    @Test
+    public void testSample () {
+        System.out.println("sample");
+
+        RTTEstimator instance = new RTTEstimator(1000, 200, 60000);
+
+        assertEquals(-1, instance.getSRTT(), 0);
+        assertEquals(1000, instance.getRTO());
+        assertEquals("- (RTO 1000 ms, 0 timeouts)", instance.toString());
+
+        /* First sample: SRTT = R, RTTVAR = R / 2 */
+        assertEquals(100, instance.sample(100), 0);
+        assertEquals(50, instance.getRTTVAR(), 0);
+        assertEquals(300, instance.getRTO());
+
+        /* RTTVAR = 3/4 * 50 + 1/4 * |100 - 300| = 87.5
+        SRTT = 7/8 * 100 + 1/8 * 300 = 125 */
+        assertEquals(125, instance.sample(300), 0.001);
+        assertEquals(87.5, instance.getRTTVAR(), 0.001);
+        assertEquals(475, instance.getRTO());
+
+        /* The estimate converges to a steady round trip time */
+        for (int i = 0; i < 200; i++) {
+
+            instance.sample(40);
+        }
+
+        assertEquals(40, instance.getSRTT(), 0.01);
+        assertEquals(200, instance.getRTO());
+
+        assertEquals(202, instance.getSamples());
+        assertEquals(40, instance.getMinRTT(), 0);
+        assertEquals(300, instance.getMaxRTT(), 0);
+        assertEquals(40, instance.getLatestRTT(), 0);
+
+        /* Negative samples are ignored */
+        instance.sample(-1);
+
+        assertEquals(202, instance.getSamples());
+    }
+
+    /**
+     * Test of timeout method, of class RTTEstimator: the RTO must double on
+     * every timeout, up to the maximum, until a new sample arrives.
+     */
+    @Test
+    public void testTimeout () {
+        System.out.println("timeout");
+
+        RTTEstimator instance = new RTTEstimator(1000, 1000, 60000);
+        long [] expected = {2000, 4000, 8000, 16000, 32000, 60000, 60000};
+
+        for (long rto : expected) {
+
+            assertEquals(rto, instance.timeout());
+        }
+
+        assertEquals(expected.length, instance.getTimeouts());
+
+        /* A new sample cancels the backoff */
+        instance.sample(100);
+
+        assertEquals(0, instance.getBackoff());
+        assertEquals(1000, instance.getRTO());
+
+        /* Many packets sent with the same backoff that time out together
+        double the RTO only once */
+        for (int i = 0; i < 10; i++) {
+
+            instance.timeout(0);
+        }
+
+        assertEquals(1, instance.getBackoff());
+        assertEquals(2000, instance.getRTO());
+        assertEquals(expected.length + 1, instance.getTimeouts());
+    }
+
+    /**
+     * Test of the concurrent updates of the estimate: no sample may be lost,
+     * and the estimate must stay consistent.
+     */
+    @Test
+    public void testConcurrency () throws InterruptedException {
+        System.out.println("concurrency");
+
+        RTTEstimator instance = new RTTEstimator(1000, 1, 60000);
+        int threads = 8;
+        int samples = 20000;
+        CountDownLatch start = new CountDownLatch(1);
+        List<Thread> workers = new ArrayList<>();
+
+        for (int i = 0; i < threads; i++) {
+
+            final float rtt = 10 + i;
+
+            workers.add(new Thread(() -> {
+
+                try {
+
+                    start.await();
+
+                } catch (InterruptedException ex) {
+
+                    return;
+                }
+
+                for (int j = 0; j < samples; j++) {
+
+                    instance.sample(rtt);
+                    instance.getRTO();
+                }
+            }));
+        }
+
+        for (Thread worker : workers) {
+
+            worker.start();
+        }
+
+        start.countDown();
+
+        for (Thread worker : workers) {
+
+            worker.join();
+        }
+
+        assertEquals(threads * samples, instance.getSamples());
+        assertEquals(10, instance.getMinRTT(), 0);
+        assertEquals(10 + threads - 1, instance.getMaxRTT(), 0);
+        assertTrue(instance.getSRTT() >= 10);
+        assertTrue(instance.getSRTT() <= 10 + threads - 1);
+
+        System.out.println(instance);
+    }
+}
@@ -0,0 +1,121 @@
+/*
+ * To change this license header, choose License Headers in Project Properties.
+ * To change this template file, choose Tools | Templates
+ * and open the template in the editor.
+ */
+package control;
+
+import java.net.InetAddress;
+import java.nio.ByteBuffer;
+import org.junit.Test;
+import static org.junit.Assert.*;
+
+/**
+ *
+ */
+public class ReassemblerTest {
+
+    private final InetAddress address = InetAddress.getLoopbackAddress();
+
+    private final int port = 1234;
+
+    private final byte dataFlow = 3;
+
+    /**
+     * Returns a buffer with the given text.
+     */
+    private ByteBuffer data (String text) {
+
+        return ByteBuffer.wrap(text.getBytes());
+    }
+
+    /**
+     * The message must be returned once, when its last fragment arrives, no
+     * matter the order or the duplicates.
+     */
+    @Test
+    public void testAdd () {
+        System.out.println("add");
+
+        Reassembler instance = new Reassembler(4, 8, 10000);
+        ByteBuffer middle = data("lo, ");
+
+        assertNull(instance.add(address, port, dataFlow, 1, 2, 3, data("world")));
+        assertNull(instance.add(address, port, dataFlow, 1, 1, 3, middle));
+        assertNull(instance.add(address, port, dataFlow, 1, 2, 3, data("world")));
+
+        /* The position of the buffer isn't changed */
+        assertEquals(0, middle.position());
+
+        /* Another sender, data flow or message doesn't complete it */
+        assertNull(instance.add(address, port + 1, dataFlow, 1, 0, 3, data("Hel")));
+        assertNull(instance.add(address, port, (byte) 4, 1, 0, 3, data("Hel")));
+        assertNull(instance.add(address, port, dataFlow, 2, 0, 3, data("Hel")));
+
+        assertArrayEquals("Hello, world".getBytes(),
+                          instance.add(address, port, dataFlow, 1, 0, 3, data("Hel")));
+
+        /* A retransmitted fragment doesn't show the message again */
+        assertNull(instance.add(address, port, dataFlow, 1, 0, 3, data("Hel")));
+
+        /* A single fragment is a whole message */
+        assertArrayEquals("Hi".getBytes(),
+                          instance.add(address, port, dataFlow, 5, 0, 1, data("Hi")));
+    }
+
+    /**
+     * The invalid fragments must be discarded, and every sender can't store
+     * more than the given number of messages.
+     */
+    @Test
+    public void testBounds () {
+        System.out.println("bounds");
+
+        Reassembler instance = new Reassembler(2, 4, 10000);
+
+        assertNull(instance.add(address, port, dataFlow, 1, 3, 3, data("a")));
+        assertNull(instance.add(address, port, dataFlow, 1, -1, 3, data("a")));
+        assertNull(instance.add(address, port, dataFlow, 1, 0, 5, data("a")));
+        assertEquals(0, instance.size());
+
+        assertNull(instance.add(address, port, dataFlow, 1, 0, 2, data("a")));
+
+        /* A different count doesn't belong to the same message */
+        assertNull(instance.add(address, port, dataFlow, 1, 1, 3, data("b")));
+
+        assertNull(instance.add(address, port, dataFlow, 2, 0, 2, data("c")));
+        assertNull(instance.add(address, port, dataFlow, 3, 0, 2, data("e")));
+        assertEquals(2, instance.size());
+
+        /* The first message has been dropped to make room for the third one */
+        assertArrayEquals("cd".getBytes(),
+                          instance.add(address, port, dataFlow, 2, 1, 2, data("d")));
+        assertNull(instance.add(address, port, dataFlow, 1, 1, 2, data("b")));
+        assertEquals(2, instance.size());
+    }
+
+    /**
+     * The messages must be dropped after the timeout.
+     */
+    @Test
+    public void testTimeout () throws InterruptedException {
+        System.out.println("timeout");
+
+        Reassembler instance = new Reassembler(4, 4, 200);
+        long limit = System.currentTimeMillis() + 5000;
+
+        assertNull(instance.add(address, port, dataFlow, 1, 0, 2, data("a")));
+        assertEquals(1, instance.size());
+
+        while ((instance.size() > 0) && (System.currentTimeMillis() < limit)) {
+
+            Thread.sleep(50);
+        }
+
+        assertEquals(0, instance.size());
+
+        /* The rest of the message starts a new one */
+        assertNull(instance.add(address, port, dataFlow, 1, 1, 2, data("b")));
+        assertEquals(1, instance.size());
+    }
+}
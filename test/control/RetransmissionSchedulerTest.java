@@ -0,0 +1,237 @@
+/*
+ * To change this license header, choose License Headers in Project Properties.
+ * To change this template file, choose Tools | Templates
+ * and open the template in the editor.
+ */
+package control;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import org.junit.Test;
+import static org.junit.Assert.*;
+
+/**
+ *
+ */
+public class RetransmissionSchedulerTest {
+
+    /**
+     * Test of submit method, of class RetransmissionScheduler, with an answer
+     * that arrives before the timeout.
+     */
+    @Test
+    public void testAnswered () throws Exception {
+        System.out.println("answered");
+
+        RetransmissionScheduler instance = new RetransmissionScheduler(5, 64, "Test timer");
+        RTTEstimator estimator = new RTTEstimator(1000, 1000, 60000);
+        CompletableFuture<Void> answer = new CompletableFuture<>();
+        AtomicInteger sent = new AtomicInteger();
+        List<Float> samples = new ArrayList<>();
+        CompletableFuture<Boolean> result;
+
+        result = instance.submit(sent::incrementAndGet, answer, 4, estimator,
+                                 samples::add);
+
+        assertEquals(1, sent.get());
+        assertEquals(1, instance.getOutstanding());
+        assertFalse(result.isDone());
+
+        answer.complete(null);
+
+        assertTrue(result.get(1, TimeUnit.SECONDS));
+        assertEquals(0, instance.getOutstanding());
+        assertEquals(1, samples.size());
+        assertEquals(0, instance.getRetransmissions());
+
+        /* The timer has been cancelled */
+        Thread.sleep(1200);
+
+        assertEquals(1, sent.get());
+    }
+
+    /**
+     * Test of submit method, of class RetransmissionScheduler, with an answer
+     * already completed: it mustn't be taken as the answer to the packet.
+     */
+    @Test
+    public void testAlreadyAnswered () throws Exception {
+        System.out.println("already answered");
+
+        RetransmissionScheduler instance = new RetransmissionScheduler(5, 64, "Test timer");
+        RTTEstimator estimator = new RTTEstimator(1000, 1000, 60000);
+        CompletableFuture<Void> answer = CompletableFuture.completedFuture(null);
+        AtomicInteger sent = new AtomicInteger();
+
+        try {
+
+            instance.submit(sent::incrementAndGet, answer, 4, estimator, null);
+            fail("A completed answer must be rejected");
+
+        } catch (IllegalArgumentException ex) {
+
+            /* Expected */
+        }
+
+        assertEquals(0, sent.get());
+        assertEquals(0, instance.getOutstanding());
+        assertEquals(0, instance.getSubmitted());
+    }
+
+    /**
+     * Test of submit method, of class RetransmissionScheduler, with no answer:
+     * the packet must be sent on every try, waiting more every time.
+     */
+    @Test
+    public void testNoAnswer () throws Exception {
+        System.out.println("no answer");
+
+        RetransmissionScheduler instance = new RetransmissionScheduler(5, 64, "Test timer");
+        RTTEstimator estimator = new RTTEstimator(50, 50, 60000);
+        List<Long> sent = new ArrayList<>();
+        CompletableFuture<Boolean> result;
+        long start = System.nanoTime();
+
+        result = instance.submit(() -> sent.add(System.nanoTime() - start),
+                                 new CompletableFuture<>(), 4, estimator, null);
+
+        assertFalse(result.get(5, TimeUnit.SECONDS));
+        assertEquals(4, sent.size());
+        assertEquals(3, instance.getRetransmissions());
+        assertEquals(1, instance.getFailures());
+        assertEquals(0, instance.getOutstanding());
+
+        /* Exponential backoff: 50, 100, 200 and 400 ms */
+        assertEquals(4, estimator.getBackoff());
+        assertTrue(TimeUnit.NANOSECONDS.toMillis(sent.get(3) - sent.get(2))
+                   >= TimeUnit.NANOSECONDS.toMillis(sent.get(1) - sent.get(0)) * 3);
+        assertTrue(TimeUnit.NANOSECONDS.toMillis(System.nanoTime() - start) >= 750);
+    }
+
+    /**
+     * Test of submit method, of class RetransmissionScheduler, with a fixed
+     * timeout: the estimator of the destination mustn't be backed off, and the
+     * packet isn't taken as a failure.
+     */
+    @Test
+    public void testFixedTimeout () throws Exception {
+        System.out.println("fixed timeout");
+
+        RetransmissionScheduler instance = new RetransmissionScheduler(5, 64, "Test timer");
+        RTTEstimator estimator = new RTTEstimator(50, 50, 60000);
+        AtomicInteger sent = new AtomicInteger();
+        CompletableFuture<Void> answer = new CompletableFuture<>();
+        CompletableFuture<Boolean> result;
+
+        result = instance.submit(sent::incrementAndGet,
+                                 new CompletableFuture<>(), 3, 50);
+
+        assertFalse(result.get(5, TimeUnit.SECONDS));
+        assertEquals(3, sent.get());
+        assertEquals(2, instance.getRetransmissions());
+        assertEquals(0, instance.getFailures());
+
+        /* Another packet to the same destination, that gets its answer */
+        result = instance.submit(sent::incrementAndGet, answer, 3, 1000);
+        answer.complete(null);
+
+        assertTrue(result.get(1, TimeUnit.SECONDS));
+        assertEquals(0, instance.getOutstanding());
+        assertEquals(0, estimator.getBackoff());
+        assertEquals(0, estimator.getTimeouts());
+        assertEquals(0, estimator.getSamples());
+    }
+
+    /**
+     * A retransmission whose send blocks mustn't stop the timers of the other
+     * packets.
+     */
+    @Test
+    public void testBlockedSend () throws Exception {
+        System.out.println("blocked send");
+
+        RetransmissionScheduler instance = new RetransmissionScheduler(5, 64, "Test timer");
+        RTTEstimator estimator = new RTTEstimator(50, 50, 60000);
+        CountDownLatch release = new CountDownLatch(1);
+        AtomicInteger sent = new AtomicInteger();
+        CompletableFuture<Boolean> blocked;
+        CompletableFuture<Boolean> result;
+
+        /* Every retransmission of this packet blocks until the other one
+        has timed out */
+        blocked = instance.submit(() -> {
+
+            if (sent.incrementAndGet() > 1) {
+
+                try {
+
+                    release.await();
+
+                } catch (InterruptedException ex) {
+
+                    Thread.currentThread().interrupt();
+                }
+            }
+        }, new CompletableFuture<>(), 2, 50);
+
+        result = instance.submit(() -> {}, new CompletableFuture<>(), 2,
+                                 estimator, null);
+
+        assertFalse(result.get(5, TimeUnit.SECONDS));
+        assertEquals(2, estimator.getBackoff());
+
+        release.countDown();
+
+        assertFalse(blocked.get(5, TimeUnit.SECONDS));
+        assertEquals(2, sent.get());
+    }
+
+    /**
+     * Many packets waiting at the same time must not need a thread each.
+     */
+    @Test
+    public void testManyPackets () throws Exception {
+        System.out.println("many packets");
+
+        RetransmissionScheduler instance = new RetransmissionScheduler(5, 64, "Test timer");
+        RTTEstimator estimator = new RTTEstimator(100, 100, 60000);
+        List<CompletableFuture<Void>> answers = new ArrayList<>();
+        List<CompletableFuture<Boolean>> results = new ArrayList<>();
+        int threads = Thread.activeCount();
+        int packets = 5000;
+
+        for (int i = 0; i < packets; i++) {
+
+            answers.add(new CompletableFuture<>());
+            results.add(instance.submit(() -> {}, answers.get(i), 2, estimator, null));
+        }
+
+        assertEquals(packets, instance.getOutstanding());
+
+        /* The wheel and the sender of the retransmissions */
+        assertTrue(Thread.activeCount() <= threads + 2);
+
+        /* Half of them are answered */
+        for (int i = 0; i < packets; i += 2) {
+
+            answers.get(i).complete(null);
+        }
+
+        for (int i = 0; i < packets; i++) {
+
+            assertEquals((i % 2) == 0, results.get(i).get(5, TimeUnit.SECONDS));
+        }
+
+        assertEquals(0, instance.getOutstanding());
+        assertEquals(packets / 2, instance.getFailures());
+
+        /* All of them timed out together, so the RTO was only doubled twice */
+        assertEquals(2, estimator.getBackoff());
+
+        System.out.println("\t" + instance);
+    }
+}
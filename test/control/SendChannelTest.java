@@ -0,0 +1,223 @@
+/*
+ * To change this license header, choose License Headers in Project Properties.
+ * To change this template file, choose Tools | Templates
+ * and open the template in the editor.
+ */
+package control;
+
+import packets.ControlMessage;
+import packets.PacketChecker;
+import packets.PacketCreator;
+import peer.Peer;
+import peer.ServerThread;
+import java.net.DatagramPacket;
+import java.net.DatagramSocket;
+import java.net.InetAddress;
+import java.net.InetSocketAddress;
+import java.nio.ByteBuffer;
+import java.nio.channels.DatagramChannel;
+import java.util.ArrayList;
+import java.util.concurrent.TimeUnit;
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+import static org.junit.Assert.*;
+
+/**
+ * Tests of the packets sent through the channel of {@code ServerThread}, and
+ * benchmark of the ACK turnaround.
+ */
+public class SendChannelTest {
+
+    private Peer peer;
+
+    private DatagramChannel client;
+
+    private final byte dataFlow = 5;
+
+    private final ByteBuffer buffer = ByteBuffer.allocate(1024);
+
+    @Before
+    public void setUp () throws Exception {
+
+        peer = new Peer();
+
+        client = DatagramChannel.open();
+        client.bind(new InetSocketAddress(InetAddress.getLoopbackAddress(), 0));
+        client.socket().setSoTimeout(5000);
+    }
+
+    @After
+    public void tearDown () throws Exception {
+
+        peer.getServer().close();
+        client.close();
+    }
+
+    /**
+     * Sends the given packet to the server of the peer, from the client.
+     */
+    private void toServer (DatagramPacket packet) throws Exception {
+
+        client.send(ByteBuffer.wrap(packet.getData(), 0, packet.getLength()),
+                    new InetSocketAddress(InetAddress.getLoopbackAddress(),
+                                          peer.getServer().getPort()));
+    }
+
+    /**
+     * Waits for a packet on the client and returns the port where it came
+     * from. The received data is left on {@code buffer}.
+     */
+    private int receive () throws Exception {
+
+        DatagramPacket packet = new DatagramPacket(new byte [1024], 1024);
+
+        client.socket().receive(packet);
+
+        buffer.clear();
+        buffer.put(packet.getData(), 0, packet.getLength());
+        buffer.flip();
+
+        return packet.getPort();
+    }
+
+    /**
+     * Returns the control message received on {@code buffer}.
+     */
+    private ControlMessage received () {
+
+        byte [] data = new byte [buffer.remaining()];
+
+        buffer.duplicate().get(data);
+
+        return PacketChecker.checkPacket(data);
+    }
+
+    /**
+     * Makes the peer add the client to its list of hosts.
+     */
+    private void hello () throws Exception {
+
+        toServer(PacketCreator.HELLO(dataFlow, client.socket().getLocalPort()));
+
+        receive();
+        assertEquals(ControlMessage.ACK, received());
+    }
+
+    /**
+     * The answers must leave from the server port.
+     */
+    @Test
+    public void testRepliesFromServerPort () throws Exception {
+        System.out.println("replies from server port");
+
+        toServer(PacketCreator.HELLO(dataFlow, client.socket().getLocalPort()));
+
+        assertEquals(peer.getServer().getPort(), receive());
+        assertEquals(ControlMessage.ACK, received());
+
+        toServer(PacketCreator.CHECK_CON(dataFlow, client.socket().getLocalPort()));
+
+        assertEquals(peer.getServer().getPort(), receive());
+        assertEquals(ControlMessage.ACK, received());
+    }
+
+    /**
+     * Test of send method (batch), of class ServerThread.
+     */
+    @Test
+    public void testSendBatch () throws Exception {
+        System.out.println("send - batch");
+
+        ArrayList<DatagramPacket> packets = new ArrayList<>();
+        ServerThread server = peer.getServer();
+
+        for (int i = 0; i < 20; i++) {
+
+            DatagramPacket p = PacketCreator.ACK(dataFlow, i);
+
+            p.setAddress(InetAddress.getLoopbackAddress());
+            p.setPort(client.socket().getLocalPort());
+            packets.add(p);
+        }
+
+        assertEquals(packets.size(), server.send(packets));
+
+        for (int i = 0; i < packets.size(); i++) {
+
+            assertEquals(server.getPort(), receive());
+            assertEquals(ControlMessage.ACK, received());
+        }
+    }
+
+    /**
+     * Benchmark of the ACK turnaround, and of the cost of sending the ACK
+     * with the shared channel against creating a socket for every packet (as
+     * it was done before).
+     */
+    @Test
+    public void testAckTurnaround () throws Exception {
+        System.out.println("ACK turnaround");
+
+        int rounds = 2000;
+        DatagramPacket check = PacketCreator.CHECK_CON(dataFlow,
+                                                       client.socket().getLocalPort());
+        DatagramPacket ack = PacketCreator.ACK(dataFlow, peer.getServer().getPort());
+        long start;
+        long turnaround;
+        long perSocket;
+        long shared;
+
+        hello();
+
+        /* Round trips CHECK_CON -> ACK */
+        start = System.nanoTime();
+
+        for (int i = 0; i < rounds; i++) {
+
+            toServer(check);
+            receive();
+        }
+
+        turnaround = (System.nanoTime() - start) / rounds;
+
+        ack.setAddress(InetAddress.getLoopbackAddress());
+        ack.setPort(client.socket().getLocalPort());
+
+        /* Sending cost, both ways. The client isn't read, so some datagrams
+        are dropped, but that doesn't change the cost of sending them */
+        perSocket = Long.MAX_VALUE;
+        shared = Long.MAX_VALUE;
+
+        for (int r = 0; r < 3; r++) {
+
+            start = System.nanoTime();
+
+            for (int i = 0; i < rounds; i++) {
+
+                try (DatagramSocket socket = new DatagramSocket()) {
+
+                    socket.send(ack);
+                }
+            }
+
+            perSocket = Math.min(perSocket, (System.nanoTime() - start) / rounds);
+
+            start = System.nanoTime();
+
+            for (int i = 0; i < rounds; i++) {
+
+                assertTrue(peer.getServer().send(ack));
+            }
+
+            shared = Math.min(shared, (System.nanoTime() - start) / rounds);
+        }
+
+        System.out.println("\tturnaround: "
+                           + TimeUnit.NANOSECONDS.toMicros(turnaround) + " us"
+                           + "\n\tsend with a new socket: "
+                           + TimeUnit.NANOSECONDS.toMicros(perSocket) + " us"
+                           + "\n\tsend with the shared channel: "
+                           + TimeUnit.NANOSECONDS.toMicros(shared) + " us");
+    }
+}
@@ -0,0 +1,185 @@
+/*
+ * To change this license header, choose License Headers in Project Properties.
+ * To change this template file, choose Tools | Templates
+ * and open the template in the editor.
+ */
+package control;
+
+import common.Common;
+import peer.Host;
+import peer.PacketExecutor.Priority;
+import peer.Peer;
+import java.io.ByteArrayOutputStream;
+import java.io.OutputStream;
+import java.net.InetAddress;
+import java.util.ArrayList;
+import java.util.Random;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.TimeUnit;
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+import static org.junit.Assert.*;
+
+/**
+ * Tests of {@code Peer.sendMessageAsync()} to a room with many peers on the
+ * loopback interface.
+ */
+public class SendMessageTest {
+
+    private final byte dataFlow = 3;
+
+    private final int members = 8;
+
+    private Peer origin;
+
+    private ArrayList<Peer> room;
+
+    @Before
+    public void setUp () throws InterruptedException {
+
+        origin = new Peer();
+        room = new ArrayList<>();
+
+        for (int i = 0; i < members; i++) {
+
+            Peer member = new Peer();
+
+            room.add(member);
+
+            assertTrue(origin.joinChatRoom(new Host(InetAddress.getLoopbackAddress(),
+                                                    member.getServer().getPort(),
+                                                    dataFlow),
+                                           dataFlow));
+            member.joinChatRoom(new Host(InetAddress.getLoopbackAddress(),
+                                         origin.getServer().getPort(),
+                                         dataFlow),
+                                dataFlow);
+        }
+    }
+
+    @After
+    public void tearDown () {
+
+        origin.getServer().close();
+
+        for (Peer member : room) {
+
+            member.getServer().close();
+        }
+    }
+
+    /**
+     * Output that keeps apart what every thread writes, so the long messages
+     * shown at the same time by different peers don't get mixed.
+     */
+    private static final class Output extends OutputStream {
+
+        private final ConcurrentHashMap<Thread, ByteArrayOutputStream> written =
+                                                        new ConcurrentHashMap<>();
+
+        private ByteArrayOutputStream current () {
+
+            return written.computeIfAbsent(Thread.currentThread(),
+                                           t -> new ByteArrayOutputStream());
+        }
+
+        @Override
+        public void write (int b) {
+
+            current().write(b);
+        }
+
+        @Override
+        public void write (byte [] b, int off, int len) {
+
+            current().write(b, off, len);
+        }
+
+        /**
+         * Returns the number of times that the given text has been written.
+         */
+        private int occurrences (String text) {
+
+            int count = 0;
+
+            for (ByteArrayOutputStream output : written.values()) {
+
+                String logged = output.toString();
+                int index = 0;
+
+                while ((index = logged.indexOf(text, index)) >= 0) {
+
+                    count++;
+                    index += text.length();
+                }
+            }
+
+            return count;
+        }
+    }
+
+    /**
+     * The message must reach all the hosts of the room, without blocking the
+     * calling thread, and every one of them must show it once (the long one,
+     * with its fragments joined in order).
+     */
+    @Test
+    public void testFanOut () throws Exception {
+        System.out.println("sendMessageAsync - fan out");
+
+        StringBuilder longText = new StringBuilder();
+        String alphabet = "abcdefghijklmnopqrstuvwxyzABCDEFGHIJKLMNOPQRSTUVWXYZ0123456789 .";
+        Random random = new Random(42);
+        Output output = new Output();
+        CompletableFuture<ArrayList<Host>> failures;
+        long [] handled = new long [members];
+        long start;
+
+        /* Random text doesn't get much shorter when it's compressed, so it's
+        sent on fragments even if the path takes the largest datagrams */
+        for (int i = 0; i < 100000; i++) {
+
+            longText.append(alphabet.charAt(random.nextInt(alphabet.length())));
+        }
+
+        /* The received messages are shown through the logger, shared by all
+        the peers */
+        Common.logger.addStream(output, 2);
+
+        for (String message : new String [] {"Hello room", longText.toString()}) {
+
+            for (int i = 0; i < members; i++) {
+
+                handled [i] = room.get(i).getServer().getExecutor()
+                                  .getHandled(Priority.TEXT);
+            }
+
+            start = System.nanoTime();
+            failures = origin.sendMessageAsync(message, dataFlow);
+
+            assertTrue(failures.get(10, TimeUnit.SECONDS).isEmpty());
+
+            System.out.println("\t" + message.length() + " characters to "
+                               + members + " hosts in "
+                               + TimeUnit.NANOSECONDS.toMillis(System.nanoTime() - start)
+                               + " ms");
+
+            /* Every member handled the text (all the fragments of the long
+            message) */
+            for (int i = 0; i < members; i++) {
+
+                assertTrue(room.get(i).getServer().getExecutor()
+                               .getHandled(Priority.TEXT) - handled [i]
+                           >= ((message.length() > Common.MAX_DATAGRAM_SIZE)? 2 : 1));
+            }
+
+            /* The messages are shown before the ACK is sent, so all of them
+            are already on the output, once per member */
+            assertEquals(members, output.occurrences(message));
+        }
+
+        assertEquals(members, origin.getHostsList().search(dataFlow).size());
+    }
+}
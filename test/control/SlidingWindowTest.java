@@ -0,0 +1,438 @@
+/*
+ * To change this license header, choose License Headers in Project Properties.
+ * To change this template file, choose Tools | Templates
+ * and open the template in the editor.
+ */
+package control;
+
+import files.ReceiveWindow;
+import files.SendWindow;
+import packets.ControlMessage;
+import packets.PacketEncoder;
+import packets.PacketView;
+import java.net.InetAddress;
+import java.nio.ByteBuffer;
+import java.util.PriorityQueue;
+import java.util.Random;
+import org.junit.Test;
+import static org.junit.Assert.*;
+
+/**
+ *
+ */
+public class SlidingWindowTest {
+
+    private final int port = 54321;
+
+    private final byte dataFlow = 3;
+
+    /**
+     * Chunks sent again on the last simulated transfer.
+     */
+    private int retransmissions;
+
+    /**
+     * Average time (in milliseconds) that the chunks waited on the queue of
+     * the link on the last simulated transfer.
+     */
+    private double queueDelay;
+
+    /**
+     * Event of the simulated link: a chunk or an acknowledgement that
+     * arrives, or a timer of the sender.
+     */
+    private static class Event implements Comparable<Event> {
+
+        final long time;
+        final long order;
+        final int index;
+        final int [] sack;
+
+        Event (long time, long order, int index, int [] sack) {
+
+            this.time = time;
+            this.order = order;
+            this.index = index;
+            this.sack = sack;
+        }
+
+        @Override
+        public int compareTo (Event other) {
+
+            return (time != other.time)?
+                        Long.compare(time, other.time)
+                      : Long.compare(order, other.order);
+        }
+    }
+
+    /**
+     * Returns a view over the written packet.
+     */
+    private PacketView view (ByteBuffer buffer, int length) {
+
+        assertTrue(length > 0);
+        buffer.limit(length);
+
+        return new PacketView(buffer, InetAddress.getLoopbackAddress(), port);
+    }
+
+    /**
+     * Sends a file through a simulated link and returns the time that it took,
+     * in milliseconds.
+     *
+     * @param window
+     *              Chunks in flight (1 for stop-and-wait).
+     *
+     * @param rtt
+     *              Round trip time of the link, in milliseconds.
+     *
+     * @param loss
+     *              Probability of losing a chunk or an acknowledgement.
+     *
+     * @param chunks
+     *              Number of chunks of the file.
+     */
+    private long transfer (int window, long rtt, double loss, int chunks) {
+
+        return transfer(window, rtt, loss, chunks, null, Integer.MAX_VALUE);
+    }
+
+    /**
+     * Sends a file through a simulated link with a limited queue and returns
+     * the time that it took, in milliseconds.
+     *
+     * @param window
+     *              Chunks in flight (1 for stop-and-wait).
+     *
+     * @param rtt
+     *              Round trip time of the link, in milliseconds.
+     *
+     * @param loss
+     *              Probability of losing a chunk or an acknowledgement.
+     *
+     * @param chunks
+     *              Number of chunks of the file.
+     *
+     * @param congestion
+     *              Congestion controller of the sender, or {@code null}.
+     *
+     * @param queue
+     *              Chunks that the link can hold before dropping them.
+     */
+    private long transfer (int window,
+                           long rtt,
+                           double loss,
+                           int chunks,
+                           CongestionControl congestion,
+                           int queue) {
+
+        Random random = new Random(chunks + rtt);
+        PriorityQueue<Event> events = new PriorityQueue<>();
+        SendWindow sender = new SendWindow(chunks, window, 8192, congestion, 0);
+        ReceiveWindow receiver = new ReceiveWindow(null);
+        long now = 0;
+        long order = 0;
+        long link = 0;
+        long waited = 0;
+        int sent = 0;
+        int index;
+
+        events.add(new Event(0, order++, -1, null));
+
+        while (!sender.isComplete()) {
+
+            Event event = events.poll();
+
+            now = event.time;
+
+            /* One hour is taken as stalled */
+            assertTrue(now < 3600000);
+
+            if (event.sack != null) {
+
+                sender.acknowledge(event.sack, now);
+
+            } else if (event.index >= 0) {
+
+                if (receiver.offset(1, event.index, chunks, 8192) >= 0) {
+
+                    receiver.mark(event.index);
+                }
+
+                if (random.nextDouble() >= loss) {
+
+                    events.add(new Event(now + rtt / 2, order++, -1, receiver.sack()));
+                }
+            }
+
+            /* The link sends a chunk every millisecond (8 MB/s), and drops
+            the ones that don't fit on its queue */
+            while ((index = sender.poll(now)) >= 0) {
+
+                if (Math.max(link, now) - now >= queue) {
+
+                    continue;
+                }
+
+                link = Math.max(link, now) + 1;
+                waited += link - 1 - now;
+                sent++;
+
+                if (random.nextDouble() >= loss) {
+
+                    events.add(new Event(link + rtt / 2, order++, index, null));
+                }
+            }
+
+            events.add(new Event(now + Math.max(1, sender.timeout(now)),
+                                 order++, -1, null));
+        }
+
+        assertTrue(receiver.isComplete());
+
+        retransmissions = sender.getRetransmissions();
+        queueDelay = (double) waited / sent;
+
+        return now;
+    }
+
+    /**
+     * The chunks must be placed on the file after the length of the chunks is
+     * known, and the acknowledgements must show the blocks received.
+     */
+    @Test
+    public void testReceiveWindow () {
+        System.out.println("receive window");
+
+        ReceiveWindow instance = new ReceiveWindow("file");
+
+        /* The last chunk can't be placed yet */
+        assertEquals(-1, instance.offset(7, 9, 10, 100));
+        assertArrayEquals(new int [] {0}, instance.sack());
+
+        assertEquals(300, instance.offset(7, 3, 10, 100));
+        instance.mark(3);
+        assertEquals(900, instance.offset(7, 9, 10, 50));
+        instance.mark(9);
+        assertEquals(0, instance.offset(7, 0, 10, 100));
+        instance.mark(0);
+
+        assertArrayEquals(new int [] {1, 3, 4, 9, 10}, instance.sack());
+
+        /* Duplicates, other transfers and different lengths are ignored */
+        assertEquals(-1, instance.offset(7, 3, 10, 100));
+        assertEquals(-1, instance.offset(8, 4, 10, 100));
+        assertEquals(-1, instance.offset(7, 4, 10, 99));
+
+        for (int i = 1; i < 9; i++) {
+
+            if (i != 3) {
+
+                assertEquals(i * 100, instance.offset(7, i, 10, 100));
+                instance.mark(i);
+            }
+        }
+
+        assertTrue(instance.isComplete());
+        assertArrayEquals(new int [] {10}, instance.sack());
+    }
+
+    /**
+     * The lost chunks must be sent again when the acknowledgements show a gap,
+     * and when their timeout expires.
+     */
+    @Test
+    public void testRetransmit () {
+        System.out.println("retransmit");
+
+        SendWindow instance = new SendWindow(20, 8, 0);
+
+        for (int i = 0; i < 8; i++) {
+
+            assertEquals(i, instance.poll(0));
+        }
+
+        /* The window is full */
+        assertEquals(-1, instance.poll(0));
+
+        /* Chunk 0 is lost, and three chunks after it have been received */
+        assertTrue(instance.acknowledge(new int [] {0, 1, 4}, 10));
+        assertEquals(0, instance.poll(10));
+        assertEquals(1, instance.getRetransmissions());
+
+        /* Their room on the window is taken by new chunks */
+        assertEquals(8, instance.poll(10));
+        assertEquals(9, instance.poll(10));
+        assertEquals(10, instance.poll(10));
+        assertEquals(-1, instance.poll(10));
+
+        /* The window moves forward */
+        assertTrue(instance.acknowledge(new int [] {4}, 20));
+        assertEquals(4, instance.getCumulative());
+        assertEquals(11, instance.poll(20));
+
+        /* Three duplicates of the same acknowledgement */
+        for (int i = 0; i < SendWindow.DUPLICATE_ACKS; i++) {
+
+            assertEquals(-1, instance.poll(30));
+            assertFalse(instance.acknowledge(new int [] {4}, 30));
+        }
+
+        assertEquals(4, instance.poll(30));
+        assertEquals(2, instance.getRetransmissions());
+
+        /* Timeout of the oldest chunk (5, sent at 0): all the chunks in flight
+        are sent again */
+        long rto = instance.getRTO();
+
+        assertEquals(-1, instance.poll(30));
+        assertEquals(rto - 30, instance.timeout(30));
+        assertEquals(4, instance.poll(rto));
+        assertEquals(5, instance.poll(rto));
+        assertEquals(2 * rto, instance.getRTO());
+
+        /* The acknowledgements beyond the sent chunks are ignored */
+        instance.acknowledge(new int [] {20}, rto + 10);
+        assertFalse(instance.isComplete());
+        assertEquals(12, instance.getCumulative());
+    }
+
+    /**
+     * The chunks and the selective acknowledgements must be valid compact
+     * packets, and give back their fields.
+     */
+    @Test
+    public void testPackets () {
+        System.out.println("packets");
+
+        ByteBuffer buffer = ByteBuffer.allocate(256);
+        byte [] data = {1, 2, 3, 4, 5};
+        int [] sack = {7, 9, 12, 300, 301};
+        PacketView view;
+
+        view = view(buffer, PacketEncoder.fragment(buffer, 0, ControlMessage.DATA,
+                                                   dataFlow, data, 1, 3, port,
+                                                   77, 2, 500, 0));
+
+        assertEquals(ControlMessage.DATA, view.message());
+        assertEquals(77, view.messageId());
+        assertEquals(2, view.fragmentIndex());
+        assertEquals(500, view.fragmentCount());
+        assertEquals(3, view.argumentsLength());
+        assertNull(view.sack());
+
+        buffer.clear();
+        view = view(buffer, PacketEncoder.sack(buffer, 0, dataFlow, port, -1, sack));
+
+        assertEquals(ControlMessage.ACK, view.message());
+        assertEquals(port, view.replyPort());
+        assertEquals(-1, view.requestId());
+        assertArrayEquals(sack, view.sack());
+
+        /* The answer to the INFO */
+        buffer.clear();
+        view = view(buffer, PacketEncoder.sack(buffer, 0, dataFlow, port, 300,
+                                               new int [] {0}));
+
+        assertEquals(300, view.requestId());
+        assertArrayEquals(new int [] {0}, view.sack());
+
+        /* An ACK with arguments must be selective, and only an ACK can be */
+        buffer.clear();
+        buffer.limit(PacketEncoder.sack(buffer, 0, dataFlow, port, -1, sack));
+        buffer.put(3, (byte) 0);
+
+        assertNull(new PacketView(buffer, InetAddress.getLoopbackAddress(), port).message());
+
+        buffer.put(3, (byte) PacketEncoder.FLAG_SACK);
+        buffer.put(2, ControlMessage.PLAIN.getOpcode());
+
+        assertNull(new PacketView(buffer, InetAddress.getLoopbackAddress(), port).message());
+
+        /* A block without its end is malformed */
+        buffer.clear();
+        view = view(buffer, PacketEncoder.sack(buffer, 0, dataFlow, port, -1,
+                                               new int [] {0, 5}));
+
+        assertNull(view.sack());
+    }
+
+    /**
+     * Benchmark of the transfer of a file of 8 MB through a simulated link of
+     * 8 MB/s, with different round trip times and losses, on stop-and-wait
+     * and with a window of 64 chunks.
+     */
+    @Test
+    public void testThroughput () {
+        System.out.println("throughput");
+
+        int chunks = 1024;
+        double megabytes = chunks * 8192 / (1024.0 * 1024.0);
+        long [] rtts = {10, 50, 200};
+        double [] losses = {0, 0.01, 0.05};
+
+        for (long rtt : rtts) {
+
+            for (double loss : losses) {
+
+                double stopAndWait = megabytes * 1000 / transfer(1, rtt, loss, chunks);
+                double windowed = megabytes * 1000 / transfer(64, rtt, loss, chunks);
+
+                System.out.println(String.format("RTT %3d ms, loss %2.0f%%:"
+                                                 + " stop-and-wait %6.3f MB/s,"
+                                                 + " window %6.3f MB/s",
+                                                 rtt, loss * 100,
+                                                 stopAndWait, windowed));
+
+                assertTrue(windowed > 5 * stopAndWait);
+            }
+        }
+    }
+
+    /**
+     * Through a link with a short queue, the congestion controllers must lose
+     * fewer chunks than a fixed window, and the low priority one must keep the
+     * queue shorter than the others.
+     */
+    @Test
+    public void testCongestion () {
+        System.out.println("congestion");
+
+        int chunks = 2048;
+        double megabytes = chunks * 8192 / (1024.0 * 1024.0);
+        CongestionControl [] controllers = {
+            null,
+            new NewReno(8192),
+            new Ledbat(8192, 25)
+        };
+        int [] lost = new int [controllers.length];
+        double [] delays = new double [controllers.length];
+
+        for (int i = 0; i < controllers.length; i++) {
+
+            double speed = megabytes * 1000 / transfer(256, 50, 0, chunks,
+                                                       controllers [i], 64);
+
+            lost [i] = retransmissions;
+            delays [i] = queueDelay;
+
+            System.out.println(String.format("%-8s %6.3f MB/s, %4d chunks sent again,"
+                                             + " %5.1f ms on the queue (%s)",
+                                             (controllers [i] == null)?
+                                                "fixed"
+                                              : controllers [i].getClass().getSimpleName(),
+                                             speed, lost [i], delays [i],
+                                             controllers [i]));
+
+            if (controllers [i] != null) {
+
+                /* Nothing is left in flight */
+                assertEquals(0, controllers [i].getInFlight());
+            }
+        }
+
+        assertTrue(lost [1] < lost [0]);
+        assertTrue(lost [2] <= lost [1]);
+        assertTrue(delays [2] < delays [1]);
+    }
+}
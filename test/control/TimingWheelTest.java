@@ -0,0 +1,90 @@
+/*
+ * To change this license header, choose License Headers in Project Properties.
+ * To change this template file, choose Tools | Templates
+ * and open the template in the editor.
+ */
+package control;
+
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+import static org.junit.Assert.*;
+
+/**
+ *
+ */
+public class TimingWheelTest {
+
+    private TimingWheel instance;
+
+    @Before
+    public void setUp () {
+
+        /* Short turns, so some tasks need more than one */
+        instance = new TimingWheel(10, 8, "Test wheel");
+    }
+
+    @After
+    public void tearDown () {
+
+        instance.stop();
+    }
+
+    /**
+     * Test of schedule method, of class TimingWheel.
+     */
+    @Test
+    public void testSchedule () throws InterruptedException {
+        System.out.println("schedule");
+
+        int tasks = 200;
+        CountDownLatch latch = new CountDownLatch(tasks);
+        ConcurrentLinkedQueue<Long> early = new ConcurrentLinkedQueue<>();
+
+        for (int i = 0; i < tasks; i++) {
+
+            long delay = (i % 20) * 15;
+            long start = System.nanoTime();
+
+            instance.schedule(() -> {
+
+                long elapsed = TimeUnit.NANOSECONDS.toMillis(System.nanoTime() - start);
+
+                if (elapsed < delay) {
+
+                    early.add(elapsed);
+                }
+
+                latch.countDown();
+            }, delay);
+        }
+
+        assertTrue(latch.await(5, TimeUnit.SECONDS));
+        assertTrue("Tasks run too early: " + early, early.isEmpty());
+    }
+
+    /**
+     * Test of cancel method, of class TimingWheel.Timeout.
+     */
+    @Test
+    public void testCancel () throws InterruptedException {
+        System.out.println("cancel");
+
+        AtomicInteger runs = new AtomicInteger();
+        CountDownLatch latch = new CountDownLatch(1);
+
+        TimingWheel.Timeout cancelled = instance.schedule(runs::incrementAndGet, 50);
+        instance.schedule(latch::countDown, 100);
+
+        assertTrue(cancelled.cancel());
+        assertFalse(cancelled.cancel());
+        assertTrue(cancelled.isCancelled());
+
+        assertTrue(latch.await(5, TimeUnit.SECONDS));
+        assertEquals(0, runs.get());
+    }
+}